@@ -3,6 +3,7 @@ package flame.flame;
 import java.util.*;
 import java.io.*;
 import flame.kvs.Row;
+import flame.kvs.RowFilter;
 import flame.kvs.KVSClient;
 
 public interface FlameContext {
@@ -35,4 +36,14 @@ public interface FlameContext {
   // workers, just like the RDD/PairRDD operations.
 
   public FlameRDD fromTable(String tableName, RowToString lambda) throws Exception;
+
+  // Same as fromTable(), but the lambda only sees the listed columns of each Row (or just the
+  // key, if no columns are listed). The other columns are never sent over the network.
+
+  public FlameRDD fromTable(String tableName, RowToString lambda, String... columns) throws Exception;
+
+  // Same as fromTable(), but the KVS workers only send the Rows that match the filter. The
+  // filter sees entire Rows, even if only some columns are passed on to the lambda.
+
+  public FlameRDD fromTable(String tableName, RowFilter filter, RowToString lambda, String... columns) throws Exception;
 }
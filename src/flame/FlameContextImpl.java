@@ -9,6 +9,7 @@ import flame.tools.Serializer;
 import java.io.Serializable;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.List;
 import java.util.Vector;
@@ -29,10 +30,12 @@ public class FlameContextImpl implements FlameContext, Serializable {
     public FlameRDD parallelize(List<String> data) throws Exception {
         String tableName = "RDD_" + System.currentTimeMillis();
 
+        KVSClient.BatchWriter output = kvs.batchWriter(tableName);
         for (int i = 0; i < data.size(); i++) {
             String key = Hasher.hash(i + "");
-            kvs.put(tableName, key, "value", data.get(i));
+            output.put(key, "value", data.get(i));
         }
+        output.close();
 
         return new FlameRDDImpl(tableName, kvs, flameCoordinatorAddr);
     }
@@ -70,14 +73,10 @@ public class FlameContextImpl implements FlameContext, Serializable {
         List<Integer> statusCodes = Collections.synchronizedList(new ArrayList<>());
         List<String> results = Collections.synchronizedList(new ArrayList<>());
 
-        for (int i = 0; i < kvs.numWorkers() - 1; i++) {
-            partitioner.addKVSWorker(kvs.getWorkerAddress(i), kvs.getWorkerID(i), kvs.getWorkerID(i + 1));
+        // Every KVS worker holds several key ranges, one per virtual node
+        for (HashRing.Range range : kvs.ranges()) {
+            partitioner.addKVSWorker(kvs.getWorkerAddress(range.worker()), range.fromKey(), range.toKeyExclusive());
         }
-
-        // last worker gets all keys >= last and < first
-        partitioner.addKVSWorker(kvs.getWorkerAddress(kvs.numWorkers() - 1),
-                kvs.getWorkerID(kvs.numWorkers() - 1), null);
-        partitioner.addKVSWorker(kvs.getWorkerAddress(kvs.numWorkers() - 1), null, kvs.getWorkerID(0));
         System.out.println("ADDR: " + this.flameCoordinatorAddr);
         String resp = new String(HTTP.doRequest("GET", "http://" + this.flameCoordinatorAddr +
                 "/workers", (byte[]) null).body());
@@ -128,6 +127,8 @@ public class FlameContextImpl implements FlameContext, Serializable {
                         request += "&zeroElement=" + URLEncoder.encode(extraString, "UTF-8");
                     } else if (extraString != null && operation.equals("join")) {
                         request += "&inputTable2=" + URLEncoder.encode(extraString, "UTF-8");
+                    } else if (extraString != null && operation.equals("fromTable")) {
+                        request += extraString;
                     }
                     Response r = HTTP.doRequest("POST", request, lambda);
                     int statusCode = r.statusCode();
@@ -172,4 +173,27 @@ public class FlameContextImpl implements FlameContext, Serializable {
         return new FlameRDDImpl(outputTable, kvs, flameCoordinatorAddr);
     }
 
+    @Override
+    public FlameRDD fromTable(String tableName, RowToString lambda, String... columns) throws Exception {
+        String outputTable = "fromTableOutput_" + System.currentTimeMillis();
+        byte[] serializedLambda = Serializer.objectToByteArray(lambda);
+        invokeOperation("fromTable", serializedLambda, tableName, outputTable,
+                "&columns=" + KVSClient.encodeColumns(columns), false);
+        return new FlameRDDImpl(outputTable, kvs, flameCoordinatorAddr);
+    }
+
+    @Override
+    public FlameRDD fromTable(String tableName, RowFilter filter, RowToString lambda, String... columns)
+            throws Exception {
+        String outputTable = "fromTableOutput_" + System.currentTimeMillis();
+        byte[] serializedLambda = Serializer.objectToByteArray(lambda);
+        String params = "&filter="
+                + Base64.getUrlEncoder().withoutPadding().encodeToString(Serializer.objectToByteArray(filter));
+        if (columns.length > 0) {
+            params += "&columns=" + KVSClient.encodeColumns(columns);
+        }
+        invokeOperation("fromTable", serializedLambda, tableName, outputTable, params, false);
+        return new FlameRDDImpl(outputTable, kvs, flameCoordinatorAddr);
+    }
+
 }
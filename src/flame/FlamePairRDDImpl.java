@@ -30,7 +30,7 @@ public class FlamePairRDDImpl implements FlamePairRDD {
     @Override
     public List<FlamePair> collect() throws Exception {
         List<FlamePair> result = new ArrayList<>();
-        Iterator<Row> rows = kvs.scan(tableName);
+        Iterator<Row> rows = kvs.parallelScan(tableName, false);
 
         while (rows.hasNext()) {
             Row row = rows.next();
@@ -26,7 +26,8 @@ public class FlameRDDImpl implements FlameRDD {
     @Override
     public List<String> collect() throws Exception {
         List<String> result = new ArrayList<>();
-        Iterator<Row> rows = kvs.scan(tableName);
+        // All workers' rows at once, in whatever order they arrive
+        Iterator<Row> rows = kvs.parallelScan(tableName, false);
 
         while (rows.hasNext()) {
             Row row = rows.next();
@@ -92,13 +93,15 @@ public class FlameRDDImpl implements FlameRDD {
     @Override
     public FlameRDD distinct() throws Exception {
         String outputTable = "Distinct_" + System.currentTimeMillis();
-        Iterator<Row> rows = kvs.scan(tableName);
+        Iterator<Row> rows = kvs.parallelScan(tableName, false);
+        KVSClient.BatchWriter output = kvs.batchWriter(outputTable);
 
         while (rows.hasNext()) {
             Row row = rows.next();
             String value = row.get(row.columns().iterator().next());
-            kvs.put(outputTable, value, "value", value.getBytes());
+            output.put(value, "value", value.getBytes());
         }
+        output.close();
 
         return new FlameRDDImpl(outputTable, kvs, flameCoordinatorAddr);
     }
@@ -112,13 +115,14 @@ public class FlameRDDImpl implements FlameRDD {
     @Override
     public Vector<String> take(int num) throws Exception {
         Vector<String> result = new Vector<>();
-        Iterator<Row> rows = kvs.scan(tableName);
-
-        int count = 0;
-        while (rows.hasNext() && count < num) {
-            Row row = rows.next();
-            result.add(row.get(row.columns().iterator().next()));
-            count++;
+        // The first elements in key order; the scan stops once it has enough
+        try (KVSClient.ParallelScan rows = kvs.parallelScan(tableName, true)) {
+            int count = 0;
+            while (rows.hasNext() && count < num) {
+                Row row = rows.next();
+                result.add(row.get(row.columns().iterator().next()));
+                count++;
+            }
         }
 
         return result;
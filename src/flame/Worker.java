@@ -53,6 +53,7 @@ public class Worker extends flame.generic.Worker {
 
       StringToIterable lambda = (StringToIterable) Serializer.byteArrayToObject(request.bodyAsBytes(), myJAR);
       KVSClient client = new KVSClient(kvsHostname);
+      KVSClient.BatchWriter output = client.batchWriter(outputTable);
 
       Iterator<Row> rows = client.scan(inputTable, fromRowInclusive, toRowExclusive);
       while (rows.hasNext()) {
@@ -62,13 +63,14 @@ public class Worker extends flame.generic.Worker {
           if (result != null) {
             for (String value : result) {
               String uniqueRowKey = row.key() + "-" + UUID.randomUUID().toString();
-              client.put(outputTable, uniqueRowKey, "value", value.getBytes());
+              output.put(uniqueRowKey, "value", value.getBytes());
             }
           }
         } catch (Exception e) {
           e.printStackTrace();
         }
       }
+      output.close();
       response.status(200, "flatMap operation completed successfully");
       return "flatMap operation completed successfully";
     });
@@ -82,6 +84,7 @@ public class Worker extends flame.generic.Worker {
 
       StringToPair lambda = (StringToPair) Serializer.byteArrayToObject(request.bodyAsBytes(), myJAR);
       KVSClient client = new KVSClient(kvsHostname);
+      KVSClient.BatchWriter output = client.batchWriter(outputTable);
 
       Iterator<Row> rows = client.scan(inputTable, fromRowInclusive, toRowExclusive);
       while (rows.hasNext()) {
@@ -89,12 +92,13 @@ public class Worker extends flame.generic.Worker {
           Row row = rows.next();
           FlamePair result = lambda.op(new String(row.get(row.columns().iterator().next())));
           if (result != null) {
-            client.put(outputTable, result._1(), row.key(), result._2().getBytes());
+            output.put(result._1(), row.key(), result._2().getBytes());
           }
         } catch (Exception e) {
           e.printStackTrace();
         }
       }
+      output.close();
       response.status(200, "mapToPair operation completed successfully");
       return "mapToPair operation completed successfully";
     });
@@ -117,6 +121,7 @@ public class Worker extends flame.generic.Worker {
       TwoStringsToString lambda = (TwoStringsToString) Serializer.byteArrayToObject(request.bodyAsBytes(), myJAR);
 
       KVSClient client = new KVSClient(kvsHostname);
+      KVSClient.BatchWriter output = client.batchWriter(outputTable);
       Iterator<Row> rows = client.scan(inputTable, fromRowInclusive, toRowExclusive);
 
       while (rows.hasNext()) {
@@ -126,9 +131,10 @@ public class Worker extends flame.generic.Worker {
           String columnValue = row.get(columnName);
           accumulator = lambda.op(accumulator, columnValue);
         }
-        client.put(outputTable, row.key(), "result", accumulator.getBytes());
+        output.put(row.key(), "result", accumulator.getBytes());
       }
 
+      output.close();
       response.status(200, "foldByKey operation completed on worker.");
       return "foldByKey operation completed on worker.";
     });
@@ -140,23 +146,40 @@ public class Worker extends flame.generic.Worker {
       String fromRowInclusive = request.queryParams("fromRowInclusive");
       String toRowExclusive = request.queryParams("toRowExclusive");
 
+      String columns = request.queryParams("columns");
+      String filter = request.queryParams("filter");
+
       RowToString lambda = (RowToString) Serializer.byteArrayToObject(request.bodyAsBytes(), myJAR);
 
       KVSClient client = new KVSClient(kvsHostname);
+      KVSClient.BatchWriter output = client.batchWriter(outputTable);
 
-      Iterator<Row> rows = client.scan(inputTable, fromRowInclusive, toRowExclusive);
+      // Only fetch the rows and columns the job asked for, if it asked. The filter may be
+      // defined in the job, so the KVS workers get the job's JAR as well
+      String[] columnList = (columns != null) ? KVSClient.decodeColumns(columns) : null;
+      Iterator<Row> rows;
+      if (filter != null) {
+        client.useJAR(myJAR);
+        RowFilter rowFilter = (RowFilter) Serializer.byteArrayToObject(Base64.getUrlDecoder().decode(filter), myJAR);
+        rows = client.scan(inputTable, fromRowInclusive, toRowExclusive, rowFilter, columnList);
+      } else if (columnList != null) {
+        rows = client.scan(inputTable, fromRowInclusive, toRowExclusive, columnList);
+      } else {
+        rows = client.scan(inputTable, fromRowInclusive, toRowExclusive);
+      }
       while (rows.hasNext()) {
         try {
           Row row = rows.next();
           String result = lambda.op(row);
           if (result != null) {
             String uniqueRowKey = row.key() + "-" + UUID.randomUUID().toString();
-            client.put(outputTable, uniqueRowKey, "value", result.getBytes());
+            output.put(uniqueRowKey, "value", result.getBytes());
           }
         } catch (Exception e) {
           e.printStackTrace();
         }
       }
+      output.close();
       response.status(200, "fromTable operation completed successfully");
       return "fromTable operation completed successfully";
     });
@@ -170,6 +193,7 @@ public class Worker extends flame.generic.Worker {
 
       PairToStringIterable lambda = (PairToStringIterable) Serializer.byteArrayToObject(request.bodyAsBytes(), myJAR);
       KVSClient client = new KVSClient(kvsHostname);
+      KVSClient.BatchWriter output = client.batchWriter(outputTable);
 
       Iterator<Row> rows = client.scan(inputTable, fromRowInclusive, toRowExclusive);
       while (rows.hasNext()) {
@@ -181,7 +205,7 @@ public class Worker extends flame.generic.Worker {
             if (result != null) {
               for (String val : result) {
                 String uniqueCol = col + "-" + UUID.randomUUID();
-                client.put(outputTable, key, uniqueCol, val.getBytes());
+                output.put(key, uniqueCol, val.getBytes());
               }
             }
           }
@@ -189,6 +213,7 @@ public class Worker extends flame.generic.Worker {
           e.printStackTrace();
         }
       }
+      output.close();
       response.status(200, "PairRDD flatMap operation completed successfully");
       return "PairRDD flatMap operation completed successfully";
     });
@@ -202,6 +227,7 @@ public class Worker extends flame.generic.Worker {
 
       StringToPairIterable lambda = (StringToPairIterable) Serializer.byteArrayToObject(request.bodyAsBytes(), myJAR);
       KVSClient client = new KVSClient(kvsHostname);
+      KVSClient.BatchWriter output = client.batchWriter(outputTable);
 
       Iterator<Row> rows = client.scan(inputTable, fromRowInclusive, toRowExclusive);
       while (rows.hasNext()) {
@@ -210,11 +236,12 @@ public class Worker extends flame.generic.Worker {
         if (pairs != null) {
           for (FlamePair pair : pairs) {
             String uniqueColName = "col-" + UUID.randomUUID().toString();
-            client.put(outputTable, pair._1(), uniqueColName, pair._2().getBytes());
+            output.put(pair._1(), uniqueColName, pair._2().getBytes());
           }
         }
       }
 
+      output.close();
       response.status(200, "flatMapToPair operation completed successfully");
       return "flatMapToPair operation completed successfully";
     });
@@ -228,6 +255,7 @@ public class Worker extends flame.generic.Worker {
 
       PairToPairIterable lambda = (PairToPairIterable) Serializer.byteArrayToObject(request.bodyAsBytes(), myJAR);
       KVSClient client = new KVSClient(kvsHostname);
+      KVSClient.BatchWriter output = client.batchWriter(outputTable);
 
       Iterator<Row> rows = client.scan(inputTable, fromRowInclusive, toRowExclusive);
       while (rows.hasNext()) {
@@ -236,11 +264,12 @@ public class Worker extends flame.generic.Worker {
         if (pairs != null) {
           for (FlamePair pair : pairs) {
             String uniqueColName = "col-" + UUID.randomUUID().toString();
-            client.put(outputTable, pair._1(), uniqueColName, pair._2().getBytes());
+            output.put(pair._1(), uniqueColName, pair._2().getBytes());
           }
         }
       }
 
+      output.close();
       response.status(200, "pairFlatMapToPair operation completed successfully");
       return "pairFlatMapToPair operation completed successfully";
     });
@@ -254,6 +283,7 @@ public class Worker extends flame.generic.Worker {
       String toRowExclusive = request.queryParams("toRowExclusive");
 
       KVSClient client = new KVSClient(kvsHostname);
+      KVSClient.BatchWriter output = client.batchWriter(outputTable);
       Iterator<Row> rows1 = client.scan(inputTable1, fromRowInclusive, toRowExclusive);
       Iterator<Row> rows2 = client.scan(inputTable2, fromRowInclusive, toRowExclusive);
 
@@ -274,12 +304,13 @@ public class Worker extends flame.generic.Worker {
             String value1 = row.get(col);
             for (String value2 : valuesFromOtherTable) {
               String uniqueColName = col + "-" + value2.hashCode();
-              client.put(outputTable, key, uniqueColName, (value1 + "," + value2).getBytes());
+              output.put(key, uniqueColName, (value1 + "," + value2).getBytes());
             }
           }
         }
       }
 
+      output.close();
       response.status(200, "Join operation completed successfully");
       return "Join operation completed successfully";
     });
@@ -319,6 +350,7 @@ public class Worker extends flame.generic.Worker {
 
       StringToBoolean predicate = (StringToBoolean) Serializer.byteArrayToObject(request.bodyAsBytes(), myJAR);
       KVSClient client = new KVSClient(kvsHostname);
+      KVSClient.BatchWriter output = client.batchWriter(outputTable);
 
       Iterator<Row> rows = client.scan(inputTable, fromRowInclusive, toRowExclusive);
       while (rows.hasNext()) {
@@ -327,11 +359,12 @@ public class Worker extends flame.generic.Worker {
           String value = row.get(col);
           if (predicate.op(value)) {
             String uniqueColName = "col-" + UUID.randomUUID().toString();
-            client.put(outputTable, row.key(), uniqueColName, value.getBytes());
+            output.put(row.key(), uniqueColName, value.getBytes());
           }
         }
       }
 
+      output.close();
       response.status(200, "filter operation completed successfully");
       return "filter operation completed successfully";
     });
@@ -363,6 +396,7 @@ public class Worker extends flame.generic.Worker {
 
       // Start a KVSClient
       KVSClient kvs = new KVSClient(kvsHostname);
+      KVSClient.BatchWriter output = kvs.batchWriter(outputTable);
 
       Iterator<Row> rows;
       if (startKey != null && endKey != null) {
@@ -387,8 +421,9 @@ public class Worker extends flame.generic.Worker {
       while (resultIterator.hasNext()) {
         String resultValue = resultIterator.next();
         String newRowKey = Hasher.hash(resultValue + System.nanoTime() + Math.random());
-        kvs.put(outputTable, newRowKey, "value", resultValue);
+        output.put(newRowKey, "value", resultValue);
       }
+      output.close();
 
     } catch (Exception e) {
       response.status(500, "INTERNAL SERVER ERROR");
@@ -22,6 +22,11 @@ public class Coordinator {
         return workersToReturn;
     }
 
+    public static Set<String> getWorkerIds() {
+        cleanUpWorkers();
+        return new TreeSet<>(workers.keySet());
+    }
+
     public static String workerTable() {
         cleanUpWorkers();
 
@@ -2,6 +2,7 @@ package flame.jobs;
 
 import flame.flame.FlameContext;
 import flame.kvs.KVSClient;
+import flame.kvs.MergeOperator;
 import flame.kvs.Row;
 
 import java.io.IOException;
@@ -32,27 +33,15 @@ public class ConsolidateIndex {
 
                 String urlsFromSource = sourceRow.get("urls");
                 System.out.println(DEST_TABLE + " " + encodedKey + " " + urlsFromSource);
-                Row destinationRow = kvs.getRow(DEST_TABLE, encodedKey);
-                String urlsFromDestination = destinationRow != null ? destinationRow.get("urls") : null;
 
                 if (urlsFromSource == null || urlsFromSource.isEmpty()) {
-                    System.out.println("Key: " + key + ", Source URLs: empty, Destination URLs: " + (urlsFromDestination == null ? "empty" : urlsFromDestination) + ", Outcome: skipped");
+                    System.out.println("Key: " + key + ", Source URLs: empty, Outcome: skipped");
                     continue;
                 }
 
-                if (destinationRow != null) {
-                    String updatedUrls;
-                    if (urlsFromDestination == null || urlsFromDestination.isEmpty()) {
-                        updatedUrls = urlsFromSource;
-                    } else {
-                        updatedUrls = urlsFromDestination + "," + urlsFromSource;
-                    }
-                    kvs.put(DEST_TABLE, encodedKey, "urls", updatedUrls);
-                    System.out.println("Key: " + key + ", Source URLs: " + urlsFromSource + ", Destination URLs: " + urlsFromDestination + ", Outcome: combined into: " + updatedUrls);
-                } else {
-                    kvs.put(DEST_TABLE, encodedKey, "urls", urlsFromSource);
-                    System.out.println("Key: " + key + ", Source URLs: " + urlsFromSource + ", Destination URLs: empty, Outcome: added to destination");
-                }
+                // The destination worker merges the URLs into its list (or starts one), in one step
+                String updatedUrls = kvs.merge(DEST_TABLE, encodedKey, "urls", MergeOperator.UNION, urlsFromSource);
+                System.out.println("Key: " + key + ", Source URLs: " + urlsFromSource + ", Outcome: combined into: " + updatedUrls);
             } catch (Exception e) {
                 System.out.println("Failed to process key: " + key + ". Skipping... Error: " + e.getMessage());
             }
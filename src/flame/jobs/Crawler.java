@@ -5,6 +5,7 @@ import flame.flame.FlamePair;
 import flame.flame.FlamePairRDD;
 import flame.flame.FlameRDD;
 import flame.kvs.KVSClient;
+import flame.kvs.MergeOperator;
 import flame.kvs.Row;
 import flame.tools.Hasher;
 import flame.tools.Logger;
@@ -123,8 +124,8 @@ public class Crawler {
 
         FlameRDD urlQueue = flameContext.parallelize(urls);
 
-        while (urlQueue.count() > 0) {
-            long queueSize = urlQueue.count();
+        long queueSize;
+        while ((queueSize = urlQueue.count()) > 0) {
             System.out.println("Current queue size: " + queueSize + ", Processed URLs: " + countIt);
 
             urlQueue = urlQueue.flatMap(urlO -> {
@@ -162,16 +163,27 @@ public class Crawler {
                         Row hostRow = kvsClient.getRow("hosts", host);
                         RobotsTxt robotsInfo;
                         if (hostRow == null || hostRow.get("robotsFetched") == null) {
-                            hostRow = hostRow != null ? hostRow : new Row(host);
+                            // Only the robots.txt columns are written, so that the host's counters,
+                            // which other workers update concurrently, are left alone
+                            Row robotsRow = new Row(host);
 
                             // Fetch, parse, and serialize robots.txt for hosts table storage
                             String robotsTxtContent = fetchRobotsTxt(host);
-                            hostRow.put("robotsTxt", robotsTxtContent != null ? robotsTxtContent : "");
-                            hostRow.put("robotsFetched", "true"); // Mark that robots.txt has been fetched
+                            robotsRow.put("robotsTxt", robotsTxtContent != null ? robotsTxtContent : "");
+                            robotsRow.put("robotsFetched", "true"); // Mark that robots.txt has been fetched
                             robotsInfo = parseRobotsTxt(robotsTxtContent);
-                            hostRow.put("crawlDelay", String.valueOf(robotsInfo.crawlDelay));
-                            hostRow.put("robotsRules", serializeRobotsRules(robotsInfo.rules));
-                            kvsClient.putRow("hosts", hostRow);
+                            robotsRow.put("crawlDelay", String.valueOf(robotsInfo.crawlDelay));
+                            robotsRow.put("robotsRules", serializeRobotsRules(robotsInfo.rules));
+                            for (String column : robotsRow.columns()) {
+                                kvsClient.put("hosts", host, column, robotsRow.getBytes(column));
+                            }
+                            if (hostRow == null) {
+                                hostRow = robotsRow;
+                            } else {
+                                for (String column : robotsRow.columns()) {
+                                    hostRow.put(column, robotsRow.getBytes(column));
+                                }
+                            }
                         } else {
                             robotsInfo = getRobotsInfoFromHostRow(hostRow);
                         }
@@ -205,10 +217,6 @@ public class Crawler {
                             }
                         }
 
-                        // Update last access time for host (done after rate limit check)
-                        hostRow.put("lastAccessTime", String.valueOf(currentTime));
-
-
                         // Check if URL allowed by robots.txt, otherwise don't explore this page
                         if (!isUrlAllowed(urlObj, robotsInfo)) {
                             return extractedAndNormalizedUrls; // empty (should be)
@@ -217,7 +225,9 @@ public class Crawler {
                         if (!isUrlAccessible(url)) {
                             return Collections.emptyList();
                         }
-                        kvsClient.putRow("hosts", hostRow);
+                        // Update last access time for host (done after rate limit check); MAX keeps
+                        // a slower concurrent crawler from moving it backwards
+                        kvsClient.merge("hosts", host, "lastAccessTime", MergeOperator.MAX, String.valueOf(currentTime));
 
                         if (shouldCrawlURL(url)) {
                             // Add the URL to the list of extracted and normalized URLs
@@ -331,24 +341,9 @@ public class Crawler {
     }
 
     private static boolean isHostLimitReached(KVSClient kvsClient, String host) throws IOException {
-        Row hostRow = kvsClient.getRow("hosts", host);
-        if (hostRow == null) {
-            hostRow = new Row(host);
-            hostRow.put("urlCount", "1");
-            kvsClient.putRow("hosts", hostRow);
-            return false;
-        }
-
-        String countStr = hostRow.get("urlCount");
-        int count = countStr != null ? Integer.parseInt(countStr) : 0;
-
-        if (count >= MAX_URLS_PER_DOMAIN) {
-            return true;
-        }
-
-        hostRow.put("urlCount", String.valueOf(count + 1));
-        kvsClient.putRow("hosts", hostRow);
-        return false;
+        // Counted on the KVS worker in one step, so concurrent crawlers never lose an increment
+        long count = Long.parseLong(kvsClient.merge("hosts", host, "urlCount", MergeOperator.ADD, "1"));
+        return count > MAX_URLS_PER_DOMAIN;
     }
 
     public static List<String> extractNormalizedUrls(String pageContent, String baseUrl) {
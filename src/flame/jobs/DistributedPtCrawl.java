@@ -2,19 +2,17 @@ package flame.jobs;
 
 import flame.flame.*;
 import flame.kvs.Row;
+import flame.kvs.RowFilter;
 import flame.tools.Hasher;
 
 public class DistributedPtCrawl {
     public static void run(FlameContext ctx, String[] args) throws Exception {
         // Load the data from the "pt-crawl-fake" table.
-        FlameRDD rdd = ctx.fromTable("pt-crawl-fake", (Row row) -> {
-            String url = row.get("url");
-            String page = row.get("page");
-            if (url == null || page == null) {
-                return null; // skip rows without required fields
-            }
-            return url + "\t" + page;
-        });
+        // Rows without the required fields are skipped by the KVS workers
+        RowFilter complete = RowFilter.hasColumn("url").and(RowFilter.hasColumn("page"));
+        FlameRDD rdd = ctx.fromTable("pt-crawl-fake", complete, (Row row) -> {
+            return row.get("url") + "\t" + row.get("page");
+        }, "url", "page");
 
 
         FlamePairRDD pairRDD = rdd.mapToPair(line -> {
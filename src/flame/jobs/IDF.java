@@ -15,7 +15,8 @@ public class IDF {
     private static final String OUTPUT_TABLE = "pt-idf";
 
     public static int calculateTotalDocuments(KVSClient kvs) throws IOException {
-        Iterator<Row> consolidatedEntries = kvs.scan(CONSOLIDATED_TABLE);
+        // Reads all workers' parts of the index at once; the order of the rows doesn't matter here
+        Iterator<Row> consolidatedEntries = kvs.parallelScan(CONSOLIDATED_TABLE, false);
         Set<String> uniqueUrls = new HashSet<>();
 
         while (consolidatedEntries.hasNext()) {
@@ -34,7 +35,7 @@ public class IDF {
     }
 
     public static void calculateIDF(KVSClient kvs, int totalDocuments) throws IOException {
-        Iterator<Row> consolidatedEntries = kvs.scan(CONSOLIDATED_TABLE);
+        Iterator<Row> consolidatedEntries = kvs.parallelScan(CONSOLIDATED_TABLE, false);
 
         while (consolidatedEntries.hasNext()) {
             Row row = consolidatedEntries.next();
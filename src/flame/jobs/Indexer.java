@@ -4,7 +4,8 @@ import flame.external.PorterStemmer;
 import flame.flame.FlameContext;
 import flame.flame.FlameRDD;
 import flame.kvs.KVSClient;
-import flame.kvs.Row;
+import flame.kvs.MergeOperator;
+import flame.kvs.RowFilter;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
@@ -34,12 +35,11 @@ public class Indexer {
             System.err.println("Error reading the file: " + e.getMessage());
         }
 
-        FlameRDD pages = flameContext.fromTable(CRAWL_TABLE, row -> {
-            String url = row.get("url");
-            String page = row.get("page");
-
-            return (url != null && page != null) ? url + "," + page : null;
-        });
+        // Pages without a url or body are dropped by the KVS workers, before they are sent
+        RowFilter hasPage = RowFilter.hasColumn("url").and(RowFilter.hasColumn("page"));
+        FlameRDD pages = flameContext.fromTable(CRAWL_TABLE, hasPage, row -> {
+            return row.get("url") + "," + row.get("page");
+        }, "url", "page");
 
         // Process each page and update the index
         List<String> results = pages.collect();
@@ -88,21 +88,12 @@ public class Indexer {
             String word = entry.getKey();
             Set<String> urls = entry.getValue();
 
-            // Fetch existing row
-            Row row = kvs.getRow(INDEX_TABLE, word);
-            String existingUrls = (row != null) ? row.get("urls") : "";
-
-            // Merge new URLs with existing data
-            Set<String> mergedUrls = new HashSet<>(urls);
-            if (!existingUrls.isEmpty()) {
-                mergedUrls.addAll(Arrays.asList(existingUrls.split(",")));
-            }
-
-            // Update the KVS
-            String newValue = mergedUrls.stream()
+            // Add the new URLs to the word's posting list; the KVS worker merges them with the
+            // existing ones, so there is no need to read the list first
+            String newUrls = urls.stream()
                     .sorted()
                     .collect(Collectors.joining(","));
-            kvs.put(INDEX_TABLE, word, "urls", newValue);
+            kvs.merge(INDEX_TABLE, word, "urls", MergeOperator.UNION, newUrls);
         }
     }
 }
\ No newline at end of file
@@ -39,7 +39,7 @@ public class PageRank {
                 linkHashes.add(Hasher.hash(link));
             }
             return urlHash + ",1.0,1.0," + String.join(",", linkHashes);
-        }).mapToPair(str -> {
+        }, "url", "page").mapToPair(str -> {
             int firstComma = str.indexOf(",");
             if (firstComma == -1) {
                 logger.info("Warning: no comma in PageRank input: " + str);
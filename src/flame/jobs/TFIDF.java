@@ -25,7 +25,7 @@ public class TFIDF {
         System.out.println("starting tf");
         FlameRDD ftTmp = ctx.fromTable("pt-crawl-test-" + chunk_idx, row -> {
             return row.get("url") + "," + row.get("page");
-        });
+        }, "url", "page");
         FlamePairRDD urlPagePairs = ftTmp.mapToPair(str -> {
             String[] parts = str.split(",", 2);
             return new FlamePair(parts[0], parts[1]);
@@ -93,7 +93,7 @@ public class TFIDF {
         System.out.println("starting IDF");
         FlameRDD documents = ctx.fromTable("pt-crawl", row -> {
             return row.key() + "\t" + row.get("page");
-        });
+        }, "page");
 
         // flatten into (word, docId) pairs
         FlameRDD wordDocPairs = documents.flatMap(row -> {
@@ -136,7 +136,7 @@ public class TFIDF {
             return String.valueOf(Integer.parseInt(c1) + Integer.parseInt(c2));
         });
 
-        long totalDocuments = ctx.fromTable("pt-crawl", row -> row.key()).count();
+        long totalDocuments = ctx.fromTable("pt-crawl", row -> row.key(), new String[0]).count();
         FlameRDD idfValues = wordDocCounts.flatMap(pair -> {
             int docCount = Integer.parseInt(pair._2());
             return Arrays.asList("" + Math.log((double) totalDocuments / docCount));
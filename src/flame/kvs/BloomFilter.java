@@ -0,0 +1,93 @@
+package flame.kvs;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A growable Bloom filter over row keys. mightContain() never returns false for a key that was
+// added, but may return true for one that was not (about 1% of the time). There is no
+// remove(): the keys of deleted rows (see Storage.deleteRow) stay in the filter until it is
+// rebuilt from the table's keys when the worker starts.
+//
+// Keys are added to the newest slice; once it holds its capacity, a new slice twice as large
+// is started, so the false-positive rate stays bounded without rebuilding the filter.
+public class BloomFilter {
+  private static final int HASHES = 7;
+  private static final int BITS_PER_KEY = 10;
+
+  private final CopyOnWriteArrayList<Slice> slices = new CopyOnWriteArrayList<>();
+
+  public BloomFilter(int expectedKeys) {
+    slices.add(new Slice(Math.max(expectedKeys, 1024)));
+  }
+
+  public void add(String key) {
+    long hash = hash(key);
+    Slice last = slices.get(slices.size() - 1);
+    last.add(hash);
+    if (last.count.incrementAndGet() == last.capacity) {
+      synchronized (slices) {
+        if (slices.get(slices.size() - 1) == last)
+          slices.add(new Slice(last.capacity * 2));
+      }
+    }
+  }
+
+  public boolean mightContain(String key) {
+    long hash = hash(key);
+    for (Slice slice : slices) {
+      if (slice.mightContain(hash))
+        return true;
+    }
+    return false;
+  }
+
+  private static class Slice {
+    final int capacity;
+    final long numBits;
+    final AtomicLongArray bits;
+    final AtomicInteger count = new AtomicInteger();
+
+    Slice(int capacityArg) {
+      capacity = capacityArg;
+      numBits = (long) capacity * BITS_PER_KEY;
+      bits = new AtomicLongArray((int) ((numBits + 63) / 64));
+    }
+
+    void add(long hash) {
+      int h1 = (int) hash, h2 = (int) (hash >>> 32);
+      for (int i = 0; i < HASHES; i++) {
+        long bit = ((h1 + i * (long) h2) & Long.MAX_VALUE) % numBits;
+        int word = (int) (bit >>> 6);
+        long mask = 1L << bit;
+        if ((bits.get(word) & mask) == 0)
+          bits.getAndUpdate(word, w -> w | mask);
+      }
+    }
+
+    boolean mightContain(long hash) {
+      int h1 = (int) hash, h2 = (int) (hash >>> 32);
+      for (int i = 0; i < HASHES; i++) {
+        long bit = ((h1 + i * (long) h2) & Long.MAX_VALUE) % numBits;
+        if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+          return false;
+      }
+      return true;
+    }
+  }
+
+  // 64-bit FNV-1a over the key's characters, followed by the MurmurHash3 finalizer
+  private static long hash(String key) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      h ^= key.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,109 @@
+package flame.kvs;
+
+import flame.tools.Logger;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Wraps a storage engine with one Bloom filter per table, so lookups of rows that definitely do
+// not exist are answered from memory instead of going to disk. The filters are rebuilt from
+// the tables' keys when the worker starts, and updated on every put.
+public class BloomFilteredStorage implements Storage {
+  private static final Logger logger = Logger.getLogger(BloomFilteredStorage.class);
+  private final Storage storage;
+  private final ConcurrentHashMap<String, BloomFilter> filters = new ConcurrentHashMap<>();
+
+  public BloomFilteredStorage(Storage storageArg) throws IOException {
+    storage = storageArg;
+    for (String tableName : storage.tables()) {
+      BloomFilter filter = new BloomFilter(storage.count(tableName));
+      Iterator<String> keys = storage.keys(tableName);
+      while (keys.hasNext())
+        filter.add(keys.next());
+      filters.put(tableName, filter);
+    }
+    logger.info("Built Bloom filters for " + filters.size() + " table(s)");
+  }
+
+  public void putRow(String tableName, Row row) throws IOException {
+    // The key goes into the filter first, so a concurrent lookup can never miss a stored row
+    filter(tableName).add(row.key());
+    storage.putRow(tableName, row);
+  }
+
+  public void put(String tableName, String row, String column, byte[] value) throws IOException {
+    filter(tableName).add(row);
+    storage.put(tableName, row, column, value);
+  }
+
+  public void putColumns(String tableName, Row columns) throws IOException {
+    filter(tableName).add(columns.key());
+    storage.putColumns(tableName, columns);
+  }
+
+  public Row getRow(String tableName, String row) throws IOException {
+    return mightContain(tableName, row) ? storage.getRow(tableName, row) : null;
+  }
+
+  // The key stays in the filter, which only makes lookups of the row a little slower
+  public void deleteRow(String tableName, String row) throws IOException {
+    storage.deleteRow(tableName, row);
+  }
+
+  public boolean existsRow(String tableName, String row) throws IOException {
+    return mightContain(tableName, row) && storage.existsRow(tableName, row);
+  }
+
+  public boolean mightContain(String tableName, String row) {
+    BloomFilter filter = filters.get(tableName);
+    return (filter != null) && filter.mightContain(row);
+  }
+
+  public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive) throws IOException {
+    return storage.scan(tableName, startRow, endRowExclusive);
+  }
+
+  public Iterator<byte[]> scanEncoded(String tableName, String startRow, String endRowExclusive) throws IOException {
+    return storage.scanEncoded(tableName, startRow, endRowExclusive);
+  }
+
+  public Iterator<String> keys(String tableName) throws IOException {
+    return storage.keys(tableName);
+  }
+
+  public int count(String tableName) throws IOException {
+    return storage.count(tableName);
+  }
+
+  public boolean hasTable(String tableName) {
+    return storage.hasTable(tableName);
+  }
+
+  public Set<String> tables() {
+    return storage.tables();
+  }
+
+  public void rename(String oldTableName, String newTableName) throws IOException {
+    // Publish the filter under the new name first, so reads of the renamed table never miss
+    BloomFilter filter = filters.get(oldTableName);
+    if (filter != null)
+      filters.put(newTableName, filter);
+    try {
+      storage.rename(oldTableName, newTableName);
+    } catch (IOException e) {
+      filters.remove(newTableName, filter);
+      throw e;
+    }
+    filters.remove(oldTableName);
+  }
+
+  public void delete(String tableName) throws IOException {
+    filters.remove(tableName);
+    storage.delete(tableName);
+  }
+
+  private BloomFilter filter(String tableName) {
+    return filters.computeIfAbsent(tableName, t -> new BloomFilter(0));
+  }
+}
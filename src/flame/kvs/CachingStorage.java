@@ -0,0 +1,211 @@
+package flame.kvs;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Wraps a storage engine with an LRU cache of recently read rows, bounded by their approximate
+// size in bytes, so hot rows (e.g. the IDF and page rank of popular terms) are served from
+// memory. Every write of a row drops it from the cache, and renames and deletes drop the table.
+//
+// A read that misses loads the row without holding the cache lock. If the row is written while
+// it is being loaded, the loaded version may be stale, so it is not cached; writes are counted
+// per stripe of keys to notice that.
+public class CachingStorage implements Storage {
+  private static final int STRIPES = 256;
+  // Rough per-entry overhead of the map entry, the key and the Row with its HashMap
+  private static final int ENTRY_OVERHEAD = 160;
+
+  private final Storage storage;
+  private final long maxBytes;
+  private final LinkedHashMap<Key, Row> cache = new LinkedHashMap<>(1024, 0.75f, true);
+  private final long[] writes = new long[STRIPES];
+  private long bytes;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  private record Key(String table, String row) {}
+
+  public CachingStorage(Storage storageArg, long maxBytesArg) {
+    storage = storageArg;
+    maxBytes = maxBytesArg;
+  }
+
+  // One "name value" pair per line, as served by /cache
+  public String stats() {
+    long h = hits.get(), m = misses.get();
+    synchronized (cache) {
+      return "hits " + h + "\nmisses " + m + "\nhitRate " + ((h + m > 0) ? String.format("%.4f", (double) h / (h + m)) : "0")
+              + "\nrows " + cache.size() + "\nbytes " + bytes + "\nmaxBytes " + maxBytes + "\n";
+    }
+  }
+
+  public void putRow(String tableName, Row row) throws IOException {
+    try {
+      storage.putRow(tableName, row);
+    } finally {
+      invalidate(tableName, row.key());
+    }
+  }
+
+  public void put(String tableName, String row, String column, byte[] value) throws IOException {
+    try {
+      storage.put(tableName, row, column, value);
+    } finally {
+      invalidate(tableName, row);
+    }
+  }
+
+  public void putColumns(String tableName, Row columns) throws IOException {
+    try {
+      storage.putColumns(tableName, columns);
+    } finally {
+      invalidate(tableName, columns.key());
+    }
+  }
+
+  // Callers get their own copy, so they can't change the cached row
+  public Row getRow(String tableName, String row) throws IOException {
+    Key key = new Key(tableName, row);
+    int stripe = stripe(key);
+    long writesBefore;
+    synchronized (cache) {
+      Row cached = cache.get(key);
+      if (cached != null) {
+        hits.incrementAndGet();
+        return cached.clone();
+      }
+      writesBefore = writes[stripe];
+    }
+
+    misses.incrementAndGet();
+    Row loaded = storage.getRow(tableName, row);
+    if (loaded == null)
+      return null;
+    long size = sizeOf(key, loaded);
+    if (size > maxBytes / 8)
+      return loaded;
+
+    Row copy = loaded.clone();
+    synchronized (cache) {
+      if ((writes[stripe] == writesBefore) && !cache.containsKey(key)) {
+        cache.put(key, copy);
+        bytes += size;
+        evict();
+      }
+    }
+    return loaded;
+  }
+
+  public void deleteRow(String tableName, String row) throws IOException {
+    try {
+      storage.deleteRow(tableName, row);
+    } finally {
+      invalidate(tableName, row);
+    }
+  }
+
+  public boolean existsRow(String tableName, String row) throws IOException {
+    synchronized (cache) {
+      if (cache.containsKey(new Key(tableName, row)))
+        return true;
+    }
+    return storage.existsRow(tableName, row);
+  }
+
+  public boolean mightContain(String tableName, String row) throws IOException {
+    return storage.mightContain(tableName, row);
+  }
+
+  public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive) throws IOException {
+    return storage.scan(tableName, startRow, endRowExclusive);
+  }
+
+  public Iterator<byte[]> scanEncoded(String tableName, String startRow, String endRowExclusive) throws IOException {
+    return storage.scanEncoded(tableName, startRow, endRowExclusive);
+  }
+
+  public Iterator<String> keys(String tableName) throws IOException {
+    return storage.keys(tableName);
+  }
+
+  public int count(String tableName) throws IOException {
+    return storage.count(tableName);
+  }
+
+  public boolean hasTable(String tableName) {
+    return storage.hasTable(tableName);
+  }
+
+  public Set<String> tables() {
+    return storage.tables();
+  }
+
+  public void rename(String oldTableName, String newTableName) throws IOException {
+    try {
+      storage.rename(oldTableName, newTableName);
+    } finally {
+      invalidateTable(oldTableName);
+      invalidateTable(newTableName);
+    }
+  }
+
+  public void delete(String tableName) throws IOException {
+    try {
+      storage.delete(tableName);
+    } finally {
+      invalidateTable(tableName);
+    }
+  }
+
+  private void invalidate(String tableName, String row) {
+    Key key = new Key(tableName, row);
+    synchronized (cache) {
+      writes[stripe(key)]++;
+      Row removed = cache.remove(key);
+      if (removed != null)
+        bytes -= sizeOf(key, removed);
+    }
+  }
+
+  private void invalidateTable(String tableName) {
+    synchronized (cache) {
+      for (int i = 0; i < STRIPES; i++)
+        writes[i]++;
+      Iterator<Map.Entry<Key, Row>> it = cache.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<Key, Row> entry = it.next();
+        if (entry.getKey().table().equals(tableName)) {
+          bytes -= sizeOf(entry.getKey(), entry.getValue());
+          it.remove();
+        }
+      }
+    }
+  }
+
+  // Caller holds the cache lock
+  private void evict() {
+    Iterator<Map.Entry<Key, Row>> it = cache.entrySet().iterator();
+    while ((bytes > maxBytes) && it.hasNext()) {
+      Map.Entry<Key, Row> eldest = it.next();
+      bytes -= sizeOf(eldest.getKey(), eldest.getValue());
+      it.remove();
+    }
+  }
+
+  private static int stripe(Key key) {
+    return Math.floorMod(key.hashCode(), STRIPES);
+  }
+
+  private static long sizeOf(Key key, Row row) {
+    long size = ENTRY_OVERHEAD + 2L * (key.table().length() + key.row().length());
+    for (String column : row.columns()) {
+      byte[] value = row.getBytes(column);
+      size += 48 + 2L * column.length() + ((value != null) ? value.length : 0);
+    }
+    return size;
+  }
+}
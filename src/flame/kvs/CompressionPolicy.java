@@ -0,0 +1,21 @@
+package flame.kvs;
+
+// Which persistent tables store their rows compressed (-Dkvs.compressedTables, see TableSet).
+// Compressed and plain rows can be told apart when they are read, so the list only affects new
+// writes and can be changed at any time.
+public class CompressionPolicy {
+  private final TableSet tables;
+
+  public CompressionPolicy(String tableList) {
+    tables = new TableSet(tableList);
+  }
+
+  public boolean compresses(String tableName) {
+    return tables.contains(tableName);
+  }
+
+  // The form in which a row of the given table is stored
+  public byte[] encode(String tableName, Row row) {
+    return compresses(tableName) ? row.toCompressedByteArray() : row.toBinaryByteArray();
+  }
+}
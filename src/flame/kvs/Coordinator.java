@@ -1,15 +1,32 @@
 package flame.kvs;
 
 import flame.tools.Logger;
+import flame.webserver.Response;
 
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.UnaryOperator;
 
 import static flame.webserver.Server.get;
 import static flame.webserver.Server.port;
+import static flame.webserver.Server.put;
 
 public class Coordinator extends flame.generic.Coordinator {
     private static final Logger logger = Logger.getLogger(Coordinator.class);
 
+    // The published range map (see RangeMap), and while it migrates, the workers that haven't
+    // finished moving their rows yet
+    private static RangeMap rangeMap;
+    private static final Set<String> pendingSources = new HashSet<>();
+    // Workers that were taken out of the map and shouldn't join it again while they're active
+    private static final Set<String> removedWorkers = new HashSet<>();
+    private static int virtualNodes;
+    // How many workers hold each row of which tables (see Replicator)
+    private static int replicas;
+    private static String replicatedTables;
+
     public static void main(String[] args) throws IOException {
         if (args.length != 1) {
             String message = "Incorrect Usage: Please provide <port> as first argument";
@@ -22,6 +39,70 @@ public class Coordinator extends flame.generic.Coordinator {
         port(portNumber);
         registerRoutes();
 
+        // Number of virtual nodes per worker on the ring that clients place keys with (see
+        // HashRing). The default of one keeps the placement of clusters that already hold data;
+        // more only take effect for workers that join afterwards (see RangeMap)
+        virtualNodes = Integer.getInteger("kvs.virtualNodes", 1);
+        get("/virtualNodes", (req, res) -> {
+            res.type("text/plain");
+            return String.valueOf(virtualNodes);
+        });
+
+        // Number of workers that hold each row of the tables that the search front end reads; the
+        // range map carries both, and a change takes effect with the next version of the map
+        replicas = Math.max(1, Integer.getInteger("kvs.replicas", 1));
+        replicatedTables = System.getProperty("kvs.replicatedTables", "pt-index,pt-idf,pt-pageranks,pt-tf");
+
+        // The range map that clients route by. Workers poll it with their ID, the version they
+        // have, and done=true once they have moved their rows for a migrating version; a worker
+        // with a newer version than the coordinator's (e.g. after a restart) gets 409 and sends
+        // its map with PUT /ring
+        get("/ring", (req, res) -> {
+            res.type("text/plain");
+            String versionParam = req.queryParams("version");
+            RangeMap map = rangeMap(req.queryParams("id"), (versionParam != null) ? Integer.parseInt(versionParam) : 0,
+                    "true".equals(req.queryParams("done")));
+            if (map == null) {
+                res.status(versionParam != null ? 409 : 404, versionParam != null ? "Conflict" : "Not Found");
+                return versionParam != null ? "Send your range map" : "No active KVS workers";
+            }
+            return map.toString();
+        });
+
+        put("/ring", (req, res) -> {
+            RangeMap uploaded;
+            try {
+                uploaded = RangeMap.parse(req.body());
+            } catch (IllegalArgumentException e) {
+                res.status(400, "Bad Request");
+                return e.getMessage();
+            }
+            adoptRangeMap(uploaded);
+            return "OK";
+        });
+
+        // Moves the keys from key= up to the next token to worker=, e.g. to take load off a
+        // hot range
+        put("/ring/split", (req, res) -> {
+            String key = req.queryParams("key"), worker = req.queryParams("worker");
+            if ((key == null) || (worker == null) || !getWorkerIds().contains(worker)) {
+                res.status(400, "Bad Request");
+                return "Expected key= and the ID of an active worker in worker=";
+            }
+            return migrate(map -> map.withSplit(key, worker), worker, res);
+        });
+
+        // Moves all ranges of worker= to the other workers, so it can be shut down afterwards;
+        // it only gets ranges again from a split
+        put("/ring/remove", (req, res) -> {
+            String worker = req.queryParams("worker");
+            if (worker == null) {
+                res.status(400, "Bad Request");
+                return "Expected the ID of a worker in worker=";
+            }
+            return migrate(map -> map.withoutWorker(worker), null, res);
+        });
+
         get("/", (req, res) -> {
             StringBuilder html = new StringBuilder();
             html.append("<html>");
@@ -29,11 +110,97 @@ public class Coordinator extends flame.generic.Coordinator {
             html.append("<body>");
             html.append("<h1>KVS Coordinator</h1>");
             html.append(workerTable());
+            RangeMap map = rangeMap;
+            if (map != null)
+                html.append("<p>Range map version ").append(map.version).append(map.migrating() ? " (migrating)" : "")
+                        .append("</p>");
             html.append("</body>");
             html.append("</html>");
             return html.toString();
         });
     }
 
+    // The current range map, after noting that the given worker is done with its moves. The
+    // first map is made from the active workers; workers that join later are added in a
+    // migration once the map has settled. Returns null if there is no map to publish yet, or
+    // if the worker has a newer one
+    private static synchronized RangeMap rangeMap(String workerId, int workerVersion, boolean done) {
+        if (workerVersion > ((rangeMap != null) ? rangeMap.version : 0))
+            return null;
+        if ((workerId != null) && done && (rangeMap != null) && rangeMap.migrating() && (rangeMap.version == workerVersion)
+                && pendingSources.remove(workerId))
+            logger.info("Worker " + workerId + " has moved its rows for range map version " + workerVersion);
 
+        Set<String> active = getWorkerIds();
+        if (rangeMap == null) {
+            if (active.isEmpty())
+                return null;
+            rangeMap = RangeMap.of(active, virtualNodes, replicas, replicatedTables);
+            logger.info("Created range map version " + rangeMap.version + " with workers " + active);
+        }
+        if (rangeMap.migrating() && pendingSources.isEmpty()) {
+            rangeMap = rangeMap.settled();
+            logger.info("Range map version " + rangeMap.version + " has settled");
+        }
+        if (!rangeMap.migrating() && !rangeMap.hasReplicas(replicas, replicatedTables)) {
+            rangeMap = rangeMap.withReplicas(replicas, replicatedTables);
+            logger.info("Range map version " + rangeMap.version + " keeps " + replicas + " replica(s) of " + replicatedTables);
+        }
+        if (!rangeMap.migrating()) {
+            Set<String> joined = new TreeSet<>(active);
+            joined.removeAll(rangeMap.members());
+            joined.removeAll(removedWorkers);
+            if (!joined.isEmpty()) {
+                logger.info("Adding workers " + joined + " to the range map");
+                startMigration(rangeMap.withWorkers(joined, virtualNodes));
+            }
+        }
+        return rangeMap;
+    }
+
+    private static synchronized void adoptRangeMap(RangeMap uploaded) {
+        if ((rangeMap != null) && (uploaded.version <= rangeMap.version))
+            return;
+        logger.info("Adopting range map version " + uploaded.version + " from a worker");
+        rangeMap = uploaded;
+        pendingSources.clear();
+        pendingSources.addAll(uploaded.sources());
+    }
+
+    private static synchronized String migrate(UnaryOperator<RangeMap> change, String addedWorker, Response res) {
+        if (rangeMap == null) {
+            res.status(409, "Conflict");
+            return "There is no range map yet";
+        }
+        if (rangeMap.migrating()) {
+            res.status(409, "Conflict");
+            return "Range map version " + rangeMap.version + " is still migrating";
+        }
+        RangeMap next;
+        try {
+            next = change.apply(rangeMap);
+        } catch (IllegalArgumentException e) {
+            res.status(400, "Bad Request");
+            return e.getMessage();
+        }
+        if (addedWorker != null)
+            removedWorkers.remove(addedWorker);
+        Set<String> remaining = next.settled().members();
+        for (String member : rangeMap.members()) {
+            if (!remaining.contains(member))
+                removedWorkers.add(member);
+        }
+        startMigration(next);
+        return rangeMap.toString();
+    }
+
+    private static void startMigration(RangeMap next) {
+        rangeMap = next;
+        pendingSources.clear();
+        pendingSources.addAll(next.sources());
+        logger.info("Range map version " + next.version + " moves " + next.moves().size() + " range(s) from workers "
+                + pendingSources);
+        if (pendingSources.isEmpty())
+            rangeMap = next.settled();
+    }
 }
@@ -0,0 +1,344 @@
+package flame.kvs;
+
+import flame.tools.KeyEncoder;
+import flame.tools.Logger;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+// Original persistent layout: every table is a directory under the storage directory, and
+// each row is a file within that directory, named after the encoded row key. Rows are written
+// in the binary form (compressed for the tables that CompressionPolicy selects); files written
+// in the older text form are still readable.
+//
+// A column put appends just the new columns to the row file, as another binary row, instead of
+// rewriting the whole row; reads merge them in (later values win). Once a read has had to merge
+// maxDeltas or more of them, it rewrites the file as a single row.
+//
+// Reads take no lock. Whole rows are therefore written to a temporary file that is moved into
+// place, and a read that finds the last appended columns cut off (because a put is still
+// appending them, or a crash interrupted it) leaves them out.
+public class FileStorage implements Storage {
+  private static final Logger logger = Logger.getLogger(FileStorage.class);
+  private static final int LOCK_STRIPES = 64;
+  private final File root;
+  private final int maxDeltas;
+  private final CompressionPolicy compression;
+  private final Object[] locks = new Object[LOCK_STRIPES];
+
+  public FileStorage(File rootArg, int maxDeltasArg, CompressionPolicy compressionArg) {
+    root = rootArg;
+    maxDeltas = maxDeltasArg;
+    compression = compressionArg;
+    for (int i = 0; i < LOCK_STRIPES; i++)
+      locks[i] = new Object();
+  }
+
+  public void putRow(String tableName, Row row) throws IOException {
+    // Either replace the existing row's file within the table directory, or create
+    // a new row file
+    File rowFile = rowFile(tableName, row.key());
+    synchronized (lockFor(rowFile)) {
+      replace(rowFile, row);
+    }
+  }
+
+  public void put(String tableName, String row, String column, byte[] value) throws IOException {
+    Row delta = new Row(row);
+    delta.put(column, value);
+    putColumns(tableName, delta);
+  }
+
+  public void putColumns(String tableName, Row columns) throws IOException {
+    File rowFile = rowFile(tableName, columns.key());
+    synchronized (lockFor(rowFile)) {
+      // Rows in the old text form can't be appended to, so they are rewritten in the binary form
+      if ((rowFile.length() > 0) && !isBinaryRowFile(rowFile)) {
+        Row current = readRowFile(rowFile);
+        if (current == null)
+          current = new Row(columns.key());
+        for (String column : columns.columns())
+          current.put(column, columns.getBytes(column));
+        putRow(tableName, current);
+        return;
+      }
+      try (FileOutputStream outputStream = new FileOutputStream(rowFile, true)) {
+        outputStream.write(compression.encode(tableName, columns));
+      }
+    }
+  }
+
+  public Row getRow(String tableName, String row) throws IOException {
+    File tableDir = new File(root, tableName);
+    if (!tableDir.exists()) {
+      logger.info("Table's Directory Not Found: " + tableName);
+      return null;
+    }
+
+    String encodedKey = KeyEncoder.encode(row);
+    File rowFile = new File(tableDir, encodedKey);
+    if (!rowFile.exists()) {
+      logger.info("Row File Not Found: " + encodedKey);
+      return null;
+    }
+    return readRowFile(rowFile);
+  }
+
+  public void deleteRow(String tableName, String row) throws IOException {
+    File rowFile = new File(new File(root, tableName), KeyEncoder.encode(row));
+    synchronized (lockFor(rowFile)) {
+      Files.deleteIfExists(rowFile.toPath());
+    }
+  }
+
+  public boolean existsRow(String tableName, String row) {
+    return new File(new File(root, tableName), KeyEncoder.encode(row)).exists();
+  }
+
+  public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive) {
+    Iterator<File> files = rowFilesInRange(tableName, startRow, endRowExclusive);
+    return new Iterator<Row>() {
+      Row nextRow = advance();
+
+      Row advance() {
+        while (files.hasNext()) {
+          try {
+            Row row = readRowFile(files.next());
+            if (row != null)
+              return row;
+          } catch (IOException e) {
+            logger.error("Error reading row from disk: " + e.getMessage(), e);
+          }
+        }
+        return null;
+      }
+
+      public boolean hasNext() {
+        return nextRow != null;
+      }
+
+      public Row next() {
+        if (nextRow == null)
+          throw new NoSuchElementException();
+        Row row = nextRow;
+        nextRow = advance();
+        return row;
+      }
+    };
+  }
+
+  // Row files that hold a single row in the binary or compressed form are sent as they are
+  public Iterator<byte[]> scanEncoded(String tableName, String startRow, String endRowExclusive) {
+    Iterator<File> files = rowFilesInRange(tableName, startRow, endRowExclusive);
+    return new Iterator<byte[]>() {
+      byte[] nextRow = advance();
+
+      byte[] advance() {
+        while (files.hasNext()) {
+          try {
+            byte[] row = readEncodedRowFile(files.next());
+            if (row != null)
+              return row;
+          } catch (IOException e) {
+            logger.error("Error reading row from disk: " + e.getMessage(), e);
+          }
+        }
+        return null;
+      }
+
+      public boolean hasNext() {
+        return nextRow != null;
+      }
+
+      public byte[] next() {
+        if (nextRow == null)
+          throw new NoSuchElementException();
+        byte[] row = nextRow;
+        nextRow = advance();
+        return row;
+      }
+    };
+  }
+
+  public Iterator<String> keys(String tableName) {
+    File[] rowFiles = new File(root, tableName).listFiles();
+    if (rowFiles == null)
+      return Collections.emptyIterator();
+    List<String> keys = new ArrayList<>(rowFiles.length);
+    for (File rowFile : rowFiles)
+      keys.add(KeyEncoder.decode(rowFile.getName()));
+    return keys.iterator();
+  }
+
+  public int count(String tableName) {
+    File[] rowFiles = new File(root, tableName).listFiles();
+    return (rowFiles == null) ? 0 : rowFiles.length;
+  }
+
+  public boolean hasTable(String tableName) {
+    return new File(root, tableName).isDirectory();
+  }
+
+  public Set<String> tables() {
+    Set<String> names = new TreeSet<>();
+    File[] dirs = root.listFiles((file) -> file.isDirectory() && file.getName().startsWith("pt-"));
+    if (dirs != null) {
+      for (File dir : dirs)
+        names.add(dir.getName());
+    }
+    return names;
+  }
+
+  public void rename(String oldTableName, String newTableName) throws IOException {
+    Files.move(new File(root, oldTableName).toPath(), new File(root, newTableName).toPath());
+  }
+
+  public void delete(String tableName) throws IOException {
+    recursiveDeleteDirectory(new File(root, tableName));
+  }
+
+  private Row readRowFile(File rowFile) throws IOException {
+    // Row files are small, so read each one whole and decode it in memory
+    byte[] contents = Files.readAllBytes(rowFile.toPath());
+    Row row;
+    int deltas;
+    try {
+      RowReader reader = new RowReader(contents);
+      row = reader.next();
+      deltas = (row != null) ? mergeDeltas(row, reader) : 0;
+    } catch (EOFException e) {
+      // The first put to the row is still being appended to the new file
+      return null;
+    } catch (IOException e) {
+      throw new IOException("Corrupt row file " + rowFile + ": " + e.getMessage(), e);
+    }
+
+    if (deltas >= maxDeltas) {
+      try {
+        compact(rowFile);
+      } catch (IOException e) {
+        logger.warn("Could not compact row file " + rowFile + ": " + e.getMessage());
+      }
+    }
+    return row;
+  }
+
+  // The file's contents if they are a single row that RowReader can read as is; otherwise (text
+  // form, or columns appended) the merged row in the binary form
+  private byte[] readEncodedRowFile(File rowFile) throws IOException {
+    byte[] contents = Files.readAllBytes(rowFile.toPath());
+    if ((contents.length > 0) && ((contents[0] == (byte) Row.BINARY_MAGIC) || (contents[0] == (byte) Row.COMPRESSED_MAGIC))) {
+      RowReader reader = new RowReader(contents);
+      try {
+        if (reader.skip() && (reader.consumed() == contents.length))
+          return contents;
+      } catch (EOFException e) {
+        // Cut off; readRowFile() decides what can be read
+      } catch (IOException e) {
+        throw new IOException("Corrupt row file " + rowFile + ": " + e.getMessage(), e);
+      }
+    }
+    Row row = readRowFile(rowFile);
+    return (row != null) ? row.toBinaryByteArray() : null;
+  }
+
+  // Applies the columns that were appended after the row, and returns their number. Columns
+  // that are cut off at the end of the file are left out
+  private static int mergeDeltas(Row row, RowReader reader) throws IOException {
+    int deltas = 0;
+    while (true) {
+      Row delta;
+      try {
+        delta = reader.next();
+      } catch (EOFException e) {
+        return deltas;
+      }
+      if (delta == null)
+        return deltas;
+      for (String column : delta.columns())
+        row.put(column, delta.getBytes(column));
+      deltas++;
+    }
+  }
+
+  // Replaces the row file with the merged row
+  private void compact(File rowFile) throws IOException {
+    synchronized (lockFor(rowFile)) {
+      if (!rowFile.exists())
+        return;
+      RowReader reader = new RowReader(Files.readAllBytes(rowFile.toPath()));
+      Row row = reader.next();
+      if (row == null)
+        return;
+      mergeDeltas(row, reader);
+      replace(rowFile, row);
+    }
+  }
+
+  // Writes the row to a new file that is moved into place, so readers without the lock see
+  // either the old or the new version. Callers hold the row's lock
+  private void replace(File rowFile, Row row) throws IOException {
+    // Not in the table's directory, where the file would be listed as a row until it's moved
+    File tmp = Files.createTempFile(root.toPath(), ".row", null).toFile();
+    try {
+      try (FileOutputStream outputStream = new FileOutputStream(tmp)) {
+        outputStream.write(compression.encode(rowFile.getParentFile().getName(), row));
+      }
+      Files.move(tmp.toPath(), rowFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp.toPath());
+    }
+  }
+
+  private static boolean isBinaryRowFile(File rowFile) throws IOException {
+    try (FileInputStream in = new FileInputStream(rowFile)) {
+      int first = in.read();
+      return (first == Row.BINARY_MAGIC) || (first == Row.COMPRESSED_MAGIC);
+    }
+  }
+
+  // The files of the rows within [startRow, endRowExclusive), ordered by key
+  private Iterator<File> rowFilesInRange(String tableName, String startRow, String endRowExclusive) {
+    File[] rowFiles = new File(root, tableName).listFiles();
+    if (rowFiles == null)
+      return Collections.emptyIterator();
+
+    TreeMap<String, File> inRange = new TreeMap<>();
+    for (File rowFile : rowFiles) {
+      String rowKey = KeyEncoder.decode(rowFile.getName());
+      if (startRow != null && rowKey.compareTo(startRow) < 0)
+        continue;
+      if (endRowExclusive != null && rowKey.compareTo(endRowExclusive) >= 0)
+        continue;
+      inRange.put(rowKey, rowFile);
+    }
+    return inRange.values().iterator();
+  }
+
+  private File rowFile(String tableName, String row) {
+    File tableDir = new File(root, tableName);
+    if (!tableDir.exists()) {
+      tableDir.mkdirs(); // Create table directory if it doesn't exist
+    }
+    return new File(tableDir, KeyEncoder.encode(row));
+  }
+
+  private Object lockFor(File rowFile) {
+    return locks[Math.floorMod(rowFile.getPath().hashCode(), LOCK_STRIPES)];
+  }
+
+  static void recursiveDeleteDirectory(File file) throws IOException {
+    if (file.isDirectory()) {
+      File[] entries = file.listFiles();
+      if (entries != null) {
+        for (File entry : entries) {
+          recursiveDeleteDirectory(entry);
+        }
+      }
+    }
+    if (!file.delete()) {
+      throw new IOException("Failed to delete " + file.getAbsolutePath());
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package flame.kvs;
+
+import flame.tools.Hasher;
+import java.io.Serializable;
+import java.util.*;
+
+// Places keys on KVS workers. Every worker owns a number of virtual nodes: tokens that are spread
+// over the key space by hashing the worker's ID, so that each worker gets many small ranges
+// instead of one large one, and a new or departed worker moves keys from/to all others evenly.
+// A key belongs to the virtual node with the greatest token that is not greater than the key;
+// keys below the smallest token wrap around to the last one.
+//
+// The ring orders tokens like keys (rather than hashing the keys), so every range is a range of
+// keys and scans can still ask each worker for [startRow, endRowExclusive). Tokens have the form
+// of Hasher.hash(), so keys that are themselves hashes (e.g. URL hashes) are spread evenly.
+// With one virtual node, the worker's ID is its only token, as before virtual nodes.
+public class HashRing implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private static final int TOKEN_LENGTH = 10;
+
+  private final String[] tokens;
+  private final int[] owners;
+
+  // A range of keys [fromKey, toKeyExclusive) and the index of the worker that holds it; null
+  // bounds are open
+  public record Range(int worker, String fromKey, String toKeyExclusive) implements Serializable {}
+
+  // The worker IDs must be in the order in which the client indexes its workers
+  public HashRing(List<String> workerIds, int virtualNodes) {
+    this(tokensOf(workerIds, virtualNodes));
+  }
+
+  // A ring with the given tokens, each mapped to the index of the worker that owns it
+  HashRing(SortedMap<String, Integer> ring) {
+    tokens = ring.keySet().toArray(new String[0]);
+    owners = new int[tokens.length];
+    int n = 0;
+    for (int owner : ring.values())
+      owners[n++] = owner;
+  }
+
+  // The tokens of one worker's virtual nodes
+  public static List<String> tokens(String workerId, int virtualNodes) {
+    if (virtualNodes <= 1)
+      return List.of(workerId);
+    List<String> tokens = new ArrayList<>();
+    for (int v = 0; v < virtualNodes; v++)
+      tokens.add(Hasher.hash(workerId + "#" + v).substring(0, TOKEN_LENGTH));
+    return tokens;
+  }
+
+  private static SortedMap<String, Integer> tokensOf(List<String> workerIds, int virtualNodes) {
+    TreeMap<String, Integer> ring = new TreeMap<>();
+    for (int i = 0; i < workerIds.size(); i++) {
+      for (String token : tokens(workerIds.get(i), virtualNodes))
+        ring.putIfAbsent(token, i);
+    }
+    return ring;
+  }
+
+  public int size() {
+    return tokens.length;
+  }
+
+  public int workerForKey(String key) {
+    if (key == null)
+      return owners[owners.length - 1];
+    int i = Arrays.binarySearch(tokens, key);
+    if (i < 0)
+      i = -i - 2;
+    return owners[(i >= 0) ? i : owners.length - 1];
+  }
+
+  // The ranges that cover [startRow, endRowExclusive), in key order
+  public List<Range> ranges(String startRow, String endRowExclusive) {
+    List<Range> ranges = new ArrayList<>();
+    if ((startRow != null) && (endRowExclusive != null) && (startRow.compareTo(endRowExclusive) >= 0))
+      return ranges;
+    int last = tokens.length - 1;
+    for (int i = -1; i <= last; i++) {
+      String from = (i >= 0) ? tokens[i] : null;
+      String to = (i < last) ? tokens[i + 1] : null;
+      if ((startRow != null) && (to != null) && (to.compareTo(startRow) <= 0))
+        continue;
+      if ((endRowExclusive != null) && (from != null) && (from.compareTo(endRowExclusive) >= 0))
+        break;
+      if ((startRow != null) && ((from == null) || (from.compareTo(startRow) < 0)))
+        from = startRow;
+      if ((endRowExclusive != null) && ((to == null) || (to.compareTo(endRowExclusive) > 0)))
+        to = endRowExclusive;
+      ranges.add(new Range(owners[(i >= 0) ? i : last], from, to));
+    }
+    return ranges;
+  }
+}
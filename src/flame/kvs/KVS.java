@@ -2,13 +2,20 @@ package flame.kvs;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 
 public interface KVS {
   void put(String tableName, String row, String column, byte value[]) throws FileNotFoundException, IOException;
+  byte[] merge(String tableName, String row, String column, MergeOperator op, byte value[]) throws IOException;
   void putRow(String tableName, Row row) throws FileNotFoundException, IOException;
   Row getRow(String tableName, String row) throws FileNotFoundException, IOException;
   boolean existsRow(String tableName, String row) throws FileNotFoundException, IOException;
+  Map<String, Row> getRows(String tableName, Collection<String> rows) throws IOException;
+  Map<String, Row> getRows(String tableName, Collection<String> rows, String... columns) throws IOException;
+  Set<String> mightContain(String tableName, Collection<String> rows) throws IOException;
   byte[] get(String tableName, String row, String column) throws FileNotFoundException, IOException;
   Iterator<Row> scan(String tableName, String startRow, String endRowExclusive) throws FileNotFoundException, IOException;
   int count(String tableName) throws FileNotFoundException, IOException;
@@ -1,12 +1,17 @@
 package flame.kvs;
 
 import flame.tools.HTTP;
+import flame.tools.Serializer;
 
 import java.io.*;
 import java.net.*;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.Vector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class KVSClient implements KVS, Serializable {
 
@@ -28,8 +33,34 @@ public class KVSClient implements KVS, Serializable {
 
   ;
 
+  // How long requests keep retrying when workers refuse them as misdirected, e.g. while a
+  // migration of the range map (see RangeMap) hands ranges over to their new owners
+  static final long ROUTING_TIMEOUT_MILLIS = 10000;
+
+  // Reads of replicated tables (see Replicator), which may be sent to two replicas at once, run
+  // on these threads; reads in flight are counted per worker address to spread the load
+  static final ExecutorService readers = Executors.newCachedThreadPool(r -> {
+    Thread thread = new Thread(r, "kvs-read");
+    thread.setDaemon(true);
+    return thread;
+  });
+  static final Map<String, AtomicInteger> readsInFlight = new ConcurrentHashMap<>();
+  // Sends the puts that batch writers have held for their maximum delay, also when no more puts come
+  static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "kvs-flush");
+    thread.setDaemon(true);
+    return thread;
+  });
+  static final ReadLatencies readLatencies = new ReadLatencies();
+
   Vector<WorkerEntry> workers;
+  HashRing ring;
+  RangeMap rangeMap;
   boolean haveWorkers;
+  // The filter JAR is a local file, so a copy of the client on another machine starts without one
+  transient File filterJAR;
+  transient String filterJARName;
+  transient Set<String> workersWithJAR = new HashSet<>();
 
   public int numWorkers() throws IOException {
     if (!haveWorkers)
@@ -48,7 +79,7 @@ public class KVSClient implements KVS, Serializable {
   public String getWorkerAddress(int idx) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
-    return workers.elementAt(idx).address;
+    return addressOf(idx);
   }
 
   public String getWorkerID(int idx) throws IOException {
@@ -57,55 +88,111 @@ public class KVSClient implements KVS, Serializable {
     return workers.elementAt(idx).id;
   }
 
+  // The key ranges of all workers, in key order (see HashRing); a worker holds several of them
+  public List<HashRing.Range> ranges() throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+    return ring.ranges(null, null);
+  }
+
+  // The workers that hold part of [startRow, endRowExclusive), in index order
+  TreeSet<Integer> scanHolders(String startRow, String endRowExclusive) {
+    TreeSet<Integer> holders = new TreeSet<>();
+    for (HashRing.Range range : ring.ranges(startRow, endRowExclusive))
+      holders.add(range.worker());
+    return holders;
+  }
+
+  // The ranges that cover [startRow, endRowExclusive), in key order, with neighbouring ranges of
+  // the same worker joined into one
+  List<HashRing.Range> scanRanges(String startRow, String endRowExclusive) {
+    List<HashRing.Range> joined = new ArrayList<>();
+    for (HashRing.Range range : ring.ranges(startRow, endRowExclusive)) {
+      int last = joined.size() - 1;
+      if ((last >= 0) && (joined.get(last).worker() == range.worker()))
+        joined.set(last, new HashRing.Range(range.worker(), joined.get(last).fromKey(), range.toKeyExclusive()));
+      else
+        joined.add(range);
+    }
+    return joined;
+  }
+
+  // The URL of one worker's part of a scan; ringVersion is -1 without a range map
+  String scanURL(String tableName, int workerIndex, String startRow, String endRowExclusive, int ringVersion,
+                 String extraParams) throws IOException {
+    // Workers that predate the binary row form ignore format=binary and send text rows,
+    // which RowReader also understands
+    String params = "format=binary";
+    if (startRow != null)
+      params = params + "&startRow=" + startRow;
+    if (endRowExclusive != null)
+      params = params + "&endRowExclusive=" + endRowExclusive;
+    if (ringVersion >= 0)
+      params = params + "&ring=" + ringVersion;
+    params = params + extraParams;
+    return "http://" + getWorkerAddress(workerIndex) + "/data/" + tableName + "?" + params;
+  }
+
   class KVSIterator implements Iterator<Row> {
-    InputStream in;
+    HTTP.StreamResponse in;
+    RowReader reader;
     boolean atEnd;
     Row nextRow;
     int currentRangeIndex;
     String endRowExclusive;
     String startRow;
     String tableName;
+    String extraParams;
     Vector<String> ranges;
+    int ringVersion;
+    long deadline;
+    boolean filledAny;
 
-    KVSIterator(String tableNameArg, String startRowArg, String endRowExclusiveArg) throws IOException {
+    KVSIterator(String tableNameArg, String startRowArg, String endRowExclusiveArg, String extraParamsArg)
+            throws IOException {
       in = null;
+      extraParams = extraParamsArg;
       currentRangeIndex = 0;
       atEnd = false;
       endRowExclusive = endRowExclusiveArg;
       tableName = tableNameArg;
       startRow = startRowArg;
-      ranges = new Vector<String>();
-      if ((startRowArg == null) || (startRowArg.compareTo(getWorkerID(0)) < 0)) {
-        String url = getURL(tableNameArg, numWorkers() - 1, startRowArg,
-                ((endRowExclusiveArg != null) && (endRowExclusiveArg.compareTo(getWorkerID(0)) < 0)) ? endRowExclusiveArg
-                        : getWorkerID(0));
-        ranges.add(url);
-      }
-      for (int i = 0; i < numWorkers(); i++) {
-        if ((startRowArg == null) || (i == numWorkers() - 1) || (startRowArg.compareTo(getWorkerID(i + 1)) < 0)) {
-          if ((endRowExclusiveArg == null) || (endRowExclusiveArg.compareTo(getWorkerID(i)) > 0)) {
-            boolean useActualStartRow = (startRowArg != null) && (startRowArg.compareTo(getWorkerID(i)) > 0);
-            boolean useActualEndRow = (endRowExclusiveArg != null)
-                    && ((i == (numWorkers() - 1)) || (endRowExclusiveArg.compareTo(getWorkerID(i + 1)) < 0));
-            String url = getURL(tableNameArg, i, useActualStartRow ? startRowArg : getWorkerID(i),
-                    useActualEndRow ? endRowExclusiveArg : ((i < numWorkers() - 1) ? getWorkerID(i + 1) : null));
-            ranges.add(url);
-          }
-        }
-      }
+      deadline = System.currentTimeMillis() + ROUTING_TIMEOUT_MILLIS;
+      if (!haveWorkers)
+        downloadWorkers();
+      ranges = urls();
 
       openConnectionAndFill();
     }
 
+    // One request per range of the ring, in key order, so rows arrive in key order across
+    // workers too; the range below the first token comes first, although its worker also holds
+    // the range at the end. Neighbouring virtual nodes of one worker share a request.
+    Vector<String> urls() throws IOException {
+      ringVersion = (rangeMap != null) ? rangeMap.version : -1;
+      Vector<String> urls = new Vector<>();
+      for (HashRing.Range range : scanRanges(startRow, endRowExclusive))
+        urls.add(getURL(tableName, range.worker(), range.fromKey(), range.toKeyExclusive()));
+      return urls;
+    }
+
+    // Starts over with the current range map after a worker refused the scan because it has
+    // moved on from the scan's version, unless rows have been returned already
+    void reroute() {
+      if (filledAny)
+        throw new UncheckedIOException(new IOException("The KVS range map changed during a scan of " + tableName));
+      try {
+        refreshRouting(deadline);
+        ranges = urls();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      currentRangeIndex = 0;
+    }
+
     protected String getURL(String tableNameArg, int workerIndexArg, String startRowArg, String endRowExclusiveArg)
             throws IOException {
-      String params = "";
-      if (startRowArg != null)
-        params = "startRow=" + startRowArg;
-      if (endRowExclusiveArg != null)
-        params = (params.equals("") ? "" : (params + "&")) + "endRowExclusive=" + endRowExclusiveArg;
-      return "http://" + getWorkerAddress(workerIndexArg) + "/data/" + tableNameArg
-              + (params.equals("") ? "" : "?" + params);
+      return scanURL(tableNameArg, workerIndexArg, startRowArg, endRowExclusiveArg, ringVersion, extraParams);
     }
 
     void openConnectionAndFill() {
@@ -124,29 +211,32 @@ public class KVSClient implements KVS, Serializable {
             return;
           }
 
-          try {
-            URL url = new URI(ranges.elementAt(currentRangeIndex)).toURL();
-            HttpURLConnection con = (HttpURLConnection) url.openConnection();
-            con.setRequestMethod("GET");
-            con.connect();
-            in = con.getInputStream();
+          in = HTTP.stream("GET", ranges.elementAt(currentRangeIndex), null);
+          if (in.statusCode() == 421) {
+            in.close();
+            in = null;
+            reroute();
+            continue;
+          }
+          // A worker that doesn't have the table (404) has no rows
+          if (in.statusCode() == 200) {
+            reader = new RowReader(in.body());
             Row r = fill();
             if (r != null) {
               nextRow = r;
               break;
             }
-          } catch (FileNotFoundException fnfe) {
-          } catch (URISyntaxException use) {
+          } else if (in.statusCode() != 404) {
+            throw new IOException("Scan of " + tableName + " failed with status " + in.statusCode());
           }
 
+          in.close();
+          in = null;
           currentRangeIndex++;
         }
       } catch (IOException ioe) {
         if (in != null) {
-          try {
-            in.close();
-          } catch (Exception e) {
-          }
+          in.close();
           in = null;
         }
         atEnd = true;
@@ -155,7 +245,9 @@ public class KVSClient implements KVS, Serializable {
 
     synchronized Row fill() {
       try {
-        Row r = Row.readFrom(in);
+        Row r = reader.next();
+        if (r != null)
+          filledAny = true;
         return r;
       } catch (Exception e) {
         return null;
@@ -180,6 +272,216 @@ public class KVSClient implements KVS, Serializable {
     }
   }
 
+  // A scan that reads the parts of all workers at once: each worker's rows are decoded on a
+  // thread of their own into a bounded queue, so the workers send and the client decodes in
+  // parallel, and the scan runs at the speed of all workers rather than one at a time. In key
+  // order, the streams are merged by key (each worker sends its rows in key order); otherwise
+  // rows come out in whatever order they arrive, which is fastest.
+  //
+  // The scan only returns rows once every worker has accepted it, so a change of the range map
+  // (see KVSIterator) just starts it over. The streams wait for the caller however slowly it
+  // takes rows, so callers that stop early must close() it, or the threads and connections stay.
+  public class ParallelScan implements Iterator<Row>, Closeable {
+    static final int QUEUE_ROWS = 1024;
+
+    final String tableName;
+    final String startRow;
+    final String endRowExclusive;
+    final String extraParams;
+    final boolean inKeyOrder;
+    final long deadline;
+    List<Stream> streams;
+    // In key order: the next row of each stream that isn't done; otherwise, rows of all streams
+    PriorityQueue<Head> heads;
+    BlockingQueue<Row> arrivals;
+    int streamsDone;
+    Row nextRow;
+    volatile boolean closed;
+
+    record Head(Row row, Stream stream) {}
+
+    // One worker's part of the scan; its last row in the queue is its end marker, which is always
+    // queued unless the scan was closed
+    class Stream implements Runnable {
+      final String url;
+      final BlockingQueue<Row> rows;
+      final Row end = new Row("");
+      final CountDownLatch opened = new CountDownLatch(1);
+      volatile int status;
+      volatile IOException failure;
+      volatile boolean closed;
+      volatile HTTP.StreamResponse response;
+
+      Stream(String urlArg, BlockingQueue<Row> rowsArg) {
+        url = urlArg;
+        rows = rowsArg;
+      }
+
+      public void run() {
+        try {
+          response = HTTP.stream("GET", url, null);
+          if (closed)
+            response.close();
+          status = response.statusCode();
+          opened.countDown();
+          if (status == 200) {
+            RowReader reader = new RowReader(response.body());
+            Row row;
+            while (!closed && ((row = reader.next()) != null))
+              offer(row);
+          }
+        } catch (IOException e) {
+          failure = e;
+        } catch (InterruptedException | RuntimeException e) {
+          failure = new IOException("Stream from " + url + " failed: " + e, e);
+        } finally {
+          opened.countDown();
+          if (response != null)
+            response.close();
+          Thread.interrupted();
+          try {
+            offer(end);
+          } catch (InterruptedException ie) {
+            // Only close() gives up on the end marker
+          }
+        }
+      }
+
+      // Waits for room in the queue, however long the caller takes, until the scan is closed
+      void offer(Row row) throws InterruptedException {
+        while (!closed && !rows.offer(row, 100, TimeUnit.MILLISECONDS))
+          ;
+      }
+    }
+
+    ParallelScan(String tableNameArg, String startRowArg, String endRowExclusiveArg, boolean inKeyOrderArg,
+                 String extraParamsArg) throws IOException {
+      tableName = tableNameArg;
+      startRow = startRowArg;
+      endRowExclusive = endRowExclusiveArg;
+      inKeyOrder = inKeyOrderArg;
+      extraParams = extraParamsArg;
+      deadline = System.currentTimeMillis() + ROUTING_TIMEOUT_MILLIS;
+      try {
+        while (!open()) {
+          closeStreams();
+          refreshRouting(deadline);
+        }
+        nextRow = advance();
+      } catch (IOException e) {
+        close();
+        throw e;
+      }
+    }
+
+    // Starts a stream for each worker; returns false if one of them refused the scan as misdirected
+    boolean open() throws IOException {
+      int version = (rangeMap != null) ? rangeMap.version : -1;
+      streams = new ArrayList<>();
+      arrivals = inKeyOrder ? null : new ArrayBlockingQueue<>(QUEUE_ROWS);
+      for (int worker : scanHolders(startRow, endRowExclusive)) {
+        Stream stream = new Stream(scanURL(tableName, worker, startRow, endRowExclusive, version, extraParams),
+                inKeyOrder ? new ArrayBlockingQueue<>(QUEUE_ROWS) : arrivals);
+        streams.add(stream);
+        Thread thread = new Thread(stream, "kvs-scan");
+        thread.setDaemon(true);
+        thread.start();
+      }
+      try {
+        for (Stream stream : streams) {
+          stream.opened.await();
+          if (stream.status == 421)
+            return false;
+        }
+        streamsDone = 0;
+        if (inKeyOrder) {
+          heads = new PriorityQueue<>(Comparator.comparing((Head head) -> head.row().key()));
+          for (Stream stream : streams)
+            take(stream);
+        }
+      } catch (InterruptedException ie) {
+        throw new InterruptedIOException("Interrupted while starting a scan of " + tableName);
+      }
+      return true;
+    }
+
+    // Moves the stream's next row into the merge
+    void take(Stream stream) throws InterruptedException, IOException {
+      Row row = stream.rows.take();
+      if (row != stream.end)
+        heads.add(new Head(row, stream));
+      else
+        done(stream);
+    }
+
+    // A worker that doesn't have the table (404) has no rows; other failures end the scan
+    void done(Stream stream) throws IOException {
+      streamsDone++;
+      if (stream.failure != null)
+        throw new IOException("Scan of " + tableName + " failed: " + stream.failure.getMessage(), stream.failure);
+      if ((stream.status != 200) && (stream.status != 404))
+        throw new IOException("Scan of " + tableName + " failed with status " + stream.status + " (" + stream.url + ")");
+    }
+
+    Row advance() throws IOException {
+      try {
+        if (inKeyOrder) {
+          Head head = heads.poll();
+          if (head == null)
+            return null;
+          take(head.stream());
+          return head.row();
+        }
+        while (streamsDone < streams.size()) {
+          Row row = arrivals.take();
+          Stream ended = null;
+          for (Stream stream : streams) {
+            if (row == stream.end)
+              ended = stream;
+          }
+          if (ended == null)
+            return row;
+          done(ended);
+        }
+        return null;
+      } catch (InterruptedException ie) {
+        throw new InterruptedIOException("Interrupted during a scan of " + tableName);
+      }
+    }
+
+    public synchronized boolean hasNext() {
+      return !closed && (nextRow != null);
+    }
+
+    public synchronized Row next() {
+      if (closed || (nextRow == null))
+        throw new NoSuchElementException();
+      Row row = nextRow;
+      try {
+        nextRow = advance();
+      } catch (IOException e) {
+        close();
+        throw new UncheckedIOException(e);
+      }
+      return row;
+    }
+
+    // Not synchronized, so that another thread can close a scan that is waiting for rows
+    public void close() {
+      closed = true;
+      closeStreams();
+    }
+
+    void closeStreams() {
+      for (Stream stream : streams) {
+        stream.closed = true;
+        HTTP.StreamResponse response = stream.response;
+        if (response != null)
+          response.close();
+      }
+    }
+  }
+
   synchronized void downloadWorkers() throws IOException {
     String result = new String(HTTP.doRequest("GET", "http://" + coordinator + "/workers", null).body());
     String[] pieces = result.split("\n");
@@ -188,26 +490,186 @@ public class KVSClient implements KVS, Serializable {
       throw new IOException("No active KVS workers");
     if (pieces.length != (numWorkers + 1))
       throw new RuntimeException("Received truncated response when asking KVS coordinator for list of workers");
-    workers.clear();
+    Vector<WorkerEntry> active = new Vector<>();
+    Set<String> activeIds = new HashSet<>();
     for (int i = 0; i < numWorkers; i++) {
       String[] pcs = pieces[1 + i].split(",");
-      workers.add(new WorkerEntry(pcs[1], pcs[0]));
+      active.add(new WorkerEntry(pcs[1], pcs[0]));
+      activeIds.add(pcs[0]);
     }
-    Collections.sort(workers);
+
+    // Coordinators with a range map (see RangeMap) decide which worker serves each range, and
+    // the client routes by the map's current placement. Members that aren't active right now
+    // get an entry without an address, so requests for their keys fail instead of going to
+    // another worker. Older coordinators only say how many virtual nodes each worker has, or
+    // not even that; then the ring is made from the IDs of the active workers.
+    HTTP.Response rm = HTTP.doRequest("GET", "http://" + coordinator + "/ring", null);
+    RangeMap map = null;
+    if (rm.statusCode() == 200) {
+      map = RangeMap.parse(new String(rm.body(), StandardCharsets.UTF_8));
+      for (String member : map.members()) {
+        if (!activeIds.contains(member))
+          active.add(new WorkerEntry(null, member));
+      }
+    }
+    Collections.sort(active);
+    List<String> ids = new ArrayList<>();
+    for (WorkerEntry w : active)
+      ids.add(w.id);
+    workers = active;
+    if (map != null) {
+      ring = map.ring(ids);
+    } else {
+      int virtualNodes = 1;
+      HTTP.Response vn = HTTP.doRequest("GET", "http://" + coordinator + "/virtualNodes", null);
+      if (vn.statusCode() == 200)
+        virtualNodes = Integer.parseInt(new String(vn.body(), StandardCharsets.UTF_8).trim());
+      ring = new HashRing(ids, virtualNodes);
+    }
+    rangeMap = map;
 
     haveWorkers = true;
   }
 
   int workerIndexForKey(String key) {
-    int chosenWorker = workers.size() - 1;
-    if (key != null) {
-      for (int i = 0; i < workers.size() - 1; i++) {
-        if ((key.compareTo(workers.elementAt(i).id) >= 0) && (key.compareTo(workers.elementAt(i + 1).id) < 0))
-          chosenWorker = i;
+    return ring.workerForKey(key);
+  }
+
+  String addressOf(int workerIndex) throws IOException {
+    WorkerEntry w = workers.elementAt(workerIndex);
+    if (w.address == null)
+      throw new IOException("KVS worker " + w.id + " is not active");
+    return w.address;
+  }
+
+  // Sends a request for one row to the worker that serves it. Workers answer 421 for rows that
+  // they don't serve (any more); the client then fetches the range map again and retries.
+  HTTP.Response requestForRow(String method, String row, String path, byte[] body) throws IOException {
+    long deadline = System.currentTimeMillis() + ROUTING_TIMEOUT_MILLIS;
+    while (true) {
+      HTTP.Response r = HTTP.doRequest(method, "http://" + addressOf(workerIndexForKey(row)) + path, body);
+      if ((r == null) || (r.statusCode() != 421))
+        return r;
+      refreshRouting(deadline);
+    }
+  }
+
+  // Reads a row (or cell) of a table. For a replicated table, the read goes to the replica with
+  // the fewest reads in flight from this process, and if no answer has come after the hedge
+  // delay, to the next one as well; the first answer wins. The delay is the 95th percentile of
+  // recent reads, or -Dkvs.hedgeDelay milliseconds. If no replica answers, the owner is asked.
+  // Only the owner's 404 is an answer: a replica that hasn't caught up with a table that was
+  // just created may not have the row yet.
+  HTTP.Response readRow(String tableName, String row, String path) throws IOException {
+    RangeMap map = rangeMap;
+    if ((map == null) || !map.replicates(tableName))
+      return requestForRow("GET", row, path, null);
+
+    Read read = hedgedRead(map, row, "GET", path, null);
+    return (read != null) ? read.response() : requestForRow("GET", row, path, null);
+  }
+
+  // An answer to a read, and whether it came from the owner of the rows
+  record Read(HTTP.Response response, boolean fromOwner) {}
+
+  // Sends a read of the row (or of rows with the same replicas) to the replicas as readRow()
+  // describes; returns null if none of them answered
+  Read hedgedRead(RangeMap map, String row, String method, String path, byte[] body) throws IOException {
+    List<String> replicas = new ArrayList<>();
+    String owner = null;
+    for (String id : map.replicas(row)) {
+      for (WorkerEntry w : workers) {
+        if (w.id.equals(id) && (w.address != null)) {
+          replicas.add(w.address);
+          if (id.equals(map.owner(row)))
+            owner = w.address;
+        }
       }
     }
+    Collections.shuffle(replicas);
+    replicas.sort(Comparator.comparingInt(address -> readsInFlight.computeIfAbsent(address, a -> new AtomicInteger()).get()));
+
+    CompletionService<Read> reads = new ExecutorCompletionService<>(readers);
+    long hedgeDelay = Long.getLong("kvs.hedgeDelay", readLatencies.percentile95());
+    int sent = 0, pending = 0;
+    try {
+      // The next replica is asked when the delay is over, or right away when a read has failed
+      while ((sent < replicas.size()) || (pending > 0)) {
+        if (sent < replicas.size()) {
+          String address = replicas.get(sent++);
+          submitRead(reads, address, method, path, body, address.equals(owner));
+          pending++;
+        }
+        Future<Read> done = (sent < replicas.size()) ? reads.poll(hedgeDelay, TimeUnit.MILLISECONDS) : reads.take();
+        if (done == null)
+          continue;
+        pending--;
+        try {
+          Read r = done.get();
+          if (r != null)
+            return r;
+        } catch (ExecutionException e) {
+        }
+      }
+    } catch (InterruptedException ie) {
+      throw new InterruptedIOException("Interrupted while reading row " + row);
+    }
+    return null;
+  }
+
+  // A replica's 404 counts as no answer, like a failed read or a 421
+  void submitRead(CompletionService<Read> reads, String address, String method, String path, byte[] body,
+                  boolean fromOwner) {
+    reads.submit(() -> {
+      AtomicInteger inFlight = readsInFlight.computeIfAbsent(address, a -> new AtomicInteger());
+      inFlight.incrementAndGet();
+      long start = System.nanoTime();
+      try {
+        HTTP.Response r = HTTP.doRequest(method, "http://" + address + path, body);
+        if ((r == null) || (r.statusCode() == 421))
+          return null;
+        readLatencies.add((System.nanoTime() - start) / 1000000);
+        if ((r.statusCode() == 404) && !fromOwner)
+          return null;
+        return new Read(r, fromOwner);
+      } finally {
+        inFlight.decrementAndGet();
+      }
+    });
+  }
+
+  // The durations of the most recent reads, in milliseconds
+  static class ReadLatencies {
+    static final int SAMPLES = 256;
+    static final long INITIAL_MILLIS = 20;
+
+    final long[] samples = new long[SAMPLES];
+    long count;
+    long percentile95 = INITIAL_MILLIS;
+
+    synchronized void add(long millis) {
+      samples[(int) (count++ % SAMPLES)] = millis;
+      if (count % 16 == 0) {
+        long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, SAMPLES));
+        Arrays.sort(sorted);
+        percentile95 = Math.max(1, sorted[(int) (sorted.length * 0.95)]);
+      }
+    }
+
+    synchronized long percentile95() {
+      return percentile95;
+    }
+  }
 
-    return chosenWorker;
+  void refreshRouting(long deadline) throws IOException {
+    if (System.currentTimeMillis() > deadline)
+      throw new IOException("KVS workers kept refusing requests as misdirected; the range map did not settle");
+    try {
+      Thread.sleep(100);
+    } catch (InterruptedException ie) {
+      throw new InterruptedIOException("Interrupted while waiting for the range map");
+    }
+    downloadWorkers();
   }
 
   public KVSClient(String coordinatorArg) {
@@ -222,6 +684,8 @@ public class KVSClient implements KVS, Serializable {
 
     boolean result = true;
     for (WorkerEntry w : workers) {
+      if (w.address == null)
+        continue;
       try {
         byte[] response = HTTP
                 .doRequest("PUT", "http://" + w.address + "/rename/" + URLEncoder.encode(oldTableName, "UTF-8") + "/",
@@ -242,6 +706,8 @@ public class KVSClient implements KVS, Serializable {
       downloadWorkers();
 
     for (WorkerEntry w : workers) {
+      if (w.address == null)
+        continue;
       try {
         byte[] response = HTTP
                 .doRequest("PUT", "http://" + w.address + "/delete/" + URLEncoder.encode(oldTableName, "UTF-8") + "/", null)
@@ -260,9 +726,8 @@ public class KVSClient implements KVS, Serializable {
       downloadWorkers();
 
     try {
-      String target = "http://" + workers.elementAt(workerIndexForKey(row)).address + "/data/" + tableName + "/"
-              + URLEncoder.encode(row, "UTF-8") + "/" + URLEncoder.encode(column, "UTF-8");
-      byte[] response = HTTP.doRequest("PUT", target, value).body();
+      String target = "/data/" + tableName + "/" + URLEncoder.encode(row, "UTF-8") + "/" + URLEncoder.encode(column, "UTF-8");
+      byte[] response = requestForRow("PUT", row, target, value).body();
       String result = new String(response);
       if (!result.equals("OK"))
         throw new RuntimeException("PUT returned something other than OK: " + result + "(" + target + ")");
@@ -275,45 +740,305 @@ public class KVSClient implements KVS, Serializable {
     put(tableName, row, column, value.getBytes());
   }
 
+  // Merges the value into the cell on the worker that owns the row, in one atomic step, and
+  // returns the cell's new value
+  @Override
+  public byte[] merge(String tableName, String row, String column, MergeOperator op, byte value[]) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    String target = "/merge/" + tableName + "/" + URLEncoder.encode(row, "UTF-8") + "/" + URLEncoder.encode(column, "UTF-8")
+            + "?op=" + op.paramName();
+    HTTP.Response response = requestForRow("PUT", row, target, value);
+    if ((response == null) || (response.statusCode() != 200))
+      throw new IOException("Merge failed: " + ((response != null) ? new String(response.body()) : "no response")
+              + " (" + target + ")");
+    return response.body();
+  }
+
+  public String merge(String tableName, String row, String column, MergeOperator op, String value) throws IOException {
+    return new String(merge(tableName, row, column, op, value.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+  }
+
   @Override
   public void putRow(String tableName, Row row) throws FileNotFoundException, IOException {
     if (!haveWorkers)
       downloadWorkers();
 
-    byte[] response = HTTP.doRequest("PUT",
-                    "http://" + workers.elementAt(workerIndexForKey(row.key())).address + "/data/" + tableName, row.toByteArray())
-            .body();
+    byte[] response = requestForRow("PUT", row.key(), "/data/" + tableName, row.toBinaryByteArray()).body();
     String result = new String(response);
     if (!result.equals("OK"))
       throw new RuntimeException("PUT returned something other than OK: " + result);
   }
 
+  // Sends the rows in one request per worker. Each row's columns are added to the stored row
+  // (creating it if needed), as a put() of each column would; other columns are kept.
+  public void putBatch(String tableName, Collection<Row> rows) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    putBatch(tableName, rows, System.currentTimeMillis() + ROUTING_TIMEOUT_MILLIS);
+  }
+
+  void putBatch(String tableName, Collection<Row> rows, long deadline) throws IOException {
+    Map<Integer, List<Row>> batches = new HashMap<>();
+    for (Row row : rows)
+      batches.computeIfAbsent(workerIndexForKey(row.key()), i -> new ArrayList<>()).add(row);
+    for (Map.Entry<Integer, List<Row>> batch : batches.entrySet())
+      sendBatch(tableName, batch.getKey(), batch.getValue(), deadline);
+  }
+
+  // A worker refuses the rest of a batch at the first row it doesn't serve, so then the whole
+  // batch goes out again, split up by the current range map; rows that were written twice just
+  // get the same columns again
+  void sendBatch(String tableName, int workerIndex, Collection<Row> rows, long deadline) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    for (Row row : rows)
+      body.writeBytes(row.toBinaryByteArray());
+    String target = "http://" + addressOf(workerIndex) + "/batch/" + tableName;
+    HTTP.Response response = HTTP.doRequest("PUT", target, body.toByteArray());
+    if ((response != null) && (response.statusCode() == 421)) {
+      refreshRouting(deadline);
+      putBatch(tableName, rows, deadline);
+      return;
+    }
+    String result = (response != null) ? new String(response.body()) : null;
+    if (!"OK".equals(result))
+      throw new RuntimeException("PUT returned something other than OK: " + result + "(" + target + ")");
+  }
+
+  public BatchWriter batchWriter(String tableName) throws IOException {
+    return batchWriter(tableName, 1 << 20, 1000);
+  }
+
+  public BatchWriter batchWriter(String tableName, int maxBytes, long maxDelayMillis) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    return new BatchWriter(tableName, maxBytes, maxDelayMillis);
+  }
+
+  // Buffers column puts to one table and sends them to the owning workers with putBatch(): a
+  // worker's batch goes out once it holds about maxBytes, and everything goes out once the
+  // oldest buffered put is maxDelayMillis old, from the flusher thread if no put comes along to
+  // do it. Puts to the same row are combined into one row. A failure of a flush in the
+  // background is thrown by the next put(), flush() or close().
+  public class BatchWriter implements Closeable {
+    final String tableName;
+    final int maxBytes;
+    final long maxDelayMillis;
+    final List<Map<String, Row>> pending = new ArrayList<>();
+    int[] pendingBytes;
+    long oldestPut;
+    IOException failure;
+
+    BatchWriter(String tableNameArg, int maxBytesArg, long maxDelayMillisArg) {
+      tableName = tableNameArg;
+      maxBytes = maxBytesArg;
+      maxDelayMillis = maxDelayMillisArg;
+      for (int i = 0; i < workers.size(); i++)
+        pending.add(new LinkedHashMap<>());
+      pendingBytes = new int[workers.size()];
+    }
+
+    public synchronized void put(String row, String column, byte[] value) throws IOException {
+      throwFailure();
+      int worker = workerIndexForKey(row);
+      if (worker >= pending.size()) {
+        // The range map has gained workers since the writer was made
+        while (pending.size() <= worker)
+          pending.add(new LinkedHashMap<>());
+        pendingBytes = Arrays.copyOf(pendingBytes, pending.size());
+      }
+      Map<String, Row> batch = pending.get(worker);
+      Row buffered = batch.get(row);
+      if (buffered == null) {
+        buffered = new Row(row);
+        batch.put(row, buffered);
+        pendingBytes[worker] += row.length();
+      }
+      buffered.put(column, value);
+      pendingBytes[worker] += column.length() + value.length;
+
+      long now = System.currentTimeMillis();
+      if (oldestPut == 0) {
+        oldestPut = now;
+        flusher.schedule(this::flushIfDue, maxDelayMillis, TimeUnit.MILLISECONDS);
+      }
+      if (now - oldestPut >= maxDelayMillis)
+        flush();
+      else if (pendingBytes[worker] >= maxBytes)
+        flush(worker);
+    }
+
+    public void put(String row, String column, String value) throws IOException {
+      put(row, column, value.getBytes());
+    }
+
+    public synchronized void flush() throws IOException {
+      throwFailure();
+      for (int i = 0; i < pending.size(); i++)
+        flush(i);
+      oldestPut = 0;
+    }
+
+    // Runs on the flusher thread; the puts may have been flushed (and new ones buffered) since
+    // this was scheduled, in which case a later run takes care of them
+    synchronized void flushIfDue() {
+      if ((oldestPut == 0) || (failure != null) || (System.currentTimeMillis() - oldestPut < maxDelayMillis))
+        return;
+      try {
+        flush();
+      } catch (IOException e) {
+        failure = e;
+      } catch (RuntimeException e) {
+        failure = new IOException(e);
+      }
+    }
+
+    void throwFailure() throws IOException {
+      if (failure == null)
+        return;
+      IOException e = new IOException("A batch of puts to " + tableName + " could not be sent in the background", failure);
+      failure = null;
+      throw e;
+    }
+
+    void flush(int worker) throws IOException {
+      Map<String, Row> batch = pending.get(worker);
+      if (batch.isEmpty())
+        return;
+      List<Row> rows = new ArrayList<>(batch.values());
+      batch.clear();
+      pendingBytes[worker] = 0;
+      sendBatch(tableName, worker, rows, System.currentTimeMillis() + ROUTING_TIMEOUT_MILLIS);
+    }
+
+    public void close() throws IOException {
+      flush();
+    }
+  }
+
   @Override
   public Row getRow(String tableName, String row) throws IOException {
+    return getRow(tableName, row, (String[]) null);
+  }
+
+  // Fetches only the given columns of the row (or just its key, if no columns are given)
+  public Row getRow(String tableName, String row, String... columns) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
 
-    HTTP.Response resp = HTTP.doRequest("GET", "http://" + workers.elementAt(workerIndexForKey(row)).address + "/data/"
-            + tableName + "/" + URLEncoder.encode(row, "UTF-8"), null);
+    HTTP.Response resp = readRow(tableName, row, "/data/" + tableName + "/" + URLEncoder.encode(row, "UTF-8")
+            + "?format=binary" + ((columns != null) ? "&columns=" + encodeColumns(columns) : ""));
     if (resp.statusCode() == 404)
       return null;
 
     byte[] result = resp.body();
     try {
-      return Row.readFrom(new ByteArrayInputStream(result));
+      return new RowReader(result).next();
     } catch (Exception e) {
       throw new RuntimeException("Decoding error while reading Row '" + row + "' in table '" + tableName
               + "' from getRow() URL (encoded as '" + URLEncoder.encode(row, "UTF-8") + "')");
     }
   }
 
+  @Override
+  public Map<String, Row> getRows(String tableName, Collection<String> rows) throws IOException {
+    return getRows(tableName, rows, (String[]) null);
+  }
+
+  // Fetches many rows with one request per worker, sent in parallel, and maps each key to its
+  // row; keys of rows that don't exist are left out. Columns are handled as in getRow(). If a
+  // worker refuses its keys as misdirected, all of them are fetched again with the current map.
+  // Keys of a replicated table are grouped by their replicas instead, and each group is read
+  // like a single row with readRow().
+  @Override
+  public Map<String, Row> getRows(String tableName, Collection<String> rows, String... columns) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    long deadline = System.currentTimeMillis() + ROUTING_TIMEOUT_MILLIS;
+    while (true) {
+      Map<String, Row> result = getRowsOnce(tableName, rows, columns);
+      if (result != null)
+        return result;
+      refreshRouting(deadline);
+    }
+  }
+
+  // Returns null if a worker refused its keys as misdirected
+  Map<String, Row> getRowsOnce(String tableName, Collection<String> rows, String... columns) throws IOException {
+    RangeMap map = rangeMap;
+    RangeMap replicated = ((map != null) && map.replicates(tableName)) ? map : null;
+    Map<Object, List<String>> groups = new HashMap<>();
+    for (String row : rows)
+      groups.computeIfAbsent((replicated != null) ? replicated.replicas(row) : workerIndexForKey(row),
+              g -> new ArrayList<>()).add(row);
+
+    String params = "?format=binary" + ((columns != null) ? "&columns=" + encodeColumns(columns) : "");
+    Map<String, Row> result = new ConcurrentHashMap<>();
+    List<Future<Boolean>> fetches = new ArrayList<>();
+    boolean served = true;
+    for (List<String> keys : groups.values()) {
+      if (groups.size() == 1)
+        served = multiget(tableName, replicated, keys, params, result);
+      else
+        fetches.add(readers.submit(() -> multiget(tableName, replicated, keys, params, result)));
+    }
+
+    try {
+      for (Future<Boolean> fetch : fetches)
+        served &= fetch.get();
+    } catch (InterruptedException ie) {
+      throw new InterruptedIOException("Interrupted while waiting for multiget responses");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new IOException("multiget failed: " + e.getCause(), e.getCause());
+    }
+    return served ? result : null;
+  }
+
+  // Fetches one group of keys into the result; returns false if the worker refused them as
+  // misdirected. Rows that a replica didn't have are asked of the owner, as in readRow()
+  boolean multiget(String tableName, RangeMap replicated, List<String> keys, String params, Map<String, Row> result)
+          throws IOException {
+    StringBuilder encoded = new StringBuilder();
+    for (String key : keys)
+      encoded.append(URLEncoder.encode(key, "UTF-8")).append('\n');
+    byte[] body = encoded.toString().getBytes(StandardCharsets.UTF_8);
+    String path = "/multiget/" + tableName + params;
+
+    Read read = (replicated != null) ? hedgedRead(replicated, keys.get(0), "POST", path, body) : null;
+    String address = addressOf(workerIndexForKey(keys.get(0)));
+    HTTP.Response r = (read != null) ? read.response() : HTTP.doRequest("POST", "http://" + address + path, body);
+    if ((r != null) && (r.statusCode() == 421))
+      return false;
+    if ((r == null) || (r.statusCode() != 200))
+      throw new IOException("multiget failed on worker " + address);
+    RowReader reader = new RowReader(r.body());
+    Row row;
+    while ((row = reader.next()) != null)
+      result.put(row.key(), row);
+
+    if ((read == null) || read.fromOwner())
+      return true;
+    List<String> missing = new ArrayList<>();
+    for (String key : keys) {
+      if (!result.containsKey(key))
+        missing.add(key);
+    }
+    return missing.isEmpty() || multiget(tableName, null, missing, params, result);
+  }
+
   @Override
   public byte[] get(String tableName, String row, String column) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
 
-    HTTP.Response res = HTTP.doRequest("GET", "http://" + workers.elementAt(workerIndexForKey(row)).address + "/data/"
-            + tableName + "/" + URLEncoder.encode(row, "UTF-8") + "/" + URLEncoder.encode(column, "UTF-8"), null);
+    HTTP.Response res = readRow(tableName, row, "/data/" + tableName + "/" + URLEncoder.encode(row, "UTF-8") + "/"
+            + URLEncoder.encode(column, "UTF-8"));
     return ((res != null) && (res.statusCode() == 200)) ? res.body() : null;
   }
 
@@ -322,11 +1047,51 @@ public class KVSClient implements KVS, Serializable {
     if (!haveWorkers)
       downloadWorkers();
 
-    HTTP.Response r = HTTP.doRequest("GET", "http://" + workers.elementAt(workerIndexForKey(row)).address + "/data/"
-            + tableName + "/" + URLEncoder.encode(row, "UTF-8"), null);
+    // An empty projection, so that only the key comes back rather than the whole row
+    HTTP.Response r = readRow(tableName, row, "/data/" + tableName + "/" + URLEncoder.encode(row, "UTF-8") + "?columns=");
     return r.statusCode() == 200;
   }
 
+  // Returns the subset of rows that might exist in the table. Rows that are left out definitely
+  // do not exist, so callers can skip looking them up.
+  @Override
+  public Set<String> mightContain(String tableName, Collection<String> rows) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    long deadline = System.currentTimeMillis() + ROUTING_TIMEOUT_MILLIS;
+    while (true) {
+      Set<String> result = mightContainOnce(tableName, rows);
+      if (result != null)
+        return result;
+      refreshRouting(deadline);
+    }
+  }
+
+  // Returns null if a worker refused its keys as misdirected
+  Set<String> mightContainOnce(String tableName, Collection<String> rows) throws IOException {
+    Map<Integer, StringBuilder> batches = new HashMap<>();
+    for (String row : rows)
+      batches.computeIfAbsent(workerIndexForKey(row), i -> new StringBuilder())
+              .append(URLEncoder.encode(row, "UTF-8")).append('\n');
+
+    Set<String> result = new HashSet<>();
+    for (Map.Entry<Integer, StringBuilder> batch : batches.entrySet()) {
+      String address = addressOf(batch.getKey());
+      HTTP.Response r = HTTP.doRequest("POST", "http://" + address + "/mightContain/" + tableName,
+              batch.getValue().toString().getBytes(StandardCharsets.UTF_8));
+      if ((r != null) && (r.statusCode() == 421))
+        return null;
+      if ((r == null) || (r.statusCode() != 200))
+        throw new IOException("mightContain failed on worker " + address);
+      for (String line : new String(r.body(), StandardCharsets.UTF_8).split("\n")) {
+        if (!line.isEmpty())
+          result.add(URLDecoder.decode(line, "UTF-8"));
+      }
+    }
+    return result;
+  }
+
   @Override
   public int count(String tableName) throws IOException {
     if (!haveWorkers)
@@ -334,6 +1099,8 @@ public class KVSClient implements KVS, Serializable {
 
     int total = 0;
     for (WorkerEntry w : workers) {
+      if (w.address == null)
+        continue;
       HTTP.Response r = HTTP.doRequest("GET", "http://" + w.address + "/count/" + tableName, null);
       if ((r != null) && (r.statusCode() == 200)) {
         String result = new String(r.body());
@@ -353,7 +1120,104 @@ public class KVSClient implements KVS, Serializable {
     if (!haveWorkers)
       downloadWorkers();
 
-    return new KVSIterator(tableName, startRow, endRowExclusive);
+    return new KVSIterator(tableName, startRow, endRowExclusive, "");
+  }
+
+  // Scans only the given columns of each row (or just the keys, if no columns are given), so
+  // passes that need a few small columns don't pull whole rows across the network
+  public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive, String... columns)
+          throws FileNotFoundException, IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    return new KVSIterator(tableName, startRow, endRowExclusive, (columns != null) ? "&columns=" + encodeColumns(columns) : "");
+  }
+
+  // Scans only the rows that match the filter; the workers evaluate it before sending anything.
+  // Columns, if any are given, are applied after the filter, so the filter still sees whole rows;
+  // without columns, whole rows are returned.
+  public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive, RowFilter filter,
+          String... columns) throws FileNotFoundException, IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    String params = "&filter=" + Base64.getUrlEncoder().withoutPadding().encodeToString(Serializer.objectToByteArray(filter));
+    if (filterJAR != null) {
+      uploadFilterJAR();
+      params = params + "&jar=" + filterJARName;
+    }
+    if ((columns != null) && (columns.length > 0))
+      params = params + "&columns=" + encodeColumns(columns);
+    return new KVSIterator(tableName, startRow, endRowExclusive, params);
+  }
+
+  // Scans all workers' parts of the range at once (see ParallelScan), in key order or in the
+  // order in which rows arrive. Columns, unless null, are handled as in scan().
+  public ParallelScan parallelScan(String tableName, String startRow, String endRowExclusive, boolean inKeyOrder,
+          String[] columns) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    return new ParallelScan(tableName, startRow, endRowExclusive, inKeyOrder,
+            (columns != null) ? "&columns=" + encodeColumns(columns) : "");
+  }
+
+  public ParallelScan parallelScan(String tableName, boolean inKeyOrder) throws IOException {
+    return parallelScan(tableName, null, null, inKeyOrder, null);
+  }
+
+  // Makes the classes in the given JAR available to the workers when they deserialize filters,
+  // for filters that are defined in a job rather than in the KVS itself
+  public synchronized void useJAR(File jar) throws IOException {
+    byte[] contents = Files.readAllBytes(jar.toPath());
+    try {
+      filterJARName = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(contents));
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new RuntimeException("SHA-256 not supported?!?");
+    }
+    filterJAR = jar;
+    workersWithJAR.clear();
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    workersWithJAR = new HashSet<>();
+  }
+
+  synchronized void uploadFilterJAR() throws IOException {
+    byte[] contents = null;
+    for (WorkerEntry w : workers) {
+      if ((w.address == null) || workersWithJAR.contains(w.address))
+        continue;
+      if (contents == null)
+        contents = Files.readAllBytes(filterJAR.toPath());
+      HTTP.Response r = HTTP.doRequest("PUT", "http://" + w.address + "/useJAR/" + filterJARName, contents);
+      if ((r == null) || (r.statusCode() != 200))
+        throw new IOException("Could not upload filter JAR to worker " + w.address);
+      workersWithJAR.add(w.address);
+    }
+  }
+
+  // Value of a columns= query parameter: the URL-encoded column names, separated by commas,
+  // and URL-encoded once more as a whole
+  public static String encodeColumns(String... columns) {
+    StringBuilder list = new StringBuilder();
+    for (String column : columns) {
+      if (list.length() > 0)
+        list.append(',');
+      list.append(URLEncoder.encode(column, StandardCharsets.UTF_8));
+    }
+    return URLEncoder.encode(list.toString(), StandardCharsets.UTF_8);
+  }
+
+  // Inverse of encodeColumns(), for a parameter value that the web server has already decoded once
+  public static String[] decodeColumns(String columnsParam) {
+    if (columnsParam.isEmpty())
+      return new String[0];
+    String[] columns = columnsParam.split(",");
+    for (int i = 0; i < columns.length; i++)
+      columns[i] = URLDecoder.decode(columns[i], StandardCharsets.UTF_8);
+    return columns;
   }
 
   public static void main(String args[]) throws Exception {
@@ -0,0 +1,379 @@
+package flame.kvs;
+
+import flame.tools.Logger;
+import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+// Wraps the in-memory engine with a write-ahead log, so in-memory tables survive a worker
+// restart or crash. Every change is applied and appended to the log under one lock, so the
+// log has the same order as the tables; how long a PUT then waits depends on the sync mode:
+//
+//   none   - the record is handed to the OS, which survives a crash of the worker but not of
+//            the machine
+//   batch  - the PUT waits until an fsync has covered its record. Writers that arrive while an
+//            fsync is running share the next one (group commit)
+//   always - every record is fsynced on its own, before the next one is appended
+//
+// Once the log grows past checkpointSize, the tables are written to a checkpoint and the older
+// logs are deleted. Table renames and deletes wait while a checkpoint is written; puts don't,
+// because replaying a put over a checkpoint that already contains it changes nothing.
+//
+// Files in the log directory: wal-<n>.log (the log, from checkpoint n on) and checkpoint-<n>.log
+// (all rows as of the start of wal-<n>.log, or later). Records are
+// <length> <crc32> <op> <table> <payload>; replay of a file stops at its first torn or corrupt
+// record, so every start of the worker appends to a new log.
+public class LoggedStorage implements Storage {
+  private static final Logger logger = Logger.getLogger(LoggedStorage.class);
+  private static final byte PUT_ROW = 1;
+  private static final byte PUT_COLUMNS = 2;
+  private static final byte RENAME = 3;
+  private static final byte DELETE = 4;
+  private static final byte DELETE_ROW = 5;
+
+  public enum SyncMode { NONE, BATCH, ALWAYS }
+
+  private final Storage storage;
+  private final File dir;
+  private final SyncMode syncMode;
+  private final long checkpointSize;
+
+  // Guards the log file and the order of changes
+  private final Object appendLock = new Object();
+  private long generation;
+  private FileOutputStream log;
+  private long logBytes;
+  private long appended;
+
+  // Group commit: one thread at a time fsyncs, for everything appended so far
+  private final Object syncLock = new Object();
+  private long synced;
+
+  // Held by renames, deletes and checkpoints
+  private final Object structureLock = new Object();
+  private boolean checkpointing;
+
+  public LoggedStorage(Storage storageArg, File dirArg, SyncMode syncModeArg, long checkpointSizeArg) throws IOException {
+    storage = storageArg;
+    dir = dirArg;
+    syncMode = syncModeArg;
+    checkpointSize = checkpointSizeArg;
+    dir.mkdirs();
+    // Appending to the last log would put new records behind a torn one, where replay stops
+    generation = recover() + 1;
+    log = new FileOutputStream(new File(dir, "wal-" + generation + ".log"), true);
+    logBytes = log.getChannel().size();
+  }
+
+  public void putRow(String tableName, Row row) throws IOException {
+    append(PUT_ROW, tableName, row.toBinaryByteArray(), () -> storage.putRow(tableName, row));
+  }
+
+  public void put(String tableName, String row, String column, byte[] value) throws IOException {
+    Row delta = new Row(row);
+    delta.put(column, value);
+    append(PUT_COLUMNS, tableName, delta.toBinaryByteArray(), () -> storage.put(tableName, row, column, value));
+  }
+
+  public void putColumns(String tableName, Row columns) throws IOException {
+    append(PUT_COLUMNS, tableName, columns.toBinaryByteArray(), () -> storage.putColumns(tableName, columns));
+  }
+
+  public Row getRow(String tableName, String row) throws IOException {
+    return storage.getRow(tableName, row);
+  }
+
+  public void deleteRow(String tableName, String row) throws IOException {
+    append(DELETE_ROW, tableName, row.getBytes(StandardCharsets.UTF_8), () -> storage.deleteRow(tableName, row));
+  }
+
+  public boolean existsRow(String tableName, String row) throws IOException {
+    return storage.existsRow(tableName, row);
+  }
+
+  public boolean mightContain(String tableName, String row) throws IOException {
+    return storage.mightContain(tableName, row);
+  }
+
+  public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive) throws IOException {
+    return storage.scan(tableName, startRow, endRowExclusive);
+  }
+
+  public Iterator<byte[]> scanEncoded(String tableName, String startRow, String endRowExclusive) throws IOException {
+    return storage.scanEncoded(tableName, startRow, endRowExclusive);
+  }
+
+  public Iterator<String> keys(String tableName) throws IOException {
+    return storage.keys(tableName);
+  }
+
+  public int count(String tableName) throws IOException {
+    return storage.count(tableName);
+  }
+
+  public boolean hasTable(String tableName) {
+    return storage.hasTable(tableName);
+  }
+
+  public Set<String> tables() {
+    return storage.tables();
+  }
+
+  public void rename(String oldTableName, String newTableName) throws IOException {
+    synchronized (structureLock) {
+      append(RENAME, oldTableName, newTableName.getBytes(StandardCharsets.UTF_8), () -> storage.rename(oldTableName, newTableName));
+    }
+  }
+
+  public void delete(String tableName) throws IOException {
+    synchronized (structureLock) {
+      append(DELETE, tableName, new byte[0], () -> storage.delete(tableName));
+    }
+  }
+
+  private interface Change {
+    void apply() throws IOException;
+  }
+
+  private void append(byte op, String tableName, byte[] payload, Change change) throws IOException {
+    byte[] record = encode(op, tableName, payload);
+    long sequence;
+    boolean checkpoint = false;
+    synchronized (appendLock) {
+      log.write(record);
+      change.apply();
+      if (syncMode == SyncMode.ALWAYS)
+        log.getChannel().force(false);
+      sequence = ++appended;
+      logBytes += record.length;
+      if ((logBytes >= checkpointSize) && !checkpointing) {
+        checkpointing = true;
+        checkpoint = true;
+      }
+    }
+    if (syncMode == SyncMode.BATCH)
+      awaitSync(sequence);
+    if (checkpoint) {
+      Thread t = new Thread(this::checkpoint, "wal-checkpoint");
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  // Returns once an fsync has covered the given record. Whoever holds syncLock fsyncs
+  // everything appended so far, so the writers that queue up behind it are usually covered
+  // by the time they get the lock
+  private void awaitSync(long sequence) throws IOException {
+    synchronized (syncLock) {
+      if (synced >= sequence)
+        return;
+      long target;
+      FileChannel channel;
+      synchronized (appendLock) {
+        target = appended;
+        channel = log.getChannel();
+      }
+      try {
+        channel.force(false);
+      } catch (ClosedChannelException e) {
+        // A checkpoint rotated the log, and synced it before closing it
+      }
+      synced = target;
+    }
+  }
+
+  private void checkpoint() {
+    synchronized (structureLock) {
+      long checkpointGeneration;
+      try {
+        // Start a new log; every change from now on goes there, and the checkpoint (taken
+        // afterwards) contains at least everything before it
+        synchronized (appendLock) {
+          log.getChannel().force(false);
+          log.close();
+          checkpointGeneration = generation + 1;
+          log = new FileOutputStream(new File(dir, "wal-" + checkpointGeneration + ".log"), true);
+          generation = checkpointGeneration;
+          logBytes = 0;
+        }
+
+        File tmp = new File(dir, "checkpoint-" + checkpointGeneration + ".tmp");
+        long rows = 0;
+        try (FileOutputStream out = new FileOutputStream(tmp);
+             BufferedOutputStream buffered = new BufferedOutputStream(out, 1 << 16)) {
+          for (String tableName : storage.tables()) {
+            Iterator<Row> it = storage.scan(tableName, null, null);
+            while (it.hasNext()) {
+              buffered.write(encode(PUT_ROW, tableName, it.next().toBinaryByteArray()));
+              rows++;
+            }
+          }
+          buffered.flush();
+          out.getChannel().force(false);
+        }
+        Files.move(tmp.toPath(), new File(dir, "checkpoint-" + checkpointGeneration + ".log").toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (File f : logFiles()) {
+          if (generationOf(f) < checkpointGeneration)
+            f.delete();
+        }
+        logger.info("Wrote checkpoint " + checkpointGeneration + " with " + rows + " row(s)");
+      } catch (IOException e) {
+        logger.error("Error writing checkpoint of in-memory tables: " + e.getMessage(), e);
+      } finally {
+        synchronized (appendLock) {
+          checkpointing = false;
+        }
+      }
+    }
+  }
+
+  // Replays the newest checkpoint and the logs after it, and returns the newest generation. Rows are applied by several threads, each owning a share of the keys, so every row
+  // still sees its changes in order; renames and deletes wait for all threads to catch up
+  private long recover() throws IOException {
+    for (File f : Objects.requireNonNull(dir.listFiles((d, name) -> name.endsWith(".tmp"))))
+      f.delete();
+
+    long checkpointGeneration = -1, lastGeneration = 0;
+    for (File f : logFiles()) {
+      if (f.getName().startsWith("checkpoint-"))
+        checkpointGeneration = Math.max(checkpointGeneration, generationOf(f));
+      lastGeneration = Math.max(lastGeneration, generationOf(f));
+    }
+
+    // Files older than the newest checkpoint are left over from a crash during a checkpoint
+    List<File> replay = new ArrayList<>();
+    for (File f : logFiles()) {
+      if (generationOf(f) < checkpointGeneration)
+        f.delete();
+      else if (f.getName().startsWith("wal-") || (generationOf(f) == checkpointGeneration))
+        replay.add(f);
+    }
+    replay.sort(Comparator.comparingLong(LoggedStorage::generationOf)
+            .thenComparing(f -> f.getName().startsWith("wal-")));
+
+    int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    List<ExecutorService> lanes = new ArrayList<>();
+    for (int i = 0; i < threads; i++)
+      lanes.add(Executors.newSingleThreadExecutor());
+    long records = 0;
+    try {
+      for (File f : replay)
+        records += replay(f, lanes);
+      barrier(lanes);
+    } finally {
+      for (ExecutorService lane : lanes)
+        lane.shutdown();
+    }
+    if (!replay.isEmpty())
+      logger.info("Replayed " + records + " record(s) from " + replay.size() + " log file(s) in " + dir);
+    return lastGeneration;
+  }
+
+  private long replay(File file, List<ExecutorService> lanes) throws IOException {
+    long records = 0;
+    long remaining = file.length();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+      while (true) {
+        int length = in.readInt();
+        long crc = in.readInt() & 0xFFFFFFFFL;
+        remaining -= 8;
+        // A damaged length would otherwise allocate up to 2 GB, or fail with a negative size
+        if ((length < 0) || (length > remaining)) {
+          logger.warn("Stopping replay of " + file + " at a record of bad length " + length + ", after " + records + " record(s)");
+          break;
+        }
+        remaining -= length;
+        byte[] body = new byte[length];
+        in.readFully(body);
+        CRC32 check = new CRC32();
+        check.update(body);
+        if (check.getValue() != crc) {
+          logger.warn("Stopping replay of " + file + " at a corrupt record, after " + records + " record(s)");
+          break;
+        }
+
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+        byte op = record.readByte();
+        String tableName = record.readUTF();
+        byte[] payload = record.readAllBytes();
+        if ((op == PUT_ROW) || (op == PUT_COLUMNS)) {
+          Row row = new RowReader(payload).next();
+          lanes.get(Math.floorMod(31 * tableName.hashCode() + row.key().hashCode(), lanes.size())).submit(() -> {
+            if (op == PUT_ROW)
+              storage.putRow(tableName, row);
+            else
+              storage.putColumns(tableName, row);
+            return null;
+          });
+        } else if (op == DELETE_ROW) {
+          String key = new String(payload, StandardCharsets.UTF_8);
+          lanes.get(Math.floorMod(31 * tableName.hashCode() + key.hashCode(), lanes.size())).submit(() -> {
+            storage.deleteRow(tableName, key);
+            return null;
+          });
+        } else {
+          barrier(lanes);
+          if (op == RENAME)
+            storage.rename(tableName, new String(payload, StandardCharsets.UTF_8));
+          else
+            storage.delete(tableName);
+        }
+        records++;
+      }
+    } catch (EOFException eof) {
+      // End of log, or a record that was cut off by a crash
+    }
+    return records;
+  }
+
+  // Waits until every lane has applied what it was given
+  private static void barrier(List<ExecutorService> lanes) throws IOException {
+    List<Future<?>> pending = new ArrayList<>();
+    for (ExecutorService lane : lanes)
+      pending.add(lane.submit(() -> {}));
+    try {
+      for (Future<?> f : pending)
+        f.get();
+    } catch (Exception e) {
+      throw new IOException("Error replaying the log: " + e.getMessage(), e);
+    }
+  }
+
+  private static byte[] encode(byte op, String tableName, byte[] payload) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream(payload.length + tableName.length() + 3);
+    DataOutputStream out = new DataOutputStream(body);
+    out.writeByte(op);
+    out.writeUTF(tableName);
+    out.write(payload);
+    byte[] bytes = body.toByteArray();
+
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + 8);
+    DataOutputStream header = new DataOutputStream(record);
+    header.writeInt(bytes.length);
+    header.writeInt((int) crc.getValue());
+    header.write(bytes);
+    return record.toByteArray();
+  }
+
+  private File[] logFiles() {
+    File[] files = dir.listFiles((d, name) -> (name.startsWith("wal-") || name.startsWith("checkpoint-")) && name.endsWith(".log"));
+    return (files != null) ? files : new File[0];
+  }
+
+  private static long generationOf(File f) {
+    String name = f.getName();
+    return Long.parseLong(name.substring(name.indexOf('-') + 1, name.length() - ".log".length()));
+  }
+}
@@ -0,0 +1,686 @@
+package flame.kvs;
+
+import flame.tools.Logger;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+// LSM-tree persistent tables. Writes go to a sorted in-memory memtable (backed by an
+// append-only commit log), which is flushed to an immutable SSTable once it grows past
+// kvs.memtableSize. Column PUTs are stored as deltas that are merged with older versions on
+// read, so updating a row never rewrites it. Deleting a row writes a tombstone, which hides
+// older versions until a compaction that includes the oldest SSTable drops them all. Background
+// threads flush memtables and merge runs of similarly sized SSTables (size-tiered compaction).
+//
+// Files per table directory: log-<gen>.log (commit log of one memtable) and
+// sst-<minGen>-<maxGen>.dat (an SSTable holding generations minGen..maxGen)
+public class LsmStorage implements Storage {
+  private static final Logger logger = Logger.getLogger(LsmStorage.class);
+  private static final ExecutorService maintenance = Executors.newFixedThreadPool(2, r -> {
+    Thread t = new Thread(r, "lsm-maintenance");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private final File root;
+  private final long memtableSize;
+  private final int compactionThreshold;
+  private final CompressionPolicy compression;
+  private final ConcurrentHashMap<String, Tree> tables = new ConcurrentHashMap<>();
+
+  public LsmStorage(File rootArg, long memtableSizeArg, int compactionThresholdArg, CompressionPolicy compressionArg) throws IOException {
+    root = rootArg;
+    memtableSize = memtableSizeArg;
+    compactionThreshold = Math.max(2, compactionThresholdArg);
+    compression = compressionArg;
+    root.mkdirs();
+
+    File[] dirs = root.listFiles((file) -> file.isDirectory() && file.getName().startsWith("pt-"));
+    if (dirs != null) {
+      for (File dir : dirs)
+        tables.put(dir.getName(), new Tree(dir));
+    }
+  }
+
+  public void putRow(String tableName, Row row) throws IOException {
+    tree(tableName).write(row.key(), row, true);
+  }
+
+  public void put(String tableName, String row, String column, byte[] value) throws IOException {
+    Row delta = new Row(row);
+    delta.put(column, value);
+    tree(tableName).write(row, delta, false);
+  }
+
+  public void putColumns(String tableName, Row columns) throws IOException {
+    tree(tableName).write(columns.key(), columns, false);
+  }
+
+  public Row getRow(String tableName, String row) throws IOException {
+    Tree tree = tables.get(tableName);
+    if (tree == null)
+      return null;
+
+    Row result = null;
+    for (Source source : tree.state.sources()) {
+      SSTable.Entry e = source.get(row);
+      if (e == null)
+        continue;
+      if (e.deleted())
+        break;
+      result = (result == null) ? e.row().clone() : mergeOlder(result, e.row());
+      if (e.full)
+        break;
+    }
+    return result;
+  }
+
+  public void deleteRow(String tableName, String row) throws IOException {
+    Tree tree = tables.get(tableName);
+    if ((tree != null) && existsRow(tableName, row))
+      tree.write(row, null, true);
+  }
+
+  public boolean existsRow(String tableName, String row) throws IOException {
+    Tree tree = tables.get(tableName);
+    if (tree == null)
+      return false;
+    for (Source source : tree.state.sources()) {
+      SSTable.Entry e = source.get(row);
+      if (e != null)
+        return !e.deleted();
+    }
+    return false;
+  }
+
+  public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive) {
+    Tree tree = tables.get(tableName);
+    if (tree == null)
+      return Collections.emptyIterator();
+
+    Iterator<SSTable.Entry> merged = new MergeIterator(tree.state.sources(), startRow, endRowExclusive, true, false);
+    return new Iterator<Row>() {
+      public boolean hasNext() {
+        return merged.hasNext();
+      }
+
+      public Row next() {
+        try {
+          return merged.next().row();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    };
+  }
+
+  public Iterator<String> keys(String tableName) {
+    Tree tree = tables.get(tableName);
+    if (tree == null)
+      return Collections.emptyIterator();
+
+    Iterator<SSTable.Entry> merged = new MergeIterator(tree.state.sources(), null, null, false, false);
+    return new Iterator<String>() {
+      public boolean hasNext() {
+        return merged.hasNext();
+      }
+
+      public String next() {
+        return merged.next().key;
+      }
+    };
+  }
+
+  public int count(String tableName) {
+    Tree tree = tables.get(tableName);
+    if (tree == null)
+      return 0;
+    int count = 0;
+    Iterator<SSTable.Entry> keys = new MergeIterator(tree.state.sources(), null, null, false, false);
+    while (keys.hasNext()) {
+      keys.next();
+      count++;
+    }
+    return count;
+  }
+
+  public boolean hasTable(String tableName) {
+    return tables.containsKey(tableName);
+  }
+
+  public Set<String> tables() {
+    return tables.keySet();
+  }
+
+  public void rename(String oldTableName, String newTableName) throws IOException {
+    Tree tree = tables.remove(oldTableName);
+    if (tree == null)
+      throw new FileNotFoundException("Table " + oldTableName + " not found");
+    tree.moveTo(new File(root, newTableName));
+    tables.put(newTableName, tree);
+  }
+
+  public void delete(String tableName) throws IOException {
+    Tree tree = tables.remove(tableName);
+    if (tree != null)
+      tree.drop();
+  }
+
+  private Tree tree(String tableName) throws IOException {
+    try {
+      return tables.computeIfAbsent(tableName, t -> {
+        try {
+          return new Tree(new File(root, t));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  // Adds the columns of an older version that the newer (merged) row does not have yet
+  private static Row mergeOlder(Row newer, Row older) {
+    for (String column : older.columns()) {
+      if (newer.getBytes(column) == null)
+        newer.put(column, older.getBytes(column));
+    }
+    return newer;
+  }
+
+  // A sorted source of row versions: a memtable or an SSTable
+  private interface Source {
+    SSTable.Entry get(String key) throws IOException;
+    Iterator<SSTable.Entry> scan(String startRow, String endRowExclusive);
+  }
+
+  private static class TableSource implements Source {
+    final SSTable table;
+
+    TableSource(SSTable tableArg) {
+      table = tableArg;
+    }
+
+    public SSTable.Entry get(String key) throws IOException {
+      return table.get(key);
+    }
+
+    public Iterator<SSTable.Entry> scan(String startRow, String endRowExclusive) {
+      return table.scan(startRow, endRowExclusive);
+    }
+  }
+
+  private class Memtable implements Source {
+    final long generation;
+    final ConcurrentSkipListMap<String, SSTable.Entry> rows = new ConcurrentSkipListMap<>();
+    final File logFile;
+    DataOutputStream log;
+    long bytes;
+
+    Memtable(long generationArg, File dir) throws IOException {
+      generation = generationArg;
+      logFile = new File(dir, "log-" + generation + ".log");
+      log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true), 1 << 16));
+    }
+
+    // Caller holds the tree's write lock. A null row is a tombstone; columns written after one
+    // make a full version, since nothing older is left to merge them with.
+    void apply(String key, Row row, boolean full) {
+      SSTable.Entry existing = rows.get(key);
+      if (row == null) {
+        rows.put(key, SSTable.Entry.tombstone(key));
+        bytes += key.length() + 16;
+        return;
+      }
+      if (full || existing == null || existing.deleted()) {
+        rows.put(key, new SSTable.Entry(key, full || ((existing != null) && existing.deleted()), row));
+      } else {
+        try {
+          Row target = existing.row();
+          for (String column : row.columns())
+            target.put(column, row.getBytes(column));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+      bytes += key.length() + 16;
+      for (String column : row.columns())
+        bytes += column.length() + row.getBytes(column).length + 8;
+    }
+
+    public SSTable.Entry get(String key) throws IOException {
+      SSTable.Entry e = rows.get(key);
+      return ((e == null) || e.deleted()) ? e : new SSTable.Entry(key, e.full, e.row().clone());
+    }
+
+    public Iterator<SSTable.Entry> scan(String startRow, String endRowExclusive) {
+      NavigableMap<String, SSTable.Entry> range = rows;
+      if (startRow != null)
+        range = range.tailMap(startRow, true);
+      if (endRowExclusive != null)
+        range = range.headMap(endRowExclusive, false);
+      Iterator<SSTable.Entry> it = range.values().iterator();
+      return new Iterator<SSTable.Entry>() {
+        public boolean hasNext() {
+          return it.hasNext();
+        }
+
+        public SSTable.Entry next() {
+          SSTable.Entry e = it.next();
+          if (e.deleted())
+            return e;
+          try {
+            return new SSTable.Entry(e.key, e.full, e.row().clone());
+          } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+          }
+        }
+      };
+    }
+
+    void closeLog() {
+      try {
+        log.close();
+      } catch (IOException e) {
+        logger.error("Error closing commit log " + logFile + ": " + e.getMessage(), e);
+      }
+    }
+  }
+
+  // Everything a reader needs, replaced as a whole whenever a memtable is rotated or
+  // flushed or SSTables are compacted. Lists are newest first.
+  private static class State {
+    final Memtable active;
+    final List<Memtable> flushing;
+    final List<SSTable> tables;
+
+    State(Memtable activeArg, List<Memtable> flushingArg, List<SSTable> tablesArg) {
+      active = activeArg;
+      flushing = Collections.unmodifiableList(flushingArg);
+      tables = Collections.unmodifiableList(tablesArg);
+    }
+
+    List<Source> sources() {
+      List<Source> sources = new ArrayList<>();
+      sources.add(active);
+      sources.addAll(flushing);
+      for (SSTable t : tables)
+        sources.add(new TableSource(t));
+      return sources;
+    }
+  }
+
+  private class Tree {
+    volatile File dir;
+    volatile State state;
+    volatile boolean dropped;
+    long nextGeneration;
+    final Object writeLock = new Object();
+    final ReentrantLock maintenanceLock = new ReentrantLock();
+
+    // Opens the SSTables in the directory, replays any commit logs left by a previous run and
+    // flushes what they contained, so that every run starts with an empty memtable
+    Tree(File dirArg) throws IOException {
+      dir = dirArg;
+      dir.mkdirs();
+
+      List<SSTable> tables = new ArrayList<>();
+      TreeMap<Long, File> logs = new TreeMap<>();
+      File[] files = dir.listFiles();
+      if (files != null) {
+        for (File f : files) {
+          String name = f.getName();
+          try {
+            if (name.startsWith("sst-") && name.endsWith(".dat")) {
+              String[] gens = name.substring(4, name.length() - 4).split("-");
+              tables.add(SSTable.open(f, Long.parseLong(gens[0]), Long.parseLong(gens[1])));
+            } else if (name.startsWith("log-") && name.endsWith(".log")) {
+              logs.put(Long.parseLong(name.substring(4, name.length() - 4)), f);
+            } else if (name.endsWith(".tmp")) {
+              f.delete();
+            }
+          } catch (NumberFormatException | IOException e) {
+            logger.warn("Ignoring unexpected file " + f + ": " + e.getMessage());
+          }
+        }
+      }
+
+      // A compaction that was interrupted after writing its output leaves its inputs behind;
+      // they are recognizable because the output covers their generations
+      List<SSTable> live = new ArrayList<>();
+      for (SSTable t : tables) {
+        boolean covered = false;
+        for (SSTable other : tables) {
+          if (other != t && other.minGeneration <= t.minGeneration && other.maxGeneration >= t.maxGeneration
+                  && (other.maxGeneration - other.minGeneration) > (t.maxGeneration - t.minGeneration))
+            covered = true;
+        }
+        if (covered)
+          t.delete(dir);
+        else
+          live.add(t);
+        nextGeneration = Math.max(nextGeneration, t.maxGeneration + 1);
+      }
+      live.sort((a, b) -> Long.compare(b.maxGeneration, a.maxGeneration));
+      if (!logs.isEmpty())
+        nextGeneration = Math.max(nextGeneration, logs.lastKey() + 1);
+
+      Memtable replayed = new Memtable(nextGeneration++, dir);
+      for (File log : logs.values())
+        replay(log, replayed);
+      state = new State(replayed, new ArrayList<>(), live);
+      if (!replayed.rows.isEmpty()) {
+        Memtable old;
+        synchronized (writeLock) {
+          old = rotate();
+        }
+        if (!flush(old))
+          return;
+      }
+      for (File log : logs.values())
+        log.delete();
+    }
+
+    void replay(File logFile, Memtable target) {
+      int replayed = 0;
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 1 << 16))) {
+        while (true) {
+          boolean full = in.readByte() == SSTable.FULL;
+          byte[] key = new byte[in.readInt()];
+          byte[] row = new byte[in.readInt()];
+          in.readFully(key);
+          in.readFully(row);
+          target.apply(new String(key, StandardCharsets.UTF_8), (row.length > 0) ? new RowReader(row).next() : null, full);
+          replayed++;
+        }
+      } catch (EOFException eof) {
+        // End of log, or a record that was cut off by a crash
+      } catch (Exception e) {
+        logger.error("Error replaying commit log " + logFile + " after " + replayed + " record(s): " + e.getMessage(), e);
+      }
+      logger.info("Replayed " + replayed + " record(s) from " + logFile);
+    }
+
+    // A null row writes a tombstone
+    void write(String key, Row row, boolean full) throws IOException {
+      byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+      byte[] rowBytes = (row != null) ? row.toBinaryByteArray() : new byte[0];
+      synchronized (writeLock) {
+        if (dropped)
+          throw new IOException("Table was deleted");
+        Memtable m = state.active;
+        m.log.writeByte(full ? SSTable.FULL : SSTable.DELTA);
+        m.log.writeInt(keyBytes.length);
+        m.log.writeInt(rowBytes.length);
+        m.log.write(keyBytes);
+        m.log.write(rowBytes);
+        m.log.flush();
+        m.apply(key, row, full);
+        if (m.bytes >= memtableSize) {
+          Memtable old = rotate();
+          maintenance.submit(() -> flush(old));
+        }
+      }
+    }
+
+    // Caller holds writeLock. Makes the active memtable immutable; the caller flushes it.
+    Memtable rotate() throws IOException {
+      Memtable old = state.active;
+      Memtable fresh = new Memtable(nextGeneration++, dir);
+      List<Memtable> flushing = new ArrayList<>();
+      flushing.add(old);
+      flushing.addAll(state.flushing);
+      state = new State(fresh, flushing, state.tables);
+      old.closeLog();
+      return old;
+    }
+
+    // Flushes the given memtable, and any older ones first: each new table goes in front of the
+    // others, so they must be written in the order of their generations, whichever maintenance
+    // thread gets here first
+    boolean flush(Memtable m) {
+      maintenanceLock.lock();
+      try {
+        while (true) {
+          if (dropped)
+            return false;
+          Memtable oldest;
+          synchronized (writeLock) {
+            if (!state.flushing.contains(m))
+              break;
+            oldest = state.flushing.get(state.flushing.size() - 1);
+          }
+          File file = new File(dir, "sst-" + oldest.generation + "-" + oldest.generation + ".dat");
+          SSTable table = SSTable.write(file, oldest.generation, oldest.generation, oldest.rows.values().iterator(),
+              compression.compresses(dir.getName()));
+          synchronized (writeLock) {
+            List<Memtable> flushing = new ArrayList<>(state.flushing);
+            flushing.remove(oldest);
+            List<SSTable> tables = new ArrayList<>();
+            tables.add(table);
+            tables.addAll(state.tables);
+            state = new State(state.active, flushing, tables);
+          }
+          new File(dir, oldest.logFile.getName()).delete();
+          logger.info("Flushed " + oldest.rows.size() + " row(s) to " + file);
+        }
+      } catch (Exception e) {
+        logger.error("Error flushing memtable of " + dir + ": " + e.getMessage(), e);
+        return false;
+      } finally {
+        maintenanceLock.unlock();
+      }
+      maintenance.submit(this::compact);
+      return true;
+    }
+
+    // Size-tiered compaction: a table's tier is log4 of its size in memtables. Once
+    // compactionThreshold consecutive tables share a tier, they are merged into one table of
+    // the next tier. Only adjacent tables are merged, so newer versions stay in front.
+    void compact() {
+      maintenanceLock.lock();
+      try {
+        while (!dropped) {
+          List<SSTable> tables = state.tables;
+          int runStart = -1, runLength = 0;
+          for (int i = 0; i < tables.size() && runLength < compactionThreshold; i++) {
+            if (runLength > 0 && tier(tables.get(i)) == tier(tables.get(runStart))) {
+              runLength++;
+            } else {
+              runStart = i;
+              runLength = 1;
+            }
+          }
+          if (runLength < compactionThreshold)
+            return;
+
+          List<SSTable> run = new ArrayList<>(tables.subList(runStart, runStart + runLength));
+          boolean includesOldest = (runStart + runLength == tables.size());
+          long minGen = run.get(run.size() - 1).minGeneration, maxGen = run.get(0).maxGeneration;
+          List<Source> sources = new ArrayList<>();
+          for (SSTable t : run)
+            sources.add(new TableSource(t));
+
+          File file = new File(dir, "sst-" + minGen + "-" + maxGen + ".dat");
+          // Tombstones have to hide older versions until the oldest table is part of the merge
+          Iterator<SSTable.Entry> merged = new MergeIterator(sources, null, null, true, !includesOldest);
+          SSTable output = SSTable.write(file, minGen, maxGen, includesOldest ? resolveAll(merged) : merged,
+              compression.compresses(dir.getName()));
+
+          synchronized (writeLock) {
+            List<SSTable> updated = new ArrayList<>(state.tables);
+            int pos = updated.indexOf(run.get(0));
+            updated.removeAll(run);
+            updated.add(pos, output);
+            state = new State(state.active, state.flushing, updated);
+          }
+          for (SSTable t : run)
+            t.delete(dir);
+          logger.info("Compacted " + run.size() + " SSTable(s) of " + dir + " into " + file.getName());
+        }
+      } catch (Exception e) {
+        logger.error("Error compacting " + dir + ": " + e.getMessage(), e);
+      } finally {
+        maintenanceLock.unlock();
+      }
+    }
+
+    int tier(SSTable t) {
+      long ratio = Math.max(1, t.size / Math.max(1, memtableSize));
+      return (63 - Long.numberOfLeadingZeros(ratio)) / 2;
+    }
+
+    void moveTo(File newDir) throws IOException {
+      maintenanceLock.lock();
+      try {
+        synchronized (writeLock) {
+          // Open files keep working after the move; new files are created under the new name
+          Files.move(dir.toPath(), newDir.toPath());
+          dir = newDir;
+        }
+      } finally {
+        maintenanceLock.unlock();
+      }
+    }
+
+    void drop() throws IOException {
+      maintenanceLock.lock();
+      try {
+        synchronized (writeLock) {
+          dropped = true;
+          state.active.closeLog();
+          FileStorage.recursiveDeleteDirectory(dir);
+        }
+      } finally {
+        maintenanceLock.unlock();
+      }
+    }
+  }
+
+  // When the oldest table takes part in a compaction, no older versions remain, so every
+  // merged version can be written as a full row
+  private static Iterator<SSTable.Entry> resolveAll(Iterator<SSTable.Entry> merged) {
+    return new Iterator<SSTable.Entry>() {
+      public boolean hasNext() {
+        return merged.hasNext();
+      }
+
+      public SSTable.Entry next() {
+        SSTable.Entry e = merged.next();
+        return e.full ? e : new SSTable.Entry(e.key, true, e.bytes());
+      }
+    };
+  }
+
+  // K-way merge of sources that are ordered newest first. For every key, versions are
+  // combined from newest to oldest until a full version (or a tombstone) is found. With
+  // resolveRows=false only the keys matter, and rows are not decoded. Keys whose newest
+  // version is a tombstone are skipped unless keepDeleted is set.
+  private static class MergeIterator implements Iterator<SSTable.Entry> {
+    private static class Cursor {
+      final int age;
+      final Iterator<SSTable.Entry> it;
+      SSTable.Entry current;
+
+      Cursor(int ageArg, Iterator<SSTable.Entry> itArg) {
+        age = ageArg;
+        it = itArg;
+        current = it.hasNext() ? it.next() : null;
+      }
+
+      void advance() {
+        current = it.hasNext() ? it.next() : null;
+      }
+    }
+
+    private final PriorityQueue<Cursor> heap = new PriorityQueue<>((a, b) -> {
+      int c = a.current.key.compareTo(b.current.key);
+      return (c != 0) ? c : Integer.compare(a.age, b.age);
+    });
+    private final boolean resolveRows;
+    private final boolean keepDeleted;
+    private SSTable.Entry pending;
+
+    MergeIterator(List<Source> sources, String startRow, String endRowExclusive, boolean resolveRowsArg,
+                  boolean keepDeletedArg) {
+      resolveRows = resolveRowsArg;
+      keepDeleted = keepDeletedArg;
+      for (int i = 0; i < sources.size(); i++) {
+        Cursor c = new Cursor(i, sources.get(i).scan(startRow, endRowExclusive));
+        if (c.current != null)
+          heap.add(c);
+      }
+    }
+
+    public boolean hasNext() {
+      return peek() != null;
+    }
+
+    public SSTable.Entry next() {
+      SSTable.Entry e = peek();
+      if (e == null)
+        throw new NoSuchElementException();
+      pending = null;
+      return e;
+    }
+
+    private SSTable.Entry peek() {
+      while ((pending == null) && !heap.isEmpty()) {
+        SSTable.Entry e = merge();
+        if (keepDeleted || !e.deleted())
+          pending = e;
+      }
+      return pending;
+    }
+
+    private SSTable.Entry merge() {
+      Cursor newest = heap.poll();
+      SSTable.Entry result = newest.current;
+      String key = result.key;
+      boolean resolved = result.full || !resolveRows;
+      Row merged = null;
+      reinsert(newest);
+
+      // Consume all older versions of the same key, merging deltas as long as needed
+      while (!heap.isEmpty() && heap.peek().current.key.equals(key)) {
+        Cursor older = heap.poll();
+        SSTable.Entry e = older.current;
+        reinsert(older);
+        if (resolved)
+          continue;
+        if (e.deleted()) {
+          resolved = true;
+          continue;
+        }
+        try {
+          if (merged == null)
+            merged = result.row().clone();
+          mergeOlder(merged, e.row());
+        } catch (IOException ioe) {
+          throw new UncheckedIOException(ioe);
+        }
+        resolved = e.full;
+      }
+
+      if (merged != null)
+        return new SSTable.Entry(key, resolved, merged);
+      // Columns written after a tombstone make the whole row
+      if (resolveRows && resolved && !result.full)
+        return new SSTable.Entry(key, true, result.bytes());
+      return result;
+    }
+
+    private void reinsert(Cursor c) {
+      c.advance();
+      if (c.current != null)
+        heap.add(c);
+    }
+  }
+}
@@ -0,0 +1,297 @@
+package flame.kvs;
+
+import flame.tools.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Wraps a storage engine so that reads of read-mostly tables (e.g. the index and the page ranks
+// that the search front end queries, see -Dkvs.mappedTables) are served from a memory-mapped,
+// sorted image of the table (see MappedTable) instead of the engine's own files.
+//
+// An image is built in the background when a table is read and has not been written for a
+// while. Every write to the table first deletes its image and then goes to the engine, so an
+// image that exists is always current, also after a restart. A build that overlaps a write is
+// thrown away.
+public class MappedStorage implements Storage {
+  private static final Logger logger = Logger.getLogger(MappedStorage.class);
+  private static final String SUFFIX = ".map";
+
+  private final Storage storage;
+  private final File dir;
+  private final TableSet mappedTables;
+  private final long quietMillis;
+  private final ConcurrentHashMap<String, MappedTable> images = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, State> states = new ConcurrentHashMap<>();
+  private final ExecutorService builder = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "mapped-table-builder");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  // Writes in progress, and a generation that every write bumps, so a build can tell whether
+  // the table changed under it
+  private static class State {
+    int writing;
+    long generation;
+    long lastWrite;
+    boolean building;
+  }
+
+  public MappedStorage(Storage storageArg, File dirArg, TableSet mappedTablesArg, long quietMillisArg) {
+    storage = storageArg;
+    dir = dirArg;
+    mappedTables = mappedTablesArg;
+    quietMillis = quietMillisArg;
+    dir.mkdirs();
+
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        String tableName = name.endsWith(SUFFIX) ? name.substring(0, name.length() - SUFFIX.length()) : null;
+        if ((tableName == null) || !mappedTables.contains(tableName) || !storage.hasTable(tableName)) {
+          file.delete();
+          continue;
+        }
+        try {
+          images.put(tableName, MappedTable.open(file));
+        } catch (IOException e) {
+          logger.error("Dropping unreadable mapped table " + file + ": " + e.getMessage());
+          file.delete();
+        }
+      }
+    }
+    logger.info("Opened " + images.size() + " mapped table(s) in " + dir);
+  }
+
+  public void putRow(String tableName, Row row) throws IOException {
+    beginWrite(tableName);
+    try {
+      storage.putRow(tableName, row);
+    } finally {
+      endWrite(tableName);
+    }
+  }
+
+  public void put(String tableName, String row, String column, byte[] value) throws IOException {
+    beginWrite(tableName);
+    try {
+      storage.put(tableName, row, column, value);
+    } finally {
+      endWrite(tableName);
+    }
+  }
+
+  public void putColumns(String tableName, Row columns) throws IOException {
+    beginWrite(tableName);
+    try {
+      storage.putColumns(tableName, columns);
+    } finally {
+      endWrite(tableName);
+    }
+  }
+
+  public Row getRow(String tableName, String row) throws IOException {
+    MappedTable image = image(tableName);
+    return (image != null) ? image.get(row) : storage.getRow(tableName, row);
+  }
+
+  // Rows that aren't there don't cost the table its image
+  public void deleteRow(String tableName, String row) throws IOException {
+    if (!existsRow(tableName, row))
+      return;
+    beginWrite(tableName);
+    try {
+      storage.deleteRow(tableName, row);
+    } finally {
+      endWrite(tableName);
+    }
+  }
+
+  public boolean existsRow(String tableName, String row) throws IOException {
+    MappedTable image = image(tableName);
+    return (image != null) ? image.contains(row) : storage.existsRow(tableName, row);
+  }
+
+  public boolean mightContain(String tableName, String row) throws IOException {
+    return storage.mightContain(tableName, row);
+  }
+
+  public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive) throws IOException {
+    MappedTable image = image(tableName);
+    return (image != null) ? image.scan(startRow, endRowExclusive) : storage.scan(tableName, startRow, endRowExclusive);
+  }
+
+  public Iterator<byte[]> scanEncoded(String tableName, String startRow, String endRowExclusive) throws IOException {
+    MappedTable image = image(tableName);
+    return (image != null) ? image.scanEncoded(startRow, endRowExclusive) : storage.scanEncoded(tableName, startRow, endRowExclusive);
+  }
+
+  public Iterator<String> keys(String tableName) throws IOException {
+    MappedTable image = image(tableName);
+    return (image != null) ? image.keys() : storage.keys(tableName);
+  }
+
+  public int count(String tableName) throws IOException {
+    MappedTable image = image(tableName);
+    return (image != null) ? image.count : storage.count(tableName);
+  }
+
+  public boolean hasTable(String tableName) {
+    return storage.hasTable(tableName);
+  }
+
+  public Set<String> tables() {
+    return storage.tables();
+  }
+
+  // The part of the table's image that holds the rows in [startRow, endRowExclusive), in the
+  // binary form and back to back; null if the table has no image right now
+  MappedTable.Region mappedRows(String tableName, String startRow, String endRowExclusive) {
+    MappedTable image = image(tableName);
+    return (image != null) ? image.region(startRow, endRowExclusive) : null;
+  }
+
+  public void rename(String oldTableName, String newTableName) throws IOException {
+    beginWrite(oldTableName);
+    beginWrite(newTableName);
+    try {
+      storage.rename(oldTableName, newTableName);
+    } finally {
+      endWrite(newTableName);
+      endWrite(oldTableName);
+    }
+  }
+
+  public void delete(String tableName) throws IOException {
+    beginWrite(tableName);
+    try {
+      storage.delete(tableName);
+    } finally {
+      endWrite(tableName);
+    }
+  }
+
+  // Returns the table's image, or schedules a build if it has none and has been quiet long enough
+  private MappedTable image(String tableName) {
+    MappedTable image = images.get(tableName);
+    if ((image != null) || !mappedTables.contains(tableName))
+      return image;
+
+    State state = state(tableName);
+    synchronized (state) {
+      if (state.building || (state.writing > 0) || (System.currentTimeMillis() - state.lastWrite < quietMillis)
+          || !storage.hasTable(tableName))
+        return null;
+      state.building = true;
+      long generation = state.generation;
+      builder.execute(() -> build(tableName, state, generation));
+    }
+    return null;
+  }
+
+  private void build(String tableName, State state, long generation) {
+    File file = new File(dir, tableName + SUFFIX);
+    File tmp = new File(dir, tableName + SUFFIX + ".tmp");
+    try {
+      long start = System.currentTimeMillis();
+      if (!MappedTable.write(tmp, storage.scan(tableName, null, null))) {
+        // Engines whose order doesn't match String order for some keys (e.g. FileStorage, which
+        // orders by file name, with keys outside Latin-1) are read in sorted key order instead
+        logger.info("Scan of " + tableName + " is not in key order; mapping it row by row");
+        List<String> keys = new ArrayList<>();
+        storage.scan(tableName, null, null).forEachRemaining(row -> keys.add(row.key()));
+        Collections.sort(keys);
+        if (!MappedTable.write(tmp, sortedRows(tableName, keys)))
+          throw new IOException("Duplicate keys in " + tableName);
+      }
+      synchronized (state) {
+        if ((state.generation != generation) || (state.writing > 0)) {
+          logger.info("Table " + tableName + " was written while it was being mapped; discarding the image");
+          return;
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        MappedTable image = MappedTable.open(file);
+        images.put(tableName, image);
+        logger.info("Mapped " + image.count + " rows of " + tableName + " (" + file.length() + " bytes) in "
+                + (System.currentTimeMillis() - start) + " ms");
+      }
+    } catch (Exception e) {
+      logger.error("Could not map table " + tableName + ": " + e.getMessage(), e);
+    } finally {
+      tmp.delete();
+      synchronized (state) {
+        state.building = false;
+      }
+    }
+  }
+
+  // Rows that disappear while they are read are skipped; the build is discarded anyway then
+  private Iterator<Row> sortedRows(String tableName, List<String> keys) {
+    Iterator<String> it = keys.iterator();
+    return new Iterator<Row>() {
+      Row nextRow = advance();
+
+      Row advance() {
+        try {
+          while (it.hasNext()) {
+            Row row = storage.getRow(tableName, it.next());
+            if (row != null)
+              return row;
+          }
+          return null;
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+
+      public boolean hasNext() {
+        return nextRow != null;
+      }
+
+      public Row next() {
+        if (nextRow == null)
+          throw new NoSuchElementException();
+        Row row = nextRow;
+        nextRow = advance();
+        return row;
+      }
+    };
+  }
+
+  // The image is gone before the engine sees the write, so readers can never get a stale row
+  // from it, and a crash in between leaves no stale image on disk
+  private void beginWrite(String tableName) {
+    if (!mappedTables.contains(tableName))
+      return;
+    State state = state(tableName);
+    synchronized (state) {
+      state.writing++;
+      state.generation++;
+      if (images.remove(tableName) != null)
+        new File(dir, tableName + SUFFIX).delete();
+    }
+  }
+
+  private void endWrite(String tableName) {
+    if (!mappedTables.contains(tableName))
+      return;
+    State state = state(tableName);
+    synchronized (state) {
+      state.writing--;
+      state.generation++;
+      state.lastWrite = System.currentTimeMillis();
+    }
+  }
+
+  private State state(String tableName) {
+    return states.computeIfAbsent(tableName, t -> new State());
+  }
+}
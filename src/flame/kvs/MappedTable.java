@@ -0,0 +1,295 @@
+package flame.kvs;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// A read-only image of a table that is read through memory-mapped buffers, so a lookup costs a
+// binary search in the page cache instead of system calls. Written by MappedStorage.
+//
+// Rows:    the rows in the binary form, back to back in key order
+// Index:   offset of each row (long), in key order; starts at an 8-byte boundary
+// Footer:  rowsEnd (long), indexOffset (long), rowCount (long), magic (int)
+//
+// Files larger than 2GB are mapped in several chunks, which rows may straddle. The file stays
+// open for as long as the image is used (the mapping and the channel are released when it is
+// garbage collected), so ranges of it can be sent with FileChannel.transferTo even after a
+// write has deleted it.
+class MappedTable {
+  private static final int MAGIC = 0x4d415031;
+  private static final int FOOTER_SIZE = 28;
+  private static final int CHUNK_BITS = 30;
+  private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer[] chunks;
+  private final long rowsEnd;
+  private final long indexOffset;
+  final int count;
+
+  // A range of the file: rows in the binary form, back to back
+  record Region(FileChannel channel, long position, long count) {}
+
+  private MappedTable(File file) throws IOException {
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      if (size < FOOTER_SIZE)
+        throw new IOException("Mapped table " + file + " is too short");
+      chunks = new MappedByteBuffer[(int) ((size + CHUNK_MASK) >>> CHUNK_BITS)];
+      for (int i = 0; i < chunks.length; i++) {
+        long start = (long) i << CHUNK_BITS;
+        chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, 1L << CHUNK_BITS));
+      }
+      rowsEnd = getLong(size - FOOTER_SIZE);
+      indexOffset = getLong(size - FOOTER_SIZE + 8);
+      count = (int) getLong(size - FOOTER_SIZE + 16);
+      if (getInt(size - 4) != MAGIC)
+        throw new IOException("Mapped table " + file + " has no valid footer");
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  static MappedTable open(File file) throws IOException {
+    return new MappedTable(file);
+  }
+
+  // Writes the rows to the given file; returns false (and leaves a useless file) if they are not
+  // in strictly ascending key order
+  static boolean write(File file, Iterator<Row> rows) throws IOException {
+    List<Long> offsets = new ArrayList<>();
+    long offset = 0;
+    String previous = null;
+    try (FileOutputStream fos = new FileOutputStream(file);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+      while (rows.hasNext()) {
+        Row next = rows.next();
+        if ((previous != null) && (previous.compareTo(next.key()) >= 0))
+          return false;
+        previous = next.key();
+        byte[] row = next.toBinaryByteArray();
+        offsets.add(offset);
+        out.write(row);
+        offset += row.length;
+      }
+      long rowsEnd = offset;
+      while (offset % 8 != 0) {
+        out.writeByte(0);
+        offset++;
+      }
+      long indexOffset = offset;
+      for (long o : offsets)
+        out.writeLong(o);
+      out.writeLong(rowsEnd);
+      out.writeLong(indexOffset);
+      out.writeLong(offsets.size());
+      out.writeInt(MAGIC);
+      out.flush();
+      fos.getFD().sync();
+    }
+    return true;
+  }
+
+  Row get(String key) throws IOException {
+    int i = find(key);
+    return (i >= 0) ? row(i) : null;
+  }
+
+  boolean contains(String key) {
+    return find(key) >= 0;
+  }
+
+  // Rows with keys in [startRow, endRowExclusive), in key order
+  Iterator<Row> scan(String startRow, String endRowExclusive) {
+    int from = (startRow != null) ? lowerBound(startRow) : 0;
+    int to = (endRowExclusive != null) ? lowerBound(endRowExclusive) : count;
+    return new Iterator<Row>() {
+      int i = from;
+
+      public boolean hasNext() {
+        return i < to;
+      }
+
+      public Row next() {
+        if (i >= to)
+          throw new NoSuchElementException();
+        try {
+          return row(i++);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    };
+  }
+
+  // Like scan(), but each row in the binary form, as it is in the file
+  Iterator<byte[]> scanEncoded(String startRow, String endRowExclusive) {
+    int from = (startRow != null) ? lowerBound(startRow) : 0;
+    int to = (endRowExclusive != null) ? lowerBound(endRowExclusive) : count;
+    return new Iterator<byte[]>() {
+      int i = from;
+
+      public boolean hasNext() {
+        return i < to;
+      }
+
+      public byte[] next() {
+        if (i >= to)
+          throw new NoSuchElementException();
+        return bytes(i++);
+      }
+    };
+  }
+
+  Iterator<String> keys() {
+    return new Iterator<String>() {
+      int i = 0;
+
+      public boolean hasNext() {
+        return i < count;
+      }
+
+      public String next() {
+        if (i >= count)
+          throw new NoSuchElementException();
+        return key(i++);
+      }
+    };
+  }
+
+  // The part of the file that holds the rows with keys in [startRow, endRowExclusive)
+  Region region(String startRow, String endRowExclusive) {
+    int from = (startRow != null) ? lowerBound(startRow) : 0;
+    int to = (endRowExclusive != null) ? lowerBound(endRowExclusive) : count;
+    if (from >= to)
+      return new Region(channel, 0, 0);
+    long start = offset(from);
+    return new Region(channel, start, end(to - 1) - start);
+  }
+
+  private Row row(int i) throws IOException {
+    return new RowReader(bytes(i)).next();
+  }
+
+  private byte[] bytes(int i) {
+    long start = offset(i);
+    byte[] bytes = new byte[(int) (end(i) - start)];
+    get(start, bytes);
+    return bytes;
+  }
+
+  private String key(int i) {
+    long pos = offset(i) + 1;
+    int length = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = get(pos++);
+      length |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        break;
+    }
+    byte[] key = new byte[length];
+    get(pos, key);
+    return new String(key, java.nio.charset.StandardCharsets.UTF_8);
+  }
+
+  private int find(String key) {
+    int i = lowerBound(key);
+    return ((i < count) && (compareKey(i, key) == 0)) ? i : -1;
+  }
+
+  // Index of the first row whose key is not smaller than the given key
+  private int lowerBound(String key) {
+    int lo = 0, hi = count;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (compareKey(mid, key) < 0)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+
+  // Compares the key of row i with the given key in String order, decoding the UTF-8 key in
+  // the mapping on the fly instead of creating a String for every probe
+  private int compareKey(int i, String key) {
+    long pos = offset(i) + 1;
+    int length = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = get(pos++);
+      length |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        break;
+    }
+    long end = pos + length;
+    int k = 0;
+    while (pos < end) {
+      int cp = get(pos++) & 0xFF;
+      if (cp >= 0xF0) {
+        cp = ((cp & 0x07) << 18) | ((get(pos) & 0x3F) << 12) | ((get(pos + 1) & 0x3F) << 6) | (get(pos + 2) & 0x3F);
+        pos += 3;
+      } else if (cp >= 0xE0) {
+        cp = ((cp & 0x0F) << 12) | ((get(pos) & 0x3F) << 6) | (get(pos + 1) & 0x3F);
+        pos += 2;
+      } else if (cp >= 0xC0) {
+        cp = ((cp & 0x1F) << 6) | (get(pos) & 0x3F);
+        pos += 1;
+      }
+      if (Character.isBmpCodePoint(cp)) {
+        if (k == key.length())
+          return 1;
+        int c = Character.compare((char) cp, key.charAt(k++));
+        if (c != 0)
+          return c;
+      } else {
+        for (char ch : Character.toChars(cp)) {
+          if (k == key.length())
+            return 1;
+          int c = Character.compare(ch, key.charAt(k++));
+          if (c != 0)
+            return c;
+        }
+      }
+    }
+    return (k < key.length()) ? -1 : 0;
+  }
+
+  private long offset(int i) {
+    return getLong(indexOffset + 8L * i);
+  }
+
+  private long end(int i) {
+    return (i + 1 < count) ? offset(i + 1) : rowsEnd;
+  }
+
+  private byte get(long pos) {
+    return chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & CHUNK_MASK));
+  }
+
+  // The index and footer are 8-byte aligned, and chunks are a multiple of 8 bytes long, so
+  // longs never straddle two chunks
+  private long getLong(long pos) {
+    return chunks[(int) (pos >>> CHUNK_BITS)].getLong((int) (pos & CHUNK_MASK));
+  }
+
+  private int getInt(long pos) {
+    return chunks[(int) (pos >>> CHUNK_BITS)].getInt((int) (pos & CHUNK_MASK));
+  }
+
+  private void get(long pos, byte[] dst) {
+    int done = 0;
+    while (done < dst.length) {
+      ByteBuffer chunk = chunks[(int) (pos >>> CHUNK_BITS)];
+      int offset = (int) (pos & CHUNK_MASK);
+      int n = Math.min(dst.length - done, chunk.capacity() - offset);
+      chunk.get(offset, dst, done, n);
+      done += n;
+      pos += n;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package flame.kvs;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// In-memory tables; contents are lost when the worker exits. Each table is a skip list, so
+// range scans seek straight to startRow and stop at endRowExclusive instead of sorting
+// the whole key set.
+public class MemoryStorage implements Storage {
+  private final ConcurrentHashMap<String, Table> tables = new ConcurrentHashMap<>();
+
+  public void putRow(String tableName, Row row) {
+    Table table = table(tableName);
+    if (table.rows.put(row.key(), row) == null)
+      table.size.incrementAndGet();
+  }
+
+  public void put(String tableName, String row, String column, byte[] value) {
+    Table table = table(tableName);
+    Row current = table.rows.get(row);
+    if (current == null) {
+      Row created = new Row(row);
+      current = table.rows.putIfAbsent(row, created);
+      if (current == null) {
+        current = created;
+        table.size.incrementAndGet();
+      }
+    }
+    current.put(column, value);
+  }
+
+  public void putColumns(String tableName, Row columns) {
+    for (String column : columns.columns())
+      put(tableName, columns.key(), column, columns.getBytes(column));
+  }
+
+  public Row getRow(String tableName, String row) {
+    Table table = tables.get(tableName);
+    return (table != null) ? table.rows.get(row) : null;
+  }
+
+  public void deleteRow(String tableName, String row) {
+    Table table = tables.get(tableName);
+    if ((table != null) && (table.rows.remove(row) != null))
+      table.size.decrementAndGet();
+  }
+
+  public boolean existsRow(String tableName, String row) {
+    return getRow(tableName, row) != null;
+  }
+
+  public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive) {
+    Table table = tables.get(tableName);
+    if (table == null)
+      return Collections.emptyIterator();
+
+    NavigableMap<String, Row> range = table.rows;
+    if (startRow != null)
+      range = range.tailMap(startRow, true);
+    if (endRowExclusive != null)
+      range = range.headMap(endRowExclusive, false);
+    return range.values().iterator();
+  }
+
+  public Iterator<String> keys(String tableName) {
+    Table table = tables.get(tableName);
+    return (table != null) ? table.rows.keySet().iterator() : Collections.emptyIterator();
+  }
+
+  public int count(String tableName) {
+    // ConcurrentSkipListMap.size() walks the whole list, so the row count is kept separately
+    Table table = tables.get(tableName);
+    return (table != null) ? table.size.get() : 0;
+  }
+
+  public boolean hasTable(String tableName) {
+    return tables.containsKey(tableName);
+  }
+
+  public Set<String> tables() {
+    return tables.keySet();
+  }
+
+  public void rename(String oldTableName, String newTableName) {
+    Table table = tables.remove(oldTableName);
+    if (table != null)
+      tables.put(newTableName, table);
+  }
+
+  public void delete(String tableName) {
+    tables.remove(tableName);
+  }
+
+  private Table table(String tableName) {
+    return tables.computeIfAbsent(tableName, t -> new Table());
+  }
+
+  private static class Table {
+    final ConcurrentSkipListMap<String, Row> rows = new ConcurrentSkipListMap<>();
+    final AtomicInteger size = new AtomicInteger();
+  }
+}
@@ -0,0 +1,87 @@
+package flame.kvs;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+// Ways of combining a new value into an existing cell, for PUT /merge. The worker applies them
+// atomically, so clients can update shared cells (posting lists, counters) with a single write
+// instead of a get followed by a put. A missing or empty cell counts as having no value.
+public enum MergeOperator {
+  // Appends the new bytes to the cell
+  APPEND,
+  // Treats both values as comma-separated sets and adds the new elements that are not there yet
+  UNION,
+  // Adds the numbers
+  ADD,
+  // Keeps the larger of the two numbers
+  MAX;
+
+  // Name used in the op= parameter
+  public String paramName() {
+    return name().toLowerCase();
+  }
+
+  public static MergeOperator fromParamName(String name) {
+    for (MergeOperator op : values()) {
+      if (op.paramName().equals(name))
+        return op;
+    }
+    return null;
+  }
+
+  // Throws IllegalArgumentException if ADD or MAX is given something that is not a number
+  public byte[] apply(byte[] current, byte[] operand) {
+    if ((current != null) && (current.length == 0))
+      current = null;
+    switch (this) {
+      case APPEND:
+        if (current == null)
+          return operand;
+        byte[] appended = new byte[current.length + operand.length];
+        System.arraycopy(current, 0, appended, 0, current.length);
+        System.arraycopy(operand, 0, appended, current.length, operand.length);
+        return appended;
+      case UNION:
+        return union(current, operand);
+      case ADD:
+        return (current == null) ? number(operand).toPlainString().getBytes(StandardCharsets.UTF_8)
+                : number(current).add(number(operand)).toPlainString().getBytes(StandardCharsets.UTF_8);
+      case MAX:
+        BigDecimal value = number(operand);
+        return ((current == null) || (value.compareTo(number(current)) > 0)) ? operand : current;
+      default:
+        throw new IllegalStateException("Unhandled merge operator " + this);
+    }
+  }
+
+  private static byte[] union(byte[] current, byte[] operand) {
+    Set<String> elements = new HashSet<>();
+    ByteArrayOutputStream merged = new ByteArrayOutputStream(((current != null) ? current.length : 0) + operand.length + 1);
+    if (current != null) {
+      for (String element : new String(current, StandardCharsets.UTF_8).split(","))
+        elements.add(element);
+      merged.writeBytes(current);
+    }
+    for (String element : new String(operand, StandardCharsets.UTF_8).split(",")) {
+      if (!element.isEmpty() && elements.add(element)) {
+        if (merged.size() > 0)
+          merged.write(',');
+        merged.writeBytes(element.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    return merged.toByteArray();
+  }
+
+  // BigDecimal, so that integer counters stay integers and are never rounded
+  private static BigDecimal number(byte[] value) {
+    String text = new String(value, StandardCharsets.UTF_8).trim();
+    try {
+      return new BigDecimal(text);
+    } catch (NumberFormatException nfe) {
+      throw new IllegalArgumentException("Not a number: '" + text + "'");
+    }
+  }
+}
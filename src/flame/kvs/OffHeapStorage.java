@@ -0,0 +1,241 @@
+package flame.kvs;
+
+import flame.tools.Logger;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// In-memory tables that keep their rows outside the Java heap, so that large tables (e.g.
+// shuffle outputs) don't fill the heap with millions of small Row objects for the garbage
+// collector to trace. Each table appends its rows, in the binary form, to direct ByteBuffer
+// chunks, and a skip list maps every key to the chunk and offset of its latest version. Row
+// objects are only created when a row is read.
+//
+// A put appends a new version of the row; the space of the old one is reclaimed when more than
+// half of a table's chunks is garbage, by copying the live rows to fresh chunks. Readers keep
+// using the version of the table they started with, so they never see a half-copied table.
+// Direct memory is limited by -XX:MaxDirectMemorySize (by default, the maximum heap size).
+public class OffHeapStorage implements Storage {
+  private static final Logger logger = Logger.getLogger(OffHeapStorage.class);
+  private final ConcurrentHashMap<String, Table> tables = new ConcurrentHashMap<>();
+  private final int chunkSize;
+
+  public OffHeapStorage(int chunkSizeArg) {
+    chunkSize = chunkSizeArg;
+  }
+
+  public void putRow(String tableName, Row row) {
+    table(tableName).write(row.key(), row.toBinaryByteArray());
+  }
+
+  public void put(String tableName, String row, String column, byte[] value) throws IOException {
+    Row delta = new Row(row);
+    delta.put(column, value);
+    putColumns(tableName, delta);
+  }
+
+  public void putColumns(String tableName, Row columns) throws IOException {
+    Table table = table(tableName);
+    synchronized (table) {
+      Row current = table.version.read(columns.key());
+      if (current != null) {
+        for (String column : columns.columns())
+          current.put(column, columns.getBytes(column));
+      }
+      table.write(columns.key(), ((current != null) ? current : columns).toBinaryByteArray());
+    }
+  }
+
+  public Row getRow(String tableName, String row) throws IOException {
+    Table table = tables.get(tableName);
+    return (table != null) ? table.version.read(row) : null;
+  }
+
+  public void deleteRow(String tableName, String row) {
+    Table table = tables.get(tableName);
+    if (table != null)
+      table.remove(row);
+  }
+
+  public boolean existsRow(String tableName, String row) {
+    Table table = tables.get(tableName);
+    return (table != null) && table.version.index.containsKey(row);
+  }
+
+  public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive) {
+    Table table = tables.get(tableName);
+    if (table == null)
+      return Collections.emptyIterator();
+
+    Version version = table.version;
+    NavigableMap<String, Long> range = version.index;
+    if (startRow != null)
+      range = range.tailMap(startRow, true);
+    if (endRowExclusive != null)
+      range = range.headMap(endRowExclusive, false);
+    Iterator<Long> locations = range.values().iterator();
+    return new Iterator<Row>() {
+      public boolean hasNext() {
+        return locations.hasNext();
+      }
+
+      public Row next() {
+        try {
+          return version.decode(locations.next());
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    };
+  }
+
+  // The chunks hold the rows in the binary form, so they are copied out without being decoded
+  public Iterator<byte[]> scanEncoded(String tableName, String startRow, String endRowExclusive) {
+    Table table = tables.get(tableName);
+    if (table == null)
+      return Collections.emptyIterator();
+
+    Version version = table.version;
+    NavigableMap<String, Long> range = version.index;
+    if (startRow != null)
+      range = range.tailMap(startRow, true);
+    if (endRowExclusive != null)
+      range = range.headMap(endRowExclusive, false);
+    Iterator<Long> locations = range.values().iterator();
+    return new Iterator<byte[]>() {
+      public boolean hasNext() {
+        return locations.hasNext();
+      }
+
+      public byte[] next() {
+        return version.record(locations.next());
+      }
+    };
+  }
+
+  public Iterator<String> keys(String tableName) {
+    Table table = tables.get(tableName);
+    return (table != null) ? table.version.index.keySet().iterator() : Collections.emptyIterator();
+  }
+
+  public int count(String tableName) {
+    Table table = tables.get(tableName);
+    return (table != null) ? table.version.rows : 0;
+  }
+
+  public boolean hasTable(String tableName) {
+    return tables.containsKey(tableName);
+  }
+
+  public Set<String> tables() {
+    return tables.keySet();
+  }
+
+  public void rename(String oldTableName, String newTableName) {
+    Table table = tables.remove(oldTableName);
+    if (table != null)
+      tables.put(newTableName, table);
+  }
+
+  public void delete(String tableName) {
+    // The chunks are freed once the last reader is done with them and they are collected
+    tables.remove(tableName);
+  }
+
+  private Table table(String tableName) {
+    return tables.computeIfAbsent(tableName, t -> new Table());
+  }
+
+  // A location is the chunk number in the upper and the offset in the lower 32 bits
+  private class Version {
+    final ConcurrentSkipListMap<String, Long> index = new ConcurrentSkipListMap<>();
+    final List<ByteBuffer> chunks = new ArrayList<>();
+    volatile ByteBuffer[] published = new ByteBuffer[0];
+    volatile int rows;
+    long usedBytes;
+    long liveBytes;
+
+    // Caller holds the table's lock
+    long append(byte[] record) {
+      ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+      if ((chunk == null) || (chunk.remaining() < 4 + record.length)) {
+        chunk = ByteBuffer.allocateDirect(Math.max(chunkSize, 4 + record.length));
+        chunks.add(chunk);
+        published = chunks.toArray(new ByteBuffer[0]);
+      }
+      int offset = chunk.position();
+      chunk.putInt(record.length);
+      chunk.put(record);
+      usedBytes += 4 + record.length;
+      return ((long) (chunks.size() - 1) << 32) | offset;
+    }
+
+    int length(long location) {
+      return published[(int) (location >>> 32)].getInt((int) location);
+    }
+
+    Row read(String key) throws IOException {
+      Long location = index.get(key);
+      return (location != null) ? decode(location) : null;
+    }
+
+    Row decode(long location) throws IOException {
+      return new RowReader(record(location)).next();
+    }
+
+    byte[] record(long location) {
+      ByteBuffer chunk = published[(int) (location >>> 32)];
+      int offset = (int) location;
+      byte[] record = new byte[chunk.getInt(offset)];
+      chunk.get(offset + 4, record);
+      return record;
+    }
+  }
+
+  private class Table {
+    volatile Version version = new Version();
+
+    synchronized void write(String key, byte[] record) {
+      Version v = version;
+      long location = v.append(record);
+      Long previous = v.index.put(key, location);
+      if (previous == null)
+        v.rows++;
+      else
+        v.liveBytes -= 4 + v.length(previous);
+      v.liveBytes += 4 + record.length;
+      if ((v.usedBytes > chunkSize) && (v.liveBytes * 2 < v.usedBytes))
+        compact();
+    }
+
+    // The row's space is reclaimed like that of an overwritten version
+    synchronized void remove(String key) {
+      Version v = version;
+      Long previous = v.index.remove(key);
+      if (previous != null) {
+        v.rows--;
+        v.liveBytes -= 4 + v.length(previous);
+      }
+    }
+
+    // Copies the live rows into a new version; caller holds the table's lock
+    void compact() {
+      Version old = version;
+      Version fresh = new Version();
+      for (Map.Entry<String, Long> entry : old.index.entrySet()) {
+        long location = entry.getValue();
+        ByteBuffer chunk = old.published[(int) (location >>> 32)];
+        byte[] record = new byte[chunk.getInt((int) location)];
+        chunk.get((int) location + 4, record);
+        fresh.index.put(entry.getKey(), fresh.append(record));
+        fresh.liveBytes += 4 + record.length;
+      }
+      fresh.rows = old.rows;
+      version = fresh;
+      logger.info("Compacted an off-heap table from " + old.usedBytes + " to " + fresh.usedBytes + " bytes");
+    }
+  }
+}
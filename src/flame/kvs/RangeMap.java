@@ -0,0 +1,260 @@
+package flame.kvs;
+
+import java.io.Serializable;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// The placement of keys on KVS workers that the coordinator publishes at /ring: tokens, each
+// owned by a worker ID, as on a HashRing, and a version that grows with every change.
+//
+// A map is either settled, or migrating from its current placement to a target placement, e.g.
+// after a worker joined or a hot range was split. While it migrates, everyone still uses the
+// current placement, and every worker that gives up ranges streams their rows to the new
+// owners in the background (see Rebalancer). Once all of them are done, the coordinator
+// publishes the next version, which settles on the target.
+//
+// The map also says how many workers hold each row of the replicated tables: the owner, and
+// the owners of the following tokens (see Replicator).
+public class RangeMap implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  public final int version;
+  public final int replicas;
+  private final String replicatedTables;
+  private final TableSet replicated;
+  private final TreeMap<String, String> current;
+  private final TreeMap<String, String> target;
+
+  // Keys in [fromKey, toKeyExclusive) move from one worker to another; null bounds are open
+  public record Move(String fromKey, String toKeyExclusive, String from, String to) implements Serializable {}
+
+  private RangeMap(int versionArg, int replicasArg, String replicatedTablesArg, TreeMap<String, String> currentArg,
+                   TreeMap<String, String> targetArg) {
+    version = versionArg;
+    replicas = replicasArg;
+    replicatedTables = replicatedTablesArg;
+    replicated = new TableSet(replicatedTablesArg);
+    current = currentArg;
+    target = targetArg;
+  }
+
+  // The first map of a cluster: the virtual nodes of the given workers, as HashRing places them,
+  // and the given number of replicas of the given tables (a TableSet list)
+  public static RangeMap of(Collection<String> workerIds, int virtualNodes, int replicas, String replicatedTables) {
+    return new RangeMap(1, replicas, replicatedTables, withTokens(new TreeMap<>(), new TreeSet<>(workerIds), virtualNodes), null);
+  }
+
+  public boolean migrating() {
+    return target != null;
+  }
+
+  // The worker that serves the key now
+  public String owner(String key) {
+    return owner(current, key);
+  }
+
+  // The worker that will serve the key once the map has settled
+  public String targetOwner(String key) {
+    return owner(migrating() ? target : current, key);
+  }
+
+  // Whether the rows of the table have replicas
+  public boolean replicates(String tableName) {
+    return (replicas > 1) && replicated.contains(tableName);
+  }
+
+  // The workers that hold the key's row in the current placement, owner first: the owners of the
+  // following tokens (wrapping around), skipping workers that are on the list already
+  public List<String> replicas(String key) {
+    List<String> holders = new ArrayList<>();
+    holders.add(owner(key));
+    Map.Entry<String, String> token = current.floorEntry(key);
+    String from = (token != null) ? token.getKey() : current.lastKey();
+    for (String owner : current.tailMap(from, false).values()) {
+      if (holders.size() >= replicas)
+        return holders;
+      if (!holders.contains(owner))
+        holders.add(owner);
+    }
+    for (String owner : current.headMap(from, false).values()) {
+      if (holders.size() >= replicas)
+        return holders;
+      if (!holders.contains(owner))
+        holders.add(owner);
+    }
+    return holders;
+  }
+
+  // The workers that hold replicas of some of the worker's ranges in the current placement
+  public Set<String> replicasOf(String workerId) {
+    Set<String> holders = new TreeSet<>();
+    for (Map.Entry<String, String> token : current.entrySet()) {
+      if (token.getValue().equals(workerId))
+        holders.addAll(replicas(token.getKey()));
+    }
+    holders.remove(workerId);
+    return holders;
+  }
+
+  // Whether the map places keys and replicas as the given version did, i.e. it is that version,
+  // or the migration that follows it (which still uses the same placement)
+  public boolean samePlacement(int otherVersion) {
+    return (otherVersion == version) || (migrating() && (otherVersion == version - 1));
+  }
+
+  // The workers that own ranges now or in the target placement
+  public Set<String> members() {
+    Set<String> members = new TreeSet<>(current.values());
+    if (migrating())
+      members.addAll(target.values());
+    return members;
+  }
+
+  // The next version, migrating to a placement that adds the given workers' virtual nodes
+  public RangeMap withWorkers(Collection<String> workerIds, int virtualNodes) {
+    return migrateTo(withTokens(new TreeMap<>(current), new TreeSet<>(workerIds), virtualNodes));
+  }
+
+  // The next version, migrating to a placement in which the worker's ranges belong to the
+  // workers of the preceding tokens
+  public RangeMap withoutWorker(String workerId) {
+    TreeMap<String, String> next = new TreeMap<>(current);
+    next.values().removeIf(workerId::equals);
+    if (next.isEmpty())
+      throw new IllegalArgumentException("Worker " + workerId + " is the only member of the range map");
+    return migrateTo(next);
+  }
+
+  // The next version, migrating to a placement in which the keys from the given key up to the
+  // next token belong to the given worker
+  public RangeMap withSplit(String key, String workerId) {
+    TreeMap<String, String> next = new TreeMap<>(current);
+    next.put(key, workerId);
+    return migrateTo(next);
+  }
+
+  // The next version, settled on the target placement
+  public RangeMap settled() {
+    return new RangeMap(version + 1, replicas, replicatedTables, migrating() ? target : current, null);
+  }
+
+  // The next version, with the same placement and the given replication
+  public RangeMap withReplicas(int replicasArg, String replicatedTablesArg) {
+    if (migrating())
+      throw new IllegalStateException("Range map version " + version + " is still migrating");
+    return new RangeMap(version + 1, replicasArg, replicatedTablesArg, current, null);
+  }
+
+  public boolean hasReplicas(int replicasArg, String replicatedTablesArg) {
+    return (replicas == replicasArg) && replicatedTables.equals(replicatedTablesArg);
+  }
+
+  private RangeMap migrateTo(TreeMap<String, String> next) {
+    if (migrating())
+      throw new IllegalStateException("Range map version " + version + " is still migrating");
+    return new RangeMap(version + 1, replicas, replicatedTables, current, next);
+  }
+
+  // The ranges whose owner changes, in key order; none if the map is settled
+  public List<Move> moves() {
+    List<Move> moves = new ArrayList<>();
+    if (!migrating())
+      return moves;
+    TreeSet<String> bounds = new TreeSet<>(current.keySet());
+    bounds.addAll(target.keySet());
+    String from = null;
+    String fromOwner = owner(current, null), toOwner = owner(target, null);
+    for (String bound : bounds) {
+      String nextFrom = owner(current, bound), nextTo = owner(target, bound);
+      if (nextFrom.equals(fromOwner) && nextTo.equals(toOwner))
+        continue;
+      if (!fromOwner.equals(toOwner))
+        moves.add(new Move(from, bound, fromOwner, toOwner));
+      from = bound;
+      fromOwner = nextFrom;
+      toOwner = nextTo;
+    }
+    if (!fromOwner.equals(toOwner))
+      moves.add(new Move(from, null, fromOwner, toOwner));
+    return moves;
+  }
+
+  // The workers that give up ranges in this migration
+  public Set<String> sources() {
+    Set<String> sources = new TreeSet<>();
+    for (Move move : moves())
+      sources.add(move.from());
+    return sources;
+  }
+
+  // A ring over the current placement, for a client that indexes its workers in the given order
+  public HashRing ring(List<String> workerIds) {
+    TreeMap<String, Integer> ring = new TreeMap<>();
+    for (Map.Entry<String, String> token : current.entrySet())
+      ring.put(token.getKey(), workerIds.indexOf(token.getValue()));
+    return new HashRing(ring);
+  }
+
+  // "version N", "state settled|migrating", "replicas N <tables>", then one "current <token>
+  // <owner>" line per token and, while migrating, one "target <token> <owner>" line per token;
+  // tokens and tables are URL-encoded
+  public String toString() {
+    StringBuilder text = new StringBuilder();
+    text.append("version ").append(version).append('\n');
+    text.append("state ").append(migrating() ? "migrating" : "settled").append('\n');
+    text.append("replicas ").append(replicas).append(' ')
+        .append(URLEncoder.encode(replicatedTables, StandardCharsets.UTF_8)).append('\n');
+    appendTokens(text, "current", current);
+    if (migrating())
+      appendTokens(text, "target", target);
+    return text.toString();
+  }
+
+  public static RangeMap parse(String text) {
+    int version = -1, replicas = 1;
+    String replicatedTables = "";
+    TreeMap<String, String> current = new TreeMap<>();
+    TreeMap<String, String> target = null;
+    for (String line : text.split("\n")) {
+      String[] pieces = line.trim().split(" ");
+      if (pieces[0].equals("version")) {
+        version = Integer.parseInt(pieces[1]);
+      } else if (pieces[0].equals("state")) {
+        if (pieces[1].equals("migrating"))
+          target = new TreeMap<>();
+      } else if (pieces[0].equals("replicas")) {
+        replicas = Integer.parseInt(pieces[1]);
+        replicatedTables = (pieces.length > 2) ? URLDecoder.decode(pieces[2], StandardCharsets.UTF_8) : "";
+      } else if (pieces[0].equals("current") || pieces[0].equals("target")) {
+        if ((pieces.length != 3) || (pieces[0].equals("target") && (target == null)))
+          throw new IllegalArgumentException("Malformed range map line '" + line + "'");
+        (pieces[0].equals("current") ? current : target).put(URLDecoder.decode(pieces[1], StandardCharsets.UTF_8), pieces[2]);
+      }
+    }
+    if ((version < 0) || current.isEmpty() || ((target != null) && target.isEmpty()))
+      throw new IllegalArgumentException("Incomplete range map");
+    return new RangeMap(version, replicas, replicatedTables, current, target);
+  }
+
+  private static void appendTokens(StringBuilder text, String name, TreeMap<String, String> tokens) {
+    for (Map.Entry<String, String> token : tokens.entrySet())
+      text.append(name).append(' ').append(URLEncoder.encode(token.getKey(), StandardCharsets.UTF_8))
+          .append(' ').append(token.getValue()).append('\n');
+  }
+
+  private static TreeMap<String, String> withTokens(TreeMap<String, String> tokens, Collection<String> workerIds, int virtualNodes) {
+    for (String workerId : workerIds) {
+      for (String token : HashRing.tokens(workerId, virtualNodes))
+        tokens.putIfAbsent(token, workerId);
+    }
+    return tokens;
+  }
+
+  // Keys below the first token belong to the last one, as on a HashRing
+  private static String owner(TreeMap<String, String> tokens, String key) {
+    Map.Entry<String, String> token = (key != null) ? tokens.floorEntry(key) : null;
+    return ((token != null) ? token : tokens.lastEntry()).getValue();
+  }
+}
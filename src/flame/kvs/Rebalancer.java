@@ -0,0 +1,409 @@
+package flame.kvs;
+
+import flame.tools.HTTP;
+import flame.tools.Logger;
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Follows the coordinator's range map (see RangeMap) on a KVS worker. It decides which keys the
+// worker serves, keeps the map on disk for when the coordinator restarts, and moves the rows of
+// the ranges that the worker gives up to their new owners.
+//
+// A move copies every row of the ranges to the new owner (PUT /migrate/:table), while writes of
+// those rows go on here and are queued for the new owner as they happen (see WriteQueue and
+// receive()). Then the worker stops serving the ranges, waits for writes that are under way and
+// for the queues to be sent, and tells the coordinator, which settles the map once all sources
+// are done. Moved rows stay on disk here, but are no longer served, scanned or counted, until
+// the map has been settled for a while (so scans that started before it settled can finish);
+// then they are deleted (see sweep()).
+class Rebalancer {
+  private static final Logger logger = Logger.getLogger(Rebalancer.class);
+  private static final int BATCH_BYTES = 1 << 20;
+  // A worker that takes longer than this to answer a PUT (e.g. a hung replica, see Replicator)
+  // fails the request, rather than holding up the writes queued behind it
+  private static final int SEND_TIMEOUT_MILLIS = 30000;
+
+  private final String id;
+  private final String coordinator;
+  private final File mapFile;
+  private final File movedMarker;
+  private final Storage[] storages;
+  private final Map<String, String> addresses = new ConcurrentHashMap<>();
+  // Keys ("table\nrow") whose writes could not be sent on; they are sent again before the hand-off
+  private final Set<String> unsent = ConcurrentHashMap.newKeySet();
+  private final WriteQueue forwards;
+  // Keys of rows that other workers have moved here in the migration to receivedVersion
+  private final Set<String> received = ConcurrentHashMap.newKeySet();
+  // ... and of those, the rows that a write of the whole row replaced; copies no longer add to them
+  private final Set<String> replaced = ConcurrentHashMap.newKeySet();
+  private volatile int receivedVersion = -1;
+  private volatile RangeMap map;
+  private volatile RangeMap previous;
+  private volatile int handedOff = -1;
+  private volatile int done = -1;
+  private volatile boolean movedRows;
+  // Set by every noteMovedRows(), so a sweep can tell whether rows came in while it ran
+  private volatile boolean notedDuringSweep;
+  private volatile long adoptedAt;
+  private volatile int sweptVersion = -1;
+  private Replicator replicator;
+  private Thread mover;
+  private Thread sweeper;
+
+  Rebalancer(String idArg, String coordinatorArg, File storageDir, Storage... storagesArg) {
+    id = idArg;
+    coordinator = coordinatorArg;
+    mapFile = new File(storageDir, ".range-map");
+    movedMarker = new File(storageDir, ".moved-rows");
+    storages = storagesArg;
+    forwards = new WriteQueue(id + ".migrate", this::send, (owner, tableName, key) -> unsent.add(tableName + "\n" + key));
+    movedRows = movedMarker.exists();
+    if (mapFile.exists()) {
+      try {
+        map = RangeMap.parse(Files.readString(mapFile.toPath()));
+        logger.info("Loaded range map version " + map.version + " from " + mapFile);
+      } catch (IOException | IllegalArgumentException e) {
+        logger.error("Ignoring unreadable range map " + mapFile + ": " + e.getMessage());
+      }
+    }
+  }
+
+  void setReplicator(Replicator replicatorArg) {
+    replicator = replicatorArg;
+  }
+
+  // Rows that the worker no longer owns are deleted once the map has been settled for sweepDelayMillis
+  void start(long pollMillis, long sweepDelayMillis) {
+    Thread poller = new Thread(() -> {
+      while (true) {
+        try {
+          poll();
+          startSweep(sweepDelayMillis);
+        } catch (Exception e) {
+          logger.error("Could not get the range map from " + coordinator + ": " + e.getMessage());
+        }
+        try {
+          Thread.sleep(pollMillis);
+        } catch (InterruptedException ie) {
+          return;
+        }
+      }
+    }, "range-map-poller");
+    poller.setDaemon(true);
+    poller.start();
+  }
+
+  RangeMap map() {
+    return map;
+  }
+
+  // Whether the worker serves reads and writes of the key: it owns it in the current placement
+  // and hasn't handed it off yet. Without a map (e.g. an older coordinator), it serves all keys.
+  // Writes check this under the row's lock, so none can slip past a hand-off.
+  boolean serves(String key) {
+    RangeMap m = map;
+    if (m == null)
+      return true;
+    if (!id.equals(m.owner(key)))
+      return false;
+    return !m.migrating() || (handedOff != m.version) || id.equals(m.targetOwner(key));
+  }
+
+  // The map that a scan of the table for the given version (or, if null, the current one)
+  // selects rows with; null if all stored rows of the table belong to the scan, i.e. no rows
+  // have moved away and the table has no replicas here. A migrating map places keys like the
+  // version before it, so a scan that started just before a migration can still go on after it
+  // has settled, until the moved rows are swept. A client with a newer version than this
+  // worker's makes the worker fetch it first. Throws for older versions, so the client fetches
+  // the current map first.
+  RangeMap scanMap(String versionParam, String tableName) throws IOException {
+    if ((versionParam != null) && (map != null) && (Integer.parseInt(versionParam) > map.version))
+      poll();
+    RangeMap m = map, p = previous;
+    if (versionParam != null) {
+      int version = Integer.parseInt(versionParam);
+      if ((m == null) || (m.version != version))
+        m = ((p != null) && (sweptVersion < m.version) && ((p.version == version) || (p.migrating() && (p.version == version + 1)))) ? p : null;
+      if (m == null)
+        throw new IOException("Range map version " + version + " is out of date");
+    }
+    return ((m != null) && (movedRows || m.replicates(tableName))) ? m : null;
+  }
+
+  boolean owns(RangeMap m, String key) {
+    return id.equals(m.owner(key));
+  }
+
+  // Called after a write, under the row's lock, so the new owner gets a row's writes in order.
+  // A write of a whole row replaces the row there as well. Writes that don't arrive are sent
+  // again as whole rows before the hand-off is done
+  void forward(String tableName, Row columns, boolean wholeRow) {
+    RangeMap m = map;
+    if ((m == null) || !m.migrating())
+      return;
+    String owner = m.targetOwner(columns.key());
+    if (id.equals(owner))
+      return;
+    noteMovedRows();
+    forwards.add(owner, migratePath(m.version, tableName, wholeRow ? "row" : "columns"), tableName, columns);
+  }
+
+  // Applies a row that another worker moves here; called under the row's lock. The first copy
+  // or write of a row replaces what is stored, which can only be a leftover from an earlier
+  // move. After that, copies (mode=fill) only add the columns that are missing, since they may
+  // have been read before a write that is already here, and writes (mode=columns) add theirs.
+  // mode=row replaces the row, and copies that were read before it are dropped.
+  void receive(Storage storage, int version, String tableName, String mode, Row row) throws IOException {
+    noteMovedRows();
+    synchronized (received) {
+      if (version != receivedVersion) {
+        received.clear();
+        replaced.clear();
+        receivedVersion = version;
+      }
+    }
+    String key = tableName + "\n" + row.key();
+    if ("row".equals(mode))
+      replaced.add(key);
+    if (received.add(key) || "row".equals(mode)) {
+      storage.putRow(tableName, row);
+    } else if ("fill".equals(mode)) {
+      if (replaced.contains(key))
+        return;
+      Row stored = storage.getRow(tableName, row.key());
+      Row missing = new Row(row.key());
+      for (String column : row.columns()) {
+        if ((stored == null) || (stored.getBytes(column) == null))
+          missing.put(column, row.getBytes(column));
+      }
+      if (!missing.columns().isEmpty())
+        storage.putColumns(tableName, missing);
+    } else {
+      storage.putColumns(tableName, row);
+    }
+  }
+
+  private void poll() throws IOException {
+    RangeMap m = map;
+    int version = (m != null) ? m.version : 0;
+    String url = "http://" + coordinator + "/ring?id=" + id + "&version=" + version
+        + (((m != null) && (done == m.version)) ? "&done=true" : "");
+    HTTP.Response r = HTTP.doRequest("GET", url, null);
+    if (r == null)
+      return;
+    if ((r.statusCode() == 409) && (m != null)) {
+      // The coordinator has an older map than this worker, e.g. after a restart
+      logger.info("Sending range map version " + m.version + " to " + coordinator);
+      HTTP.doRequest("PUT", "http://" + coordinator + "/ring", m.toString().getBytes(StandardCharsets.UTF_8));
+      return;
+    }
+    if (r.statusCode() != 200)
+      return;
+
+    RangeMap latest = RangeMap.parse(new String(r.body(), StandardCharsets.UTF_8));
+    if ((m == null) || (latest.version > m.version))
+      adopt(latest);
+    startMove();
+  }
+
+  private synchronized void adopt(RangeMap latest) throws IOException {
+    if ((map != null) && (latest.version <= map.version))
+      return;
+    File tmp = new File(mapFile.getPath() + ".tmp");
+    Files.writeString(tmp.toPath(), latest.toString());
+    Files.move(tmp.toPath(), mapFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    // Copies of a replicated table may no longer be replicas in the new map
+    if ((map != null) && (map.replicas > 1))
+      noteMovedRows();
+    previous = map;
+    map = latest;
+    adoptedAt = System.currentTimeMillis();
+    addresses.clear();
+    logger.info("Using range map version " + latest.version + (latest.migrating() ? " (migrating)" : ""));
+  }
+
+  private synchronized void startMove() {
+    RangeMap m = map;
+    if ((m == null) || !m.migrating() || (done == m.version) || (mover != null) || !m.sources().contains(id))
+      return;
+    mover = new Thread(() -> {
+      try {
+        move(m);
+      } catch (Exception e) {
+        logger.error("Moving ranges for range map version " + m.version + " failed; retrying: " + e.getMessage(), e);
+      } finally {
+        synchronized (this) {
+          mover = null;
+        }
+      }
+    }, "range-mover");
+    mover.setDaemon(true);
+    mover.start();
+  }
+
+  private void move(RangeMap m) throws IOException {
+    long start = System.currentTimeMillis();
+    int rows = 0;
+    for (Storage storage : storages) {
+      for (String tableName : new ArrayList<>(storage.tables()))
+        rows += copy(m, storage, tableName);
+    }
+
+    // Writes that passed serves() before the hand-off hold a row lock until they have been
+    // queued. None come after them, so the rows whose writes didn't arrive can be sent as they
+    // are now, without their locks
+    handedOff = m.version;
+    Worker.awaitWrites();
+    forwards.flush();
+    for (String key : new ArrayList<>(unsent)) {
+      String[] pieces = key.split("\n", 2);
+      Row row = Worker.storageFor(pieces[0]).getRow(pieces[0], pieces[1]);
+      if ((row != null) && !id.equals(m.targetOwner(pieces[1])))
+        send(m.targetOwner(pieces[1]), m.version, pieces[0], "row", row.toBinaryByteArray());
+      unsent.remove(key);
+    }
+    done = m.version;
+    logger.info("Moved " + rows + " row(s) for range map version " + m.version + " in "
+        + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  private synchronized void startSweep(long delayMillis) {
+    RangeMap m = map;
+    if ((m == null) || m.migrating() || !movedRows || (sweeper != null) || (sweptVersion >= m.version)
+        || (System.currentTimeMillis() - adoptedAt < delayMillis))
+      return;
+    sweeper = new Thread(() -> {
+      try {
+        sweep(m);
+      } catch (Exception e) {
+        logger.error("Deleting moved rows for range map version " + m.version + " failed: " + e.getMessage(), e);
+      } finally {
+        synchronized (this) {
+          sweeper = null;
+        }
+      }
+    }, "range-sweeper");
+    sweeper.setDaemon(true);
+    sweeper.start();
+  }
+
+  // Deletes the stored rows that the worker neither owns nor holds as a replica in the settled
+  // map, and then forgets that it had such rows, so scans and counts take their fast paths
+  // again. Scans for older versions are refused from now on. The sweep stops if the map
+  // changes, or rows of a newer map (moved or replicated here) arrive, and is tried again later.
+  private void sweep(RangeMap m) throws IOException {
+    long start = System.currentTimeMillis();
+    sweptVersion = m.version;
+    notedDuringSweep = false;
+    int deleted = 0;
+    for (Storage storage : storages) {
+      for (String tableName : new ArrayList<>(storage.tables())) {
+        List<String> keys = new ArrayList<>();
+        storage.keys(tableName).forEachRemaining(keys::add);
+        for (String key : keys) {
+          if (owns(m, key) || (m.replicates(tableName) && m.replicas(key).contains(id)))
+            continue;
+          synchronized (Worker.lockFor(tableName, key)) {
+            if (superseded(m))
+              throw new IOException("The range map changed during the sweep");
+            storage.deleteRow(tableName, key);
+          }
+          deleted++;
+        }
+      }
+    }
+    synchronized (movedMarker) {
+      if (superseded(m) || notedDuringSweep)
+        return;
+      movedMarker.delete();
+      movedRows = false;
+    }
+    logger.info("Deleted " + deleted + " moved row(s) for range map version " + m.version + " in "
+        + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  private boolean superseded(RangeMap m) {
+    return (map != m) || (receivedVersion > m.version) || ((replicator != null) && replicator.syncedSince(m.version));
+  }
+
+  private int copy(RangeMap m, Storage storage, String tableName) throws IOException {
+    Map<String, ByteArrayOutputStream> batches = new HashMap<>();
+    int rows = 0;
+    Iterator<String> keys = storage.keys(tableName);
+    while (keys.hasNext()) {
+      String key = keys.next();
+      String owner = m.targetOwner(key);
+      if (!id.equals(m.owner(key)) || id.equals(owner))
+        continue;
+      Row row = storage.getRow(tableName, key);
+      if (row == null)
+        continue;
+      ByteArrayOutputStream batch = batches.computeIfAbsent(owner, o -> new ByteArrayOutputStream());
+      batch.writeBytes(row.toBinaryByteArray());
+      rows++;
+      if (batch.size() >= BATCH_BYTES) {
+        send(owner, m.version, tableName, "fill", batch.toByteArray());
+        batch.reset();
+      }
+    }
+    for (Map.Entry<String, ByteArrayOutputStream> batch : batches.entrySet()) {
+      if (batch.getValue().size() > 0)
+        send(batch.getKey(), m.version, tableName, "fill", batch.getValue().toByteArray());
+    }
+    return rows;
+  }
+
+  private void send(String owner, int version, String tableName, String mode, byte[] rows) throws IOException {
+    noteMovedRows();
+    send(owner, migratePath(version, tableName, mode), rows);
+  }
+
+  private static String migratePath(int version, String tableName, String mode) {
+    return "/migrate/" + URLEncoder.encode(tableName, StandardCharsets.UTF_8) + "?mode=" + mode + "&version=" + version;
+  }
+
+  // Sends a PUT to another worker; throws unless it answers 200
+  void send(String workerId, String path, byte[] body) throws IOException {
+    HTTP.Response r = HTTP.doRequestWithTimeout("PUT", "http://" + address(workerId) + path, body, SEND_TIMEOUT_MILLIS, false);
+    if ((r == null) || (r.statusCode() != 200))
+      throw new IOException("Worker " + workerId + " did not take the rows" + ((r != null) ? " (" + r.statusCode() + ")" : ""));
+  }
+
+  private String address(String workerId) throws IOException {
+    String address = addresses.get(workerId);
+    if (address != null)
+      return address;
+    String list = new String(HTTP.doRequest("GET", "http://" + coordinator + "/workers", null).body(), StandardCharsets.UTF_8);
+    for (String line : list.split("\n")) {
+      String[] pieces = line.split(",");
+      if (pieces.length == 2)
+        addresses.put(pieces[0], pieces[1]);
+    }
+    address = addresses.get(workerId);
+    if (address == null)
+      throw new IOException("Worker " + workerId + " is not available");
+    return address;
+  }
+
+  // Notes that rows this worker doesn't own are stored here (moved away, or copies that are no
+  // longer replicas), so scans and counts have to skip them until they are swept. Copies of
+  // replicated tables are always skipped, and don't need this.
+  void noteMovedRows() {
+    notedDuringSweep = true;
+    if (movedRows)
+      return;
+    synchronized (movedMarker) {
+      try {
+        movedMarker.createNewFile();
+      } catch (IOException e) {
+        logger.error("Could not create " + movedMarker + ": " + e.getMessage());
+      }
+      movedRows = true;
+    }
+  }
+}
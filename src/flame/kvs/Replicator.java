@@ -0,0 +1,273 @@
+package flame.kvs;
+
+import flame.tools.Logger;
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps copies of the rows of replicated tables (see RangeMap.replicates) on the workers that
+// follow each key's owner on the ring, so clients can read a row from any of them and ask a
+// second one when the first is slow (see KVSClient).
+//
+// The owner queues every write of such a row for the replicas while it holds the row's lock, and
+// sends the queues in the background (see WriteQueue), so a write doesn't wait for the replicas,
+// and reads from them may briefly miss the latest writes. Whenever the placement changes (or a
+// replica missed a write), the owner first syncs its replicas: it copies all rows of the ranges it owns to them,
+// in the same way as Rebalancer moves rows. During a sync, the first copy or write of a row that
+// a replica gets replaces what it had, and later copies only add missing columns. Once the sync
+// is done, the replicas serve reads of the owner's rows. Copies are not scanned or counted, and
+// once a new map has settled, copies that are no longer replicas are swept (see Rebalancer).
+//
+// Renaming or deleting a replicated table (e.g. when a job saves a new pt-idf) doesn't go to the
+// replicas. Instead, the owner stops its replicas from serving its rows, and syncs them again,
+// after they have dropped their copies of the table's rows; a replica that renames or deletes
+// such a table itself no longer serves any copies until their owners have synced it again.
+class Replicator {
+  private static final Logger logger = Logger.getLogger(Replicator.class);
+  private static final int BATCH_BYTES = 1 << 20;
+
+  private final String id;
+  private final Rebalancer rebalancer;
+  private final Storage[] storages;
+  // Owner side: the range map version at which each replica was last synced from here
+  private final Map<String, Integer> syncedTo = new ConcurrentHashMap<>();
+  // Replica side: the version at which each owner has last synced its rows here, and the rows
+  // that owners whose sync is under way have sent so far
+  private final Map<String, Integer> syncedFrom = new ConcurrentHashMap<>();
+  private final Map<String, Set<String>> syncing = new ConcurrentHashMap<>();
+  // Owner side: the tables whose copies each replica has to drop at its next sync
+  private final Map<String, Set<String>> pendingDrops = new ConcurrentHashMap<>();
+  // Owner side: writes on their way to the replicas; a replica that doesn't take one is synced again
+  private final WriteQueue writes;
+
+  Replicator(String idArg, Rebalancer rebalancerArg, Storage... storagesArg) {
+    id = idArg;
+    rebalancer = rebalancerArg;
+    storages = storagesArg;
+    writes = new WriteQueue(id + ".replicate", rebalancer::send, (replica, tableName, key) -> syncedTo.remove(replica));
+  }
+
+  void start(long pollMillis) {
+    Thread syncer = new Thread(() -> {
+      while (true) {
+        RangeMap m = rebalancer.map();
+        try {
+          if ((m != null) && (m.replicas > 1))
+            sync(m);
+        } catch (Exception e) {
+          logger.error("Syncing replicas for range map version " + m.version + " failed; retrying: " + e.getMessage(), e);
+        }
+        try {
+          Thread.sleep(pollMillis);
+        } catch (InterruptedException ie) {
+          return;
+        }
+      }
+    }, "replica-syncer");
+    syncer.setDaemon(true);
+    syncer.start();
+  }
+
+  // Whether the worker serves reads of the key as a replica
+  boolean servesCopy(String tableName, String key) {
+    RangeMap m = rebalancer.map();
+    if ((m == null) || !m.replicates(tableName))
+      return false;
+    Integer synced = syncedFrom.get(m.owner(key));
+    return (synced != null) && m.samePlacement(synced) && m.replicas(key).contains(id);
+  }
+
+  // Called after a write, under the row's lock, like Rebalancer.forward(), to queue it for the
+  // replicas
+  void replicate(String tableName, Row columns, boolean wholeRow) {
+    RangeMap m = rebalancer.map();
+    if ((m == null) || !m.replicates(tableName) || !id.equals(m.owner(columns.key())))
+      return;
+    String path = "/replicate/" + URLEncoder.encode(tableName, StandardCharsets.UTF_8) + "?mode="
+        + (wholeRow ? "row" : "columns") + "&from=" + id;
+    for (String replica : m.replicas(columns.key())) {
+      if (!id.equals(replica))
+        writes.add(replica, path, tableName, columns);
+    }
+  }
+
+  // Applies a row that an owner sends here; called under the row's lock. Returns false for a
+  // write from an owner that has neither synced this worker nor started to, e.g. because the
+  // worker restarted since; the owner then syncs it.
+  boolean receive(Storage storage, String from, String tableName, String mode, Row row) throws IOException {
+    Set<String> received = syncing.get(from);
+    if (received == null) {
+      if (!"fill".equals(mode) && !syncedFrom.containsKey(from))
+        return false;
+      if ("row".equals(mode))
+        storage.putRow(tableName, row);
+      else
+        storage.putColumns(tableName, "fill".equals(mode) ? missingColumns(storage, tableName, row) : row);
+      return true;
+    }
+    String key = tableName + "\n" + row.key();
+    if (received.add(key) || "row".equals(mode))
+      storage.putRow(tableName, row);
+    else
+      storage.putColumns(tableName, "fill".equals(mode) ? missingColumns(storage, tableName, row) : row);
+    return true;
+  }
+
+  // The owner starts a sync: its rows are no longer read here until it's done
+  void syncStarted(String from) {
+    syncedFrom.remove(from);
+    syncing.put(from, ConcurrentHashMap.newKeySet());
+  }
+
+  void syncDone(String from, int version) {
+    syncing.remove(from);
+    syncedFrom.put(from, version);
+  }
+
+  // Called after a table was created by a rename, renamed away or deleted here
+  void tableChanged(String tableName) {
+    RangeMap m = rebalancer.map();
+    if ((m == null) || !m.replicates(tableName))
+      return;
+    syncedFrom.clear();
+    for (String replica : m.replicasOf(id)) {
+      pendingDrops.computeIfAbsent(replica, r -> ConcurrentHashMap.newKeySet()).add(tableName);
+      syncedTo.remove(replica);
+      try {
+        rebalancer.send(replica, "/sync/begin?from=" + id + "&version=" + m.version, null);
+      } catch (IOException e) {
+        logger.error("Could not stop replica " + replica + " from serving " + tableName + ": " + e.getMessage());
+      }
+    }
+  }
+
+  // Deletes the copies of the owner's rows of the table; the owner is syncing this worker
+  void drop(Storage storage, String from, String tableName) throws IOException {
+    RangeMap m = rebalancer.map();
+    List<String> keys = new ArrayList<>();
+    storage.keys(tableName).forEachRemaining(keys::add);
+    for (String key : keys) {
+      if ((m != null) && (!from.equals(m.owner(key)) || id.equals(m.owner(key))))
+        continue;
+      synchronized (Worker.lockFor(tableName, key)) {
+        storage.deleteRow(tableName, key);
+      }
+    }
+  }
+
+  // Whether an owner is syncing its rows here, or has synced them for a map newer than the given
+  // version, so this worker may hold copies that its own map doesn't place here yet
+  boolean syncedSince(int version) {
+    if (!syncing.isEmpty())
+      return true;
+    for (int synced : syncedFrom.values()) {
+      if (synced > version)
+        return true;
+    }
+    return false;
+  }
+
+  private Row missingColumns(Storage storage, String tableName, Row row) throws IOException {
+    Row stored = storage.getRow(tableName, row.key());
+    Row missing = new Row(row.key());
+    for (String column : row.columns()) {
+      if ((stored == null) || (stored.getBytes(column) == null))
+        missing.put(column, row.getBytes(column));
+    }
+    return missing;
+  }
+
+  // Syncs the replicas of this worker's ranges that haven't been synced in the map's placement
+  private void sync(RangeMap m) throws IOException {
+    Set<String> replicas = new TreeSet<>();
+    for (String replica : m.replicasOf(id)) {
+      Integer synced = syncedTo.get(replica);
+      if ((synced == null) || !m.samePlacement(synced))
+        replicas.add(replica);
+    }
+    if (replicas.isEmpty())
+      return;
+
+    // Replicas that can't be reached are left out, and tried again next time
+    long start = System.currentTimeMillis();
+    for (String replica : new ArrayList<>(replicas))
+      send(replicas, replica, "/sync/begin?from=" + id + "&version=" + m.version, null);
+    for (String replica : new ArrayList<>(replicas)) {
+      Set<String> drops = pendingDrops.getOrDefault(replica, Collections.emptySet());
+      for (String tableName : new ArrayList<>(drops)) {
+        if (send(replicas, replica, "/replicate/" + URLEncoder.encode(tableName, StandardCharsets.UTF_8)
+            + "?mode=drop&from=" + id, null))
+          drops.remove(tableName);
+      }
+    }
+    int rows = 0;
+    for (Storage storage : storages) {
+      for (String tableName : new ArrayList<>(storage.tables())) {
+        if (m.replicates(tableName))
+          rows += copy(m, storage, tableName, replicas);
+      }
+    }
+    if (rebalancer.map() != m)
+      throw new IOException("The range map changed during the sync");
+
+    // Writes from now on go to the replicas as they are; writes that are under way, which may
+    // have been sent during the sync, have been queued once their row locks are free, and
+    // taken once the queues have been sent
+    for (String replica : replicas)
+      syncedTo.put(replica, m.version);
+    Worker.awaitWrites();
+    writes.flush();
+    for (String replica : new ArrayList<>(replicas)) {
+      if (!send(replicas, replica, "/sync/done?from=" + id + "&version=" + m.version, null))
+        syncedTo.remove(replica);
+    }
+    logger.info("Synced " + rows + " row(s) to replicas " + replicas + " for range map version " + m.version + " in "
+        + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  private int copy(RangeMap m, Storage storage, String tableName, Set<String> replicas) throws IOException {
+    Map<String, ByteArrayOutputStream> batches = new HashMap<>();
+    String path = "/replicate/" + URLEncoder.encode(tableName, StandardCharsets.UTF_8) + "?mode=fill&from=" + id;
+    int rows = 0;
+    Iterator<String> keys = storage.keys(tableName);
+    while (keys.hasNext()) {
+      String key = keys.next();
+      if (!id.equals(m.owner(key)))
+        continue;
+      Row row = null;
+      for (String replica : m.replicas(key)) {
+        if (!replicas.contains(replica))
+          continue;
+        if ((row == null) && ((row = storage.getRow(tableName, key)) == null))
+          break;
+        ByteArrayOutputStream batch = batches.computeIfAbsent(replica, r -> new ByteArrayOutputStream());
+        batch.writeBytes(row.toBinaryByteArray());
+        if (batch.size() >= BATCH_BYTES) {
+          send(replicas, replica, path, batch.toByteArray());
+          batch.reset();
+        }
+      }
+      if (row != null)
+        rows++;
+    }
+    for (Map.Entry<String, ByteArrayOutputStream> batch : batches.entrySet()) {
+      if ((batch.getValue().size() > 0) && replicas.contains(batch.getKey()))
+        send(replicas, batch.getKey(), path, batch.getValue().toByteArray());
+    }
+    return rows;
+  }
+
+  // Removes the replica from the sync if it doesn't take the request
+  private boolean send(Set<String> replicas, String replica, String path, byte[] body) {
+    try {
+      rebalancer.send(replica, path, body);
+      return true;
+    } catch (IOException e) {
+      logger.error("Could not sync replica " + replica + ": " + e.getMessage());
+      replicas.remove(replica);
+      return false;
+    }
+  }
+}
@@ -1,13 +1,30 @@
 package flame.kvs;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+// Rows have two serialized forms. The text form is "key SP (column SP length SP value SP)*".
+// The binary form is BINARY_MAGIC, then the key, the number of columns and each column's name
+// and value, where every string/value is prefixed with its length as a varint. BINARY_MAGIC can
+// never start a UTF-8 string, so readers tell the two forms apart by the first byte.
+//
+// Persistent tables may also store the compressed form: COMPRESSED_MAGIC (which can't start a
+// UTF-8 string either), the length of the binary form and the length of the deflated data as
+// varints, then the binary form compressed with Deflater.
 public class Row implements Serializable {
+  public static final int BINARY_MAGIC = 0xB1;
+  public static final int COMPRESSED_MAGIC = 0xC1;
 
   protected String key;
   protected HashMap<String,byte[]> values;
@@ -33,7 +50,7 @@ public class Row implements Serializable {
   }
 
   public synchronized void put(String key, String value) {
-    values.put(key, value.getBytes());
+    values.put(key, value.getBytes(StandardCharsets.UTF_8));
   }
 
   public synchronized void put(String key, byte[] value) {
@@ -43,32 +60,25 @@ public class Row implements Serializable {
   public synchronized String get(String key) {
     if (values.get(key) == null)
       return null;
-  	return new String(values.get(key));
+  	return new String(values.get(key), StandardCharsets.UTF_8);
   }
 
   public synchronized byte[] getBytes(String key) {
     return values.get(key);
   }
 
-  static String readStringSpace(InputStream in) throws Exception {
-    byte buffer[] = new byte[16384];
-    int numRead = 0;
-    while (true) {
-      if (numRead == buffer.length)
-        throw new Exception("Format error: Expecting string+space");
+  // Scratch space for readStringSpace(), so tokens don't each allocate a fresh buffer
+  private static final ThreadLocal<byte[]> tokenBuffer = ThreadLocal.withInitial(() -> new byte[16384]);
 
-      int b = in.read();
-      if ((b < 0) || (b == 10))
-        return null;
-      buffer[numRead++] = (byte)b;
-      if (b == ' ')
-        return new String(buffer, 0, numRead-1);
-    }
+  static String readStringSpace(InputStream in) throws Exception {
+    return readStringSpace(in, -1);
   }
 
-  static String readStringSpace(RandomAccessFile in) throws Exception {
-    byte buffer[] = new byte[16384];
+  static String readStringSpace(InputStream in, int firstByte) throws Exception {
+    byte buffer[] = tokenBuffer.get();
     int numRead = 0;
+    if (firstByte >= 0)
+      buffer[numRead++] = (byte)firstByte;
     while (true) {
       if (numRead == buffer.length)
         throw new Exception("Format error: Expecting string+space");
@@ -78,12 +88,24 @@ public class Row implements Serializable {
         return null;
       buffer[numRead++] = (byte)b;
       if (b == ' ')
-        return new String(buffer, 0, numRead-1);
+        return new String(buffer, 0, numRead-1, StandardCharsets.UTF_8);
     }
   }
 
+  // Reads exactly one row, one byte at a time, so the stream can be shared with other readers.
+  // Code that reads a whole stream of rows, or has the row in memory, should use RowReader.
   public static Row readFrom(InputStream in) throws Exception {
-    String theKey = readStringSpace(in);
+    int first = in.read();
+    if ((first < 0) || (first == 10))
+      return null;
+    if (first == BINARY_MAGIC)
+      return readBinary(in);
+    if (first == COMPRESSED_MAGIC) {
+      int rawLength = readVarint(in);
+      return inflate(readBytes(in, readVarint(in)), rawLength);
+    }
+
+    String theKey = (first == ' ') ? "" : readStringSpace(in, first);
     if (theKey == null) 
       return null;
 
@@ -112,39 +134,96 @@ public class Row implements Serializable {
   }
 
   public static Row readFrom(RandomAccessFile in) throws Exception {
-    String theKey = readStringSpace(in);
-    if (theKey == null) 
-      return null;
+    // Decode through a buffer instead of a system call per byte, then move the file pointer to
+    // just after the row
+    long start = in.getFilePointer();
+    RowReader reader = new RowReader(Channels.newInputStream(in.getChannel()), 8192);
+    Row row = reader.next();
+    in.seek(start + reader.consumed());
+    return row;
+  }
 
-    Row newRow = new Row(theKey);
-    while (true) {
-      String keyOrMarker = readStringSpace(in);
-      if (keyOrMarker == null)
-        return newRow;
+  // Reads the rest of a binary row whose magic byte has already been consumed. Only reads
+  // exactly the bytes of the row, so it is safe on streams that hold more data.
+  static Row readBinary(InputStream in) throws Exception {
+    Row newRow = new Row(new String(readBytes(in, readVarint(in)), StandardCharsets.UTF_8));
+    int numColumns = readVarint(in);
+    for (int i = 0; i < numColumns; i++) {
+      String column = new String(readBytes(in, readVarint(in)), StandardCharsets.UTF_8);
+      newRow.values.put(column, readBytes(in, readVarint(in)));
+    }
+    return newRow;
+  }
 
-      int len = Integer.parseInt(readStringSpace(in));
-      byte[] theValue = new byte[len];
-      int bytesRead = 0;
-      while (bytesRead < len) {
-        int n = in.read(theValue, bytesRead, len - bytesRead);
-        if (n < 0)
-          throw new Exception("Premature end of stream while reading value for key '"+keyOrMarker+"' (read "+bytesRead+" bytes, expecting "+len+")");
-        bytesRead += n;
+  // Decodes the deflated binary form of a row
+  static Row inflate(byte[] compressed, int rawLength) throws IOException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      byte[] raw = new byte[rawLength];
+      int done = 0;
+      while (done < rawLength) {
+        int n = inflater.inflate(raw, done, rawLength - done);
+        if ((n == 0) && (inflater.finished() || inflater.needsInput()))
+          throw new EOFException("Compressed row is shorter than its stated length " + rawLength);
+        done += n;
       }
+      return new RowReader(raw).next();
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt compressed row: " + e.getMessage(), e);
+    } finally {
+      inflater.end();
+    }
+  }
 
-      byte b = (byte)in.read();
-      if (b != ' ')
-        throw new Exception("Expecting a space separator after value for key '"+keyOrMarker+"'");
+  static int readVarint(InputStream in) throws Exception {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.read();
+      if (b < 0)
+        throw new EOFException("Premature end of stream while reading a binary row");
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+    throw new Exception("Format error: varint is too long");
+  }
 
-      newRow.put(keyOrMarker, theValue);
+  static byte[] readBytes(InputStream in, int len) throws Exception {
+    byte[] data = new byte[len];
+    int bytesRead = 0;
+    while (bytesRead < len) {
+      int n = in.read(data, bytesRead, len - bytesRead);
+      if (n < 0)
+        throw new EOFException("Premature end of stream while reading a binary row (read "+bytesRead+" bytes, expecting "+len+")");
+      bytesRead += n;
     }
+    return data;
+  }
+
+  static int varintSize(int value) {
+    int size = 1;
+    while ((value & ~0x7F) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  static int writeVarint(byte[] dst, int pos, int value) {
+    while ((value & ~0x7F) != 0) {
+      dst[pos++] = (byte)((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    dst[pos++] = (byte)value;
+    return pos;
   }
 
   public synchronized String toString() {
     String s = key+" {";
     boolean isFirst = true;
     for (String k : values.keySet()) {
-      s = s + (isFirst ? " " : ", ")+k+": "+new String(values.get(k));
+      s = s + (isFirst ? " " : ", ")+k+": "+new String(values.get(k), StandardCharsets.UTF_8);
       isFirst = false;
     }
     return s + " }";
@@ -154,13 +233,13 @@ public class Row implements Serializable {
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
     try {
-      baos.write(key.getBytes());
+      baos.write(key.getBytes(StandardCharsets.UTF_8));
       baos.write(' ');
 
       for (String s : values.keySet()) {
-        baos.write(s.getBytes());
+        baos.write(s.getBytes(StandardCharsets.UTF_8));
         baos.write(' ');
-        baos.write((""+values.get(s).length).getBytes());
+        baos.write((""+values.get(s).length).getBytes(StandardCharsets.UTF_8));
         baos.write(' ');
         baos.write(values.get(s));
         baos.write(' ');
@@ -172,4 +251,58 @@ public class Row implements Serializable {
 
     return baos.toByteArray();
   }
-}
\ No newline at end of file
+
+  public synchronized byte[] toBinaryByteArray() {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    byte[][] names = new byte[values.size()][];
+    byte[][] data = new byte[values.size()][];
+    int size = 1 + varintSize(keyBytes.length) + keyBytes.length + varintSize(names.length);
+    int i = 0;
+    for (String s : values.keySet()) {
+      names[i] = s.getBytes(StandardCharsets.UTF_8);
+      data[i] = values.get(s);
+      size += varintSize(names[i].length) + names[i].length + varintSize(data[i].length) + data[i].length;
+      i++;
+    }
+
+    byte[] result = new byte[size];
+    result[0] = (byte)BINARY_MAGIC;
+    int pos = writeVarint(result, 1, keyBytes.length);
+    System.arraycopy(keyBytes, 0, result, pos, keyBytes.length);
+    pos = writeVarint(result, pos + keyBytes.length, names.length);
+    for (i = 0; i < names.length; i++) {
+      pos = writeVarint(result, pos, names[i].length);
+      System.arraycopy(names[i], 0, result, pos, names[i].length);
+      pos = writeVarint(result, pos + names[i].length, data[i].length);
+      System.arraycopy(data[i], 0, result, pos, data[i].length);
+      pos += data[i].length;
+    }
+    return result;
+  }
+
+  // The compressed form (see above), or the binary form if compressing doesn't make it smaller
+  public byte[] toCompressedByteArray() {
+    byte[] raw = toBinaryByteArray();
+    Deflater deflater = new Deflater();
+    try {
+      deflater.setInput(raw);
+      deflater.finish();
+      byte[] buffer = new byte[raw.length];
+      int header = 1 + varintSize(raw.length) + 5;
+      int length = 0;
+      while (!deflater.finished() && (length < raw.length - header))
+        length += deflater.deflate(buffer, length, raw.length - header - length);
+      if (!deflater.finished())
+        return raw;
+
+      byte[] result = new byte[1 + varintSize(raw.length) + varintSize(length) + length];
+      result[0] = (byte)COMPRESSED_MAGIC;
+      int pos = writeVarint(result, 1, raw.length);
+      pos = writeVarint(result, pos, length);
+      System.arraycopy(buffer, 0, result, pos, length);
+      return result;
+    } finally {
+      deflater.end();
+    }
+  }
+}
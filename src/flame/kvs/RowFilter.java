@@ -0,0 +1,30 @@
+package flame.kvs;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// A predicate that a KVS worker evaluates during a scan (see KVSClient.scan), so rows that
+// don't match are never sent over the network. Filters are shipped to the worker as serialized
+// objects; filters whose classes come from a job JAR need KVSClient.useJAR() so that the worker
+// can load them.
+public interface RowFilter extends Serializable {
+  boolean test(Row row);
+
+  default RowFilter and(RowFilter other) {
+    return row -> test(row) && other.test(row);
+  }
+
+  static RowFilter hasColumn(String column) {
+    return row -> row.getBytes(column) != null;
+  }
+
+  static RowFilter valueStartsWith(String column, String prefix) {
+    byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+    return row -> {
+      byte[] value = row.getBytes(column);
+      return (value != null) && (value.length >= prefixBytes.length)
+          && Arrays.equals(value, 0, prefixBytes.length, prefixBytes, 0, prefixBytes.length);
+    };
+  }
+}
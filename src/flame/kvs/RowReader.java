@@ -0,0 +1,276 @@
+package flame.kvs;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+// Streaming decoder for a sequence of rows in any serialized form (see Row), e.g. the body of
+// a scan. It reads the underlying stream or channel in large chunks through its own buffer, so
+// one reader must be used for the whole stream. next() returns null at the end of the stream,
+// or at the extra LF that terminates a scan response.
+//
+// Keys and column names are decoded straight out of the buffer, and the scratch space for tokens
+// that straddle a refill is reused across rows; the only per-row allocations are the Row itself
+// and its values. A reader can also decode rows that are already in memory, without copying.
+public class RowReader implements Closeable {
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final InputStream in;
+  private final ReadableByteChannel channel;
+  private byte[] buf;
+  private int pos, limit;
+  private long consumedBeforeBuffer;
+  private byte[] scratch = new byte[256];
+  private byte[] tokenBuf;
+  private int tokenOff;
+
+  public RowReader(InputStream inArg) {
+    this(inArg, BUFFER_SIZE);
+  }
+
+  public RowReader(InputStream inArg, int bufferSize) {
+    in = inArg;
+    channel = null;
+    buf = new byte[bufferSize];
+  }
+
+  public RowReader(ReadableByteChannel channelArg) {
+    in = null;
+    channel = channelArg;
+    buf = new byte[BUFFER_SIZE];
+  }
+
+  public RowReader(byte[] data, int offset, int length) {
+    in = null;
+    channel = null;
+    buf = data;
+    pos = offset;
+    limit = offset + length;
+    consumedBeforeBuffer = -offset;
+  }
+
+  public RowReader(byte[] data) {
+    this(data, 0, data.length);
+  }
+
+  // Number of bytes of the source that have been decoded so far
+  public long consumed() {
+    return consumedBeforeBuffer + pos;
+  }
+
+  public Row next() throws IOException {
+    int b = read();
+    if ((b < 0) || (b == '\n'))
+      return null;
+    if (b == Row.BINARY_MAGIC)
+      return nextBinary();
+    if (b == Row.COMPRESSED_MAGIC) {
+      int rawLength = readVarint();
+      byte[] compressed = new byte[readVarint()];
+      readFully(compressed, compressed.length);
+      return Row.inflate(compressed, rawLength);
+    }
+    pos--;
+    return nextText();
+  }
+
+  // Moves past the next row without decoding it; returns false at the end of the stream. Only
+  // rows in the binary or compressed form can be skipped
+  public boolean skip() throws IOException {
+    int b = read();
+    if ((b < 0) || (b == '\n'))
+      return false;
+    if (b == Row.COMPRESSED_MAGIC) {
+      readVarint();
+      skipBytes(readVarint());
+    } else if (b == Row.BINARY_MAGIC) {
+      skipBytes(readVarint());
+      int numColumns = readVarint();
+      for (int i = 0; i < numColumns; i++) {
+        skipBytes(readVarint());
+        skipBytes(readVarint());
+      }
+    } else {
+      throw new IOException("Format error: only binary rows can be skipped");
+    }
+    return true;
+  }
+
+  public void close() throws IOException {
+    if (in != null)
+      in.close();
+    else if (channel != null)
+      channel.close();
+  }
+
+  private Row nextBinary() throws IOException {
+    Row row = new Row(readString(readVarint()));
+    int numColumns = readVarint();
+    for (int i = 0; i < numColumns; i++) {
+      String column = readString(readVarint());
+      byte[] value = new byte[readVarint()];
+      readFully(value, value.length);
+      row.put(column, value);
+    }
+    return row;
+  }
+
+  // A text row ends at an LF (the separator within a scan) or at the end of the stream
+  private Row nextText() throws IOException {
+    int len = readToken();
+    if (len < 0)
+      return null;
+    Row row = new Row(new String(tokenBuf, tokenOff, len, StandardCharsets.UTF_8));
+    while (true) {
+      len = readToken();
+      if (len < 0)
+        return row;
+      String column = new String(tokenBuf, tokenOff, len, StandardCharsets.UTF_8);
+
+      len = readToken();
+      if (len < 0)
+        throw new EOFException("Premature end of row '" + row.key() + "' while reading length of column '" + column + "'");
+      byte[] value = new byte[parseLength(len)];
+      readFully(value, value.length);
+      if (read() != ' ')
+        throw new IOException("Expecting a space separator after value for key '" + column + "'");
+      row.put(column, value);
+    }
+  }
+
+  // Finds the bytes up to the next space and leaves them at tokenBuf[tokenOff...]: in the buffer
+  // itself if the token lies within it, otherwise copied together in scratch. Returns their
+  // number, or -1 if the row ended (LF or end of stream) first
+  private int readToken() throws IOException {
+    if ((pos == limit) && !fill())
+      return -1;
+    int start = pos;
+    while ((pos < limit) && (buf[pos] != ' ') && (buf[pos] != '\n'))
+      pos++;
+    if (pos < limit) {
+      tokenBuf = buf;
+      tokenOff = start;
+      return (buf[pos++] == ' ') ? (pos - 1 - start) : -1;
+    }
+
+    int len = append(0, start, pos - start);
+    while (true) {
+      if (!fill())
+        return -1;
+      start = pos;
+      while ((pos < limit) && (buf[pos] != ' ') && (buf[pos] != '\n'))
+        pos++;
+      len = append(len, start, pos - start);
+      if (pos < limit) {
+        tokenBuf = scratch;
+        tokenOff = 0;
+        return (buf[pos++] == ' ') ? len : -1;
+      }
+    }
+  }
+
+  private int parseLength(int len) throws IOException {
+    int value = 0;
+    for (int i = 0; i < len; i++) {
+      int digit = tokenBuf[tokenOff + i] - '0';
+      if ((digit < 0) || (digit > 9) || (value > (Integer.MAX_VALUE - digit) / 10))
+        throw new IOException("Format error: bad value length '" + new String(tokenBuf, tokenOff, len, StandardCharsets.UTF_8) + "'");
+      value = value * 10 + digit;
+    }
+    if (len == 0)
+      throw new IOException("Format error: empty value length");
+    return value;
+  }
+
+  private int readVarint() throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = read();
+      if (b < 0)
+        throw new EOFException("Premature end of stream while reading a binary row");
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+    throw new IOException("Format error: varint is too long");
+  }
+
+  private String readString(int len) throws IOException {
+    if (limit - pos >= len) {
+      String result = new String(buf, pos, len, StandardCharsets.UTF_8);
+      pos += len;
+      return result;
+    }
+    if (scratch.length < len)
+      scratch = new byte[Math.max(len, scratch.length * 2)];
+    readFully(scratch, len);
+    return new String(scratch, 0, len, StandardCharsets.UTF_8);
+  }
+
+  private void readFully(byte[] dst, int len) throws IOException {
+    int done = Math.min(len, limit - pos);
+    System.arraycopy(buf, pos, dst, 0, done);
+    pos += done;
+
+    // Large values (e.g. page bodies) bypass the buffer instead of being copied twice
+    while (len - done >= buf.length) {
+      int n = (in != null) ? in.read(dst, done, len - done)
+              : (channel != null) ? channel.read(ByteBuffer.wrap(dst, done, len - done)) : -1;
+      if (n < 0)
+        throw new EOFException("Premature end of stream while reading a row (read " + done + " bytes, expecting " + len + ")");
+      done += n;
+      consumedBeforeBuffer += n;
+    }
+    while (done < len) {
+      if (!fill())
+        throw new EOFException("Premature end of stream while reading a row (read " + done + " bytes, expecting " + len + ")");
+      int n = Math.min(len - done, limit - pos);
+      System.arraycopy(buf, pos, dst, done, n);
+      pos += n;
+      done += n;
+    }
+  }
+
+  private void skipBytes(int len) throws IOException {
+    while (len > 0) {
+      if ((pos == limit) && !fill())
+        throw new EOFException("Premature end of stream while skipping a row");
+      int n = Math.min(len, limit - pos);
+      pos += n;
+      len -= n;
+    }
+  }
+
+  private int append(int len, int start, int n) {
+    if (scratch.length < len + n) {
+      byte[] bigger = new byte[Math.max(len + n, scratch.length * 2)];
+      System.arraycopy(scratch, 0, bigger, 0, len);
+      scratch = bigger;
+    }
+    System.arraycopy(buf, start, scratch, len, n);
+    return len + n;
+  }
+
+  private int read() throws IOException {
+    if ((pos == limit) && !fill())
+      return -1;
+    return buf[pos++] & 0xFF;
+  }
+
+  private boolean fill() throws IOException {
+    if ((in == null) && (channel == null))
+      return false;
+    consumedBeforeBuffer += limit;
+    pos = 0;
+    limit = 0;
+    int n;
+    do {
+      n = (in != null) ? in.read(buf, 0, buf.length) : channel.read(ByteBuffer.wrap(buf));
+    } while (n == 0);
+    if (n < 0)
+      return false;
+    limit = n;
+    return true;
+  }
+}
@@ -0,0 +1,388 @@
+package flame.kvs;
+
+import java.io.*;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// An immutable, sorted run of row versions written by LsmStorage. The file holds the records in
+// key order, followed by a sparse index (every INDEX_INTERVAL-th key) and a fixed-size footer.
+// The sparse index is kept in memory; a lookup binary-searches it and then reads at most one
+// interval of records.
+//
+// Record:  kind (byte), keyLength (int), rowLength (int), key (UTF-8), row
+// Index:   keyLength (int), key (UTF-8), offset (long)   -- repeated
+// Footer:  indexOffset (long), recordCount (long), indexCount (int), magic (int)
+//
+// In a compressed table (magic COMPRESSED_MAGIC), the records of each index interval form one
+// block: rawLength (int), compressedLength (int), then the records compressed with Deflater.
+// The index points to the blocks, so a lookup still reads and inflates at most one interval.
+class SSTable {
+  static final byte FULL = 0;
+  static final byte DELTA = 1;
+  private static final int MAGIC = 0x4c534d31;
+  private static final int COMPRESSED_MAGIC = 0x4c534d5a;
+  private static final int FOOTER_SIZE = 24;
+  private static final int INDEX_INTERVAL = 16;
+  private static final Cleaner cleaner = Cleaner.create();
+
+  // One version of a row. A FULL version replaces everything older; a DELTA version only
+  // carries the columns that were written, and must be merged with older versions on read. A
+  // FULL version with an empty row is a tombstone: the row was deleted.
+  static class Entry {
+    final String key;
+    final boolean full;
+    private byte[] bytes;
+    private Row row;
+
+    Entry(String keyArg, boolean fullArg, Row rowArg) {
+      key = keyArg;
+      full = fullArg;
+      row = rowArg;
+    }
+
+    Entry(String keyArg, boolean fullArg, byte[] bytesArg) {
+      key = keyArg;
+      full = fullArg;
+      bytes = bytesArg;
+    }
+
+    static Entry tombstone(String key) {
+      return new Entry(key, true, new byte[0]);
+    }
+
+    boolean deleted() {
+      return full && (row == null) && (bytes.length == 0);
+    }
+
+    Row row() throws IOException {
+      if (row == null) {
+        try {
+          row = new RowReader(bytes).next();
+        } catch (IOException e) {
+          throw new IOException("Corrupt row '" + key + "' in SSTable", e);
+        }
+      }
+      return row;
+    }
+
+    byte[] bytes() {
+      if (bytes == null)
+        bytes = row.toBinaryByteArray();
+      return bytes;
+    }
+  }
+
+  final String name;
+  final long minGeneration;
+  final long maxGeneration;
+  final long recordCount;
+  final long size;
+  private final boolean compressed;
+  private final FileChannel channel;
+  private final String[] indexKeys;
+  private final long[] indexOffsets;
+  private final long dataEnd;
+
+  private SSTable(File file, long minGen, long maxGen) throws IOException {
+    name = file.getName();
+    minGeneration = minGen;
+    maxGeneration = maxGen;
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    size = channel.size();
+
+    // Obsolete tables are deleted right away; the channel is closed once the last scan
+    // that still uses this table has let go of it.
+    FileChannel ch = channel;
+    cleaner.register(this, () -> {
+      try {
+        ch.close();
+      } catch (IOException e) {
+      }
+    });
+
+    if (size < FOOTER_SIZE)
+      throw new IOException("SSTable " + file + " is too short");
+    ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+    readFully(footer, size - FOOTER_SIZE);
+    long indexOffset = footer.getLong(0);
+    recordCount = footer.getLong(8);
+    int indexCount = footer.getInt(16);
+    if ((footer.getInt(20) != MAGIC) && (footer.getInt(20) != COMPRESSED_MAGIC))
+      throw new IOException("SSTable " + file + " has no valid footer");
+    compressed = (footer.getInt(20) == COMPRESSED_MAGIC);
+
+    ByteBuffer index = ByteBuffer.allocate((int) (size - FOOTER_SIZE - indexOffset));
+    readFully(index, indexOffset);
+    index.flip();
+    indexKeys = new String[indexCount];
+    indexOffsets = new long[indexCount];
+    for (int i = 0; i < indexCount; i++) {
+      byte[] key = new byte[index.getInt()];
+      index.get(key);
+      indexKeys[i] = new String(key, StandardCharsets.UTF_8);
+      indexOffsets[i] = index.getLong();
+    }
+    dataEnd = indexOffset;
+  }
+
+  static SSTable open(File file, long minGen, long maxGen) throws IOException {
+    return new SSTable(file, minGen, maxGen);
+  }
+
+  // Writes the entries (which must be in key order) to a new table, optionally compressed. The
+  // data is written to a temporary file and synced before it is renamed into place, so a table
+  // either exists completely or not at all.
+  static SSTable write(File file, long minGen, long maxGen, Iterator<Entry> entries, boolean compress) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    List<String> indexKeys = new ArrayList<>();
+    List<Long> indexOffsets = new ArrayList<>();
+    long offset = 0, count = 0;
+
+    try (FileOutputStream fos = new FileOutputStream(tmp);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+      ByteArrayOutputStream block = new ByteArrayOutputStream();
+      DataOutputStream records = compress ? new DataOutputStream(block) : out;
+      Deflater deflater = compress ? new Deflater() : null;
+      try {
+        while (entries.hasNext()) {
+          Entry e = entries.next();
+          byte[] key = e.key.getBytes(StandardCharsets.UTF_8);
+          byte[] row = e.bytes();
+          if (count % INDEX_INTERVAL == 0) {
+            if (compress)
+              offset += writeBlock(out, block, deflater);
+            indexKeys.add(e.key);
+            indexOffsets.add(offset);
+          }
+          records.writeByte(e.full ? FULL : DELTA);
+          records.writeInt(key.length);
+          records.writeInt(row.length);
+          records.write(key);
+          records.write(row);
+          if (!compress)
+            offset += 9 + key.length + row.length;
+          count++;
+        }
+        if (compress)
+          offset += writeBlock(out, block, deflater);
+      } finally {
+        if (deflater != null)
+          deflater.end();
+      }
+
+      long indexOffset = offset;
+      for (int i = 0; i < indexKeys.size(); i++) {
+        byte[] key = indexKeys.get(i).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(key.length);
+        out.write(key);
+        out.writeLong(indexOffsets.get(i));
+      }
+      out.writeLong(indexOffset);
+      out.writeLong(count);
+      out.writeInt(indexKeys.size());
+      out.writeInt(compress ? COMPRESSED_MAGIC : MAGIC);
+      out.flush();
+      fos.getFD().sync();
+    }
+
+    if (!tmp.renameTo(file))
+      throw new IOException("Cannot rename " + tmp + " to " + file);
+    return open(file, minGen, maxGen);
+  }
+
+  // Compresses the buffered records (if any) into a block, and returns the number of bytes written
+  private static long writeBlock(DataOutputStream out, ByteArrayOutputStream block, Deflater deflater) throws IOException {
+    if (block.size() == 0)
+      return 0;
+    byte[] raw = block.toByteArray();
+    block.reset();
+    deflater.reset();
+    deflater.setInput(raw);
+    deflater.finish();
+    ByteArrayOutputStream deflated = new ByteArrayOutputStream(raw.length / 2 + 64);
+    byte[] buffer = new byte[1 << 16];
+    while (!deflater.finished())
+      deflated.write(buffer, 0, deflater.deflate(buffer));
+    out.writeInt(raw.length);
+    out.writeInt(deflated.size());
+    deflated.writeTo(out);
+    return 8 + deflated.size();
+  }
+
+  // Returns the version of the given key in this table, or null
+  Entry get(String key) throws IOException {
+    int block = floorIndex(key);
+    if (block < 0)
+      return null;
+    long end = (block + 1 < indexOffsets.length) ? indexOffsets[block + 1] : dataEnd;
+    Iterator<Entry> it = new EntryIterator(indexOffsets[block], end, null);
+    while (it.hasNext()) {
+      Entry e = it.next();
+      int c = e.key.compareTo(key);
+      if (c == 0)
+        return e;
+      if (c > 0)
+        break;
+    }
+    return null;
+  }
+
+  // Returns the versions with keys in [startRow, endRowExclusive), in key order, reading the
+  // file sequentially from the first block that can contain startRow
+  Iterator<Entry> scan(String startRow, String endRowExclusive) {
+    long start = 0;
+    if (startRow != null) {
+      int block = floorIndex(startRow);
+      start = (block < 0) ? 0 : indexOffsets[block];
+    }
+    EntryIterator it = new EntryIterator(start, dataEnd, endRowExclusive);
+    while (startRow != null && it.hasNext() && it.peek().key.compareTo(startRow) < 0)
+      it.next();
+    return it;
+  }
+
+  void delete(File dir) {
+    new File(dir, name).delete();
+  }
+
+  private int floorIndex(String key) {
+    int pos = Arrays.binarySearch(indexKeys, key);
+    return (pos >= 0) ? pos : (-pos - 2);
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0)
+        throw new EOFException("Unexpected end of SSTable " + name);
+    }
+  }
+
+  // Reads records sequentially with positional reads, so any number of readers can share the
+  // channel
+  private class EntryIterator implements Iterator<Entry> {
+    private final DataInputStream in;
+    private final String endRowExclusive;
+    private boolean done;
+    private Entry next;
+
+    EntryIterator(long startOffset, long endOffset, String endRowExclusiveArg) {
+      endRowExclusive = endRowExclusiveArg;
+      InputStream file = new BufferedInputStream(new InputStream() {
+        long pos = startOffset;
+
+        public int read() throws IOException {
+          byte[] b = new byte[1];
+          return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+          if (pos >= endOffset)
+            return -1;
+          int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, endOffset - pos)), pos);
+          if (n > 0)
+            pos += n;
+          return n;
+        }
+      }, 1 << 16);
+      in = new DataInputStream(compressed ? new BlockInputStream(new DataInputStream(file)) : file);
+    }
+
+    Entry peek() {
+      if (next == null && !done) {
+        try {
+          int kind = in.read();
+          if (kind < 0) {
+            done = true;
+            return null;
+          }
+          byte[] key = new byte[in.readInt()];
+          byte[] row = new byte[in.readInt()];
+          in.readFully(key);
+          in.readFully(row);
+          Entry e = new Entry(new String(key, StandardCharsets.UTF_8), kind == FULL, row);
+          if (endRowExclusive != null && e.key.compareTo(endRowExclusive) >= 0)
+            done = true;
+          else
+            next = e;
+        } catch (IOException ioe) {
+          throw new UncheckedIOException(ioe);
+        }
+      }
+      return next;
+    }
+
+    public boolean hasNext() {
+      return peek() != null;
+    }
+
+    public Entry next() {
+      Entry e = peek();
+      if (e == null)
+        throw new NoSuchElementException();
+      next = null;
+      return e;
+    }
+  }
+
+  // The records of consecutive compressed blocks, inflated one block at a time
+  private static class BlockInputStream extends InputStream {
+    private final DataInputStream blocks;
+    private final Inflater inflater = new Inflater();
+    private byte[] block = new byte[0];
+    private int pos;
+
+    BlockInputStream(DataInputStream blocksArg) {
+      blocks = blocksArg;
+    }
+
+    public int read() throws IOException {
+      if ((pos == block.length) && !nextBlock())
+        return -1;
+      return block[pos++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if ((pos == block.length) && !nextBlock())
+        return -1;
+      int n = Math.min(len, block.length - pos);
+      System.arraycopy(block, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+
+    private boolean nextBlock() throws IOException {
+      int rawLength;
+      try {
+        rawLength = blocks.readInt();
+      } catch (EOFException eof) {
+        inflater.end();
+        return false;
+      }
+      byte[] deflated = new byte[blocks.readInt()];
+      blocks.readFully(deflated);
+      block = new byte[rawLength];
+      pos = 0;
+      inflater.reset();
+      inflater.setInput(deflated);
+      try {
+        int done = 0;
+        while (done < rawLength) {
+          int n = inflater.inflate(block, done, rawLength - done);
+          if ((n == 0) && (inflater.finished() || inflater.needsInput()))
+            throw new EOFException("Compressed block is shorter than its stated length " + rawLength);
+          done += n;
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt compressed block: " + e.getMessage(), e);
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,617 @@
+package flame.kvs;
+
+import flame.tools.Logger;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+// Log-structured persistent tables. Every table is a directory of append-only segment files;
+// a PUT appends the new version of the row to the active segment, and an in-memory index maps
+// each key to the location of its latest version. The index is rebuilt from the segments when
+// the worker starts.
+//
+// Record layout: keyLength (int), rowLength (int), CRC32 of key+row (int), key (UTF-8), row
+//
+// A column put appends a delta record that holds just the new columns, so building a wide row
+// costs O(1) per column rather than a rewrite of the row. Its keyLength is stored inverted
+// (~keyLength, i.e. negative), and its row part starts with the location of the row's previous
+// version (long), which reads follow back to the last full record. Once a read has had to
+// merge maxDeltas or more deltas, it appends the merged row as a full record.
+//
+// Deleting a row appends a tombstone: a full record with an empty row part, which removes the
+// key from the index when the segments are replayed.
+//
+// Old versions, deltas and tombstones are reclaimed by collecting a table's segments: once the
+// table has doubled in size since its last collection, the active segment is sealed, the latest
+// version of every row that is still in a sealed segment is appended as a full record, and the
+// sealed segments are deleted, oldest first, so a crash at any point leaves a replayable set.
+//
+// Rows of the tables that CompressionPolicy selects are stored in the compressed form.
+public class SegmentStorage implements Storage {
+  private static final Logger logger = Logger.getLogger(SegmentStorage.class);
+  private static final ExecutorService collector = Executors.newSingleThreadExecutor(r -> {
+    Thread t = new Thread(r, "segment-collector");
+    t.setDaemon(true);
+    return t;
+  });
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final int HEADER_SIZE = 12;
+  private static final int OFFSET_BITS = 40;
+
+  private final File root;
+  private final long maxSegmentSize;
+  private final int maxDeltas;
+  private final CompressionPolicy compression;
+  private final ConcurrentHashMap<String, Table> tables = new ConcurrentHashMap<>();
+
+  public SegmentStorage(File rootArg, long maxSegmentSizeArg, int maxDeltasArg, CompressionPolicy compressionArg) throws IOException {
+    root = rootArg;
+    maxSegmentSize = Math.min(maxSegmentSizeArg, 1L << OFFSET_BITS);
+    maxDeltas = maxDeltasArg;
+    compression = compressionArg;
+    root.mkdirs();
+
+    File[] dirs = root.listFiles((file) -> file.isDirectory() && file.getName().startsWith("pt-"));
+    if (dirs != null) {
+      for (File dir : dirs) {
+        Table table = new Table(dir);
+        table.load();
+        tables.put(dir.getName(), table);
+        logger.info("Loaded " + table.index.size() + " row(s) of table " + dir.getName());
+      }
+    }
+  }
+
+  public void putRow(String tableName, Row row) throws IOException {
+    tables.computeIfAbsent(tableName, t -> new Table(new File(root, t))).append(row.key(), compression.encode(tableName, row));
+  }
+
+  public void put(String tableName, String row, String column, byte[] value) throws IOException {
+    Row delta = new Row(row);
+    delta.put(column, value);
+    putColumns(tableName, delta);
+  }
+
+  public void putColumns(String tableName, Row columns) throws IOException {
+    tables.computeIfAbsent(tableName, t -> new Table(new File(root, t))).appendColumns(columns.key(), compression.encode(tableName, columns));
+  }
+
+  public Row getRow(String tableName, String row) throws IOException {
+    Table table = tables.get(tableName);
+    if (table == null)
+      return null;
+    Long location = table.index.get(row);
+    return (location != null) ? table.readLatest(row, location) : null;
+  }
+
+  public void deleteRow(String tableName, String row) throws IOException {
+    Table table = tables.get(tableName);
+    if (table != null)
+      table.remove(row);
+  }
+
+  public boolean existsRow(String tableName, String row) {
+    Table table = tables.get(tableName);
+    return (table != null) && table.index.containsKey(row);
+  }
+
+  public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive) {
+    Table table = tables.get(tableName);
+    if (table == null)
+      return Collections.emptyIterator();
+
+    NavigableMap<String, Long> range = table.index;
+    if (startRow != null)
+      range = range.tailMap(startRow, true);
+    if (endRowExclusive != null)
+      range = range.headMap(endRowExclusive, false);
+
+    Iterator<Map.Entry<String, Long>> locations = range.entrySet().iterator();
+    return new Iterator<Row>() {
+      Row nextRow = advance();
+
+      Row advance() {
+        while (locations.hasNext()) {
+          try {
+            Map.Entry<String, Long> location = locations.next();
+            Row row = table.readLatest(location.getKey(), location.getValue());
+            if (row != null)
+              return row;
+          } catch (IOException e) {
+            logger.error("Error reading row from segment: " + e.getMessage(), e);
+          }
+        }
+        return null;
+      }
+
+      public boolean hasNext() {
+        return nextRow != null;
+      }
+
+      public Row next() {
+        if (nextRow == null)
+          throw new NoSuchElementException();
+        Row row = nextRow;
+        nextRow = advance();
+        return row;
+      }
+    };
+  }
+
+  // Full records hold the row in the binary or compressed form, so their row part is sent as it
+  // is; rows with deltas on top are merged and encoded
+  public Iterator<byte[]> scanEncoded(String tableName, String startRow, String endRowExclusive) {
+    Table table = tables.get(tableName);
+    if (table == null)
+      return Collections.emptyIterator();
+
+    NavigableMap<String, Long> range = table.index;
+    if (startRow != null)
+      range = range.tailMap(startRow, true);
+    if (endRowExclusive != null)
+      range = range.headMap(endRowExclusive, false);
+
+    Iterator<Map.Entry<String, Long>> locations = range.entrySet().iterator();
+    return new Iterator<byte[]>() {
+      byte[] nextRow = advance();
+
+      byte[] advance() {
+        while (locations.hasNext()) {
+          try {
+            Map.Entry<String, Long> location = locations.next();
+            ByteBuffer record;
+            try {
+              record = table.readRecord(location.getValue());
+            } catch (IOException e) {
+              // The segment may have been collected since the location was looked up
+              Row row = table.readLatest(location.getKey(), location.getValue());
+              if (row == null)
+                continue;
+              return row.toBinaryByteArray();
+            }
+            if (record.getInt(0) >= 0)
+              return Arrays.copyOfRange(record.array(), HEADER_SIZE, record.capacity());
+            Row row = table.readLatest(location.getKey(), location.getValue());
+            if (row != null)
+              return row.toBinaryByteArray();
+          } catch (IOException e) {
+            logger.error("Error reading row from segment: " + e.getMessage(), e);
+          }
+        }
+        return null;
+      }
+
+      public boolean hasNext() {
+        return nextRow != null;
+      }
+
+      public byte[] next() {
+        if (nextRow == null)
+          throw new NoSuchElementException();
+        byte[] row = nextRow;
+        nextRow = advance();
+        return row;
+      }
+    };
+  }
+
+  public Iterator<String> keys(String tableName) {
+    Table table = tables.get(tableName);
+    return (table != null) ? table.index.keySet().iterator() : Collections.emptyIterator();
+  }
+
+  public int count(String tableName) {
+    Table table = tables.get(tableName);
+    return (table != null) ? table.index.size() : 0;
+  }
+
+  public boolean hasTable(String tableName) {
+    return tables.containsKey(tableName);
+  }
+
+  public Set<String> tables() {
+    return tables.keySet();
+  }
+
+  public void rename(String oldTableName, String newTableName) throws IOException {
+    Table table = tables.remove(oldTableName);
+    if (table == null)
+      throw new FileNotFoundException("Table " + oldTableName + " not found");
+    table.moveTo(new File(root, newTableName));
+    tables.put(newTableName, table);
+  }
+
+  public void delete(String tableName) throws IOException {
+    Table table = tables.remove(tableName);
+    if (table != null) {
+      synchronized (table) {
+        table.dropped = true;
+        table.close();
+      }
+      FileStorage.recursiveDeleteDirectory(table.dir);
+    }
+  }
+
+  private class Table {
+    File dir;
+    final ConcurrentSkipListMap<String, Long> index = new ConcurrentSkipListMap<>();
+    final ConcurrentHashMap<Integer, FileChannel> readers = new ConcurrentHashMap<>();
+    FileChannel writer;
+    int writerId;
+    long writerSize;
+    // Bytes in all segments, and after the last collection; segments below collectBelow are
+    // being (or have been) collected, so new deltas must not point into them
+    long diskBytes;
+    long collectedBytes;
+    volatile int collectBelow;
+    boolean collecting;
+    boolean dropped;
+
+    Table(File dirArg) {
+      dir = dirArg;
+    }
+
+    File segmentFile(int id) {
+      return new File(dir, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    // Replays all segments in order; later versions of a key replace earlier ones. A record
+    // that was cut off by a crash can only be at the end of the newest segment, so it is
+    // truncated away there. Older segments are never truncated: a damaged record in one of them
+    // is skipped, and if its header is unreadable, the rest of that segment is left unread.
+    void load() throws IOException {
+      TreeMap<Integer, File> segments = new TreeMap<>();
+      File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+      if (files != null) {
+        for (File f : files) {
+          String id = f.getName().substring(SEGMENT_PREFIX.length(), f.getName().length() - SEGMENT_SUFFIX.length());
+          try {
+            segments.put(Integer.parseInt(id), f);
+          } catch (NumberFormatException nfe) {
+            logger.warn("Ignoring unexpected file " + f);
+          }
+        }
+      }
+
+      for (Map.Entry<Integer, File> segment : segments.entrySet()) {
+        boolean newest = segment.getKey().equals(segments.lastKey());
+        long validLength = loadSegment(segment.getKey(), segment.getValue(), newest);
+        if (newest && (validLength < segment.getValue().length())) {
+          logger.warn("Truncating damaged tail of " + segment.getValue() + " at offset " + validLength);
+          try (FileChannel ch = FileChannel.open(segment.getValue().toPath(), StandardOpenOption.WRITE)) {
+            ch.truncate(validLength);
+          }
+        }
+        diskBytes += newest ? validLength : segment.getValue().length();
+        writerId = segment.getKey();
+        writerSize = validLength;
+      }
+      collectedBytes = diskBytes;
+    }
+
+    // Returns the length of the readable records; in the newest segment, that is where the first
+    // damaged record starts
+    long loadSegment(int id, File file, boolean newest) throws IOException {
+      long offset = 0;
+      CRC32 crc = new CRC32();
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+        while (true) {
+          int keyLength, rowLength, checksum;
+          try {
+            keyLength = in.readInt();
+            rowLength = in.readInt();
+            checksum = in.readInt();
+          } catch (EOFException eof) {
+            return offset;
+          }
+          boolean delta = keyLength < 0;
+          if (delta)
+            keyLength = ~keyLength;
+          if (keyLength < 0 || rowLength < (delta ? 8 : 0) || offset + HEADER_SIZE + keyLength + rowLength > file.length()) {
+            if (!newest)
+              logger.error("Unreadable record header in " + file + " at offset " + offset + "; skipping the rest of the segment");
+            return offset;
+          }
+
+          byte[] key = new byte[keyLength];
+          byte[] row = new byte[rowLength];
+          in.readFully(key);
+          in.readFully(row);
+          crc.reset();
+          crc.update(key);
+          crc.update(row);
+          if ((int) crc.getValue() != checksum) {
+            if (newest)
+              return offset;
+            logger.error("Skipping damaged record in " + file + " at offset " + offset);
+            offset += HEADER_SIZE + keyLength + rowLength;
+            continue;
+          }
+
+          if (!delta && (rowLength == 0))
+            index.remove(new String(key, StandardCharsets.UTF_8));
+          else
+            index.put(new String(key, StandardCharsets.UTF_8), location(id, offset));
+          offset += HEADER_SIZE + keyLength + rowLength;
+        }
+      }
+    }
+
+    synchronized void append(String key, byte[] row) throws IOException {
+      appendRecord(key, row, -1);
+    }
+
+    // Appends just the given columns of the row, unless there is no earlier version to add them
+    // to, or it is in a segment that is being collected; then the merged row is appended
+    synchronized void appendColumns(String key, byte[] columns) throws IOException {
+      Long previous = index.get(key);
+      if ((previous != null) && ((int) (previous >>> OFFSET_BITS) < collectBelow)) {
+        Row row = read(key, previous);
+        Row delta = new RowReader(columns).next();
+        for (String column : delta.columns())
+          row.put(column, delta.getBytes(column));
+        appendRecord(key, compression.encode(dir.getName(), row), -1);
+        return;
+      }
+      appendRecord(key, columns, (previous != null) ? previous : -1);
+    }
+
+    synchronized void remove(String key) throws IOException {
+      if (index.containsKey(key)) {
+        appendRecord(key, new byte[0], -1);
+        index.remove(key);
+      }
+    }
+
+    // Caller holds the table's lock. A previous location of -1 makes a full record
+    void appendRecord(String key, byte[] row, long previous) throws IOException {
+      byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+      boolean delta = previous >= 0;
+      if (delta)
+        row = ByteBuffer.allocate(8 + row.length).putLong(previous).put(row).array();
+      int recordLength = HEADER_SIZE + keyBytes.length + row.length;
+
+      if (writer != null && writerSize > 0 && writerSize + recordLength > maxSegmentSize) {
+        seal();
+        if ((diskBytes > 2 * collectedBytes) && !collecting) {
+          collecting = true;
+          collector.execute(this::collect);
+        }
+      }
+      if (writer == null) {
+        dir.mkdirs();
+        writer = FileChannel.open(segmentFile(writerId).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        writer.position(writerSize);
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(keyBytes);
+      crc.update(row);
+      ByteBuffer record = ByteBuffer.allocate(recordLength);
+      record.putInt(delta ? ~keyBytes.length : keyBytes.length).putInt(row.length).putInt((int) crc.getValue());
+      record.put(keyBytes).put(row).flip();
+      while (record.hasRemaining())
+        writer.write(record);
+
+      index.put(key, location(writerId, writerSize));
+      writerSize += recordLength;
+      diskBytes += recordLength;
+    }
+
+    // Caller holds the table's lock; the next record starts a new segment
+    void seal() throws IOException {
+      if (writer != null)
+        writer.close();
+      writer = null;
+      writerId++;
+      writerSize = 0;
+    }
+
+    // Moves the latest version of every row out of the sealed segments, and deletes them
+    void collect() {
+      long start = System.currentTimeMillis();
+      int moved = 0, segments = 0;
+      long before;
+      try {
+        int boundary;
+        synchronized (this) {
+          if (dropped)
+            return;
+          if (writerSize > 0)
+            seal();
+          boundary = writerId;
+          collectBelow = boundary;
+          before = diskBytes;
+        }
+        for (Map.Entry<String, Long> entry : index.entrySet()) {
+          long location = entry.getValue();
+          if ((int) (location >>> OFFSET_BITS) >= boundary)
+            continue;
+          Row row = readLatest(entry.getKey(), location);
+          synchronized (this) {
+            if (dropped)
+              return;
+            Long current = index.get(entry.getKey());
+            if ((row != null) && (current != null) && (current == location)) {
+              appendRecord(entry.getKey(), compression.encode(dir.getName(), row), -1);
+              moved++;
+            }
+          }
+        }
+
+        // Oldest first, so a tombstone is never gone while an older version of its row is still there
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        TreeMap<Integer, File> sealed = new TreeMap<>();
+        for (File f : (files != null) ? files : new File[0]) {
+          try {
+            int id = Integer.parseInt(f.getName().substring(SEGMENT_PREFIX.length(), f.getName().length() - SEGMENT_SUFFIX.length()));
+            if (id < boundary)
+              sealed.put(id, f);
+          } catch (NumberFormatException nfe) {
+            // Not a segment
+          }
+        }
+        synchronized (this) {
+          if (dropped)
+            return;
+          for (Map.Entry<Integer, File> segment : sealed.entrySet()) {
+            FileChannel ch = readers.remove(segment.getKey());
+            if (ch != null)
+              ch.close();
+            diskBytes -= segment.getValue().length();
+            Files.deleteIfExists(segment.getValue().toPath());
+            segments++;
+          }
+          collectedBytes = diskBytes;
+        }
+        logger.info("Collected " + segments + " segment(s) of " + dir.getName() + " (" + moved + " row(s) moved, "
+            + before + " to " + diskBytes + " bytes) in " + (System.currentTimeMillis() - start) + " ms");
+      } catch (IOException | RuntimeException e) {
+        logger.error("Could not collect the segments of " + dir + ": " + e.getMessage(), e);
+      } finally {
+        synchronized (this) {
+          collecting = false;
+        }
+      }
+    }
+
+    // Reads the row at the given location or, if its segment has been collected since the
+    // location was looked up, at its current one; null if it has been deleted since
+    Row readLatest(String key, long location) throws IOException {
+      try {
+        return read(key, location);
+      } catch (IOException e) {
+        Long current = index.get(key);
+        if (current == null)
+          return null;
+        if (current == location)
+          throw e;
+        return read(key, current);
+      }
+    }
+
+    // Reads the row's version at the given location, merging in any deltas on top of it
+    Row read(String key, long location) throws IOException {
+      List<Row> deltas = new ArrayList<>();
+      long at = location;
+      ByteBuffer record = readRecord(at);
+      while (record.getInt(0) < 0) {
+        deltas.add(decode(record, at));
+        at = record.getLong(HEADER_SIZE);
+        record = readRecord(at);
+      }
+      Row row = decode(record, at);
+      for (int i = deltas.size() - 1; i >= 0; i--) {
+        Row delta = deltas.get(i);
+        for (String column : delta.columns())
+          row.put(column, delta.getBytes(column));
+      }
+
+      if (deltas.size() >= maxDeltas) {
+        try {
+          compact(key, location, row);
+        } catch (IOException e) {
+          logger.warn("Could not compact row " + key + ": " + e.getMessage());
+        }
+      }
+      return row;
+    }
+
+    // Appends the merged row as a full record, unless the row has been written since it was read
+    synchronized void compact(String key, long location, Row row) throws IOException {
+      Long current = index.get(key);
+      if ((current != null) && (current == location))
+        appendRecord(key, compression.encode(dir.getName(), row), -1);
+    }
+
+    Row decode(ByteBuffer record, long location) throws IOException {
+      int skip = (record.getInt(0) < 0) ? 8 : 0;
+      try {
+        return new RowReader(record.array(), HEADER_SIZE + skip, record.capacity() - HEADER_SIZE - skip).next();
+      } catch (IOException e) {
+        throw new IOException("Corrupt row in " + segmentFile((int) (location >>> OFFSET_BITS)) + " at offset "
+            + (location & ((1L << OFFSET_BITS) - 1)), e);
+      }
+    }
+
+    // Returns the record's header followed by its row part; the key is skipped
+    ByteBuffer readRecord(long location) throws IOException {
+      int id = (int) (location >>> OFFSET_BITS);
+      long offset = location & ((1L << OFFSET_BITS) - 1);
+
+      ByteBuffer row = null;
+      for (int attempt = 0; row == null; attempt++) {
+        FileChannel ch = reader(id);
+        try {
+          ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+          readFully(ch, header, offset);
+          int keyLength = header.getInt(0);
+          row = ByteBuffer.allocate(HEADER_SIZE + header.getInt(4));
+          row.put(header.flip());
+          // The row part follows the key; readFully adds the buffer's position, which is past the header
+          readFully(ch, row, offset + ((keyLength < 0) ? ~keyLength : keyLength));
+        } catch (ClosedChannelException cce) {
+          // The table was renamed underneath us; reopen the segment under its new path
+          row = null;
+          readers.remove(id, ch);
+          if (attempt > 0)
+            throw cce;
+        }
+      }
+      return row;
+    }
+
+    FileChannel reader(int id) throws IOException {
+      FileChannel ch = readers.get(id);
+      if (ch == null) {
+        synchronized (this) {
+          ch = readers.get(id);
+          if (ch == null) {
+            ch = FileChannel.open(segmentFile(id).toPath(), StandardOpenOption.READ);
+            readers.put(id, ch);
+          }
+        }
+      }
+      return ch;
+    }
+
+    synchronized void moveTo(File newDir) throws IOException {
+      close();
+      Files.move(dir.toPath(), newDir.toPath());
+      dir = newDir;
+    }
+
+    synchronized void close() throws IOException {
+      if (writer != null) {
+        writer.close();
+        writer = null;
+      }
+      for (FileChannel ch : readers.values())
+        ch.close();
+      readers.clear();
+    }
+  }
+
+  private static long location(int segmentId, long offset) {
+    return ((long) segmentId << OFFSET_BITS) | offset;
+  }
+
+  private static void readFully(FileChannel ch, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int n = ch.read(buffer, position + buffer.position());
+      if (n < 0)
+        throw new EOFException("Unexpected end of segment at offset " + position);
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package flame.kvs;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Set;
+
+// A storage engine holds the tables of a single KVS worker. The worker keeps one engine for
+// in-memory tables and one for persistent ("pt-") tables, and every route goes through it.
+// Scans must return rows in ascending key order.
+public interface Storage {
+  void putRow(String tableName, Row row) throws IOException;
+  void put(String tableName, String row, String column, byte[] value) throws IOException;
+  Row getRow(String tableName, String row) throws IOException;
+  // Removes the row, if the table has it
+  void deleteRow(String tableName, String row) throws IOException;
+  boolean existsRow(String tableName, String row) throws IOException;
+  Iterator<Row> scan(String tableName, String startRow, String endRowExclusive) throws IOException;
+  Iterator<String> keys(String tableName) throws IOException;
+  int count(String tableName) throws IOException;
+  boolean hasTable(String tableName);
+  Set<String> tables();
+  void rename(String oldTableName, String newTableName) throws IOException;
+  void delete(String tableName) throws IOException;
+
+  // Adds the given row's columns to the stored row (creating it if needed) and keeps its other
+  // columns, as a column put of each would. By default the stored row is read and rewritten once.
+  default void putColumns(String tableName, Row columns) throws IOException {
+    Row current = getRow(tableName, columns.key());
+    if (current == null) {
+      putRow(tableName, columns);
+      return;
+    }
+    for (String column : columns.columns())
+      current.put(column, columns.getBytes(column));
+    putRow(tableName, current);
+  }
+
+  // The rows of a scan, each in a serialized form that RowReader reads (binary or compressed), for
+  // sending them to clients. Engines that store rows in such a form return the stored bytes,
+  // without decoding and re-encoding every row; by default, the scanned rows are encoded.
+  default Iterator<byte[]> scanEncoded(String tableName, String startRow, String endRowExclusive) throws IOException {
+    Iterator<Row> rows = scan(tableName, startRow, endRowExclusive);
+    return new Iterator<byte[]>() {
+      public boolean hasNext() {
+        return rows.hasNext();
+      }
+
+      public byte[] next() {
+        return rows.next().toBinaryByteArray();
+      }
+    };
+  }
+
+  // May return true for rows that do not exist, but never false for rows that do. Engines
+  // without a cheaper answer fall back to an exact lookup.
+  default boolean mightContain(String tableName, String row) throws IOException {
+    return existsRow(tableName, row);
+  }
+}
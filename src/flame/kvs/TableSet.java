@@ -0,0 +1,33 @@
+package flame.kvs;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+// A set of tables given as a comma-separated list of names, e.g. in a system property. A name
+// that ends in '*' matches every table that starts with the rest, so "*" matches all tables.
+public class TableSet implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final ArrayList<String> names = new ArrayList<>();
+  private final ArrayList<String> prefixes = new ArrayList<>();
+
+  public TableSet(String tableList) {
+    for (String name : tableList.split(",")) {
+      name = name.trim();
+      if (name.endsWith("*"))
+        prefixes.add(name.substring(0, name.length() - 1));
+      else if (!name.isEmpty())
+        names.add(name);
+    }
+  }
+
+  public boolean contains(String tableName) {
+    if (names.contains(tableName))
+      return true;
+    for (String prefix : prefixes) {
+      if (tableName.startsWith(prefix))
+        return true;
+    }
+    return false;
+  }
+}
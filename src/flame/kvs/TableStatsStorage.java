@@ -0,0 +1,276 @@
+package flame.kvs;
+
+import flame.tools.Logger;
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Wraps a storage engine with per-table metadata (row count, size, smallest and largest key)
+// that is kept up to date on every put, row delete, rename and delete, so /count and /stats are answered
+// from memory instead of walking the table. The worker serializes writes to each row, so
+// checking whether a put creates a new row can't race with another put of the same row.
+//
+// If a stats file is given, the metadata is saved to it when the worker shuts down and loaded
+// from it on the next start. The file is removed once loaded, so after a crash the metadata
+// is rebuilt instead of being trusted when it may be stale. Row counts and key bounds come from
+// the tables' keys, which the Bloom filters read at startup anyway; the sizes need every row,
+// so they are added up in the background, and grow to their full value once that is done.
+public class TableStatsStorage implements Storage {
+  private static final Logger logger = Logger.getLogger(TableStatsStorage.class);
+  private static final ExecutorService measurer = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "kvs-table-stats");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final Storage storage;
+  private final File statsFile;
+  private final ConcurrentHashMap<String, TableStats> stats = new ConcurrentHashMap<>();
+
+  public TableStatsStorage(Storage storageArg, File statsFileArg) throws IOException {
+    storage = storageArg;
+    statsFile = statsFileArg;
+    if (statsFile != null) {
+      load();
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          save();
+        } catch (IOException e) {
+          logger.error("Could not save table stats to " + statsFile + ": " + e.getMessage(), e);
+        }
+      }));
+    }
+    for (String tableName : storage.tables())
+      stats(tableName, false);
+  }
+
+  // Metadata of one table. The size is the number of key, column name and value bytes written
+  // to the table, so overwritten values still count towards it until the table is rebuilt; a
+  // deleted row takes off the size it has when it is deleted. The smallest and largest key
+  // are bounds once rows have been deleted.
+  public static class TableStats {
+    private long rows;
+    private long bytes;
+    private String minKey;
+    private String maxKey;
+
+    public synchronized long rows() {
+      return rows;
+    }
+
+    public synchronized long bytes() {
+      return bytes;
+    }
+
+    public synchronized String minKey() {
+      return minKey;
+    }
+
+    public synchronized String maxKey() {
+      return maxKey;
+    }
+
+    synchronized void add(String key, boolean created, long written) {
+      if (created) {
+        rows++;
+        if ((minKey == null) || (key.compareTo(minKey) < 0))
+          minKey = key;
+        if ((maxKey == null) || (key.compareTo(maxKey) > 0))
+          maxKey = key;
+      }
+      bytes += written;
+    }
+
+    synchronized void addBytes(long written) {
+      bytes += written;
+    }
+
+    synchronized void remove(long size) {
+      rows = Math.max(0, rows - 1);
+      bytes = Math.max(0, bytes - size);
+      if (rows == 0) {
+        minKey = null;
+        maxKey = null;
+      }
+    }
+
+    // One "name value" pair per line, as served by /stats
+    public synchronized String toString() {
+      return "rows " + rows + "\nbytes " + bytes + "\nminKey " + ((minKey != null) ? minKey : "")
+              + "\nmaxKey " + ((maxKey != null) ? maxKey : "") + "\n";
+    }
+  }
+
+  // Returns null for tables that don't exist
+  public TableStats stats(String tableName) {
+    return storage.hasTable(tableName) ? stats(tableName, false) : null;
+  }
+
+  public void putRow(String tableName, Row row) throws IOException {
+    boolean created = !storage.existsRow(tableName, row.key());
+    storage.putRow(tableName, row);
+    stats(tableName, true).add(row.key(), created, sizeOf(row, created));
+  }
+
+  public void put(String tableName, String row, String column, byte[] value) throws IOException {
+    boolean created = !storage.existsRow(tableName, row);
+    storage.put(tableName, row, column, value);
+    stats(tableName, true).add(row, created, (created ? row.length() : 0) + column.length() + value.length);
+  }
+
+  public void putColumns(String tableName, Row columns) throws IOException {
+    boolean created = !storage.existsRow(tableName, columns.key());
+    storage.putColumns(tableName, columns);
+    stats(tableName, true).add(columns.key(), created, sizeOf(columns, created));
+  }
+
+  public Row getRow(String tableName, String row) throws IOException {
+    return storage.getRow(tableName, row);
+  }
+
+  public void deleteRow(String tableName, String row) throws IOException {
+    Row current = storage.getRow(tableName, row);
+    if (current == null)
+      return;
+    storage.deleteRow(tableName, row);
+    stats(tableName, false).remove(sizeOf(current, true));
+  }
+
+  public boolean existsRow(String tableName, String row) throws IOException {
+    return storage.existsRow(tableName, row);
+  }
+
+  public boolean mightContain(String tableName, String row) throws IOException {
+    return storage.mightContain(tableName, row);
+  }
+
+  public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive) throws IOException {
+    return storage.scan(tableName, startRow, endRowExclusive);
+  }
+
+  public Iterator<byte[]> scanEncoded(String tableName, String startRow, String endRowExclusive) throws IOException {
+    return storage.scanEncoded(tableName, startRow, endRowExclusive);
+  }
+
+  public Iterator<String> keys(String tableName) throws IOException {
+    return storage.keys(tableName);
+  }
+
+  public int count(String tableName) throws IOException {
+    TableStats tableStats = stats.get(tableName);
+    return (tableStats != null) ? (int) tableStats.rows() : storage.count(tableName);
+  }
+
+  public boolean hasTable(String tableName) {
+    return storage.hasTable(tableName);
+  }
+
+  public Set<String> tables() {
+    return storage.tables();
+  }
+
+  public void rename(String oldTableName, String newTableName) throws IOException {
+    storage.rename(oldTableName, newTableName);
+    TableStats tableStats = stats.remove(oldTableName);
+    if (tableStats != null)
+      stats.put(newTableName, tableStats);
+  }
+
+  public void delete(String tableName) throws IOException {
+    storage.delete(tableName);
+    stats.remove(tableName);
+  }
+
+  // Tables without metadata (new ones, or all of them after a crash) are rebuilt once
+  private TableStats stats(String tableName, boolean created) {
+    return stats.computeIfAbsent(tableName, t -> created ? new TableStats() : rebuild(t));
+  }
+
+  private TableStats rebuild(String tableName) {
+    TableStats tableStats = new TableStats();
+    try {
+      Iterator<String> keys = storage.keys(tableName);
+      while (keys.hasNext())
+        tableStats.add(keys.next(), true, 0);
+      logger.info("Rebuilt stats of table " + tableName + ": " + tableStats.rows() + " row(s)");
+    } catch (IOException | UncheckedIOException e) {
+      logger.error("Could not rebuild stats of table " + tableName + ": " + e.getMessage(), e);
+    }
+    measurer.execute(() -> measure(tableName, tableStats));
+    return tableStats;
+  }
+
+  // Adds the sizes of the table's rows. Puts that run meanwhile add their own sizes, so rows
+  // written during the scan may be counted twice; the size is approximate anyway
+  private void measure(String tableName, TableStats tableStats) {
+    long bytes = 0;
+    try {
+      Iterator<Row> rows = storage.scan(tableName, null, null);
+      while (rows.hasNext())
+        bytes += sizeOf(rows.next(), true);
+    } catch (IOException | UncheckedIOException e) {
+      // E.g. the table was renamed or deleted meanwhile
+      logger.warn("Could not measure table " + tableName + ": " + e.getMessage());
+    }
+    tableStats.addBytes(bytes);
+    logger.info("Measured table " + tableName + ": " + bytes + " byte(s)");
+  }
+
+  private static long sizeOf(Row row, boolean withKey) {
+    long size = withKey ? row.key().length() : 0;
+    for (String column : row.columns()) {
+      byte[] value = row.getBytes(column);
+      size += column.length() + ((value != null) ? value.length : 0);
+    }
+    return size;
+  }
+
+  // Line per table: name, rows, bytes, minKey, maxKey; keys are URL-encoded and "-" means none
+  private void load() throws IOException {
+    if (statsFile.exists()) {
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(statsFile), StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String[] fields = line.split(" ");
+          if ((fields.length != 5) || !storage.hasTable(fields[0]))
+            continue;
+          TableStats tableStats = new TableStats();
+          tableStats.rows = Long.parseLong(fields[1]);
+          tableStats.bytes = Long.parseLong(fields[2]);
+          tableStats.minKey = fields[3].equals("-") ? null : URLDecoder.decode(fields[3], StandardCharsets.UTF_8);
+          tableStats.maxKey = fields[4].equals("-") ? null : URLDecoder.decode(fields[4], StandardCharsets.UTF_8);
+          stats.put(fields[0], tableStats);
+        }
+      } catch (NumberFormatException e) {
+        logger.warn("Ignoring malformed table stats in " + statsFile + ": " + e.getMessage());
+        stats.clear();
+      }
+      Files.delete(statsFile.toPath());
+    }
+  }
+
+  private void save() throws IOException {
+    Map<String, TableStats> snapshot = new TreeMap<>(stats);
+    File tmp = new File(statsFile.getPath() + ".tmp");
+    try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+      for (Map.Entry<String, TableStats> entry : snapshot.entrySet()) {
+        TableStats tableStats = entry.getValue();
+        synchronized (tableStats) {
+          writer.println(entry.getKey() + " " + tableStats.rows + " " + tableStats.bytes + " "
+                  + ((tableStats.minKey != null) ? URLEncoder.encode(tableStats.minKey, StandardCharsets.UTF_8) : "-") + " "
+                  + ((tableStats.maxKey != null) ? URLEncoder.encode(tableStats.maxKey, StandardCharsets.UTF_8) : "-"));
+        }
+      }
+    }
+    Files.move(tmp.toPath(), statsFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -2,19 +2,41 @@ package flame.kvs;
 
 import flame.tools.KeyEncoder;
 import flame.tools.Logger;
+import flame.tools.Serializer;
+import flame.webserver.Response;
 import flame.webserver.Server;
 import static flame.webserver.Server.*;
 import java.io.*;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class Worker extends flame.generic.Worker {
   private static final Logger logger = Logger.getLogger(Worker.class);
-  private static ConcurrentHashMap<String, ConcurrentHashMap<String, Row>> tables = new ConcurrentHashMap<>();
+  private static TableStatsStorage memory;
+  private static TableStatsStorage persistent;
+  private static CachingStorage rowCache;
+  private static MappedStorage mapped;
+  private static Rebalancer rebalancer;
+  private static Replicator replicator;
   private static String storageDir;
+  // Writes to a row hold the lock for its stripe, so conditional PUTs and merges can read the
+  // row and write it back without a concurrent write to the same row slipping in between
+  private static final int ROW_LOCK_STRIPES = 1024;
+  private static final Object[] rowLocks = new Object[ROW_LOCK_STRIPES];
+  static {
+    for (int i = 0; i < ROW_LOCK_STRIPES; i++)
+      rowLocks[i] = new Object();
+  }
+  // One class loader per uploaded filter JAR, shared by all scans that use it
+  private static final Map<String, URLClassLoader> filterLoaders = new ConcurrentHashMap<>();
 
   public static void main(String[] args) throws IOException {
     if (args.length != 3) {
@@ -26,6 +48,34 @@ public class Worker extends flame.generic.Worker {
     int portNum = Integer.parseInt(args[0]);
     storageDir = args[1];
     String coordinatorIpPort = args[2];
+
+    // The engine for persistent tables is chosen per worker, e.g. -Dkvs.storage=segment
+    String engine = System.getProperty("kvs.storage", "file");
+    memory = new TableStatsStorage(openMemoryStorage(System.getProperty("kvs.wal", "off"), new File(storageDir, "wal")), null);
+    // Reads of persistent rows go through a row cache of -Dkvs.rowCacheSize bytes (0 turns it off)
+    Storage persistentEngine = new BloomFilteredStorage(openPersistentStorage(engine, new File(storageDir)));
+    // Read-mostly tables (-Dkvs.mappedTables, see TableSet) are read from memory-mapped images
+    mapped = new MappedStorage(persistentEngine, new File(storageDir, ".mapped"),
+        new TableSet(System.getProperty("kvs.mappedTables", "pt-index,pt-idf,pt-pageranks,pt-tf")),
+        Long.getLong("kvs.mappedQuietPeriod", 10000));
+    persistentEngine = mapped;
+    long rowCacheSize = Long.getLong("kvs.rowCacheSize", 64L * 1024 * 1024);
+    if (rowCacheSize > 0) {
+      rowCache = new CachingStorage(persistentEngine, rowCacheSize);
+      persistentEngine = rowCache;
+    }
+    persistent = new TableStatsStorage(persistentEngine, new File(storageDir, ".table-stats"));
+    logger.info("Using '" + engine + "' storage for persistent tables in " + storageDir);
+
+    // Which keys this worker serves comes from the coordinator's range map, which is polled
+    // every -Dkvs.rangeMapPollInterval ms (see Rebalancer)
+    rebalancer = new Rebalancer(getIdForWorker(storageDir), coordinatorIpPort, new File(storageDir), memory, persistent);
+    // Rows that moved away are deleted once the map has been settled for -Dkvs.sweepDelay ms
+    rebalancer.start(Long.getLong("kvs.rangeMapPollInterval", 1000), Long.getLong("kvs.sweepDelay", 60000));
+    replicator = new Replicator(getIdForWorker(storageDir), rebalancer, memory, persistent);
+    rebalancer.setReplicator(replicator);
+    replicator.start(Long.getLong("kvs.rangeMapPollInterval", 1000));
+
     port(portNum);
     startPingThread(portNum, storageDir, coordinatorIpPort);
 
@@ -46,12 +96,11 @@ public class Worker extends flame.generic.Worker {
       html.append("<body>");
       html.append("<h1>KVS Worker Tables</h1>");
       html.append("<table border='1'>");
-      html.append("<tr><th>Table Name</th><th>Number Entries</th></tr>");
-      // Construct a row for each worker
-      for (Map.Entry<String, ConcurrentHashMap<String, Row>> tableEntry : tables.entrySet()) {
-        String tableName = tableEntry.getKey();
-        ConcurrentHashMap<String, Row> tableRows = tableEntry.getValue();
-
+      html.append("<tr><th>Table Name</th><th>Number Entries</th><th>Size (bytes)</th></tr>");
+      // Construct a row for each table, in-memory tables first
+      List<String> tableNames = new ArrayList<>(memory.tables());
+      tableNames.addAll(persistent.tables());
+      for (String tableName : tableNames) {
         // Start table row
         html.append("<tr>");
 
@@ -62,31 +111,15 @@ public class Worker extends flame.generic.Worker {
             .append("</a>");
         html.append("</td>");
 
-        // Add number of values count to row
-        html.append("<td>").append(tableRows.size()).append("</td>");
+        // Add number of values count and size to row, from the table's metadata
+        TableStatsStorage.TableStats stats = storageFor(tableName).stats(tableName);
+        html.append("<td>").append((stats != null) ? stats.rows() : 0).append("</td>");
+        html.append("<td>").append((stats != null) ? stats.bytes() : 0).append("</td>");
 
         // End table row
         html.append("</tr>");
       }
 
-      File storageRoot = new File(storageDir);
-      File[] dirs = storageRoot.listFiles((file) -> file.isDirectory() && file.getName().startsWith("pt-"));
-      if (dirs != null) {
-        for (File dir : dirs) {
-          // Count num rows in this pt- table via counting files
-          File[] rowFiles = dir.listFiles();
-          int rowCount = (rowFiles == null) ? 0 : rowFiles.length;
-
-          String tableName = dir.getName();
-          html.append("<tr>");
-          html.append("<td><a href='/view/").append(tableName).append("/'>")
-                  .append(tableName)
-                  .append("</a></td>");
-          html.append("<td>").append(rowCount).append("</td>");
-          html.append("</tr>");
-        }
-      }
-
       // End table, body, and html
       html.append("</table>");
       html.append("</body>");
@@ -261,64 +294,23 @@ public class Worker extends flame.generic.Worker {
       String qTableName = req.params("tableName");
 
       // Determine if table is persistent or in-memory
-      boolean isPersistent = qTableName.startsWith("pt-");
-      List<String> rowKeysList;
-      List<String> columnKeysList = new ArrayList<>();
-
-      if (isPersistent) {
-        // Load rows from disk
-        File tableDir = new File(storageDir, qTableName);
-        if (!tableDir.exists() || !tableDir.isDirectory()) {
-          res.status(404, "Not Found");
-          return "Table Not Found";
-        }
-
-        // Gather all rows by reading files
-        File[] rowFiles = tableDir.listFiles();
-        if (rowFiles == null) {
-          rowFiles = new File[0];
-        }
-
-        // Sort row files by decoded row key
-        Arrays.sort(rowFiles, Comparator.comparing(File::getName));
-        rowKeysList = new ArrayList<>();
-        Set<String> columns = new HashSet<>();
-
-        // Read each row from disk to gather columns and row keys
-        for (File rowFile : rowFiles) {
-          String rowKey = KeyEncoder.decode(rowFile.getName());
-          rowKeysList.add(rowKey);
-          Row row = readRowFromDisk(rowFile);
-          if (row != null) {
-            columns.addAll(row.columns());
-          }
-        }
-
-        Collections.sort(rowKeysList);
-        columnKeysList.addAll(columns);
-        Collections.sort(columnKeysList);
-
-      } else {
-        // In-memory table
-        if (!tables.containsKey(qTableName)) {
-          res.status(404, "Not Found");
-          return "Table Not Found";
-        }
-
-        ConcurrentHashMap<String, Row> table = tables.get(qTableName);
-
-        // Gather columns
-        Set<String> columns = new HashSet<>();
-        for (Row row : table.values()) {
-          columns.addAll(row.columns());
-        }
-        columnKeysList.addAll(columns);
-        Collections.sort(columnKeysList);
+      Storage storage = storageFor(qTableName);
+      if (!storage.hasTable(qTableName)) {
+        res.status(404, "Not Found");
+        return "Table Not Found";
+      }
 
-        // Gather row keys
-        rowKeysList = new ArrayList<>(table.keySet());
-        Collections.sort(rowKeysList);
+      // Gather row keys (already sorted by the scan) and columns
+      List<String> rowKeysList = new ArrayList<>();
+      Set<String> columns = new HashSet<>();
+      Iterator<Row> rows = storage.scan(qTableName, null, null);
+      while (rows.hasNext()) {
+        Row row = rows.next();
+        rowKeysList.add(row.key());
+        columns.addAll(row.columns());
       }
+      List<String> columnKeysList = new ArrayList<>(columns);
+      Collections.sort(columnKeysList);
 
       // Get fromRow parameter if specified
       String fromRowId = req.queryParams("fromRow");
@@ -573,34 +565,64 @@ public class Worker extends flame.generic.Worker {
       String ifcolumn = req.queryParams("ifcolumn");
       String equalsParamVal = req.queryParams("equals");
 
-      // Either get or, if it doesn't exist, create the row
-      Row currRow = getRow(tableId, rowId);
-      if (currRow == null) {
-        currRow = new Row(rowId);
-      }
-
-      // EC: Conditional PUT Checking ifcolumn and equals val
-      if (ifcolumn != null && equalsParamVal != null) {
-        byte[] pastValBytes = currRow.getBytes(ifcolumn);
-        if (pastValBytes == null) {
-          logger.info("Fail: ifcolumn '" + ifcolumn + "' not exist in row '" + rowId + "'");
-          return "FAIL";
-        } else {
-          byte[] toEqualBytes = equalsParamVal.getBytes(StandardCharsets.UTF_8);
-          if (!Arrays.equals(pastValBytes, toEqualBytes)) {
-            // Value does not match
-            logger.info("Fail: Value of ifcolumn '" + ifcolumn + "' not equal '" + equalsParamVal + "'");
+      // EC: Conditional PUT Checking ifcolumn and equals val. The check and the write happen
+      // under the row's lock, so two writers can't both see the old value
+      synchronized (lockFor(tableId, rowId)) {
+        if (!rebalancer.serves(rowId))
+          return misdirected(res);
+        if (ifcolumn != null && equalsParamVal != null) {
+          Row currRow = getRow(tableId, rowId);
+          byte[] pastValBytes = (currRow != null) ? currRow.getBytes(ifcolumn) : null;
+          if (pastValBytes == null) {
+            logger.info("Fail: ifcolumn '" + ifcolumn + "' not exist in row '" + rowId + "'");
             return "FAIL";
+          } else {
+            byte[] toEqualBytes = equalsParamVal.getBytes(StandardCharsets.UTF_8);
+            if (!Arrays.equals(pastValBytes, toEqualBytes)) {
+              // Value does not match
+              logger.info("Fail: Value of ifcolumn '" + ifcolumn + "' not equal '" + equalsParamVal + "'");
+              return "FAIL";
+            }
           }
         }
-      }
 
-      // Set the value of the column within the row, then put the row into table
-      currRow.put(colId, req.bodyAsBytes());
-      putRow(tableId, currRow);
+        // Set the value of the column within the row (creating the row if it doesn't exist);
+        // engines that support it store just the new column instead of rewriting the row
+        putColumn(tableId, rowId, colId, req.bodyAsBytes());
+      }
       return "OK";
     });
 
+    // Define the PUT route for merging a value into a cell (see MergeOperator), e.g. adding a
+    // URL to a posting list or incrementing a counter. The read and the write happen under the
+    // row's lock, so concurrent merges into the same cell don't lose updates. Returns the new value
+    put("/merge/:table/:row/:column", (req, res) -> {
+      String tableId = req.params("table");
+      String rowId = req.params("row");
+      String colId = req.params("column");
+      MergeOperator op = MergeOperator.fromParamName(req.queryParams("op"));
+      if (op == null) {
+        res.status(400, "BAD REQUEST");
+        return "Unknown merge operator '" + req.queryParams("op") + "'";
+      }
+
+      byte[] merged;
+      synchronized (lockFor(tableId, rowId)) {
+        if (!rebalancer.serves(rowId))
+          return misdirected(res);
+        Row current = getRow(tableId, rowId);
+        try {
+          merged = op.apply((current != null) ? current.getBytes(colId) : null, req.bodyAsBytes());
+        } catch (IllegalArgumentException e) {
+          res.status(400, "BAD REQUEST");
+          return e.getMessage();
+        }
+        putColumn(tableId, rowId, colId, merged);
+      }
+      res.bodyAsBytes(merged);
+      return null;
+    });
+
     // put for entire row
     put("/data/:table", (req, res) -> {
       String tableId = req.params("table");
@@ -610,7 +632,8 @@ public class Worker extends flame.generic.Worker {
         if (bodyBytes.length == 0) {
           throw new Exception("Request body is empty");
         }
-        newRow = Row.readFrom(new java.io.ByteArrayInputStream(bodyBytes));
+        // Accepts either row form; binary rows are recognized by their first byte
+        newRow = new RowReader(bodyBytes).next();
       } catch (Exception e) {
         logger.error("Failed to deserialize Row from request body", e);
         res.status(400, "BAD REQUEST");
@@ -621,20 +644,98 @@ public class Worker extends flame.generic.Worker {
         res.status(400, "BAD REQUEST");
         return "BAD REQUEST";
       }
-      putRow(tableId, newRow);
+      if (!putRow(tableId, newRow))
+        return misdirected(res);
+      return "OK";
+    });
+
+    // Define the PUT route for a batch of rows (in either form, back to back). Each row's columns
+    // are added to the stored row, as a column PUT of each would, so writers can buffer their
+    // puts and send them in one request. If the worker doesn't serve one of the rows, the rest of
+    // the batch is refused; clients send the whole batch again, which is harmless
+    put("/batch/:table", (req, res) -> {
+      String tableId = req.params("table");
+      Storage storage = storageFor(tableId);
+      RowReader reader = new RowReader(req.bodyAsBytes());
+      int applied = 0;
+      try {
+        Row row;
+        while ((row = reader.next()) != null) {
+          synchronized (lockFor(tableId, row.key())) {
+            if (!rebalancer.serves(row.key()))
+              return misdirected(res);
+            storage.putColumns(tableId, row);
+            forward(tableId, row, false);
+          }
+          applied++;
+        }
+      } catch (IOException e) {
+        logger.error("Batch for table " + tableId + " failed after " + applied + " row(s): " + e.getMessage(), e);
+        res.status(400, "BAD REQUEST");
+        return "BAD REQUEST";
+      }
+      return "OK";
+    });
+
+    // Define the PUT route for rows that another worker moves here (see Rebalancer). The rows
+    // don't have to be served here yet
+    put("/migrate/:table", (req, res) -> {
+      String tableId = req.params("table");
+      String mode = req.queryParams("mode");
+      int version = Integer.parseInt(req.queryParams("version"));
+      Storage storage = storageFor(tableId);
+      WriteQueue.receive(req.queryParams("stream"), req.queryParams("seq"), new RowReader(req.bodyAsBytes()), row -> {
+        synchronized (lockFor(tableId, row.key())) {
+          rebalancer.receive(storage, version, tableId, mode, row);
+        }
+        return true;
+      });
+      return "OK";
+    });
+
+    // Define the PUT route for rows of replicated tables that their owner sends here (see
+    // Replicator); 409 asks the owner to sync this worker first. mode=drop deletes the copies
+    // of the owner's rows of the table
+    put("/replicate/:table", (req, res) -> {
+      String tableId = req.params("table");
+      String mode = req.queryParams("mode");
+      String from = req.queryParams("from");
+      Storage storage = storageFor(tableId);
+      if ("drop".equals(mode)) {
+        replicator.drop(storage, from, tableId);
+        return "OK";
+      }
+      boolean taken = WriteQueue.receive(req.queryParams("stream"), req.queryParams("seq"), new RowReader(req.bodyAsBytes()), row -> {
+        synchronized (lockFor(tableId, row.key())) {
+          return replicator.receive(storage, from, tableId, mode, row);
+        }
+      });
+      if (!taken) {
+        res.status(409, "Conflict");
+        return "Not synced from " + from;
+      }
+      return "OK";
+    });
+
+    put("/sync/begin", (req, res) -> {
+      replicator.syncStarted(req.queryParams("from"));
+      return "OK";
+    });
+
+    put("/sync/done", (req, res) -> {
+      replicator.syncDone(req.queryParams("from"), Integer.parseInt(req.queryParams("version")));
       return "OK";
     });
 
     // Define the PUT rename route, meant to rename the table name (move all
-    // rowFiles from one folder to another)
+    // rows from one table to another)
     put("/rename/:table", (req, res) -> {
       String fromTableId = req.params("table");
       String toTableId = req.body();
 
       if (fromTableId.startsWith("pt-")) {
         // First check if this persistent table exists
-        File fromTableDir = new File(storageDir, fromTableId);
-        if (!fromTableDir.exists()) {
+        if (!persistent.hasTable(fromTableId)) {
           res.status(404, "NOT FOUND");
           return "Table with specified table ID in path parameters not found";
         }
@@ -646,26 +747,33 @@ public class Worker extends flame.generic.Worker {
           return "FromTable is persistent, but ToTable is not labeled as persistent (doesn't start with \"pt-\")";
         }
 
-        // Then check if the toTableId already exists (return 409 if so)
-        File toTableDir = new File(storageDir, toTableId);
-        if (toTableDir.exists()) {
+        // Then check if the toTableId already exists (return 409 if so). A replicated table may
+        // exist already because workers that renamed it before this one have synced their
+        // copies here; this worker's rows are then added to those
+        boolean merge = persistent.hasTable(toTableId) && holdsOnlyCopies(toTableId);
+        if (persistent.hasTable(toTableId) && !merge) {
           logger.error("Table on disk already exists: " + toTableId + ". Cannot rename persistent table");
           res.status(409, "CONFLICT");
           return "Table with specified table ID in body already exists, cannot rename";
         }
 
-        // If both checks are okay, then simply move the files
+        // If both checks are okay, then let the storage engine move the table
         try {
-          Files.move(fromTableDir.toPath(), toTableDir.toPath());
+          if (merge)
+            mergeInto(fromTableId, toTableId);
+          else
+            persistent.rename(fromTableId, toTableId);
         } catch (IOException e) {
           logger.error("Error renaming table: " + e.getMessage(), e);
           res.status(500, "Internal Server Error");
           return "Error renaming table";
+        } finally {
+          replicator.tableChanged(fromTableId);
+          replicator.tableChanged(toTableId);
         }
       } else {
         // First check if this in-memory table exists
-        ConcurrentHashMap<String, Row> fromTable = tables.get(fromTableId);
-        if (fromTable == null) {
+        if (!memory.hasTable(fromTableId)) {
           res.status(404, "NOT FOUND");
           return "The specified table not found";
         }
@@ -675,26 +783,36 @@ public class Worker extends flame.generic.Worker {
           // Handle the case for when in-memory table is being converted to persistent
           // table
 
-          // First check that toTableId is not an existing persistent table
-          File toTableDir = new File(storageDir, toTableId);
-          if (toTableDir.exists()) {
+          // First check that toTableId is not an existing persistent table, other than one with
+          // copies from replicas that have renamed their table already (see above)
+          if (persistent.hasTable(toTableId) && !holdsOnlyCopies(toTableId)) {
             logger.error("Table on disk already exists: " + toTableId + ". Cannot make in-memory table persistent");
             res.status(409, "CONFLICT");
             return "Table with specified table ID in body already exists, cannot rename";
           }
 
           // If toTableId not existing on disk, then get all rows from in-memory table and
-          // put them into the persistent table
-          for (Row newRow : fromTable.values()) {
-            putRow(toTableId, newRow);
+          // put them into the persistent table. Each row is written like a PUT, under its lock
+          // and sent on to a new owner during a migration (and to replicas); rows this worker
+          // no longer serves are left behind, since their owner has its own copy. Replicas stop
+          // serving the table's rows first, in case they have copies of an earlier one
+          replicator.tableChanged(toTableId);
+          Iterator<Row> rows = memory.scan(fromTableId, null, null);
+          while (rows.hasNext()) {
+            Row row = rows.next();
+            synchronized (lockFor(toTableId, row.key())) {
+              if (rebalancer.serves(row.key())) {
+                persistent.putRow(toTableId, row);
+                forward(toTableId, row, true);
+              }
+            }
           }
 
           // After that, delete the in-memory storage for the fromTableId
-          tables.remove(fromTableId);
+          memory.delete(fromTableId);
         } else {
           // Next, check if the toTableId already exists in memory (return 409 if so)
-          ConcurrentHashMap<String, Row> toTable = tables.get(toTableId);
-          if (toTable != null) {
+          if (memory.hasTable(toTableId)) {
             logger.error("Table in memory already exists: " + toTableId + ". Cannot rename");
             res.status(409, "CONFLICT");
             return "Table with specified table ID in body already exists, cannot rename";
@@ -702,44 +820,34 @@ public class Worker extends flame.generic.Worker {
 
           // If toTableId not existing in memory, then simply move the values, delete the
           // old key
-          tables.put(toTableId, tables.remove(fromTableId));
+          memory.rename(fromTableId, toTableId);
         }
       }
 
       return "OK";
     });
 
-    // Define the PUT delete route, meant to delete the table (delete all rowFiles
-    // in subdirectory)
+    // Define the PUT delete route, meant to delete the table (including all of its
+    // rows on disk, for persistent tables)
     put("/delete/:table", (req, res) -> {
       String tableId = req.params("table");
+      Storage storage = storageFor(tableId);
 
-      if (tableId.startsWith("pt-")) {
-        // First check if this persistent table exists
-        File tableDir = new File(storageDir, tableId);
-        if (!tableDir.exists()) {
-          res.status(404, "NOT FOUND");
-          return "Table with specified table ID in path parameters not found";
-        }
-
-        // Since the directory exists, remove all files within the directory
-        // (recursively just in case), then delete the directory
-        try {
-          recursiveDeleteDirectory(tableDir);
-        } catch (IOException e) {
-          logger.error("Error deleting table directory: " + e.getMessage(), e);
-          res.status(500, "Internal Server Error");
-          return "Error deleting the specified table";
-        }
+      // First check if this table exists
+      if (!storage.hasTable(tableId)) {
+        res.status(404, "NOT FOUND");
+        return tableId.startsWith("pt-") ? "Table with specified table ID in path parameters not found"
+                : "The specified table not found";
+      }
 
-      } else {
-        // First check if this in-memory table exists
-        if (!tables.containsKey(tableId)) {
-          res.status(404, "NOT FOUND");
-          return "The specified table not found";
-        }
-        // Since the provided table exists, simply delete it from memory
-        tables.remove(tableId);
+      try {
+        storage.delete(tableId);
+      } catch (IOException e) {
+        logger.error("Error deleting table: " + e.getMessage(), e);
+        res.status(500, "Internal Server Error");
+        return "Error deleting the specified table";
+      } finally {
+        replicator.tableChanged(tableId);
       }
       return "OK";
     });
@@ -748,7 +856,7 @@ public class Worker extends flame.generic.Worker {
       String ret = "";
 
       String tmp;
-      for (Iterator it = tables.keySet().iterator(); it.hasNext(); ret = ret + tmp + "\n") {
+      for (Iterator it = memory.tables().iterator(); it.hasNext(); ret = ret + tmp + "\n") {
         tmp = (String) it.next();
       }
 
@@ -759,99 +867,118 @@ public class Worker extends flame.generic.Worker {
     // persistent)
     get("/count/:table", (req, res) -> {
       String tableId = req.params("table");
-      long retCount;
+      Storage storage = storageFor(tableId);
 
-      if (tableId.startsWith("pt-")) {
-        File tableDir = new File(storageDir, tableId);
-        if (!tableDir.exists() || !tableDir.isDirectory()) {
-          res.status(404, "NOT FOUND");
-          return "The specified table not found";
-        }
-
-        // set the retCount to the number of files in the table's directory; guaranteed
-        // to exist because of earlier file check
-        retCount = tableDir.listFiles().length;
-      } else {
-        ConcurrentHashMap<String, Row> table = tables.get(tableId);
-        if (table == null) {
-          res.status(404, "NOT FOUND");
-          return "The specified table not found";
-        }
-        retCount = table.size();
+      if (!storage.hasTable(tableId)) {
+        res.status(404, "NOT FOUND");
+        return "The specified table not found";
       }
 
+      // Rows that moved to other workers and copies of replicas are stored, but not counted
+      RangeMap owners = rebalancer.scanMap(null, tableId);
+      if (owners == null)
+        return storage.count(tableId);
+      long retCount = 0;
+      for (Iterator<String> keys = storage.keys(tableId); keys.hasNext(); ) {
+        if (rebalancer.owns(owners, keys.next()))
+          retCount++;
+      }
       return retCount; // Auto converts to string
     });
 
+    // Define the GET route for the persistent row cache's hit rate and size (see CachingStorage)
+    get("/cache", (req, res) -> {
+      if (rowCache == null) {
+        res.status(404, "NOT FOUND");
+        return "The row cache is disabled";
+      }
+      return rowCache.stats();
+    });
+
+    // Define the GET route for a table's metadata: row count, size, smallest and largest key
+    // (see TableStatsStorage.TableStats), one "name value" pair per line
+    get("/stats/:table", (req, res) -> {
+      String tableId = req.params("table");
+      TableStatsStorage.TableStats stats = storageFor(tableId).stats(tableId);
+      if (stats == null) {
+        res.status(404, "NOT FOUND");
+        return "The specified table not found";
+      }
+      return stats.toString();
+    });
+
     // Define the GET route to stream a whole table (specified by table)
     get("/data/:table", (req, res) -> {
       String tableId = req.params("table");
       String startRow = req.queryParams("startRow");
       String endRowExclusive = req.queryParams("endRowExclusive");
+      Storage storage = storageFor(tableId);
 
       // Set the content return type to text/plain
       res.type("text/plain");
 
-      if (tableId.startsWith("pt-")) {
-        File tableDir = new File(storageDir, tableId);
-        if (!tableDir.exists() || !tableDir.isDirectory()) {
-          res.status(404, "NOT FOUND");
-          return "The specified table not found";
-        }
-
-        File[] tableRowFiles = tableDir.listFiles();
-        if (tableRowFiles == null) {
-          return null;
-        }
-
-        // Sort files by file name
-        Arrays.sort(tableRowFiles, Comparator.comparing(File::getName));
+      if (!storage.hasTable(tableId)) {
+        res.status(404, "NOT FOUND");
+        return "The specified table not found";
+      }
 
-        for (File tableRowFile : tableRowFiles) {
-          String rowKey = KeyEncoder.decode(tableRowFile.getName());
+      // Clients that understand the binary row form ask for it with format=binary; binary rows
+      // are self-delimiting, so they are sent back to back without the LF separator
+      boolean binary = "binary".equals(req.queryParams("format"));
+      Set<String> columns = projection(req.queryParams("columns"));
 
-          // Skip files that are not within [startRow, endRowExclusive) range of rowKeys
-          if (startRow != null && rowKey.compareTo(startRow) < 0) {
-            continue;
-          }
-          if (endRowExclusive != null && rowKey.compareTo(endRowExclusive) >= 0) {
-            continue;
-          }
+      // Clients send the version of the range map they route by (ring=), and get the rows that
+      // this worker owns in it, so rows that moved are neither missed nor sent twice
+      RangeMap owners;
+      try {
+        owners = rebalancer.scanMap(req.queryParams("ring"), tableId);
+      } catch (IOException e) {
+        return misdirected(res);
+      }
 
-          try (FileInputStream fileInputStream = new FileInputStream(tableRowFile)) {
-            Row row = Row.readFrom(fileInputStream);
-            res.write(row.toByteArray());
-            res.write(LF);
-          } catch (IOException e) {
-            logger.error("Error reading row from disk or writing to res.write(): " + e.getMessage(), e);
-          }
-        }
-      } else {
-        ConcurrentHashMap<String, Row> table = tables.get(tableId);
-        if (table == null) {
-          res.status(404, "NOT FOUND");
-          return "The specified table not found";
+      // An optional serialized RowFilter; rows it rejects are skipped before serialization
+      RowFilter filter = null;
+      if (req.queryParams("filter") != null) {
+        filter = loadFilter(req.queryParams("filter"), req.queryParams("jar"));
+        if (filter == null) {
+          res.status(400, "BAD REQUEST");
+          return "Could not deserialize the filter";
         }
+      }
 
-        List<String> rowKeysList = new ArrayList<>(table.keySet());
-        Collections.sort(rowKeysList);
-
-        for (String rowKey : rowKeysList) {
-          if (startRow != null && rowKey.compareTo(startRow) < 0) {
-            continue;
-          }
-          if (endRowExclusive != null && rowKey.compareTo(endRowExclusive) >= 0) {
-            continue;
-          }
-
-          try {
-            Row row = getRow(tableId, rowKey);
-            res.write(row.toByteArray());
-            res.write(LF);
-          } catch (IOException e) {
-            logger.error("Error getting row from memory, or writing to res.write(): " + e.getMessage(), e);
+      // Binary scans without a filter or projection send the rows as the engine stores them: a
+      // mapped table's image goes from the file to the socket with transferTo, and other engines
+      // return their stored bytes where they are in a form that clients read
+      if (binary && filter == null && columns == null && owners == null) {
+        MappedTable.Region region = tableId.startsWith("pt-") ? mapped.mappedRows(tableId, startRow, endRowExclusive) : null;
+        if (region != null) {
+          res.write(region.channel(), region.position(), region.count());
+        } else {
+          Iterator<byte[]> rows = storage.scanEncoded(tableId, startRow, endRowExclusive);
+          while (rows.hasNext()) {
+            byte[] row = rows.next();
+            res.writeBuffered(row, 0, row.length);
           }
         }
+        res.write(LF);
+        return null;
+      }
+
+      // Rows arrive in key order, already restricted to [startRow, endRowExclusive). They are
+      // buffered, so many rows go out in one packet
+      Iterator<Row> rows = storage.scan(tableId, startRow, endRowExclusive);
+      while (rows.hasNext()) {
+        Row row = rows.next();
+        if (owners != null && !rebalancer.owns(owners, row.key()))
+          continue;
+        if (filter != null && !matches(filter, row))
+          continue;
+        if (columns != null)
+          row = project(row, columns);
+        byte[] bytes = binary ? row.toBinaryByteArray() : row.toByteArray();
+        res.writeBuffered(bytes, 0, bytes.length);
+        if (!binary)
+          res.writeBuffered(LF, 0, LF.length);
       }
 
       // Closing LF signifying end of the stream, regardless of persistent table or
@@ -860,10 +987,37 @@ public class Worker extends flame.generic.Worker {
       return null;
     });
 
-    // Define the GET route to get a whole row (specified by table, row)
+    // Define the PUT route for JARs that hold the classes of scan filters; clients upload
+    // them under the SHA-256 of their contents and then refer to them with jar=. The JAR is
+    // written to a temporary file and moved into place, so a scan never loads a partial one
+    put("/useJAR/:name", (req, res) -> {
+      String name = req.params("name");
+      byte[] contents = req.bodyAsBytes();
+      if (!name.equals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(contents)))) {
+        res.status(400, "BAD REQUEST");
+        return "The JAR's name is not the SHA-256 of its contents";
+      }
+      File jar = new File(new File(storageDir, "jars"), name + ".jar");
+      jar.getParentFile().mkdirs();
+      File tmp = Files.createTempFile(jar.getParentFile().toPath(), name, ".tmp").toFile();
+      try {
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+          out.write(contents);
+        }
+        Files.move(tmp.toPath(), jar.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        Files.deleteIfExists(tmp.toPath());
+      }
+      return "OK";
+    });
+
+    // Define the GET route to get a whole row (specified by table, row). Replicas of replicated
+    // tables serve it too (see Replicator)
     get("/data/:table/:row", (req, res) -> {
       String tableId = req.params("table");
       String rowId = req.params("row");
+      if (!rebalancer.serves(rowId) && !replicator.servesCopy(tableId, rowId))
+        return misdirected(res);
 
       Row row = getRow(tableId, rowId);
       if (row == null) {
@@ -871,11 +1025,77 @@ public class Worker extends flame.generic.Worker {
         return "Row not found";
       }
 
-      byte[] retRowVal = row.toByteArray();
+      Set<String> columns = projection(req.queryParams("columns"));
+      if (columns != null)
+        row = project(row, columns);
+
+      byte[] retRowVal = "binary".equals(req.queryParams("format")) ? row.toBinaryByteArray() : row.toByteArray();
       res.bodyAsBytes(retRowVal);
       return null;
     });
 
+    // Define the POST route to pre-filter a batch of row keys (one URL-encoded key per line).
+    // Returns the keys that might exist, so clients can skip lookups of definite misses;
+    // persistent tables answer from their Bloom filters without touching the disk
+    post("/mightContain/:table", (req, res) -> {
+      String tableId = req.params("table");
+      Storage storage = storageFor(tableId);
+      res.type("text/plain");
+
+      // Replicas of replicated tables serve their copies, as with single rows
+      String[] encodedKeys = req.body().split("\n");
+      for (String encodedKey : encodedKeys) {
+        String key = URLDecoder.decode(encodedKey, StandardCharsets.UTF_8);
+        if (!encodedKey.isEmpty() && !rebalancer.serves(key) && !replicator.servesCopy(tableId, key))
+          return misdirected(res);
+      }
+      StringBuilder found = new StringBuilder();
+      for (String encodedKey : encodedKeys) {
+        if (encodedKey.isEmpty())
+          continue;
+        if (storage.mightContain(tableId, URLDecoder.decode(encodedKey, StandardCharsets.UTF_8)))
+          found.append(encodedKey).append('\n');
+      }
+      return found.toString();
+    });
+
+    // Define the POST route to get many rows at once (one URL-encoded key per line). The rows
+    // that exist are streamed back like a scan, in request order, and accept the same format=
+    // and columns= parameters; rows that don't exist are left out
+    post("/multiget/:table", (req, res) -> {
+      String tableId = req.params("table");
+      boolean binary = "binary".equals(req.queryParams("format"));
+      Set<String> columns = projection(req.queryParams("columns"));
+      res.type("text/plain");
+
+      // Replicas of replicated tables serve their copies, as with single rows
+      String[] encodedKeys = req.body().split("\n");
+      for (String encodedKey : encodedKeys) {
+        String key = URLDecoder.decode(encodedKey, StandardCharsets.UTF_8);
+        if (!encodedKey.isEmpty() && !rebalancer.serves(key) && !replicator.servesCopy(tableId, key))
+          return misdirected(res);
+      }
+      ByteArrayOutputStream found = new ByteArrayOutputStream();
+      for (String encodedKey : encodedKeys) {
+        if (encodedKey.isEmpty())
+          continue;
+        Row row = getRow(tableId, URLDecoder.decode(encodedKey, StandardCharsets.UTF_8));
+        if (row == null)
+          continue;
+        if (columns != null)
+          row = project(row, columns);
+        if (binary) {
+          found.writeBytes(row.toBinaryByteArray());
+        } else {
+          found.writeBytes(row.toByteArray());
+          found.writeBytes(LF);
+        }
+      }
+      found.writeBytes(LF);
+      res.bodyAsBytes(found.toByteArray());
+      return null;
+    });
+
     // Define the GET route to get a specific cell (specified by table, row, and
     // column)
     get("/data/:table/:row/:column", (req, res) -> {
@@ -884,11 +1104,14 @@ public class Worker extends flame.generic.Worker {
       String colId = req.params("column");
 
       // Check if table exists, return 404 otherwise
-      if (!tableId.startsWith("pt-") && !tables.containsKey(tableId)) {
+      if (!tableId.startsWith("pt-") && !memory.hasTable(tableId)) {
         res.status(404, "NOT FOUND");
         return "Specified table is not found";
       }
 
+      if (!rebalancer.serves(rowId) && !replicator.servesCopy(tableId, rowId))
+        return misdirected(res);
+
       // Table exists, now check if the row exists, return 404 otherwise
       Row row = getRow(tableId, rowId);
       if (row == null) {
@@ -908,82 +1131,203 @@ public class Worker extends flame.generic.Worker {
     });
   }
 
-  private static void putRow(String tableId, Row newRow) {
-    if (tableId.startsWith("pt-")) {
-      // Every table is a directory, and each row is a file within that directory
-
-      // Either replace the existing row's file within the table directory, or create
-      // a new row file
-      File tableDir = new File(storageDir, tableId);
-      if (!tableDir.exists()) {
-        tableDir.mkdirs(); // Create table directory if it doesn't exist
-      }
-      String encodedKey = KeyEncoder.encode(newRow.key());
-      File rowFile = new File(tableDir, encodedKey);
-      try (FileOutputStream outputStream = new FileOutputStream(rowFile)) {
-        byte[] rowBytes = newRow.toByteArray();
-        outputStream.write(rowBytes);
-      } catch (IOException e) {
-        logger.error("Error writing row to disk: " + e.getMessage(), e);
-      }
-    } else {
-      tables.putIfAbsent(tableId, new ConcurrentHashMap<>());
-      ConcurrentHashMap<String, Row> table = tables.get(tableId);
-      table.put(newRow.key(), newRow);
+  // In-memory tables are lost when the worker exits, unless they are logged (see LoggedStorage).
+  // They are kept on the heap, or with -Dkvs.memoryStorage=offheap outside of it (see OffHeapStorage)
+  private static Storage openMemoryStorage(String syncMode, File logDir) throws IOException {
+    String engine = System.getProperty("kvs.memoryStorage", "heap");
+    Storage storage;
+    switch (engine) {
+      case "heap":
+        storage = new MemoryStorage();
+        break;
+      case "offheap":
+        storage = new OffHeapStorage(Integer.getInteger("kvs.offHeapChunkSize", 64 * 1024 * 1024));
+        break;
+      default:
+        String message = "Unknown in-memory storage '" + engine + "' (expected 'heap' or 'offheap')";
+        logger.error(message);
+        System.err.println(message);
+        System.exit(1);
+        return null;
+    }
+    if (syncMode.equals("off"))
+      return storage;
+    try {
+      return new LoggedStorage(storage, logDir, LoggedStorage.SyncMode.valueOf(syncMode.toUpperCase()),
+          Long.getLong("kvs.walCheckpointSize", 64L * 1024 * 1024));
+    } catch (IllegalArgumentException e) {
+      String message = "Unknown log mode '" + syncMode + "' (expected 'off', 'none', 'batch' or 'always')";
+      logger.error(message);
+      System.err.println(message);
+      System.exit(1);
+      return null;
     }
   }
 
-  private static Row getRow(String tableId, String rowId) {
-    if (tableId.startsWith("pt-")) {
-      // Read row from disk
-      File tableDir = new File(storageDir, tableId);
-      if (!tableDir.exists()) {
-        logger.info("Table's Directory Not Found: " + tableId);
-        return null; // Table's directory doesn't exist
-      }
+  private static Storage openPersistentStorage(String engine, File root) throws IOException {
+    CompressionPolicy compression = new CompressionPolicy(System.getProperty("kvs.compressedTables", "pt-crawl"));
+    switch (engine) {
+      case "file":
+        return new FileStorage(root, Integer.getInteger("kvs.maxRowDeltas", 16), compression);
+      case "segment":
+        return new SegmentStorage(root, Long.getLong("kvs.segmentSize", 64L * 1024 * 1024),
+            Integer.getInteger("kvs.maxRowDeltas", 16), compression);
+      case "lsm":
+        return new LsmStorage(root, Long.getLong("kvs.memtableSize", 16L * 1024 * 1024),
+            Integer.getInteger("kvs.compactionThreshold", 4), compression);
+      default:
+        String message = "Unknown storage engine '" + engine + "' (expected 'file', 'segment' or 'lsm')";
+        logger.error(message);
+        System.err.println(message);
+        System.exit(1);
+        return null;
+    }
+  }
 
-      String encodedKey = KeyEncoder.encode(rowId);
-      File rowFile = new File(tableDir, encodedKey);
-      if (!rowFile.exists()) {
-        logger.info("Row File Not Found: " + encodedKey);
-        return null; // Row file doesn't exist
-      }
+  // columns=a,b,c restricts the returned rows to those columns (names are URL-encoded, so they
+  // may contain commas); an empty list returns just the keys
+  private static Set<String> projection(String columnsParam) {
+    return (columnsParam != null) ? new HashSet<>(Arrays.asList(KVSClient.decodeColumns(columnsParam))) : null;
+  }
 
-      // Table directory and row file exist, now read the columns from that row's file
-      try (FileInputStream inputStream = new FileInputStream(rowFile)) {
-        return Row.readFrom(inputStream);
-      } catch (Exception e) {
-        logger.error("Error reading row from disk: " + e.getMessage(), e);
+  private static Row project(Row row, Set<String> columns) {
+    Row projected = new Row(row.key());
+    for (String column : columns) {
+      byte[] value = row.getBytes(column);
+      if (value != null)
+        projected.put(column, value);
+    }
+    return projected;
+  }
+
+  private static RowFilter loadFilter(String encodedFilter, String jarName) {
+    URLClassLoader loader = null;
+    if (jarName != null) {
+      File jar = new File(new File(storageDir, "jars"), jarName + ".jar");
+      if (!jarName.matches("[0-9a-f]{64}") || !jar.exists()) {
+        logger.error("Filter JAR " + jarName + " has not been uploaded");
         return null;
       }
-    } else {
-      ConcurrentHashMap<String, Row> table = tables.get(tableId);
-      // Only get from table if table isn't null; return null if table doesn't exist
-      // or row doesn't exist within table
-      return table != null ? table.get(rowId) : null;
+      // JARs are named by the hash of their contents, so a loader never goes stale
+      loader = filterLoaders.computeIfAbsent(jarName, n -> new URLClassLoader(new URL[] { toURL(jar) },
+          Thread.currentThread().getContextClassLoader()));
+    }
+    try {
+      Object filter = Serializer.byteArrayToObject(Base64.getUrlDecoder().decode(encodedFilter), loader);
+      return (filter instanceof RowFilter) ? (RowFilter) filter : null;
+    } catch (IllegalArgumentException e) {
+      logger.error("Malformed filter parameter: " + e.getMessage());
+      return null;
+    }
+  }
+
+  // Whether the persistent table holds nothing but copies of rows that other workers own, as
+  // the replicas of a replicated table do (see Replicator)
+  private static boolean holdsOnlyCopies(String tableId) throws IOException {
+    RangeMap m = rebalancer.map();
+    if ((m == null) || !m.replicates(tableId))
+      return false;
+    for (Iterator<String> keys = persistent.keys(tableId); keys.hasNext(); ) {
+      if (rebalancer.serves(keys.next()))
+        return false;
+    }
+    return true;
+  }
+
+  // Renames a persistent table into one that holds copies already. The worker's own rows replace
+  // whatever is there; of other rows, a copy that is there already came from the row's owner
+  private static void mergeInto(String fromTableId, String toTableId) throws IOException {
+    Iterator<Row> rows = persistent.scan(fromTableId, null, null);
+    while (rows.hasNext()) {
+      Row row = rows.next();
+      synchronized (lockFor(toTableId, row.key())) {
+        if (rebalancer.serves(row.key()) || !persistent.existsRow(toTableId, row.key()))
+          persistent.putRow(toTableId, row);
+      }
     }
+    persistent.delete(fromTableId);
   }
 
-  private static Row readRowFromDisk(File rowFile) {
-    try (FileInputStream inputStream = new FileInputStream(rowFile)) {
-      return Row.readFrom(inputStream);
+  private static URL toURL(File file) {
+    try {
+      return file.toURI().toURL();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static boolean matches(RowFilter filter, Row row) {
+    try {
+      return filter.test(row);
     } catch (Exception e) {
-      logger.error("Error reading row from disk: " + e.getMessage(), e);
-      return null;
+      logger.error("Filter failed on row " + row.key() + ": " + e.getMessage(), e);
+      return false;
     }
   }
 
-  private static void recursiveDeleteDirectory(File file) throws IOException {
-    if (file.isDirectory()) {
-      File[] entries = file.listFiles();
-      if (entries != null) {
-        for (File entry : entries) {
-          recursiveDeleteDirectory(entry);
-        }
+  static TableStatsStorage storageFor(String tableId) {
+    return tableId.startsWith("pt-") ? persistent : memory;
+  }
+
+  static Object lockFor(String tableId, String rowId) {
+    return rowLocks[Math.floorMod(31 * tableId.hashCode() + rowId.hashCode(), ROW_LOCK_STRIPES)];
+  }
+
+  // Returns once every write that holds a row lock now has finished
+  static void awaitWrites() {
+    for (Object lock : rowLocks) {
+      synchronized (lock) {
+      }
+    }
+  }
+
+  // Queues a write for the row's new owner during a migration and for the row's replicas; called
+  // under the row's lock, and sent once it's free (see WriteQueue)
+  private static void forward(String tableId, Row columns, boolean wholeRow) {
+    rebalancer.forward(tableId, columns, wholeRow);
+    replicator.replicate(tableId, columns, wholeRow);
+  }
+
+  // For keys that this worker doesn't serve (see Rebalancer); clients fetch the range map again
+  private static String misdirected(Response res) {
+    RangeMap map = rebalancer.map();
+    res.status(421, "Misdirected Request");
+    return "Not served by this worker in range map version " + ((map != null) ? map.version : 0);
+  }
+
+  // Returns false, without writing, if this worker doesn't serve the row
+  private static boolean putRow(String tableId, Row newRow) {
+    try {
+      synchronized (lockFor(tableId, newRow.key())) {
+        if (!rebalancer.serves(newRow.key()))
+          return false;
+        storageFor(tableId).putRow(tableId, newRow);
+        forward(tableId, newRow, true);
       }
+    } catch (IOException e) {
+      logger.error("Error writing row to disk: " + e.getMessage(), e);
+    }
+    return true;
+  }
+
+  // Called under the row's lock
+  private static void putColumn(String tableId, String rowId, String colId, byte[] value) {
+    try {
+      storageFor(tableId).put(tableId, rowId, colId, value);
+      Row written = new Row(rowId);
+      written.put(colId, value);
+      forward(tableId, written, false);
+    } catch (IOException e) {
+      logger.error("Error writing row to disk: " + e.getMessage(), e);
     }
-    if (!file.delete()) {
-      throw new IOException("Failed to delete " + file.getAbsolutePath());
+  }
+
+  private static Row getRow(String tableId, String rowId) {
+    try {
+      return storageFor(tableId).getRow(tableId, rowId);
+    } catch (IOException e) {
+      logger.error("Error reading row from disk: " + e.getMessage(), e);
+      return null;
     }
   }
-}
\ No newline at end of file
+}
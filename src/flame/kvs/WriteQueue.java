@@ -0,0 +1,165 @@
+package flame.kvs;
+
+import flame.tools.Logger;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Sends writes of rows on to other workers (a row's new owner during a migration, see
+// Rebalancer, or its replicas, see Replicator) without holding up the writes themselves. A
+// write is queued while it holds its row's lock, and gets the next sequence number of the
+// destination's queue then, so the sequence numbers of a row's writes are in the order in
+// which they were made. One thread per destination sends the queue in that order, in batches of
+// consecutive writes to the same path, after the row locks are free; two workers that write rows
+// of each other can't wait on each other's locks.
+//
+// The receiver applies the writes of a batch in sequence order, and skips those it has applied
+// already, so a batch that is still being applied when the sender has given up on it and moved
+// on can't overwrite later writes. A batch that isn't taken isn't sent again; the failure
+// handler learns about each of its writes instead, as it does about writes that don't fit into
+// a queue that has fallen too far behind.
+class WriteQueue {
+  private static final Logger logger = Logger.getLogger(WriteQueue.class);
+  private static final int BATCH_BYTES = 1 << 20;
+  private static final long MAX_QUEUED_BYTES = 64L << 20;
+
+  interface Sender {
+    void send(String workerId, String path, byte[] body) throws IOException;
+  }
+
+  interface FailureHandler {
+    void failed(String workerId, String tableName, String key);
+  }
+
+  interface Apply {
+    boolean apply(Row row) throws IOException;
+  }
+
+  private record Write(long seq, String path, String tableName, String key, byte[] row) {}
+
+  // Receiver side: the sequence number up to which the writes of each sending queue are applied
+  private static final Map<String, long[]> applied = new ConcurrentHashMap<>();
+
+  private final String stream;
+  private final Sender sender;
+  private final FailureHandler onFailure;
+  private final Map<String, Destination> destinations = new ConcurrentHashMap<>();
+
+  // The name tells the receivers the queue's writes apart from those of others; it gets the
+  // start time added, so the sequence numbers of a restarted worker aren't taken as old ones
+  WriteQueue(String nameArg, Sender senderArg, FailureHandler onFailureArg) {
+    stream = nameArg + "." + System.currentTimeMillis();
+    sender = senderArg;
+    onFailure = onFailureArg;
+  }
+
+  // Called under the row's lock
+  void add(String workerId, String path, String tableName, Row row) {
+    destinations.computeIfAbsent(workerId, w -> {
+      Destination destination = new Destination(w);
+      Thread thread = new Thread(destination, "write-queue-" + w);
+      thread.setDaemon(true);
+      thread.start();
+      return destination;
+    }).add(path, tableName, row.key(), row.toBinaryByteArray());
+  }
+
+  // Returns once every write that was queued before has been sent, or given up on
+  void flush() throws InterruptedIOException {
+    for (Destination destination : new ArrayList<>(destinations.values()))
+      destination.flush();
+  }
+
+  // Applies the rows of a batch (or, without a sequence number, of a request that didn't come
+  // from a queue) in order, and returns false as soon as apply() does
+  static boolean receive(String streamParam, String seqParam, RowReader rows, Apply apply) throws IOException {
+    Row row;
+    if ((streamParam == null) || (seqParam == null)) {
+      while ((row = rows.next()) != null) {
+        if (!apply.apply(row))
+          return false;
+      }
+      return true;
+    }
+    long[] last = applied.computeIfAbsent(streamParam, s -> new long[1]);
+    synchronized (last) {
+      for (long seq = Long.parseLong(seqParam); (row = rows.next()) != null; seq++) {
+        if (seq <= last[0])
+          continue;
+        if (!apply.apply(row))
+          return false;
+        last[0] = seq;
+      }
+    }
+    return true;
+  }
+
+  private class Destination implements Runnable {
+    final String workerId;
+    final ArrayDeque<Write> queue = new ArrayDeque<>();
+    long nextSeq = 1;
+    long queuedBytes;
+    // Every write up to this sequence number has been sent or given up on
+    long finished;
+
+    Destination(String workerIdArg) {
+      workerId = workerIdArg;
+    }
+
+    synchronized void add(String path, String tableName, String key, byte[] row) {
+      if (queuedBytes + row.length > MAX_QUEUED_BYTES) {
+        onFailure.failed(workerId, tableName, key);
+        return;
+      }
+      queue.add(new Write(nextSeq++, path, tableName, key, row));
+      queuedBytes += row.length;
+      notifyAll();
+    }
+
+    synchronized void flush() throws InterruptedIOException {
+      long last = nextSeq - 1;
+      try {
+        while (finished < last)
+          wait();
+      } catch (InterruptedException ie) {
+        throw new InterruptedIOException("Interrupted while waiting for writes to " + workerId);
+      }
+    }
+
+    public void run() {
+      while (true) {
+        List<Write> batch = new ArrayList<>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        synchronized (this) {
+          while (queue.isEmpty()) {
+            try {
+              wait();
+            } catch (InterruptedException ie) {
+              return;
+            }
+          }
+          String path = queue.peek().path();
+          while (!queue.isEmpty() && queue.peek().path().equals(path) && (body.size() < BATCH_BYTES)) {
+            Write write = queue.poll();
+            batch.add(write);
+            body.writeBytes(write.row());
+          }
+        }
+
+        Write first = batch.get(0);
+        try {
+          sender.send(workerId, first.path() + "&stream=" + stream + "&seq=" + first.seq(), body.toByteArray());
+        } catch (IOException e) {
+          logger.error("Could not send " + batch.size() + " write(s) to " + workerId + ": " + e.getMessage());
+          for (Write write : batch)
+            onFailure.failed(workerId, write.tableName(), write.key());
+        }
+        synchronized (this) {
+          queuedBytes -= body.size();
+          finished = batch.get(batch.size() - 1).seq();
+          notifyAll();
+        }
+      }
+    }
+  }
+}
@@ -5,9 +5,9 @@ import flame.kvs.KVS;
 import flame.kvs.KVSClient;
 import flame.kvs.Row;
 import flame.tools.Hasher;
-import java.io.IOException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -52,14 +52,23 @@ public class Search {
             String[] urls = new String(urlsBytes, StandardCharsets.UTF_8).split(",");
             // Retrieve the IDF for the word
             double idf = 0.0;
-            if (kvs.existsRow("pt-idf", stemmedWord)) {
-                Row r = kvs.getRow("pt-idf", stemmedWord);
-                byte[] idfBytes = kvs.get("pt-idf", stemmedWord, r.columns().iterator().next());
-                if (idfBytes != null) {
-                    idf = Double.parseDouble(new String(idfBytes, StandardCharsets.UTF_8));
-                }
+            Row idfRow = kvs.getRow("pt-idf", stemmedWord);
+            if (idfRow != null && !idfRow.columns().isEmpty()) {
+                idf = Double.parseDouble(idfRow.get(idfRow.columns().iterator().next()));
             }
 
+            // fetch the pageranks and term frequencies of all the URLs at once, with one
+            // request per worker instead of a few round-trips per URL
+            List<String> urlHashes = new ArrayList<>();
+            List<String> tfRowKeys = new ArrayList<>();
+            for (String encodedUrl : urls) {
+                String urlHash = Hasher.hash(URLDecoder.decode(encodedUrl, StandardCharsets.UTF_8));
+                urlHashes.add(urlHash);
+                tfRowKeys.add(urlHash + "-" + stemmedWord);
+            }
+            Map<String, Row> rankRows = kvs.getRows("pt-pageranks", urlHashes, "rank");
+            Map<String, Row> tfRowsByKey = kvs.getRows("pt-tf", tfRowKeys);
+
             // process each URL
             for (String encodedUrl : urls) {
                 String url = URLDecoder.decode(encodedUrl, StandardCharsets.UTF_8);
@@ -67,25 +76,18 @@ public class Search {
 
                 // pagerank from urlhash
                 double pageRank = 0.0;
-                if (kvs.existsRow("pt-pageranks", urlHash)) {
-                    byte[] rankBytes = kvs.get("pt-pageranks", urlHash, "rank");
-                    if (rankBytes != null) {
-                        pageRank = Double.parseDouble(new String(rankBytes, StandardCharsets.UTF_8));
-                    }
+                Row rankRow = rankRows.get(urlHash);
+                if (rankRow != null && rankRow.get("rank") != null) {
+                    pageRank = Double.parseDouble(rankRow.get("rank"));
                 }
 
                 // tf from word and urlhash
                 double tf = 0.0;
-                String tfRowKey = urlHash + "-" + stemmedWord;
-                if (kvs.existsRow("pt-tf", tfRowKey)) {
-                    byte[] tfBytes = kvs.get("pt-tf", tfRowKey,
-                            kvs.getRow("pt-tf", tfRowKey).columns().iterator().next());
-                    if (tfBytes != null) {
-                        tf = Double.parseDouble(new String(tfBytes, StandardCharsets.UTF_8));
-                    }
+                Row tfRow = tfRowsByKey.get(urlHash + "-" + stemmedWord);
+                if (tfRow != null && !tfRow.columns().isEmpty()) {
+                    tf = Double.parseDouble(tfRow.get(tfRow.columns().iterator().next()));
                 }
 
-
                 // compute score
                 double score = alpha * tf * idf + (1 - alpha) * pageRank;
                 // acculate scores for URLs across words
@@ -99,35 +101,35 @@ public class Search {
         // .limit(numResults)
         // .map(entry -> entry.getKey() + " FinalScore: " + entry.getValue())
         // .toList();
-        List<String> results = finalScores.entrySet().stream()
+        List<String> topUrls = finalScores.entrySet().stream()
                 .sorted((e1, e2) -> Double.compare(e2.getValue(), e1.getValue())) // Sort by descending score
                 .limit(numResults)
-                .map(entry -> {
-                    String url = entry.getKey();
-                    String urlHash = Hasher.hash(url);
-                    String snippet = "";
-
-                    try {
-                        // Retrieve snippet from the "pt-crawl" table
-                        if (kvs.existsRow("pt-crawl", urlHash)) {
-                            byte[] contentBytes = kvs.get("pt-crawl", urlHash, "page");
-                            if (contentBytes != null) {
-                                String content = new String(contentBytes, StandardCharsets.UTF_8);
-                                // Remove HTML tags, sanitize content, and limit to 50 characters
-                                content = content.replaceAll("<[^>]*>", " ")
-                                        .replaceAll("\\s+", " ")
-                                        .trim();
-                                snippet = content.length() > 100 ? content.substring(0, 100) : content;
-                            }
-                        }
-                    } catch (IOException ex) {
-                    }
-
-                    // Sanitize snippet for JSON
-                    snippet = snippet.replace("\"", "\\\"");
-                    return "{\"url\": \"" + url + "\", \"preview\": \"" + snippet + "\"}";
-                })
+                .map(Map.Entry::getKey)
                 .toList();
+
+        // Retrieve the pages for the snippets from the "pt-crawl" table in one go
+        List<String> topUrlHashes = new ArrayList<>();
+        for (String url : topUrls) {
+            topUrlHashes.add(Hasher.hash(url));
+        }
+        Map<String, Row> pages = kvs.getRows("pt-crawl", topUrlHashes, "page");
+
+        List<String> results = new ArrayList<>();
+        for (String url : topUrls) {
+            String snippet = "";
+            Row page = pages.get(Hasher.hash(url));
+            if (page != null && page.get("page") != null) {
+                // Remove HTML tags, sanitize content, and limit to 100 characters
+                String content = page.get("page").replaceAll("<[^>]*>", " ")
+                        .replaceAll("\\s+", " ")
+                        .trim();
+                snippet = content.length() > 100 ? content.substring(0, 100) : content;
+            }
+
+            // Sanitize snippet for JSON
+            snippet = snippet.replace("\"", "\\\"");
+            results.add("{\"url\": \"" + url + "\", \"preview\": \"" + snippet + "\"}");
+        }
         return results;
     }
 
@@ -0,0 +1,136 @@
+package flame.test;
+
+import flame.kvs.*;
+import java.io.*;
+
+// Tests for compressed tables (see CompressionPolicy): a compressed LSM table is read back after
+// flushes, compactions and restarts, and each engine stores compressed rows in less space and
+// reads back rows that were written before the table's compression was switched on or off.
+//
+// Usage: java -cp bin flame.test.CompressedStorageTest [scratchDir]
+public class CompressedStorageTest extends StorageTest {
+  interface Engine {
+    Storage open(File dir, CompressionPolicy compression) throws IOException;
+  }
+
+  CompressedStorageTest(File baseArg) {
+    super(baseArg);
+  }
+
+  static long sizeOf(File dir) {
+    long size = 0;
+    File[] entries = dir.listFiles();
+    if (entries != null) {
+      for (File f : entries)
+        size += f.isDirectory() ? sizeOf(f) : f.length();
+    }
+    return size;
+  }
+
+  void runTests() throws Exception {
+    CompressionPolicy compression = new CompressionPolicy("pt-compressed");
+    String tableName = "pt-compressed";
+    startTest("comp-restart", "Compressed LSM restart after flushes and compactions", 5);
+    try {
+      // A small memtable, so the writes are flushed to many SSTables and compacted. The instances
+      // of earlier "restarts" are still open, so the test waits for their flushes to finish
+      File dir = new File(base, "lsm-" + tableName);
+      LsmStorage s = new LsmStorage(dir, 2048, 2, compression);
+      Expected rows = new Expected();
+      for (int i = 0; i < 500; i++) {
+        s.putRow(tableName, row("r" + i, "v", "value " + i));
+        rows.putRow("r" + i, "v", "value " + i);
+      }
+      for (int i = 0; i < 500; i += 3) {
+        s.putColumns(tableName, row("r" + i, "w", "added " + i));
+        rows.put("r" + i, "w", "added " + i);
+      }
+      for (int i = 0; i < 500; i += 5) {
+        s.deleteRow(tableName, "r" + i);
+        rows.delete("r" + i);
+      }
+      // Columns written after a delete make a new row, without the deleted columns
+      for (int i = 0; i < 500; i += 10) {
+        s.putColumns(tableName, row("r" + i, "z", "again " + i));
+        rows.put("r" + i, "z", "again " + i);
+      }
+      waitForQuiet(dir);
+      String problem = mismatch(s, tableName, rows);
+      if ((problem == null) && files(new File(dir, tableName), "sst-", ".dat").isEmpty())
+        problem = "No SSTable was written";
+      s = new LsmStorage(dir, 2048, 2, compression);
+      if (problem == null)
+        problem = mismatch(s, tableName, rows);
+      waitForQuiet(dir);
+      s = new LsmStorage(dir, 2048, 2, compression);
+      if (problem == null)
+        problem = mismatch(s, tableName, rows);
+      if (problem != null)
+        testFailed(problem);
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+
+    String[] names = { "file", "segment", "lsm" };
+    Engine[] engines = {
+      (dir, c) -> new FileStorage(dir, 4, c),
+      (dir, c) -> new SegmentStorage(dir, 8192, 4, c),
+      (dir, c) -> new LsmStorage(dir, 2048, 2, c)
+    };
+    for (int e = 0; e < engines.length; e++) {
+      startTest("comp-" + names[e], "Compressed and plain rows in " + names[e] + " tables", 5);
+      try {
+        // The same rows in a plain and a compressed table; then the compression of both is
+        // switched, and more rows and columns are written
+        File dir = new File(base, "mixed-" + names[e]);
+        Storage s = engines[e].open(dir, compression);
+        Expected rows = new Expected();
+        String filler = "abcdefgh".repeat(40);
+        for (int i = 0; i < 300; i++) {
+          for (String table : new String[] { "pt-plain", "pt-compressed" })
+            s.putRow(table, row("r" + i, "v", i + filler));
+          rows.putRow("r" + i, "v", i + filler);
+        }
+        waitForQuiet(dir);
+        long plain = sizeOf(new File(dir, "pt-plain")), compressed = sizeOf(new File(dir, "pt-compressed"));
+        String problem = null;
+        if (compressed * 2 > plain)
+          problem = "The compressed table takes " + compressed + " bytes, and the plain one " + plain;
+
+        s = engines[e].open(dir, new CompressionPolicy("pt-plain"));
+        for (int i = 0; i < 300; i += 2) {
+          for (String table : new String[] { "pt-plain", "pt-compressed" })
+            s.putColumns(table, row("r" + i, "w", filler + i));
+          rows.put("r" + i, "w", filler + i);
+        }
+        for (int i = 300; i < 400; i++) {
+          for (String table : new String[] { "pt-plain", "pt-compressed" })
+            s.putRow(table, row("r" + i, "v", i + filler));
+          rows.putRow("r" + i, "v", i + filler);
+        }
+        waitForQuiet(dir);
+        for (String table : new String[] { "pt-plain", "pt-compressed" }) {
+          if (problem == null)
+            problem = mismatch(s, table, rows);
+        }
+        s = engines[e].open(dir, new CompressionPolicy(""));
+        for (String table : new String[] { "pt-plain", "pt-compressed" }) {
+          if (problem == null)
+            problem = mismatch(s, table, rows);
+        }
+        if (problem != null)
+          testFailed(problem);
+        else
+          testSucceeded();
+      } catch (Exception ex) {
+        testFailed("Exception: " + ex, false);
+      }
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    run(new CompressedStorageTest(scratchDir(args, "compressed-storage-test")));
+  }
+}
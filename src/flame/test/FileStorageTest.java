@@ -0,0 +1,131 @@
+package flame.test;
+
+import flame.kvs.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Restart tests for FileStorage: column puts that are appended to the row files as deltas, and
+// compacted once reads have merged enough of them, are read back by a new instance; columns
+// that were cut off while being appended are left out; and reads, which take no lock, see only
+// complete rows while puts are rewriting and appending to the files.
+//
+// Usage: java -cp bin flame.test.FileStorageTest [scratchDir]
+public class FileStorageTest extends StorageTest {
+  FileStorageTest(File baseArg) {
+    super(baseArg);
+  }
+
+  void runTests() throws Exception {
+    CompressionPolicy compression = new CompressionPolicy("");
+    File fileDir = new File(base, "file");
+    Expected fileRows = new Expected();
+    startTest("file-restart", "File restart with deltas and deletes", 5);
+    try {
+      FileStorage s = new FileStorage(fileDir, 4, compression);
+      for (int i = 0; i < 200; i++) {
+        s.putRow("pt-file", row("r" + i, "v", "value " + i));
+        fileRows.putRow("r" + i, "v", "value " + i);
+      }
+      // Enough column puts that reads compact some of the rows; reading the rows halfway through
+      // compacts them before the rest of the columns are appended
+      for (int c = 0; c < 6; c++) {
+        for (int i = 0; i < 200; i += 3) {
+          s.putColumns("pt-file", row("r" + i, "c" + c, "column " + c));
+          fileRows.put("r" + i, "c" + c, "column " + c);
+        }
+        if (c == 4)
+          mismatch(s, "pt-file", fileRows);
+      }
+      for (int i = 0; i < 200; i += 7) {
+        s.deleteRow("pt-file", "r" + i);
+        fileRows.delete("r" + i);
+      }
+      String problem = mismatch(s, "pt-file", fileRows);
+      s = new FileStorage(fileDir, 4, compression);
+      if (problem == null)
+        problem = mismatch(s, "pt-file", fileRows);
+      if ((problem == null) && !files(fileDir, ".row", "").isEmpty())
+        problem = "Temporary row files were left in " + fileDir + ": " + files(fileDir, ".row", "");
+      if (problem != null)
+        testFailed(problem);
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+
+    startTest("file-torn", "File restart after a torn column append", 5);
+    try {
+      // Half of another delta, as a crash during putColumns() would leave it
+      byte[] delta = row("r1", "torn", "never written").toBinaryByteArray();
+      append(new File(new File(fileDir, "pt-file"), "r1"), Arrays.copyOf(delta, delta.length / 2));
+      FileStorage s = new FileStorage(fileDir, 4, compression);
+      String problem = mismatch(s, "pt-file", fileRows);
+      s.putColumns("pt-file", row("r2", "after", "1"));
+      fileRows.put("r2", "after", "1");
+      if (problem == null)
+        problem = mismatch(s, "pt-file", fileRows);
+      if (problem != null)
+        testFailed(problem);
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+
+    startTest("file-concurrent", "File reads during concurrent puts", 5);
+    try {
+      // Every version of a row has the "v" column, so a read that returns a row without it (or
+      // no row at all) has seen a file that was only partly written
+      File dir = new File(base, "file-concurrent");
+      FileStorage s = new FileStorage(dir, 4, compression);
+      for (int i = 0; i < 20; i++)
+        s.putRow("pt-file", row("r" + i, "v", "0"));
+      AtomicReference<String> problem = new AtomicReference<>();
+      long end = System.currentTimeMillis() + 2000;
+      List<Thread> threads = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        int writer = t;
+        threads.add(new Thread(() -> {
+          try {
+            for (int n = 0; System.currentTimeMillis() < end; n++) {
+              String key = "r" + (n % 20);
+              if ((n + writer) % 3 == 0)
+                s.putRow("pt-file", row(key, "v", "" + n));
+              else
+                s.putColumns("pt-file", row(key, "w" + writer, "x".repeat(n % 500)));
+            }
+          } catch (Exception e) {
+            problem.compareAndSet(null, "A put failed: " + e);
+          }
+        }));
+        threads.add(new Thread(() -> {
+          try {
+            for (int n = 0; System.currentTimeMillis() < end; n++) {
+              Row row = s.getRow("pt-file", "r" + (n % 20));
+              if ((row == null) || (row.get("v") == null))
+                problem.compareAndSet(null, "A read of r" + (n % 20) + " returned " + ((row == null) ? "no row" : row.columns()));
+            }
+          } catch (Exception e) {
+            problem.compareAndSet(null, "A read failed: " + e);
+          }
+        }));
+      }
+      for (Thread thread : threads)
+        thread.start();
+      for (Thread thread : threads)
+        thread.join();
+      if (problem.get() != null)
+        testFailed(problem.get());
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    run(new FileStorageTest(scratchDir(args, "file-storage-test")));
+  }
+}
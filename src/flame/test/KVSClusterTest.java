@@ -0,0 +1,183 @@
+package flame.test;
+
+import flame.kvs.*;
+import flame.tools.HTTP;
+import flame.tools.Hasher;
+import java.io.*;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Shared parts of the tests that run a KVS coordinator and workers in processes of their own,
+// with the storage engine given on the command line. The processes write their output to .out
+// files in the scratch directory, which is kept if a test fails.
+abstract class KVSClusterTest extends GenericTest {
+  interface Condition {
+    boolean holds() throws Exception;
+  }
+
+  File base;
+  String engine;
+  String coordinator;
+  List<Process> processes = new ArrayList<>();
+
+  KVSClusterTest(File baseArg, String engineArg) {
+    super();
+    base = baseArg;
+    engine = engineArg;
+  }
+
+  abstract void runTests() throws Exception;
+
+  static int freePort() throws IOException {
+    try (ServerSocket s = new ServerSocket(0)) {
+      return s.getLocalPort();
+    }
+  }
+
+  void start(String name, List<String> properties, String mainClass, String... args) throws IOException {
+    List<String> command = new ArrayList<>();
+    command.add(ProcessHandle.current().info().command().orElse("java"));
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.addAll(properties);
+    command.add(mainClass);
+    command.addAll(Arrays.asList(args));
+    processes.add(new ProcessBuilder(command).directory(base).redirectErrorStream(true)
+        .redirectOutput(new File(base, name + ".out")).start());
+  }
+
+  void startWorker(String id) throws IOException {
+    File dir = new File(base, id);
+    dir.mkdirs();
+    Files.writeString(new File(dir, "id").toPath(), id);
+    start(id, List.of("-Dkvs.storage=" + engine, "-Dkvs.rangeMapPollInterval=200", "-Dkvs.sweepDelay=1000"),
+        "flame.kvs.Worker", String.valueOf(freePort()), dir.getPath(), coordinator);
+  }
+
+  RangeMap ring() {
+    try {
+      HTTP.Response r = HTTP.doRequest("GET", "http://" + coordinator + "/ring", null);
+      return ((r != null) && (r.statusCode() == 200)) ? RangeMap.parse(new String(r.body(), StandardCharsets.UTF_8)) : null;
+    } catch (IOException | IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  // Worker ID -> address, as the coordinator lists them
+  Map<String, String> workers() throws IOException {
+    Map<String, String> workers = new TreeMap<>();
+    HTTP.Response r = HTTP.doRequest("GET", "http://" + coordinator + "/workers", null);
+    String[] lines = new String(r.body(), StandardCharsets.UTF_8).split("\n");
+    for (int i = 1; i < lines.length; i++) {
+      String[] pieces = lines[i].trim().split(",");
+      if (pieces.length == 2)
+        workers.put(pieces[0], pieces[1]);
+    }
+    return workers;
+  }
+
+  HTTP.Response get(String address, String path) throws IOException {
+    return HTTP.doRequest("GET", "http://" + address + path, null);
+  }
+
+  // The number of rows that the worker stores of the table, including ones that moved away
+  long storedRows(String address, String tableName) throws IOException {
+    HTTP.Response r = get(address, "/stats/" + tableName);
+    if ((r == null) || (r.statusCode() != 200))
+      return 0;
+    for (String line : new String(r.body(), StandardCharsets.UTF_8).split("\n")) {
+      String[] pieces = line.trim().split(" ");
+      if (pieces[0].equals("rows"))
+        return Long.parseLong(pieces[1]);
+    }
+    return 0;
+  }
+
+  boolean await(Condition condition, long millis) throws Exception {
+    long deadline = System.currentTimeMillis() + millis;
+    while (true) {
+      if (condition.holds())
+        return true;
+      if (System.currentTimeMillis() > deadline)
+        return false;
+      Thread.sleep(250);
+    }
+  }
+
+  // Hashed, like the keys of the crawler's tables, so they're spread over all workers' ranges
+  static String key(String tableName, int i) {
+    return Hasher.hash(tableName + "-" + i);
+  }
+
+  // Returns null if the client reads every row of the table as written, or else what's wrong
+  String mismatch(KVSClient kvs, String tableName, String writtenAs, int rows) throws IOException {
+    for (int i = 0; i < rows; i++) {
+      Row row = kvs.getRow(tableName, key(writtenAs, i));
+      if (row == null)
+        return "Row " + key(writtenAs, i) + " of table " + tableName + " could not be read";
+      if (!("value " + i).equals(row.get("v")))
+        return "Row " + key(writtenAs, i) + " of table " + tableName + " has value " + row.get("v") + ", but we wrote 'value " + i + "'";
+    }
+    int count = kvs.count(tableName);
+    if (count != rows)
+      return "Table " + tableName + " has a count of " + count + ", but we wrote " + rows + " row(s)";
+    return null;
+  }
+
+  // Starts a coordinator with the given properties and workers with the given IDs, and waits
+  // until the workers have joined the range map
+  void startCluster(List<String> properties, String... workerIds) throws Exception {
+    int coordinatorPort = freePort();
+    coordinator = "localhost:" + coordinatorPort;
+    List<String> coordinatorProperties = new ArrayList<>(List.of("-Dkvs.virtualNodes=8"));
+    coordinatorProperties.addAll(properties);
+    start("coordinator", coordinatorProperties, "flame.kvs.Coordinator", String.valueOf(coordinatorPort));
+    for (String id : workerIds)
+      startWorker(id);
+    if (!await(() -> { RangeMap m = ring(); return (m != null) && !m.migrating() && (m.members().size() == workerIds.length); }, 45000))
+      testFailed("The workers did not join the range map; see the .out files in " + base, true);
+  }
+
+  // Starts another worker and waits until the range map has settled with it
+  void join(String id) throws Exception {
+    RangeMap map = ring();
+    int before = map.version;
+    int members = map.members().size();
+    startWorker(id);
+    if (!await(() -> { RangeMap m = ring(); return (m != null) && !m.migrating() && (m.version > before) && (m.members().size() == members + 1); }, 45000))
+      testFailed("The range map did not settle with the new worker: " + ring(), true);
+  }
+
+  void writeRows(KVSClient kvs, String tableName, int rows) throws IOException {
+    for (int i = 0; i < rows; i++)
+      kvs.put(tableName, key(tableName, i), "v", ("value " + i).getBytes(StandardCharsets.UTF_8));
+  }
+
+  void stop() {
+    for (Process p : processes)
+      p.destroyForcibly();
+  }
+
+  // Runs the tests in a new scratch directory, stops the processes, and exits with the result;
+  // the scratch directory is deleted unless a test failed
+  static void run(KVSClusterTest t) throws Exception {
+    t.setExitUponFailure(false);
+    t.setTimeoutMillis(60000);
+    Runtime.getRuntime().addShutdownHook(new Thread(t::stop));
+    try {
+      t.runTests();
+    } finally {
+      t.stop();
+    }
+    System.out.println();
+    System.out.println((t.numTestsFailed == 0) ? "All tests passed" : t.numTestsFailed + " test(s) failed; the logs are in " + t.base);
+    if (t.numTestsFailed == 0) {
+      for (Process p : t.processes)
+        p.waitFor();
+      StorageTest.deleteRecursively(t.base);
+    }
+    System.exit((t.numTestsFailed == 0) ? 0 : 1);
+  }
+}
@@ -0,0 +1,143 @@
+package flame.test;
+
+import flame.kvs.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Round trip of a KVS migration (see KVSClusterTest): two workers get rows, a third one joins
+// while rows are being written, and the test checks that every row can still be read with its
+// last write and is counted and scanned once, and that the old owners delete the rows they
+// handed off.
+//
+// Usage: java -cp bin flame.test.KVSMigrationTest [engine]   (e.g. file, segment or lsm)
+public class KVSMigrationTest extends KVSClusterTest {
+  static final int ROWS = 300;
+
+  KVSMigrationTest(File baseArg, String engineArg) {
+    super(baseArg, engineArg);
+  }
+
+  void runTests() throws Exception {
+    startTest("mig-start", "Coordinator and two workers start", 5);
+    try {
+      startCluster(List.of(), "w1", "w2");
+      testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+      return;
+    }
+
+    KVSClient kvs = new KVSClient(coordinator);
+    String[] tables = { "pt-data", "mem" };
+    startTest("mig-write", "Rows are written and read back", 5);
+    try {
+      for (String tableName : tables)
+        writeRows(kvs, tableName, ROWS);
+      String problem = null;
+      for (String tableName : tables) {
+        if (problem == null)
+          problem = mismatch(kvs, tableName, tableName, ROWS);
+      }
+      if (problem != null)
+        testFailed(problem);
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+
+    startTest("mig-join", "A third worker joins and gets rows", 5);
+    try {
+      // Rows of pt-live are written over and over while the worker joins, so writes are sent on
+      // to the new owners; each write of a row has a higher pass number
+      boolean[] settled = new boolean[1];
+      int[] passes = new int[1];
+      Thread writer = new Thread(() -> {
+        try {
+          KVSClient live = new KVSClient(coordinator);
+          for (int pass = 1; (pass <= 2) || !settled[0]; pass++) {
+            for (int i = 0; i < ROWS; i++) {
+              live.put("pt-live", key("pt-live", i), "v", ("value " + i).getBytes(StandardCharsets.UTF_8));
+              live.put("pt-live", key("pt-live", i), "pass", String.valueOf(pass).getBytes(StandardCharsets.UTF_8));
+            }
+            passes[0] = pass;
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+      writer.start();
+      join("w3");
+      settled[0] = true;
+      writer.join();
+      KVSClient fresh = new KVSClient(coordinator);
+      String problem = mismatch(fresh, "pt-live", "pt-live", ROWS);
+      for (int i = 0; (problem == null) && (i < ROWS); i++) {
+        String pass = fresh.getRow("pt-live", key("pt-live", i)).get("pass");
+        if (!String.valueOf(passes[0]).equals(pass))
+          problem = "Row " + key("pt-live", i) + " of table pt-live has pass " + pass + ", but the last write had pass " + passes[0];
+      }
+      for (String tableName : tables) {
+        if (problem == null)
+          problem = mismatch(fresh, tableName, tableName, ROWS);
+      }
+      if ((problem == null) && (storedRows(workers().get("w3"), "pt-data") == 0))
+        problem = "No rows of pt-data moved to the new worker";
+      if (problem != null)
+        testFailed(problem);
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+
+    startTest("mig-scan", "A scan returns every row once, in key order", 5);
+    try {
+      Iterator<Row> rows = new KVSClient(coordinator).scan("pt-data");
+      String previous = null;
+      int scanned = 0;
+      String problem = null;
+      while ((problem == null) && rows.hasNext()) {
+        Row row = rows.next();
+        if ((previous != null) && (row.key().compareTo(previous) <= 0))
+          problem = "The scan returned row " + row.key() + " after row " + previous;
+        previous = row.key();
+        scanned++;
+      }
+      if ((problem == null) && (scanned != ROWS))
+        problem = "The scan returned " + scanned + " row(s), but we wrote " + ROWS;
+      if (problem != null)
+        testFailed(problem);
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+
+    startTest("mig-sweep", "Old owners delete the rows they handed off", 5);
+    try {
+      Map<String, String> workers = workers();
+      long[] stored = new long[1];
+      boolean swept = await(() -> {
+        stored[0] = 0;
+        for (String tableName : new String[] { "pt-data", "mem" }) {
+          for (String address : workers.values())
+            stored[0] += storedRows(address, tableName);
+        }
+        return stored[0] == 2 * ROWS;
+      }, 30000);
+      if (!swept)
+        testFailed("The workers still store " + stored[0] + " rows of pt-data and mem, but the tables have " + (2 * ROWS));
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    run(new KVSMigrationTest(Files.createTempDirectory("kvs-migration-test").toFile(), (args.length > 0) ? args[0] : "file"));
+  }
+}
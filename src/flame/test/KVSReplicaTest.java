@@ -0,0 +1,163 @@
+package flame.test;
+
+import flame.kvs.*;
+import flame.tools.HTTP;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Replicated tables (see KVSClusterTest): the owners sync their replicas, getRows() reads from
+// them, later writes reach them in the background, and they are synced again after a worker
+// joins and after the table is renamed.
+//
+// Usage: java -cp bin flame.test.KVSReplicaTest [engine]   (e.g. file, segment or lsm)
+public class KVSReplicaTest extends KVSClusterTest {
+  static final int ROWS = 100;
+
+  KVSReplicaTest(File baseArg, String engineArg) {
+    super(baseArg, engineArg);
+  }
+
+  // Returns null if getRows() returns every row of the table as written, plus nothing for a key
+  // that was never written, or else what's wrong
+  String missingRows(KVSClient kvs, String tableName, int rows) throws IOException {
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < rows; i++)
+      keys.add(key(tableName, i));
+    keys.add(key(tableName, rows));
+    Map<String, Row> found = kvs.getRows(tableName, keys);
+    for (int i = 0; i < rows; i++) {
+      Row row = found.get(key(tableName, i));
+      if ((row == null) || !("value " + i).equals(row.get("v")))
+        return "getRows() returned " + ((row != null) ? "value " + row.get("v") : "nothing") + " for row " + key(tableName, i) + " of table " + tableName;
+    }
+    if (found.size() != rows)
+      return "getRows() returned " + found.size() + " row(s) of table " + tableName + ", but we asked for " + rows + " that exist";
+    return null;
+  }
+
+  // Returns null if every replica of every row has the value in the column, or else the first
+  // one that doesn't
+  String staleCopy(String tableName, int rows, String column, String value) throws IOException {
+    RangeMap map = ring();
+    Map<String, String> workers = workers();
+    for (int i = 0; i < rows; i++) {
+      String key = key(tableName, i);
+      for (String replica : map.replicas(key)) {
+        HTTP.Response r = get(workers.get(replica), "/data/" + tableName + "/" + key + "/" + column);
+        if ((r == null) || (r.statusCode() != 200) || !value.equals(new String(r.body(), StandardCharsets.UTF_8)))
+          return "Worker " + replica + " does not have the latest write of row " + key + " of table " + tableName;
+      }
+    }
+    return null;
+  }
+
+  // Returns null if every replica of every row serves its copy, or else the first one that doesn't
+  String missingCopy(String tableName, String writtenAs, int rows) throws IOException {
+    RangeMap map = ring();
+    Map<String, String> workers = workers();
+    for (int i = 0; i < rows; i++) {
+      String key = key(writtenAs, i);
+      for (String replica : map.replicas(key)) {
+        HTTP.Response r = get(workers.get(replica), "/data/" + tableName + "/" + key);
+        if ((r == null) || (r.statusCode() != 200))
+          return "Worker " + replica + " does not serve its copy of row " + key + " of table " + tableName
+              + ((r != null) ? " (" + r.statusCode() + ")" : "");
+      }
+    }
+    return null;
+  }
+
+  void runTests() throws Exception {
+    startTest("rep-start", "Coordinator and two workers start", 5);
+    try {
+      startCluster(List.of("-Dkvs.replicas=2", "-Dkvs.replicatedTables=pt-repl*"), "w1", "w2");
+      testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+      return;
+    }
+
+    KVSClient kvs = new KVSClient(coordinator);
+    startTest("rep-sync", "Replicas get copies of the rows", 5);
+    try {
+      writeRows(kvs, "pt-repl", ROWS);
+      String[] problem = new String[1];
+      problem[0] = mismatch(kvs, "pt-repl", "pt-repl", ROWS);
+      if (problem[0] == null)
+        await(() -> (problem[0] = missingCopy("pt-repl", "pt-repl", ROWS)) == null, 30000);
+      if (problem[0] != null)
+        testFailed(problem[0]);
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+
+    startTest("rep-getrows", "getRows() returns every row", 5);
+    try {
+      String problem = missingRows(new KVSClient(coordinator), "pt-repl", ROWS);
+      if (problem != null)
+        testFailed(problem);
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+
+    startTest("rep-write", "Writes after the sync reach the replicas", 5);
+    try {
+      for (int i = 0; i < ROWS; i++)
+        kvs.put("pt-repl", key("pt-repl", i), "w", "after the sync");
+      String[] problem = new String[1];
+      await(() -> (problem[0] = staleCopy("pt-repl", ROWS, "w", "after the sync")) == null, 10000);
+      if (problem[0] != null)
+        testFailed(problem[0]);
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+
+    startTest("rep-join", "Replicas are synced after a worker joins", 5);
+    try {
+      join("w3");
+      KVSClient fresh = new KVSClient(coordinator);
+      String[] problem = new String[1];
+      problem[0] = mismatch(fresh, "pt-repl", "pt-repl", ROWS);
+      if ((problem[0] == null) && await(() -> (problem[0] = missingCopy("pt-repl", "pt-repl", ROWS)) == null, 30000))
+        problem[0] = missingRows(fresh, "pt-repl", ROWS);
+      if (problem[0] != null)
+        testFailed(problem[0]);
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+
+    startTest("rep-rename", "Replicas are synced after a rename", 5);
+    try {
+      KVSClient fresh = new KVSClient(coordinator);
+      fresh.rename("pt-repl", "pt-repl-renamed");
+      // Replicas don't serve their copies until the owners have synced them again; the client
+      // then asks the owner
+      String problem = mismatch(fresh, "pt-repl-renamed", "pt-repl", ROWS);
+      String[] missing = new String[1];
+      if ((problem == null) && !await(() -> (missing[0] = missingCopy("pt-repl-renamed", "pt-repl", ROWS)) == null, 30000))
+        problem = missing[0];
+      if ((problem == null) && (fresh.getRow("pt-repl", key("pt-repl", 0)) != null))
+        problem = "Row " + key("pt-repl", 0) + " can still be read from the old table name";
+      if (problem != null)
+        testFailed(problem);
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    run(new KVSReplicaTest(Files.createTempDirectory("kvs-replica-test").toFile(), (args.length > 0) ? args[0] : "file"));
+  }
+}
@@ -0,0 +1,116 @@
+package flame.test;
+
+import flame.kvs.*;
+import java.io.*;
+import java.util.*;
+
+// Restart tests for the write-ahead log of in-memory tables (see LoggedStorage): replay after a
+// restart, torn records at the end of a log, and replay from a checkpoint.
+//
+// Usage: java -cp bin flame.test.LoggedStorageTest [scratchDir]
+public class LoggedStorageTest extends StorageTest {
+  LoggedStorageTest(File baseArg) {
+    super(baseArg);
+  }
+
+  LoggedStorage openLogged(File dir, long checkpointSize) throws IOException {
+    return new LoggedStorage(new MemoryStorage(), dir, LoggedStorage.SyncMode.NONE, checkpointSize);
+  }
+
+  void runTests() throws Exception {
+    Expected expected = new Expected();
+    Expected renamed = new Expected();
+    File walDir = new File(base, "wal");
+    startTest("wal-replay", "WAL replay after a restart", 5);
+    try {
+      LoggedStorage s = openLogged(walDir, Long.MAX_VALUE);
+      for (int i = 0; i < 200; i++) {
+        s.putRow("t", row("r" + i, "v", "value " + i));
+        expected.putRow("r" + i, "v", "value " + i);
+      }
+      for (int i = 0; i < 200; i += 3) {
+        s.putColumns("t", row("r" + i, "w", "added " + i));
+        expected.put("r" + i, "w", "added " + i);
+      }
+      for (int i = 0; i < 200; i += 7) {
+        s.deleteRow("t", "r" + i);
+        expected.delete("r" + i);
+      }
+      s.putRow("before-rename", row("x", "v", "y"));
+      renamed.putRow("x", "v", "y");
+      s.rename("before-rename", "after-rename");
+      s.putRow("gone", row("x", "v", "y"));
+      s.delete("gone");
+
+      s = openLogged(walDir, Long.MAX_VALUE);
+      String problem = mismatch(s, "t", expected);
+      if (problem == null)
+        problem = mismatch(s, "after-rename", renamed);
+      if ((problem == null) && (s.hasTable("before-rename") || s.hasTable("gone")))
+        problem = "Tables that were renamed or deleted before the restart came back: " + s.tables();
+      if (problem != null)
+        testFailed(problem);
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+
+    startTest("wal-torn", "WAL replay stops at torn records", 5);
+    try {
+      // A record header with a length that runs past the end of the file, as a crash during the
+      // append can leave it; the replay must not try to allocate it
+      append(files(walDir, "wal-", ".log").get(files(walDir, "wal-", ".log").size() - 1), header(Integer.MAX_VALUE - 8, 0));
+      LoggedStorage s = openLogged(walDir, Long.MAX_VALUE);
+      String problem = mismatch(s, "t", expected);
+
+      // Writes after the restart go to a new log, so they're replayed despite the torn record
+      s.putRow("t", row("after-1", "v", "1"));
+      expected.putRow("after-1", "v", "1");
+      List<File> logs = files(walDir, "wal-", ".log");
+      append(logs.get(logs.size() - 1), header(-1, 0));
+      s = openLogged(walDir, Long.MAX_VALUE);
+      s.putRow("t", row("after-2", "v", "2"));
+      expected.putRow("after-2", "v", "2");
+      s = openLogged(walDir, Long.MAX_VALUE);
+      if (problem == null)
+        problem = mismatch(s, "t", expected);
+      if (problem != null)
+        testFailed(problem);
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    } catch (OutOfMemoryError e) {
+      testFailed("The replay tried to allocate a record of a torn length: " + e, false);
+    }
+
+    startTest("wal-checkpoint", "WAL replay from a checkpoint", 5);
+    try {
+      File dir = new File(base, "wal-checkpoint");
+      LoggedStorage s = openLogged(dir, 16384);
+      Expected rows = new Expected();
+      for (int i = 0; i < 2000; i++) {
+        s.putRow("t", row("r" + i, "v", "value " + i));
+        rows.putRow("r" + i, "v", "value " + i);
+      }
+      waitForQuiet(dir);
+      String problem = null;
+      if (files(dir, "checkpoint-", ".log").isEmpty())
+        problem = "No checkpoint was written after " + listing(dir).length() + " bytes of log";
+      s = openLogged(dir, 16384);
+      if (problem == null)
+        problem = mismatch(s, "t", rows);
+      if (problem != null)
+        testFailed(problem);
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    run(new LoggedStorageTest(scratchDir(args, "logged-storage-test")));
+  }
+}
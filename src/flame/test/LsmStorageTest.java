@@ -0,0 +1,67 @@
+package flame.test;
+
+import flame.kvs.*;
+import java.io.*;
+
+// Restart tests for LsmStorage: rows, column puts and deletes that were flushed to SSTables and
+// compacted are read back by a new instance.
+//
+// Usage: java -cp bin flame.test.LsmStorageTest [scratchDir]
+public class LsmStorageTest extends StorageTest {
+  LsmStorageTest(File baseArg) {
+    super(baseArg);
+  }
+
+  void runTests() throws Exception {
+    CompressionPolicy compression = new CompressionPolicy("");
+    String tableName = "pt-lsm";
+    startTest("lsm-restart", "LSM restart after flushes and compactions", 5);
+    try {
+      // A small memtable, so the writes are flushed to many SSTables and compacted. The instances
+      // of earlier "restarts" are still open, so the test waits for their flushes to finish
+      File dir = new File(base, "lsm-" + tableName);
+      LsmStorage s = new LsmStorage(dir, 2048, 2, compression);
+      Expected rows = new Expected();
+      for (int i = 0; i < 500; i++) {
+        s.putRow(tableName, row("r" + i, "v", "value " + i));
+        rows.putRow("r" + i, "v", "value " + i);
+      }
+      for (int i = 0; i < 500; i += 3) {
+        s.putColumns(tableName, row("r" + i, "w", "added " + i));
+        rows.put("r" + i, "w", "added " + i);
+      }
+      for (int i = 0; i < 500; i += 5) {
+        s.deleteRow(tableName, "r" + i);
+        rows.delete("r" + i);
+      }
+      // Columns written after a delete make a new row, without the deleted columns
+      for (int i = 0; i < 500; i += 10) {
+        s.putColumns(tableName, row("r" + i, "z", "again " + i));
+        rows.put("r" + i, "z", "again " + i);
+      }
+      waitForQuiet(dir);
+      String problem = mismatch(s, tableName, rows);
+      if ((problem == null) && files(new File(dir, tableName), "sst-", ".dat").isEmpty())
+        problem = "No SSTable was written";
+      s = new LsmStorage(dir, 2048, 2, compression);
+      if (problem == null)
+        problem = mismatch(s, tableName, rows);
+      waitForQuiet(dir);
+      s = new LsmStorage(dir, 2048, 2, compression);
+      if (problem == null)
+        problem = mismatch(s, tableName, rows);
+      if (problem != null)
+        testFailed(problem);
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+  }
+
+
+
+  public static void main(String args[]) throws Exception {
+    run(new LsmStorageTest(scratchDir(args, "lsm-storage-test")));
+  }
+}
@@ -0,0 +1,162 @@
+package flame.test;
+
+import flame.kvs.*;
+import java.io.*;
+import java.util.*;
+
+// Restart tests for SegmentStorage: reading deltas and deletes back from the segments, torn
+// appends, damaged records in older segments, and collection of overwritten rows.
+//
+// Usage: java -cp bin flame.test.SegmentStorageTest [scratchDir]
+public class SegmentStorageTest extends StorageTest {
+  SegmentStorageTest(File baseArg) {
+    super(baseArg);
+  }
+
+  void runTests() throws Exception {
+    CompressionPolicy compression = new CompressionPolicy("");
+    File segmentDir = new File(base, "segment");
+    Expected segmentRows = new Expected();
+    startTest("seg-restart", "Segment restart with deltas and deletes", 5);
+    try {
+      SegmentStorage s = new SegmentStorage(segmentDir, 8192, 4, compression);
+      for (int i = 0; i < 300; i++) {
+        s.putRow("pt-seg", row("r" + i, "v", "value " + i));
+        segmentRows.putRow("r" + i, "v", "value " + i);
+      }
+      // Enough column puts that reads merge the deltas into new full records; reading the rows
+      // halfway through merges some of them early
+      for (int c = 0; c < 6; c++) {
+        for (int i = 0; i < 300; i += 4) {
+          s.putColumns("pt-seg", row("r" + i, "c" + c, "column " + c));
+          segmentRows.put("r" + i, "c" + c, "column " + c);
+        }
+        if (c == 3)
+          mismatch(s, "pt-seg", segmentRows);
+      }
+      for (int i = 0; i < 300; i += 9) {
+        s.deleteRow("pt-seg", "r" + i);
+        segmentRows.delete("r" + i);
+      }
+      waitForQuiet(segmentDir);
+      String problem = mismatch(s, "pt-seg", segmentRows);
+      s = new SegmentStorage(segmentDir, 8192, 4, compression);
+      if (problem == null)
+        problem = mismatch(s, "pt-seg", segmentRows);
+      if (problem != null)
+        testFailed(problem);
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+
+    startTest("seg-torn", "Segment restart after a torn append", 5);
+    try {
+      List<File> segments = files(new File(segmentDir, "pt-seg"), "segment-", ".log");
+      File newest = segments.get(segments.size() - 1);
+      long length = newest.length();
+      append(newest, new byte[] { 0, 0, 0, 20, 0, 0 });
+      SegmentStorage s = new SegmentStorage(segmentDir, 8192, 4, compression);
+      String problem = mismatch(s, "pt-seg", segmentRows);
+      if ((problem == null) && (newest.length() != length))
+        problem = "The torn record at the end of " + newest.getName() + " was not truncated";
+      s.putRow("pt-seg", row("after", "v", "1"));
+      segmentRows.putRow("after", "v", "1");
+      waitForQuiet(segmentDir);
+      s = new SegmentStorage(segmentDir, 8192, 4, compression);
+      if (problem == null)
+        problem = mismatch(s, "pt-seg", segmentRows);
+      if (problem != null)
+        testFailed(problem);
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+
+    startTest("seg-damage", "Segment restart with a damaged older segment", 5);
+    try {
+      // Full records only, so no other record refers to the damaged one
+      File dir = new File(base, "segment-damage");
+      SegmentStorage s = new SegmentStorage(dir, 4096, 4, compression);
+      Expected rows = new Expected();
+      for (int i = 0; i < 400; i++) {
+        s.putRow("pt-seg", row("r" + i, "v", "value " + i));
+        rows.putRow("r" + i, "v", "value " + i);
+      }
+      waitForQuiet(dir);
+      List<File> segments = files(new File(dir, "pt-seg"), "segment-", ".log");
+      String problem = null;
+      String damagedKey = null;
+      if (segments.size() < 2) {
+        problem = "Expected the rows to fill several segments, but there are " + segments.size();
+      } else {
+        // Flip the last byte of the first record in the oldest segment, so its CRC fails
+        File oldest = segments.get(0);
+        long length = oldest.length();
+        try (RandomAccessFile f = new RandomAccessFile(oldest, "rw")) {
+          int keyLength = f.readInt(), rowLength = f.readInt();
+          f.readInt();
+          byte[] key = new byte[keyLength];
+          f.readFully(key);
+          damagedKey = new String(key, "UTF-8");
+          long last = 12 + keyLength + rowLength - 1;
+          f.seek(last);
+          int b = f.read();
+          f.seek(last);
+          f.write(b ^ 0xFF);
+        }
+        s = new SegmentStorage(dir, 4096, 4, compression);
+        problem = mismatch(s, "pt-seg", rows, damagedKey);
+        if ((problem == null) && (oldest.length() != length))
+          problem = "The damaged segment " + oldest.getName() + " was truncated from " + length + " to "
+              + oldest.length() + " bytes";
+      }
+      if (problem != null)
+        testFailed(problem);
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+
+    startTest("seg-collect", "Segment collection of overwritten rows", 5);
+    try {
+      File dir = new File(base, "segment-collect");
+      SegmentStorage s = new SegmentStorage(dir, 4096, 4, compression);
+      Expected rows = new Expected();
+      long written = 0;
+      String filler = "x".repeat(100);
+      for (int round = 0; round < 40; round++) {
+        for (int i = 0; i < 50; i++) {
+          s.putRow("pt-seg", row("r" + i, "v", round + filler));
+          rows.putRow("r" + i, "v", round + filler);
+          written += 120;
+        }
+      }
+      waitForQuiet(dir);
+      long onDisk = 0;
+      for (File segment : files(new File(dir, "pt-seg"), "segment-", ".log"))
+        onDisk += segment.length();
+      String problem = mismatch(s, "pt-seg", rows);
+      // A collection runs once a table has doubled since the last one, so the live rows and a
+      // bit more than as much garbage may remain
+      if ((problem == null) && (onDisk > written / 2))
+        problem = "After writing about " + written + " bytes of rows, the segments still take " + onDisk + " bytes";
+      s = new SegmentStorage(dir, 4096, 4, compression);
+      if (problem == null)
+        problem = mismatch(s, "pt-seg", rows);
+      if (problem != null)
+        testFailed(problem);
+      else
+        testSucceeded();
+    } catch (Exception e) {
+      testFailed("Exception: " + e, false);
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    run(new SegmentStorageTest(scratchDir(args, "segment-storage-test")));
+  }
+}
@@ -0,0 +1,165 @@
+package flame.test;
+
+import flame.kvs.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+
+// Shared parts of the restart tests for the KVS storage engines that keep data across worker
+// restarts: each test writes to an engine, opens a new instance on the same directory (as a
+// restarted worker would), and checks what it reads back, also after damaging the files the way
+// a crash could.
+abstract class StorageTest extends GenericTest {
+  File base;
+
+  StorageTest(File baseArg) {
+    super();
+    base = baseArg;
+  }
+
+  abstract void runTests() throws Exception;
+
+  // The expected contents of a table: row key -> column -> value
+  static class Expected {
+    TreeMap<String, TreeMap<String, String>> rows = new TreeMap<>();
+
+    void put(String key, String column, String value) {
+      rows.computeIfAbsent(key, k -> new TreeMap<>()).put(column, value);
+    }
+
+    void putRow(String key, String column, String value) {
+      rows.remove(key);
+      put(key, column, value);
+    }
+
+    void delete(String key) {
+      rows.remove(key);
+    }
+  }
+
+  static Row row(String key, String column, String value) {
+    Row row = new Row(key);
+    row.put(column, value);
+    return row;
+  }
+
+  // Returns null if the table has exactly the expected rows, or else what's wrong
+  static String mismatch(Storage storage, String tableName, Expected expected, String ignoredKey) throws IOException {
+    List<String> keys = new ArrayList<>();
+    storage.keys(tableName).forEachRemaining(keys::add);
+    keys.remove(ignoredKey);
+    List<String> expectedKeys = new ArrayList<>(expected.rows.keySet());
+    expectedKeys.remove(ignoredKey);
+    Collections.sort(keys);
+    if (!keys.equals(expectedKeys))
+      return "Table " + tableName + " has keys " + abbreviate(keys) + ", but we expected " + abbreviate(expectedKeys);
+    int count = storage.count(tableName) - (((ignoredKey != null) && storage.existsRow(tableName, ignoredKey)) ? 1 : 0);
+    if (count != expectedKeys.size())
+      return "Table " + tableName + " has a count of " + count + ", but we expected " + expectedKeys.size();
+    for (String key : expectedKeys) {
+      Row row = storage.getRow(tableName, key);
+      if (row == null)
+        return "Row " + key + " of table " + tableName + " is listed, but getRow() returned null";
+      TreeMap<String, String> values = new TreeMap<>();
+      for (String column : row.columns())
+        values.put(column, row.get(column));
+      if (!values.equals(expected.rows.get(key)))
+        return "Row " + key + " of table " + tableName + " is " + values + ", but we expected " + expected.rows.get(key);
+    }
+    Iterator<Row> scanned = storage.scan(tableName, null, null);
+    int n = 0;
+    while (scanned.hasNext()) {
+      if (!scanned.next().key().equals(ignoredKey))
+        n++;
+    }
+    if (n != expectedKeys.size())
+      return "A scan of table " + tableName + " returned " + n + " row(s), but we expected " + expectedKeys.size();
+    return null;
+  }
+
+  static String mismatch(Storage storage, String tableName, Expected expected) throws IOException {
+    return mismatch(storage, tableName, expected, null);
+  }
+
+  static String abbreviate(List<String> keys) {
+    return (keys.size() <= 10) ? keys.toString() : keys.subList(0, 10) + "... (" + keys.size() + " keys)";
+  }
+
+  // Waits until the engine's background work (flushes, compactions, collections, checkpoints)
+  // has stopped changing the files in the directory
+  static void waitForQuiet(File dir) throws Exception {
+    String last = null;
+    long stableSince = System.currentTimeMillis();
+    while (true) {
+      String now = listing(dir);
+      if (!now.equals(last)) {
+        last = now;
+        stableSince = System.currentTimeMillis();
+      } else if (System.currentTimeMillis() - stableSince >= 500) {
+        return;
+      }
+      Thread.sleep(50);
+    }
+  }
+
+  // Names and sizes of the files under the directory; files may disappear while it's listed
+  static String listing(File dir) {
+    StringBuilder sb = new StringBuilder();
+    File[] entries = dir.listFiles();
+    if (entries == null)
+      return "";
+    Arrays.sort(entries);
+    for (File f : entries) {
+      sb.append(f.getName()).append(' ').append(f.length()).append('\n');
+      if (f.isDirectory())
+        sb.append(listing(f));
+    }
+    return sb.toString();
+  }
+
+  static List<File> files(File dir, String prefix, String suffix) {
+    File[] found = dir.listFiles((d, name) -> name.startsWith(prefix) && name.endsWith(suffix));
+    List<File> sorted = new ArrayList<>((found != null) ? Arrays.asList(found) : List.of());
+    sorted.sort(Comparator.comparing(File::getName));
+    return sorted;
+  }
+
+  static void append(File file, byte[] bytes) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(file, true)) {
+      out.write(bytes);
+    }
+  }
+
+  static byte[] header(int length, int crc) {
+    return ByteBuffer.allocate(8).putInt(length).putInt(crc).array();
+  }
+
+  static void deleteRecursively(File dir) throws IOException {
+    if (!dir.exists())
+      return;
+    try (var files = Files.walk(dir.toPath())) {
+      for (Path p : files.sorted(Comparator.reverseOrder()).toList())
+        Files.delete(p);
+    }
+  }
+
+  // The scratch directory from the command line, or else a new temporary one
+  static File scratchDir(String args[], String prefix) throws IOException {
+    return (args.length > 0) ? new File(args[0]) : Files.createTempDirectory(prefix).toFile();
+  }
+
+  // Runs the tests in an empty scratch directory, which is deleted afterwards, and exits with
+  // their result
+  static void run(StorageTest t) throws Exception {
+    t.setExitUponFailure(false);
+    t.setTimeoutMillis(60000);
+    deleteRecursively(t.base);
+    t.base.mkdirs();
+    t.runTests();
+    System.out.println();
+    System.out.println((t.numTestsFailed == 0) ? "All tests passed" : t.numTestsFailed + " test(s) failed");
+    deleteRecursively(t.base);
+    System.exit((t.numTestsFailed == 0) ? 0 : 1);
+  }
+}
@@ -3,13 +3,32 @@ package flame.tools;
 import java.util.*;
 import java.net.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import javax.net.ssl.*;
 import java.security.*;
 import java.security.cert.X509Certificate;
 
-// This class is NOT thread-safe! If you have more than one thread, each thread should get its own instance.
+// A thread-safe HTTP/1.1 client that keeps connections open and reuses them across threads.
+// Each host has a pool of idle connections and a limit on the connections it may have open
+// (-Dhttp.maxConnectionsPerHost, default 64); a request that finds the limit reached waits for
+// one to come back. Idle connections are closed after -Dhttp.idleTimeout ms (default 15000).
+// A pooled connection that the server has closed in the meantime is only noticed when a request
+// gets no response on it. GET and HEAD requests are then sent again on a fresh connection; other
+// requests fail, since the server may have applied them. Servers close idle connections later
+// than this pool does (see webserver.Server), so that is rare.
+//
+// A connection goes back to the pool only if the response says how long it is (Content-Length
+// or chunked) and the server didn't close it. Responses that are streamed until the end of the
+// connection, like KVS scans, are read with stream(); those connections are never pooled and
+// don't count against the limit, since they are as long-lived as the caller makes them.
 
 public class HTTP {
+  static final int MAX_CONNECTIONS_PER_HOST = Integer.getInteger("http.maxConnectionsPerHost", 64);
+  static final long IDLE_TIMEOUT_MILLIS = Long.getLong("http.idleTimeout", 15000);
+  static final int CONNECT_TIMEOUT_MILLIS = Integer.getInteger("http.connectTimeout", 10000);
+  // Request bodies up to this size go out with the headers, in one write
+  static final int INLINE_BODY_BYTES = 16384;
+
   public static class Response {
     byte body[];
     Map<String,String> headers;
@@ -34,32 +53,189 @@ public class HTTP {
     }
   }
 
-  static Map<String,Vector<Socket>> cachedConnections;
+  // A response whose body is read as it arrives; close() it when done, which closes the connection
+  public static class StreamResponse implements Closeable {
+    final Connection connection;
+    final InputStream body;
+    final Map<String,String> headers;
+    final int statusCode;
 
-  static Socket openSocket(String protocol, String host, int port) {
-    try {
-      if (protocol.equals("https")) {
-        TrustManager[] trustAllCerts = { new X509TrustManager() {
-          public X509Certificate[] getAcceptedIssuers() { return null; }
-          public void checkClientTrusted(X509Certificate[] certs, String authType) { }
-          public void checkServerTrusted(X509Certificate[] certs, String authType) { }
-        } };
-        SSLContext sc;
-        try { 
-          sc = SSLContext.getInstance("SSL"); 
-          sc.init(null, trustAllCerts, new SecureRandom());
-          return sc.getSocketFactory().createSocket(host, port);
-        } catch (NoSuchAlgorithmException nsae) {
-        } catch (KeyManagementException kme) {
+    StreamResponse(Connection connectionArg, InputStream bodyArg, Map<String,String> headersArg, int statusCodeArg) {
+      connection = connectionArg;
+      body = bodyArg;
+      headers = headersArg;
+      statusCode = statusCodeArg;
+    }
+
+    public InputStream body() {
+      return body;
+    }
+
+    public int statusCode() {
+      return statusCode;
+    }
+
+    public Map<String,String> headers() {
+      return headers;
+    }
+
+    // Also unblocks a thread that is reading the body
+    public void close() {
+      connection.close();
+    }
+  }
+
+  static class Connection {
+    final Socket socket;
+    final InputStream in;
+    final OutputStream out;
+    long lastUsed;
+
+    Connection(Socket socketArg) throws IOException {
+      socket = socketArg;
+      in = new BufferedInputStream(socket.getInputStream(), 65536);
+      out = socket.getOutputStream();
+    }
+
+    // Data waiting on an idle connection can't be the answer to anything, so it's unusable
+    boolean healthy(long now) {
+      try {
+        return !socket.isClosed() && (now - lastUsed < IDLE_TIMEOUT_MILLIS) && (in.available() == 0);
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  // The connections of one host: idle ones, most recently used first, and the number open
+  static class Pool {
+    final ArrayDeque<Connection> idle = new ArrayDeque<>();
+    int open;
+  }
+
+  static final Map<String,Pool> pools = new HashMap<String,Pool>();
+  static SSLSocketFactory sslSocketFactory;
+
+  static {
+    Thread reaper = new Thread(() -> {
+      while (true) {
+        try {
+          Thread.sleep(Math.max(IDLE_TIMEOUT_MILLIS / 2, 100));
+        } catch (InterruptedException ie) {
+          return;
+        }
+        closeIdle();
+      }
+    }, "http-reaper");
+    reaper.setDaemon(true);
+    reaper.start();
+  }
+
+  static void closeIdle() {
+    long now = System.currentTimeMillis();
+    List<Pool> all;
+    synchronized (pools) {
+      all = new ArrayList<Pool>(pools.values());
+    }
+    for (Pool pool : all) {
+      synchronized (pool) {
+        while (!pool.idle.isEmpty() && (now - pool.idle.peekLast().lastUsed >= IDLE_TIMEOUT_MILLIS)) {
+          pool.idle.pollLast().close();
+          pool.open--;
+          pool.notifyAll();
+        }
+      }
+    }
+  }
+
+  static Pool pool(String serverID) {
+    synchronized (pools) {
+      return pools.computeIfAbsent(serverID, id -> new Pool());
+    }
+  }
+
+  // An idle connection to the host, or null once the caller may open a new one
+  static Connection checkout(Pool pool, String host, int port) throws IOException {
+    long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+    synchronized (pool) {
+      while (true) {
+        long now = System.currentTimeMillis();
+        Connection c;
+        while ((c = pool.idle.pollFirst()) != null) {
+          if (c.healthy(now))
+            return c;
+          c.close();
+          pool.open--;
         }
-      } else if (protocol.equals("http")) {
-        return new Socket(host, port);
+        if (pool.open < MAX_CONNECTIONS_PER_HOST) {
+          pool.open++;
+          return null;
+        }
+        if (now >= deadline)
+          throw new IOException("No free connection to "+host+":"+port+" ("+pool.open+" open)");
+        try {
+          pool.wait(deadline - now);
+        } catch (InterruptedException ie) {
+          throw new InterruptedIOException("Interrupted while waiting for a connection to "+host+":"+port);
+        }
+      }
+    }
+  }
+
+  static void release(Pool pool, Connection c, boolean reusable) {
+    synchronized (pool) {
+      if (reusable) {
+        c.lastUsed = System.currentTimeMillis();
+        pool.idle.addFirst(c);
+      } else {
+        c.close();
+        pool.open--;
+      }
+      pool.notifyAll();
+    }
+  }
+
+  static synchronized SSLSocketFactory sslSocketFactory() throws IOException {
+    if (sslSocketFactory == null) {
+      TrustManager[] trustAllCerts = { new X509TrustManager() {
+        public X509Certificate[] getAcceptedIssuers() { return null; }
+        public void checkClientTrusted(X509Certificate[] certs, String authType) { }
+        public void checkServerTrusted(X509Certificate[] certs, String authType) { }
+      } };
+      try {
+        SSLContext sc = SSLContext.getInstance("SSL");
+        sc.init(null, trustAllCerts, new SecureRandom());
+        sslSocketFactory = sc.getSocketFactory();
+      } catch (NoSuchAlgorithmException | KeyManagementException e) {
+        throw new IOException("Cannot set up SSL: "+e.getMessage(), e);
       }
-    } catch (Exception e) {
-      e.printStackTrace();
     }
+    return sslSocketFactory;
+  }
 
-    return null;
+  static Connection openConnection(String protocol, String host, int port) throws IOException {
+    if (!protocol.equals("http") && !protocol.equals("https"))
+      throw new IOException("Unsupported protocol '"+protocol+"'");
+    Socket sock = new Socket();
+    try {
+      // Requests are small writes that wait for an answer, which Nagle's algorithm would hold back
+      sock.setTcpNoDelay(true);
+      sock.setKeepAlive(true);
+      sock.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+      if (protocol.equals("https"))
+        sock = sslSocketFactory().createSocket(sock, host, port, true);
+      return new Connection(sock);
+    } catch (IOException e) {
+      try { sock.close(); } catch (IOException e2) {}
+      throw new IOException("Cannot connect to server "+host+":"+port+" ("+e.getMessage()+")", e);
+    }
   }
 
   public static Response doRequest(String method, String urlArg, byte uploadOrNull[]) throws IOException {
@@ -67,144 +243,266 @@ public class HTTP {
   }
 
   public static Response doRequestWithTimeout(String method, String urlArg, byte uploadOrNull[], int timeoutMillis, boolean isHeadRequest) throws IOException {
-    String protocol = "http";
-    int pos = urlArg.indexOf("://");
-    if (pos >= 0) {
-      protocol = urlArg.substring(0, pos);
-      urlArg = urlArg.substring(pos+3);
-    }
-    pos = urlArg.indexOf('/');
-    if (pos < 0)
+    Target target = Target.parse(urlArg);
+    if (target == null)
       return null;
 
-    String host = urlArg.substring(0, pos), path = urlArg.substring(pos);
-    int port = (protocol.equals("https")) ? 443 : 80;
-    pos = host.indexOf(":");
-    if (pos > 0) {
-      String sport = host.substring(pos+1);
-      try { port = Integer.valueOf(sport).intValue(); } catch (NumberFormatException nfe) {}
-      host = host.substring(0, pos);
-    }
-
-    String serverID = protocol+"-"+host+"-"+port;
-
+    Pool pool = pool(target.serverID());
     while (true) {
-      boolean usingCached = false;
-      Socket sock = null;
-      if ((cachedConnections != null) && (cachedConnections.get(serverID) != null)) {
-        synchronized(cachedConnections) {
-          if (cachedConnections.get(serverID).size() > 0)
-            sock = cachedConnections.get(serverID).remove(0);
+      Connection c = checkout(pool, target.host, target.port);
+      boolean pooled = (c != null);
+      if (c == null) {
+        try {
+          c = openConnection(target.protocol, target.host, target.port);
+        } catch (IOException e) {
+          synchronized (pool) {
+            pool.open--;
+            pool.notifyAll();
+          }
+          throw e;
         }
-        if (sock != null)
-          usingCached = true;
       }
-      if (sock == null)
-        sock = openSocket(protocol, host, port);
-      if (sock == null)
-        throw new IOException("Cannot connect to server "+host+":"+port);
 
       try {
-        if (timeoutMillis > 0)
-          sock.setSoTimeout(timeoutMillis);
-
-        OutputStream out = sock.getOutputStream();
-        String request = method+" "+path+" HTTP/1.1\r\nHost: "+host+"\r\n";
-//  System.out.println((usingCached ? "[CACHED]" : "[FRESH]")+request);
-      if (uploadOrNull != null)
-          request = request + "Content-Length: "+uploadOrNull.length+"\r\n";
-        request = request + "Connection: keep-alive\r\n\r\n";
-        out.write(request.getBytes());
-        if (uploadOrNull != null)
-          out.write(uploadOrNull);
-        out.flush();
+        c.socket.setSoTimeout((timeoutMillis > 0) ? timeoutMillis : 0);
+        writeRequest(c, method, target, uploadOrNull);
       } catch (IOException ioe) {
-        try { sock.close(); } catch (Exception e) {}
-        if (usingCached) {
-          System.out.println("XXX cached connection failed; continuing with normal connection");
+        release(pool, c, false);
+        if (pooled)
           continue;
-        }
-        throw new IOException("Connection to "+host+":"+port+" failed while writing the request");
+        throw new IOException("Connection to "+target.host+":"+target.port+" failed while writing the request ("+ioe+")");
       }
 
-  
-      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-      boolean readingHeaders = true;
-      int contentLength = -1;
+      boolean answered = false;
+      try {
+        int first = c.in.read();
+        if (first < 0)
+          throw new EOFException("Connection closed by server");
+        answered = true;
+        Map<String,String> headers = new HashMap<String,String>();
+        int statusCode = readHead(c.in, first, headers);
+        Body body = body(c.in, headers, isHeadRequest);
+        byte bytes[] = body.in.readAllBytes();
+        release(pool, c, body.reusable);
+        return new Response(bytes, headers, statusCode);
+      } catch (IOException e) {
+        release(pool, c, false);
+        // The server closed an idle connection, maybe before it got the request. Only requests
+        // that can safely run twice are sent again; e.g. a PUT that adds to a column could have
+        // been applied already.
+        if (pooled && !answered && idempotent(method) && (e instanceof EOFException || e instanceof SocketException))
+          continue;
+        throw new IOException("Connection to "+target.host+":"+target.port+" failed while reading the response ("+e+")");
+      }
+    }
+  }
+
+  static boolean idempotent(String method) {
+    return method.equals("GET") || method.equals("HEAD");
+  }
+
+  // Sends the request on a connection of its own and returns once the status and headers have
+  // arrived; the caller reads the body from the response and closes it
+  public static StreamResponse stream(String method, String urlArg, byte uploadOrNull[]) throws IOException {
+    Target target = Target.parse(urlArg);
+    if (target == null)
+      throw new IOException("Malformed URL '"+urlArg+"'");
+    Connection c = openConnection(target.protocol, target.host, target.port);
+    try {
+      writeRequest(c, method, target, uploadOrNull);
+      int first = c.in.read();
+      if (first < 0)
+        throw new EOFException("Connection closed by server");
       Map<String,String> headers = new HashMap<String,String>();
-      byte buf[] = new byte[100000];
-      int inBuf = 0;
-      int statusCode = -1;
+      int statusCode = readHead(c.in, first, headers);
+      return new StreamResponse(c, body(c.in, headers, method.equals("HEAD")).in, headers, statusCode);
+    } catch (IOException e) {
+      c.close();
+      throw new IOException("Request to "+target.host+":"+target.port+" failed ("+e+")", e);
+    }
+  }
 
-      try {
-        InputStream in = sock.getInputStream();
-        while (true) {
-          int n = in.read(buf, inBuf, buf.length - inBuf);
-          if (n<0)
-            break;
-
-          inBuf += n;
-          if (readingHeaders) {
-            int matchPtr = 0;
-            for (int i=0; i<inBuf; i++) {
-              if (buf[i] == 10)
-                matchPtr ++;
-               else if (buf[i] != 13)
-                matchPtr = 0;
-
-              if (matchPtr == 2) {
-                buffer.write(buf, 0, i);
-                ByteArrayInputStream bais = new ByteArrayInputStream(buffer.toByteArray());
-                BufferedReader hdr = new BufferedReader(new InputStreamReader(bais));
-                String statusLine[] = hdr.readLine().split(" ");
-                statusCode = Integer.valueOf(statusLine[1]);
-
-                while (true) {
-                  String s = hdr.readLine();
-                  if (s.equals(""))
-                    break;
-                  String[] p2 = s.split(":", 2);
-                  if (p2.length == 2) {
-                    String headerName = p2[0];
-                    headers.put(headerName.toLowerCase(), p2[1].trim());
-                    if (headerName.toLowerCase().equals("content-length"))
-                      contentLength = Integer.parseInt(p2[1].trim());
-                  }
-                }
-                buffer.reset();
-                System.arraycopy(buf, i+1, buf, 0, inBuf-(i+1));
-                inBuf -= (i+1);
-                readingHeaders = false;
-                break;
-              }
-            }
-          }
+  record Target(String protocol, String host, int port, String path) {
+    String serverID() {
+      return protocol+"-"+host+"-"+port;
+    }
 
-          if (!readingHeaders) {
-            int toCopy = ((contentLength>=0) && (inBuf > contentLength)) ? contentLength : inBuf;
-            buffer.write(buf, 0, toCopy);
-            System.arraycopy(buf, toCopy, buf, 0, inBuf-toCopy);
-            inBuf -= toCopy;
+    static Target parse(String urlArg) {
+      String protocol = "http";
+      int pos = urlArg.indexOf("://");
+      if (pos >= 0) {
+        protocol = urlArg.substring(0, pos);
+        urlArg = urlArg.substring(pos+3);
+      }
+      pos = urlArg.indexOf('/');
+      if (pos < 0)
+        return null;
 
-            if ((buffer.size() >= contentLength) || isHeadRequest)
-              break;
-          }
-        }
-      } catch (Exception e) {
-        try { sock.close(); } catch (Exception e2) {}
-        e.printStackTrace();
-        throw new IOException("Connection to "+host+":"+port+" failed while reading the response ("+e+")");
+      String host = urlArg.substring(0, pos), path = urlArg.substring(pos);
+      int port = (protocol.equals("https")) ? 443 : 80;
+      pos = host.indexOf(":");
+      if (pos > 0) {
+        String sport = host.substring(pos+1);
+        try { port = Integer.valueOf(sport).intValue(); } catch (NumberFormatException nfe) {}
+        host = host.substring(0, pos);
       }
+      return new Target(protocol, host, port, path);
+    }
+  }
+
+  static void writeRequest(Connection c, String method, Target target, byte uploadOrNull[]) throws IOException {
+    String request = method+" "+target.path+" HTTP/1.1\r\nHost: "+target.host+"\r\n";
+    if (uploadOrNull != null)
+      request = request + "Content-Length: "+uploadOrNull.length+"\r\n";
+    request = request + "Connection: keep-alive\r\n\r\n";
+    byte head[] = request.getBytes(StandardCharsets.ISO_8859_1);
+    if ((uploadOrNull != null) && (uploadOrNull.length <= INLINE_BODY_BYTES)) {
+      byte both[] = Arrays.copyOf(head, head.length + uploadOrNull.length);
+      System.arraycopy(uploadOrNull, 0, both, head.length, uploadOrNull.length);
+      c.out.write(both);
+    } else {
+      c.out.write(head);
+      if (uploadOrNull != null)
+        c.out.write(uploadOrNull);
+    }
+    c.out.flush();
+  }
+
+  // A response that has started to arrive but is malformed or cut off; never retried
+  static class ResponseException extends IOException {
+    private static final long serialVersionUID = 1L;
 
-      if (cachedConnections == null) 
-        cachedConnections = new HashMap<String,Vector<Socket>>();
-      synchronized(cachedConnections) {
-        if (cachedConnections.get(serverID) == null)
-          cachedConnections.put(serverID, new Vector<Socket>());
-        cachedConnections.get(serverID).add(sock);
+    ResponseException(String message) {
+      super(message);
+    }
+  }
+
+  // Reads the status line (whose first byte has been read already) and the headers, whose
+  // names are lower-cased; returns the status code
+  static int readHead(InputStream in, int first, Map<String,String> headers) throws IOException {
+    String statusLine[] = readLine(in, first).split(" ");
+    if ((statusLine.length < 2) || !statusLine[0].startsWith("HTTP/"))
+      throw new ResponseException("Malformed status line");
+    int statusCode;
+    try {
+      statusCode = Integer.parseInt(statusLine[1]);
+    } catch (NumberFormatException nfe) {
+      throw new ResponseException("Malformed status line");
+    }
+    while (true) {
+      String s = readLine(in, in.read());
+      if (s.equals(""))
+        break;
+      String[] p2 = s.split(":", 2);
+      if (p2.length == 2)
+        headers.put(p2[0].toLowerCase(), p2[1].trim());
+    }
+    return statusCode;
+  }
+
+  static String readLine(InputStream in, int b) throws IOException {
+    StringBuilder line = new StringBuilder();
+    while (b != '\n') {
+      if (b < 0)
+        throw new ResponseException("Connection closed in the middle of the response headers");
+      if (b != '\r')
+        line.append((char) b);
+      b = in.read();
+    }
+    return line.toString();
+  }
+
+  // The body, and whether the connection can be used again once it has been read to the end
+  record Body(InputStream in, boolean reusable) {}
+
+  static Body body(InputStream in, Map<String,String> headers, boolean isHeadRequest) throws IOException {
+    boolean close = "close".equalsIgnoreCase(headers.get("connection"));
+    if (isHeadRequest)
+      return new Body(InputStream.nullInputStream(), !close);
+    if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding")))
+      return new Body(new ChunkedInputStream(in), !close);
+    String length = headers.get("content-length");
+    if (length != null) {
+      try {
+        return new Body(new LimitedInputStream(in, Long.parseLong(length)), !close);
+      } catch (NumberFormatException nfe) {
+        throw new ResponseException("Malformed Content-Length '"+length+"'");
       }
+    }
+    return new Body(in, false);
+  }
+
+  // Exactly the given number of bytes, or an error if the connection ends before
+  static class LimitedInputStream extends InputStream {
+    final InputStream in;
+    long remaining;
+
+    LimitedInputStream(InputStream inArg, long remainingArg) {
+      in = inArg;
+      remaining = remainingArg;
+    }
 
-      return new Response(buffer.toByteArray(), headers, statusCode);
+    public int read() throws IOException {
+      byte b[] = new byte[1];
+      return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+    }
+
+    public int read(byte b[], int off, int len) throws IOException {
+      if (remaining <= 0)
+        return -1;
+      int n = in.read(b, off, (int) Math.min(len, remaining));
+      if (n < 0)
+        throw new ResponseException("Connection closed with "+remaining+" bytes of the response body missing");
+      remaining -= n;
+      return n;
+    }
+
+    public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+  }
+
+  // The body of a chunked response, decoded
+  static class ChunkedInputStream extends InputStream {
+    final InputStream in;
+    long inChunk;
+    boolean done;
+
+    ChunkedInputStream(InputStream inArg) {
+      in = inArg;
+    }
+
+    public int read() throws IOException {
+      byte b[] = new byte[1];
+      return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+    }
+
+    public int read(byte b[], int off, int len) throws IOException {
+      if (done)
+        return -1;
+      if (inChunk == 0) {
+        String size = readLine(in, in.read());
+        int ext = size.indexOf(';');
+        try {
+          inChunk = Long.parseLong(((ext >= 0) ? size.substring(0, ext) : size).trim(), 16);
+        } catch (NumberFormatException nfe) {
+          throw new ResponseException("Malformed chunk size '"+size+"'");
+        }
+        if (inChunk == 0) {
+          // Trailers, up to the empty line
+          while (!readLine(in, in.read()).equals("")) {
+          }
+          done = true;
+          return -1;
+        }
+      }
+      int n = in.read(b, off, (int) Math.min(len, inChunk));
+      if (n < 0)
+        throw new ResponseException("Connection closed in the middle of a chunk");
+      inChunk -= n;
+      if (inChunk == 0)
+        readLine(in, in.read());
+      return n;
     }
   }
-}
\ No newline at end of file
+}
@@ -84,6 +84,25 @@ public class Partitioner {
             }
         });
 
+        // With virtual nodes, every KVS worker holds many small ranges, usually more than we need.
+        // Adjacent ranges are merged into runs of about the same number of ranges (but no fewer
+        // runs than there are KVS workers), so a job sends one request per run rather than one per
+        // virtual node; a run is named after the KVS worker of its first range
+        HashSet<String> kvsWorkers = new HashSet<>();
+        for (Partition p : partitions)
+            kvsWorkers.add(p.kvsWorker);
+        int runs = Math.max(requiredNumberOfPartitions, kvsWorkers.size());
+        if (partitions.size() > runs) {
+            Vector<Partition> merged = new Vector<>();
+            int n = partitions.size();
+            for (int i = 0; i < runs; i++) {
+                Partition first = partitions.elementAt((int) ((long) i * n / runs));
+                Partition last = partitions.elementAt((int) ((long) (i + 1) * n / runs) - 1);
+                merged.add(new Partition(first.kvsWorker, first.fromKey, last.toKeyExclusive));
+            }
+            partitions = merged;
+        }
+
         // create a hashset of current split points to avoid creating empty partitions
         // (unlikely)
         HashSet<String> currSplits = new HashSet<>();
@@ -19,11 +19,23 @@ public class Serializer {
   }
 
   public static Object byteArrayToObject(byte b[], File jarFileToLoadClassesFrom) {
+    try {
+      ClassLoader oldCL = Thread.currentThread().getContextClassLoader();
+      URLClassLoader newCL = (jarFileToLoadClassesFrom != null) ? new URLClassLoader (new URL[] {jarFileToLoadClassesFrom.toURI().toURL()}, oldCL) : null;
+      return byteArrayToObject(b, newCL);
+    } catch (Exception e) {
+     	e.printStackTrace();
+    }
+    return null;
+  }
+
+  // Resolves classes that the application doesn't have with the given loader (if not null), so
+  // callers that deserialize many objects from the same JAR can share one loader
+  public static Object byteArrayToObject(byte b[], ClassLoader newCL) {
   	Object result = null;
     try {
       ByteArrayInputStream bais = new ByteArrayInputStream(b);
       ClassLoader oldCL = Thread.currentThread().getContextClassLoader();
-      URLClassLoader newCL = (jarFileToLoadClassesFrom != null) ? new URLClassLoader (new URL[] {jarFileToLoadClassesFrom.toURI().toURL()}, oldCL) : null;
       ObjectInputStream ois = new ObjectInputStream(bais) {
         protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
           try {
@@ -32,8 +44,9 @@ public class Serializer {
           } catch (ClassNotFoundException cnfe) {
             if (newCL != null) 
               return newCL.loadClass(desc.getName());
+            // No JAR, e.g. for the KVS's own row filters: use the application's classes
+            return Class.forName(desc.getName(), false, oldCL);
           }
-          return null;
         }
       };
       result = ois.readObject();
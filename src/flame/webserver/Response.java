@@ -1,5 +1,7 @@
 package flame.webserver;
 
+import java.nio.channels.FileChannel;
+
 public interface Response {
 
   // The methods below are used to set the body, either as a string or as an array of bytes 
@@ -37,6 +39,16 @@ public interface Response {
   // it should simply write the provided bytes directly to the connection.
   void write(byte[] b) throws Exception;
 
+  // Like write(), but the bytes may be held in a buffer, and sent together with later ones, until
+  // the buffer fills up, another write() is called, or the route returns. Meant for streaming
+  // many small pieces (e.g. the rows of a scan) without a packet for each.
+  void writeBuffered(byte[] b, int offset, int length) throws Exception;
+
+  // Like write(), but sends count bytes of the given file, starting at position. The bytes go
+  // from the file to the connection with FileChannel.transferTo, i.e. without passing through
+  // the heap where the operating system allows it.
+  void write(FileChannel channel, long position, long count) throws Exception;
+
   // EXTRA CREDIT ONLY - please see the handout for details. If you are not doing the extra
   // credit, please implement this with a dummy method that does nothing.
   void redirect(String url, int responseCode);
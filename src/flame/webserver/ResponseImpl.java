@@ -1,7 +1,12 @@
 package flame.webserver;
 
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 
@@ -17,9 +22,18 @@ public class ResponseImpl implements Response {
 
     // Add OutputStream to write directly to the connection
     private final OutputStream outputStream;
+    // The connection as a channel, if it has one (plain HTTP); file transfers go straight to it
+    private final WritableByteChannel channel;
+    // Holds the bytes of writeBuffered() until they fill it or are flushed
+    private BufferedOutputStream bufferedStream;
 
     public ResponseImpl(OutputStream outputStream) {
+        this(outputStream, null);
+    }
+
+    public ResponseImpl(OutputStream outputStream, WritableByteChannel channel) {
         this.outputStream = outputStream;
+        this.channel = channel;
         this.headers = new LinkedHashMap<>();
         this.type("text/html");
     }
@@ -68,6 +82,40 @@ public class ResponseImpl implements Response {
 
     @Override
     public void write(byte[] b) throws Exception {
+        commit();
+        bufferedStream.write(b);
+        bufferedStream.flush();
+    }
+
+    @Override
+    public void writeBuffered(byte[] b, int offset, int length) throws Exception {
+        commit();
+        bufferedStream.write(b, offset, length);
+    }
+
+    @Override
+    public void write(FileChannel fileChannel, long position, long count) throws Exception {
+        commit();
+        bufferedStream.flush();
+        WritableByteChannel target = (channel != null) ? channel : Channels.newChannel(outputStream);
+        while (count > 0) {
+            long n = fileChannel.transferTo(position, count, target);
+            if (n <= 0)
+                throw new EOFException("File ended " + count + " bytes before the end of the transfer");
+            position += n;
+            count -= n;
+        }
+        outputStream.flush();
+    }
+
+    // Sends whatever writeBuffered() has left in the buffer
+    public void flush() throws IOException {
+        if (bufferedStream != null) {
+            bufferedStream.flush();
+        }
+    }
+
+    private void commit() throws IOException {
         if (!writeCalled && !redirectCalled) {
             writeCalled = true;
 //            headers.remove("Content-Length");
@@ -76,8 +124,9 @@ public class ResponseImpl implements Response {
             header("Connection", "close");
             sendHeaders();
         }
-        outputStream.write(b);
-        outputStream.flush();
+        if (bufferedStream == null) {
+            bufferedStream = new BufferedOutputStream(outputStream, 1 << 16);
+        }
     }
 
     private void sendHeaders() throws IOException {
@@ -9,8 +9,11 @@ import javax.net.ssl.SSLServerSocketFactory;
 //import javax.net.ssl.SSLServerSocketFactory;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
 import java.security.*;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -24,6 +27,11 @@ import java.util.concurrent.TimeUnit;
 public class Server {
     private static final Logger logger = Logger.getLogger(Server.class);
     private static final int NUM_WORKERS = 100;
+    // Every open connection holds one of the NUM_WORKERS threads, so connections that send nothing
+    // for this long are closed. Clients close pooled connections that have been idle for 15 s
+    // (see HTTP), before the server does, since a request on a connection the server has just
+    // closed can't always be sent again
+    private static final int IDLE_TIMEOUT_MILLIS = Integer.getInteger("http.serverIdleTimeout", 30000);
     private static int port = 80; // Default Port: 80
     private static int securePort = -1; // Default Value: -1 (invalid port number)
     public static String location = null; // Default Location: null
@@ -72,6 +80,9 @@ public class Server {
                 try {
                     Socket clientSocket = serverSocket.accept(); // Accept a client connection
                     logger.info("Client connected: " + clientSocket.getInetAddress());
+                    // Responses are often small writes on kept-alive connections; don't let Nagle hold them back
+                    clientSocket.setTcpNoDelay(true);
+                    clientSocket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
 
                     try {
                         threadPool.submit(new Worker(clientSocket, location)); // Handle the connection
@@ -158,8 +169,12 @@ public class Server {
             Thread httpsThread = null;
 
 
-            // Initilize HTTP Socket + Thread and Launch HTTP ServerLoop
-            serverSocketHTTP = new ServerSocket(port);
+            // Initilize HTTP Socket + Thread and Launch HTTP ServerLoop. The socket is opened as a
+            // channel, so connections have one too and Response.write() can hand files to sendfile
+            ServerSocketChannel serverChannelHTTP = ServerSocketChannel.open();
+            serverChannelHTTP.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannelHTTP.bind(new InetSocketAddress(port));
+            serverSocketHTTP = serverChannelHTTP.socket();
             httpThread = new Thread(() -> serverLoop(serverSocketHTTP, threadPool));
             httpThread.start();
             logger.info("HTTP server started on port " + port);
@@ -7,6 +7,7 @@ import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -42,6 +43,8 @@ class Worker implements Runnable {
                 OutputStream outputStream = clientSocket.getOutputStream();
         ) {
             handleRequest(inputStream, outputStream);
+        } catch (SocketTimeoutException ex) {
+            logger.info("Closing connection that was idle for too long");
         } catch (IOException ex) {
             logger.error("Error handling client request: " + ex.getMessage(), ex);
         } finally {
@@ -160,7 +163,7 @@ class Worker implements Runnable {
             // Check for matching routes
             boolean routeMatched = false;
             List<RouteEntry> routes = Server.getRoutes(); // Get the routes from the Server class
-            ResponseImpl response = new ResponseImpl(outputStream);
+            ResponseImpl response = new ResponseImpl(outputStream, clientSocket.getChannel());
             for (RouteEntry routeEntry : routes) {
                 if (routeEntry.method().equalsIgnoreCase(method) && routeEntry.matches(uri)) {
                     routeMatched = true;
@@ -188,6 +191,7 @@ class Worker implements Runnable {
 
                     try {
                         Object result = routeEntry.handler().handle(request, response);
+                        response.flush();
                         if (!response.isWriteCalled()) {
                             // Determine response body according to the rules, including the case with redirects
                             byte[] responseBody = null;